@@ -0,0 +1,151 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 短いエコーのコネクションを複数のスレッドから繰り返し確立し，
+ * サーバが1秒あたりに受け付けられるコネクション数を調べる実験
+ * <p>
+ * 同一ホスト上で，下記のように待ち受けるソケット数だけを変えて起動したサーバに対して実行し，
+ * 結果を比較する．SYN キュー・accept キューのあふれは /proc/net/netstat の
+ * ListenOverflows と ListenDrops の増分から求めるため，Linux 上でのみ計測できる．
+ * <pre>
+ * java ProtocolLauncher &lt;Port&gt; Echo ThreadPool
+ * java -DProtocolLauncher.acceptors=4 ProtocolLauncher &lt;Port&gt; Echo ThreadPool
+ * </pre>
+ */
+public class AcceptStormExperiment
+{
+    /**
+     * コネクション確立の実験用クライアントを利用するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 4) {
+            System.out.println("Parameters: <Server> <Port> <Threads> <Seconds>");
+            return;
+        }
+        // サーバ名(またはIPアドレス)，サーバのポート番号，
+        // クライアントのスレッド数，実験時間(秒)を引数から取得する．
+        String servAddr   = args[0];
+        int    servPort   = Integer.parseInt(args[1]);
+        int    numThreads = Integer.parseInt(args[2]);
+        int    duration_s = Integer.parseInt(args[3]);
+        
+        try {
+            AcceptStormExperiment client = new AcceptStormExperiment(servAddr, servPort);
+            client.execute(numThreads, duration_s);
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    // インスタンス変数：
+    private final String servAddr;      // サーバのIPアドレス(またはホスト名)
+    private final int    servPort;      // サーバのポート番号
+    
+    private final AtomicLong numSucceeded = new AtomicLong();  // エコーに成功したコネクション数
+    private final AtomicLong numFailed    = new AtomicLong();  // 失敗したコネクション数
+    
+    /**
+     * AcceptStormExperiment のインスタンスを生成する．
+     */
+    AcceptStormExperiment(String servAddr, int servPort)
+    {
+        this.servAddr = servAddr;
+        this.servPort = servPort;
+    }
+    
+    /**
+     * 指定したスレッド数で，指定した時間だけコネクションの確立を繰り返し，結果を出力する．
+     */
+    void execute(int numThreads, int duration_s)
+        throws IOException,
+            InterruptedException
+    {
+        // 実験前のキューあふれの回数を取得する．
+        long overflowsBefore = readTcpExt("ListenOverflows");
+        long dropsBefore     = readTcpExt("ListenDrops");
+        
+        // 実験の終了時刻を求め，スレッドを生成・開始する．
+        long         endTime_ms = System.currentTimeMillis() + duration_s * 1000L;
+        List<Thread> threads   = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            Thread thread = new Thread(() -> connectLoop(endTime_ms));
+            thread.start();
+            threads.add(thread);
+        }
+        // 全てのスレッドの終了を待つ．
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // 実験後のキューあふれの回数を取得する．
+        long overflows = readTcpExt("ListenOverflows") - overflowsBefore;
+        long drops     = readTcpExt("ListenDrops") - dropsBefore;
+        
+        // 結果を出力する．
+        System.out.printf(
+            "スレッド数：%d，実験時間：%d 秒，成功：%,d，失敗：%,d，"
+                + "コネクション数/秒：%,.1f，ListenOverflows：%d，ListenDrops：%d\n",
+            numThreads, duration_s, this.numSucceeded.get(), this.numFailed.get(),
+            this.numSucceeded.get() / (double)duration_s, overflows, drops
+        );
+    }
+    
+    /**
+     * 終了時刻まで，コネクションの確立・1バイトのエコー・切断を繰り返す．
+     */
+    private void connectLoop(long endTime_ms)
+    {
+        byte[] echoData = new byte[1];
+        while (System.currentTimeMillis() < endTime_ms) {
+            try (Socket socket = new Socket(this.servAddr, this.servPort)) {
+                OutputStream out = socket.getOutputStream();
+                InputStream  in  = socket.getInputStream();
+                out.write(echoData);
+                if (in.read(echoData) != 1) {
+                    throw new IOException("サーバがコネクションを切断しました．");
+                }
+                this.numSucceeded.incrementAndGet();
+            }
+            catch (IOException ex) {
+                this.numFailed.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * /proc/net/netstat の TcpExt の項目の値を取得する．
+     * 取得できなかった場合は 0 を返す．
+     */
+    private long readTcpExt(String fieldName)
+        throws IOException
+    {
+        // TcpExt は，項目名の行と値の行の2行で構成されている．
+        List<String> lines = Files.readAllLines(Paths.get("/proc/net/netstat"));
+        for (int i = 0; i + 1 < lines.size(); i++) {
+            if (!lines.get(i).startsWith("TcpExt:")) {
+                continue;
+            }
+            String[] names  = lines.get(i).split("\\s+");
+            String[] values = lines.get(i + 1).split("\\s+");
+            for (int j = 1; j < names.length && j < values.length; j++) {
+                if (names[j].equals(fieldName)) {
+                    return Long.parseLong(values[j]);
+                }
+            }
+            break;
+        }
+        return 0;
+    }
+}
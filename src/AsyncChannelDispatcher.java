@@ -0,0 +1,162 @@
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+/**
+ * AsynchronousServerSocketChannel と CompletionHandler を利用する
+ * ディスパッチャ用のクラス
+ * <p>
+ * コネクションの確立と入出力の完了は，非同期チャネルのグループが持つ
+ * スレッドプール内のスレッドで処理される．そのスレッド数は，
+ * システムプロパティ AsyncChannelDispatcher.numThreads で指定できる
+ * (既定値は利用可能なプロセッサ数)．
+ * <p>
+ * コネクション毎の無通信・受信待ち・送信待ちの時間の上限は，ConnectionTimeouts の
+ * システムプロパティで指定できる．
+ */
+class AsyncChannelDispatcher
+    implements
+        AsyncDispatcher
+{
+    // インスタンス変数：
+    private final int                numThreads;    // グループ内のスレッド数
+    private final ConnectionTimeouts timeouts;      // コネクション毎の時間の上限
+    private final CountDownLatch     closedLatch;   // チャネルが閉じられたことを待つためのラッチ
+    
+    /**
+     * システムプロパティの設定値で AsyncChannelDispatcher のインスタンスを生成する．
+     */
+    AsyncChannelDispatcher()
+    {
+        this(
+            Integer.getInteger(
+                "AsyncChannelDispatcher.numThreads",
+                Runtime.getRuntime().availableProcessors()
+            ),
+            new ConnectionTimeouts()
+        );
+    }
+    
+    /**
+     * グループ内のスレッド数とコネクション毎の時間の上限を指定して
+     * AsyncChannelDispatcher のインスタンスを生成する．
+     */
+    AsyncChannelDispatcher(int numThreads, ConnectionTimeouts timeouts)
+    {
+        this.numThreads = numThreads;
+        this.timeouts = timeouts;
+        this.closedLatch = new CountDownLatch(1);
+    }
+    
+    /**
+     * 固定数のスレッドを持つ非同期チャネルのグループを生成する．
+     */
+    @Override
+    public AsynchronousChannelGroup createChannelGroup()
+        throws IOException
+    {
+        return AsynchronousChannelGroup.withFixedThreadPool(
+            this.numThreads, Executors.defaultThreadFactory()
+        );
+    }
+    
+    /**
+     * 非同期チャネルによるディスパッチ処理を開始する．
+     * チャネルが閉じられるまで，このメソッドは戻らない．
+     */
+    @Override
+    public void startDispatching(
+        AsynchronousServerSocketChannel servChan, AsyncProtocolFactory factory, Logger logger
+    )
+    {
+        // このメソッドを呼び出しているスレッド名をログに出力する．
+        logger.printf(
+            "処理開始（スレッド名：%s，スレッド数：%d）\n",
+            Thread.currentThread().getName(), this.numThreads
+        );
+        // コネクション毎の時間を監視するタイミングホイールを開始する．
+        HashedTimingWheel wheel = this.timeouts.startWheel(logger);
+        logger.printf("%s\n", this.timeouts);
+        
+        // 最初のコネクション要求の受け付けを開始する．
+        servChan.accept(null, new AcceptHandler(servChan, factory, wheel, logger));
+        
+        // チャネルが閉じられるまで待つ．
+        try {
+            this.closedLatch.await();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * コネクションの確立が完了した時に呼び出されるハンドラ
+     */
+    private class AcceptHandler
+        implements
+            CompletionHandler<AsynchronousSocketChannel, Void>
+    {
+        // インスタンス変数：
+        private final AsynchronousServerSocketChannel servChan; // 受け付け用のチャネル
+        private final AsyncProtocolFactory            factory;  // プロトコルファクトリ
+        private final HashedTimingWheel               wheel;    // 監視用のホイール(無ければ null)
+        private final Logger                          logger;   // ログ出力用の Logger インスタンス
+        
+        /**
+         * AcceptHandler のインスタンスを生成する．
+         */
+        AcceptHandler(
+            AsynchronousServerSocketChannel servChan, AsyncProtocolFactory factory,
+            HashedTimingWheel wheel, Logger logger
+        )
+        {
+            this.servChan = servChan;
+            this.factory = factory;
+            this.wheel = wheel;
+            this.logger = logger;
+        }
+        
+        /**
+         * 次のコネクション要求の受け付けを開始し，
+         * 確立したコネクションを受信・送信を監視するチャネルで包んで，プロトコルの処理を開始する．
+         */
+        @Override
+        public void completed(AsynchronousSocketChannel clntChan, Void attachment)
+        {
+            this.servChan.accept(null, this);
+            clntChan = timeouts.wrap(clntChan, this.wheel, this.logger);
+            
+            // コネクションの確立と処理開始を記録する．
+            // コネクションの終了は，チャネルを閉じたプロトコルが記録する．
+            ServerMetrics metrics       = ServerMetrics.getInstance();
+            long          acceptTime_ns = metrics.connectionAccepted();
+            AsyncProtocol protocol      = this.factory.createProtocol(
+                clntChan, acceptTime_ns, this.logger
+            );
+            metrics.protocolStarted(acceptTime_ns);
+            protocol.start();
+        }
+        
+        /**
+         * コネクションの確立に失敗した．
+         * チャネルが閉じられていなければ，次のコネクション要求の受け付けを開始する．
+         */
+        @Override
+        public void failed(Throwable exc, Void attachment)
+        {
+            if ((exc instanceof AsynchronousCloseException) || !this.servChan.isOpen()) {
+                closedLatch.countDown();
+                return;
+            }
+            this.logger.printf("例外発生：%s\n", exc.getMessage());
+            this.servChan.accept(null, this);
+        }
+    }
+}
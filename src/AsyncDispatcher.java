@@ -0,0 +1,25 @@
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+
+/**
+ * 非同期チャネルを利用するディスパッチャ用のインターフェース
+ */
+public interface AsyncDispatcher
+{
+    /**
+     * コネクション要求を受け付けるチャネルを生成する際に利用する，
+     * 非同期チャネルのグループを生成する．
+     */
+    public AsynchronousChannelGroup createChannelGroup()
+        throws IOException;
+    
+    /**
+     * ディスパッチ処理を開始する．
+     */
+    public void startDispatching(
+        AsynchronousServerSocketChannel servChan, AsyncProtocolFactory protoFactory,
+        Logger logger
+    );
+}
@@ -0,0 +1,360 @@
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 出力先への書き込みを専用のスレッドに任せる，非同期のログ出力用クラス
+ * <p>
+ * ConsoleLogger・FileLogger は呼び出したスレッドがロックを取って出力先へ書き込むため，
+ * 多数のスレッドが同時に出力すると，出力先の入出力の間ロックを待つことになる．
+ * AsyncLogger では，呼び出したスレッドは整形した文字列を有界のリングバッファに入れるだけで戻り，
+ * 書き込み用のスレッドがまとめて取り出して出力先へ書き込む．
+ * <p>
+ * リングバッファは，スロット毎のシーケンス番号で書き込みの完了を示す複数生産者・単一消費者の
+ * 配列で，生産者は書き込む位置を CAS で確保するだけでロックを取らない．
+ * 書き込み用のスレッドは，フラッシュの間隔毎か，リングバッファの 1/4 が埋まる毎に起こされ，
+ * 取り出せるだけ書き込んでから，前回のフラッシュから間隔が経っていればフラッシュする．
+ * リングバッファが満杯の場合の振る舞いは FullPolicy で指定する．
+ * <p>
+ * 下記のシステムプロパティで，各値を指定できる．
+ * <ul>
+ * <li>AsyncLogger.capacity：リングバッファの容量(既定値は 8192．2のべき乗に切り上げる)
+ * <li>AsyncLogger.policy：Block，Drop または DropAndCount(既定値は Block)
+ * <li>AsyncLogger.flushIntervalMs：フラッシュの間隔(ms)(既定値は 100)
+ * </ul>
+ * close を呼び出すと，残っているログを書き込んでから出力先を閉じる．
+ * close の後に出力されたログは破棄する．書き込み用のスレッドはデーモンスレッドのため，
+ * close を呼び出さずにプログラムが終了すると，最後のフラッシュの後のログは失われる．
+ */
+public class AsyncLogger
+    implements
+        Logger
+{
+    /**
+     * リングバッファが満杯の場合の振る舞い
+     */
+    enum FullPolicy
+    {
+        Block,          // 空きができるまで待つ．
+        Drop,           // 破棄する．
+        DropAndCount    // 破棄した数を数え，フラッシュの前に出力先へ書き込む．
+    }
+    
+    // クラス変数（定数）：
+    private static final int MIN_CAPACITY = 16; // リングバッファの最小容量
+    
+    // インスタンス変数：
+    private final PrintWriter     out;          // 出力先
+    private final FullPolicy      policy;       // 満杯の場合の振る舞い
+    private final long            interval_ns;  // フラッシュの間隔(ns)
+    private final int             mask;         // 位置からスロットの番号を求めるマスク
+    private final int             wakeMask;     // 書き込み用のスレッドを起こす位置を求めるマスク
+    private final String[]        entries;      // スロット毎のログ
+    private final AtomicLongArray sequences;    // スロット毎のシーケンス番号
+    private final AtomicLong      tail;         // 次に書き込む位置
+    private final Thread          writer;       // 書き込み用のスレッド
+    private final ReentrantLock   fullLock;     // 満杯の場合に待つためのロック
+    private final Condition       notFull;      // 空きができたことを待つための条件
+    
+    private long             head       = 0;        // 次に取り出す位置(書き込み用のスレッドのみ)
+    private volatile int     numBlocked = 0;        // 空きを待っているスレッドの数
+    private volatile boolean isSleeping = false;    // 書き込み用のスレッドが待っているか否か
+    private volatile boolean isClosed   = false;    // close が呼び出されたか否か
+    
+    // 統計情報：
+    private final LongAdder numDropped  = new LongAdder();  // 破棄したログの数(DropAndCount)
+    private long            numReported = 0;                // 出力先へ書き込んだ破棄の数
+    
+    /**
+     * システムプロパティの設定値で，ファイルへ出力する AsyncLogger のインスタンスを生成する．
+     */
+    public AsyncLogger(String filename)
+        throws IOException
+    {
+        this(
+            new BufferedWriter(new FileWriter(filename)),
+            Integer.getInteger("AsyncLogger.capacity", 8192),
+            FullPolicy.valueOf(System.getProperty("AsyncLogger.policy", "Block")),
+            Long.getLong("AsyncLogger.flushIntervalMs", 100)
+        );
+    }
+    
+    /**
+     * 出力先とリングバッファの容量，満杯の場合の振る舞い，フラッシュの間隔(ms)を指定して
+     * AsyncLogger のインスタンスを生成し，書き込み用のスレッドを開始する．
+     */
+    AsyncLogger(Writer out, int capacity, FullPolicy policy, long flushInterval_ms)
+    {
+        // 容量は 2のべき乗とし，各スロットのシーケンス番号をその位置で初期化する．
+        int size = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+        this.out = new PrintWriter(out, false);
+        this.policy = policy;
+        this.interval_ns = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushInterval_ms));
+        this.mask = size - 1;
+        this.wakeMask = (size / 4) - 1;
+        this.entries = new String[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+        this.tail = new AtomicLong();
+        this.fullLock = new ReentrantLock();
+        this.notFull = this.fullLock.newCondition();
+        
+        this.writer = new Thread(this::write, "AsyncLogger");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+    
+    /**
+     * 文字列を出力する．
+     */
+    @Override
+    public void println(String line)
+    {
+        publish(line + System.lineSeparator());
+    }
+    
+    /**
+     * フォーマットを指定した文字列を出力する．
+     */
+    @Override
+    public void printf(String format, Object... args)
+    {
+        // 文字列の整形は呼び出したスレッドで行う．
+        publish(String.format(format, args));
+    }
+    
+    /**
+     * 行のリストを出力する．他のスレッドのログが間に入らないよう，1つの文字列にまとめる．
+     */
+    @Override
+    public void printlist(Collection<String> entry)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (String line : entry) {
+            builder.append(line).append(System.lineSeparator());
+        }
+        builder.append(System.lineSeparator());
+        publish(builder.toString());
+    }
+    
+    /**
+     * 残っているログを書き込ませてから出力先を閉じ，書き込み用のスレッドの終了を待つ．
+     * 空きを待っているスレッドは，ログを入れずに戻る．
+     */
+    public void close()
+    {
+        this.isClosed = true;
+        signalNotFull();
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * 破棄したログの数の累計を返す．FullPolicy が DropAndCount の場合のみ数える．
+     */
+    long getDroppedCount()
+    {
+        return this.numDropped.sum();
+    }
+    
+    /**
+     * ログをリングバッファに入れる．満杯の場合は FullPolicy に従う．
+     */
+    private void publish(String entry)
+    {
+        if (this.isClosed || offer(entry)) {
+            return;
+        }
+        switch (this.policy) {
+        case Drop:
+            wakeWriter();
+            break;
+        case DropAndCount:
+            wakeWriter();
+            this.numDropped.increment();
+            break;
+        default:
+            waitAndOffer(entry);
+            break;
+        }
+    }
+    
+    /**
+     * 空きができるまで待ってから，ログをリングバッファに入れる．
+     * 待っている間は CPU を使わず，書き込み用のスレッドが取り出した後に起こされる．
+     * ロックには ReentrantLock を用い，仮想スレッドが待つ間もキャリアスレッドを固定しない．
+     */
+    private void waitAndOffer(String entry)
+    {
+        this.fullLock.lock();
+        try {
+            // 待っていることを示してから試すことで，書き込み用のスレッドの通知を見落とさない．
+            this.numBlocked++;
+            while (!this.isClosed && !offer(entry)) {
+                wakeWriter();
+                this.notFull.await(this.interval_ns, TimeUnit.NANOSECONDS);
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            this.numBlocked--;
+            this.fullLock.unlock();
+        }
+    }
+    
+    /**
+     * 書き込み用のスレッドが待っていれば起こす．
+     */
+    private void wakeWriter()
+    {
+        if (this.isSleeping) {
+            LockSupport.unpark(this.writer);
+        }
+    }
+    
+    /**
+     * 空いているスロットを確保してログを入れる．満杯の場合は false を返す．
+     * 確保した位置がリングバッファの 1/4 の境界の場合は，待っている書き込み用のスレッドを起こす．
+     */
+    private boolean offer(String entry)
+    {
+        long pos = this.tail.get();
+        while (true) {
+            int  index = (int)pos & this.mask;
+            long diff  = this.sequences.get(index) - pos;
+            if (diff < 0) {
+                // 1周前のログがまだ取り出されていない．
+                return false;
+            }
+            if ((diff == 0) && this.tail.compareAndSet(pos, pos + 1)) {
+                // シーケンス番号の更新で，書き込んだログを書き込み用のスレッドに見せる．
+                this.entries[index] = entry;
+                this.sequences.set(index, pos + 1);
+                if ((pos & this.wakeMask) == this.wakeMask) {
+                    wakeWriter();
+                }
+                return true;
+            }
+            // 他のスレッドが先に確保した．
+            pos = this.tail.get();
+        }
+    }
+    
+    /**
+     * 書き込み用のスレッドの処理
+     * <p>
+     * 取り出せるログを全て書き込み，前回のフラッシュから間隔が経っていればフラッシュする．
+     * 取り出せるログが無ければ，次のフラッシュの時刻まで(フラッシュ済みならフラッシュの間隔だけ)
+     * 待つ．close が呼び出されたら，残りを書き込んでフラッシュし，出力先を閉じて終える．
+     */
+    private void write()
+    {
+        long    lastFlush_ns = System.nanoTime();
+        boolean isDirty      = false;
+        while (true) {
+            boolean isClosing = this.isClosed;
+            int     numWrites = drain();
+            isDirty |= (numWrites > 0);
+            
+            long now_ns = System.nanoTime();
+            if (isDirty && (now_ns - lastFlush_ns >= this.interval_ns)) {
+                flush();
+                isDirty = false;
+                lastFlush_ns = now_ns;
+            }
+            if (numWrites > 0) {
+                signalNotFull();
+                continue;
+            }
+            if (isClosing) {
+                // close が呼び出された後に取り出し終えた．
+                flush();
+                this.out.close();
+                return;
+            }
+            // 待っている間に入れられたログを見落とさないよう，待つことを示してから確かめる．
+            this.isSleeping = true;
+            if (!hasEntry() && !this.isClosed) {
+                long from_ns = isDirty ? lastFlush_ns : now_ns;
+                LockSupport.parkNanos(from_ns + this.interval_ns - now_ns);
+            }
+            this.isSleeping = false;
+        }
+    }
+    
+    /**
+     * 取り出せるログを全て出力先へ書き込み，その数を返す．
+     */
+    private int drain()
+    {
+        int numWrites = 0;
+        while (hasEntry()) {
+            int index = (int)this.head & this.mask;
+            this.out.print(this.entries[index]);
+            // スロットを空け，次の周回の位置のシーケンス番号にする．
+            this.entries[index] = null;
+            this.sequences.set(index, this.head + this.entries.length);
+            this.head++;
+            numWrites++;
+        }
+        return numWrites;
+    }
+    
+    /**
+     * 空きを待っているスレッドがあれば，全て起こす．
+     */
+    private void signalNotFull()
+    {
+        if (this.numBlocked == 0) {
+            return;
+        }
+        this.fullLock.lock();
+        try {
+            this.notFull.signalAll();
+        }
+        finally {
+            this.fullLock.unlock();
+        }
+    }
+    
+    /**
+     * 次に取り出す位置にログが入れられているか否かを返す．
+     */
+    private boolean hasEntry()
+    {
+        return this.sequences.get((int)this.head & this.mask) == this.head + 1;
+    }
+    
+    /**
+     * 前回から増えた破棄の数があれば書き込んでから，出力先をフラッシュする．
+     */
+    private void flush()
+    {
+        long dropped = this.numDropped.sum();
+        if (dropped > this.numReported) {
+            this.out.printf("（ログを %d 件破棄しました）%n", dropped - this.numReported);
+            this.numReported = dropped;
+        }
+        this.out.flush();
+    }
+}
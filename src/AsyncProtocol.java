@@ -0,0 +1,13 @@
+
+/**
+ * 非同期チャネルと CompletionHandler によるプロトコル処理用のインターフェース
+ */
+public interface AsyncProtocol
+{
+    /**
+     * プロトコルの処理を開始する．
+     * このメソッドは最初の非同期操作を開始した後，直ちに戻る．
+     * 以降の処理は，非同期操作の完了時に呼ばれる CompletionHandler で継続する．
+     */
+    public void start();
+}
@@ -0,0 +1,17 @@
+
+import java.nio.channels.AsynchronousSocketChannel;
+
+/**
+ * 非同期チャネル用のプロトコルファクトリのインターフェース
+ */
+public interface AsyncProtocolFactory
+{
+    /**
+     * プロトコル処理用のインスタンスを生成し， AsyncProtocol インターフェースとして返す．
+     * acceptTime_ns は ServerMetrics.connectionAccepted が返したコネクションの確立時刻で，
+     * プロトコルはチャネルを閉じた時にこの時刻で ServerMetrics.connectionClosed を呼び出す．
+     */
+    public AsyncProtocol createProtocol(
+        AsynchronousSocketChannel clntChan, long acceptTime_ns, Logger logger
+    );
+}
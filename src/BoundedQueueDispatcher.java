@@ -0,0 +1,210 @@
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 1つのスレッドでコネクション要求を受け付け，
+ * 上限付きのキューを持つスレッドプールでプロトコルを処理するディスパッチャ用のクラス
+ * <p>
+ * スレッドプールの設定と過負荷時の方針は，下記のシステムプロパティで指定できる．
+ * <ul>
+ * <li>BoundedQueueDispatcher.coreThreads：常駐スレッド数(既定値は 8)
+ * <li>BoundedQueueDispatcher.maxThreads：最大スレッド数(既定値は 32)
+ * <li>BoundedQueueDispatcher.queueCapacity：キューの長さ(既定値は 64)
+ * <li>BoundedQueueDispatcher.overload：RejectWithClose，CallerRuns，ShedOldest のいずれか
+ * (既定値は RejectWithClose)
+ * </ul>
+ * コネクション毎の無通信・受信待ち・送信待ちの時間の上限は，ConnectionTimeouts の
+ * システムプロパティで指定できる．
+ */
+class BoundedQueueDispatcher
+    implements
+        Dispatcher
+{
+    // クラス変数（定数）：
+    static final long KEEP_ALIVE_SEC     = 60;      // 常駐スレッド以外のスレッドの待機時間(秒)
+    static final long REPORT_INTERVAL_MS = 10000;   // 統計情報を出力する間隔(ms)
+    
+    /**
+     * スレッドとキューが全て埋まっている時(過負荷時)の方針
+     */
+    enum Overload
+    {
+        RejectWithClose,    // 新しいコネクションを閉じる．
+        CallerRuns,         // 受け付けたスレッドで処理する(その間は受け付けを止める)．
+        ShedOldest          // キュー内の最も古いコネクションを閉じて，新しいコネクションを入れる．
+    }
+    
+    // インスタンス変数：
+    private final int      coreThreads;     // 常駐スレッド数
+    private final int      maxThreads;      // 最大スレッド数
+    private final int      queueCapacity;   // キューの長さ
+    private final Overload overload;        // 過負荷時の方針
+    
+    private final ConnectionTimeouts timeouts;  // コネクション毎の時間の上限
+    
+    // 統計情報：
+    private final LatencyStatistics waitStats   = new LatencyStatistics(); // キューでの待ち時間
+    private final AtomicLong        numRejected = new AtomicLong(); // 過負荷時の方針を適用した回数
+    
+    /**
+     * システムプロパティの設定値で BoundedQueueDispatcher のインスタンスを生成する．
+     */
+    BoundedQueueDispatcher()
+    {
+        this(
+            Integer.getInteger("BoundedQueueDispatcher.coreThreads", 8),
+            Integer.getInteger("BoundedQueueDispatcher.maxThreads", 32),
+            Integer.getInteger("BoundedQueueDispatcher.queueCapacity", 64),
+            Overload.valueOf(
+                System.getProperty("BoundedQueueDispatcher.overload", "RejectWithClose")
+            ),
+            new ConnectionTimeouts()
+        );
+    }
+    
+    /**
+     * スレッドプールの設定と過負荷時の方針，コネクション毎の時間の上限を指定して
+     * BoundedQueueDispatcher のインスタンスを生成する．
+     */
+    BoundedQueueDispatcher(
+        int coreThreads, int maxThreads, int queueCapacity, Overload overload,
+        ConnectionTimeouts timeouts
+    )
+    {
+        this.coreThreads = coreThreads;
+        this.maxThreads = maxThreads;
+        this.queueCapacity = queueCapacity;
+        this.overload = overload;
+        this.timeouts = timeouts;
+    }
+    
+    /**
+     * 上限付きのキューを持つスレッドプールによるディスパッチ処理を開始する．
+     */
+    @Override
+    public void startDispatching(
+        ServerSocket servSock, ProtocolFactory factory, Logger logger
+    )
+    {
+        // スレッドプールを生成する．
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
+            this.coreThreads, this.maxThreads,
+            KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(this.queueCapacity),
+            new OverloadHandler(logger)
+        );
+        // 一定間隔毎に統計情報をログに出力するためのスレッドを開始する．
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(
+            () -> report(threadPool, logger),
+            REPORT_INTERVAL_MS, REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS
+        );
+        // このメソッドを呼び出しているスレッド名をログに出力する．
+        logger.printf(
+            "処理開始（スレッド名：%s，スレッド数：%d〜%d，キュー：%d，過負荷時：%s）\n",
+            Thread.currentThread().getName(),
+            this.coreThreads, this.maxThreads, this.queueCapacity, this.overload
+        );
+        // コネクション毎の時間を監視するタイミングホイールを開始する．
+        HashedTimingWheel wheel = this.timeouts.startWheel(logger);
+        logger.printf("%s\n", this.timeouts);
+        
+        // クライアントとのコネクションを確立し，スレッドプールへ渡す処理を繰り返す．
+        while (true) {
+            try {
+                // クライアントとのコネクションの確立を待ち，
+                // 入出力を監視するソケットで包む．
+                Socket clntSock = this.timeouts.wrap(servSock.accept(), wheel, logger);
+                
+                // プロトコル処理用のインスタンスを生成し，
+                // キューでの待ち時間を計測するためのタスクに包んでスレッドプールへ渡す．
+                Runnable protocol = factory.createProtocol(clntSock, logger);
+                threadPool.execute(new QueuedTask(clntSock, protocol, this.waitStats));
+            }
+            catch (IOException ex) {
+                logger.printf("例外発生：%s\n", ex.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * 統計情報をログに出力し，待ち時間の統計をリセットする．
+     */
+    private void report(ThreadPoolExecutor threadPool, Logger logger)
+    {
+        LatencyStatistics.Snapshot waits = this.waitStats.take();
+        
+        logger.printf(
+            "統計：スレッド数 %d（実行中 %d），キュー長 %d，開始数 %d，"
+                + "待ち時間 平均 %.3fms 最大 %.3fms，過負荷 %d\n",
+            threadPool.getPoolSize(), threadPool.getActiveCount(),
+            threadPool.getQueue().size(), waits.count,
+            waits.averageMillis(), waits.maxMillis(), this.numRejected.get()
+        );
+    }
+    
+    /**
+     * スレッドとキューが全て埋まっている時に，過負荷時の方針を適用するクラス
+     */
+    private class OverloadHandler
+        implements
+            RejectedExecutionHandler
+    {
+        // インスタンス変数：
+        private final Logger logger;    // ログ出力用の Logger インスタンス
+        
+        /**
+         * OverloadHandler のインスタンスを生成する．
+         */
+        OverloadHandler(Logger logger)
+        {
+            this.logger = logger;
+        }
+        
+        /**
+         * 過負荷時の方針に従い，スレッドプールが受け付けられなかったタスクを処理する．
+         */
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor threadPool)
+        {
+            numRejected.incrementAndGet();
+            
+            // スレッドプールが終了している場合は，コネクションを閉じるだけとする．
+            if (threadPool.isShutdown()) {
+                ((QueuedTask)task).close(this.logger);
+                return;
+            }
+            switch (overload) {
+            case CallerRuns:
+                // 受け付けたスレッドで処理する．
+                // 処理を終えるまで新たなコネクションは受け付けられない．
+                task.run();
+                break;
+            
+            case ShedOldest:
+                // キュー内の最も古いコネクションを閉じ，新しいコネクションを入れる．
+                Runnable oldest = threadPool.getQueue().poll();
+                if (oldest != null) {
+                    ((QueuedTask)oldest).close(this.logger);
+                }
+                threadPool.execute(task);
+                break;
+            
+            case RejectWithClose:
+            default:
+                // 新しいコネクションを閉じる．
+                ((QueuedTask)task).close(this.logger);
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 全てのプロトコルとクライアントが共有する，サイズクラス別のバッファプール
+ * <p>
+ * 要求されたサイズを 2の累乗(MIN_SIZE 〜 MAX_SIZE)に切り上げたサイズクラス毎に，
+ * スレッド毎のキャッシュと，全スレッドで共有する空きバッファのリストを持つ．
+ * 借りる際はスレッド毎のキャッシュ，共有のリストの順に探し，どちらにも無ければ新たに確保する．
+ * 返す際はスレッド毎のキャッシュ，共有のリストの順に戻し，どちらも一杯であれば破棄する．
+ * スレッド毎のキャッシュは，同じスレッドで LOCAL_THRESHOLD 回以上借りたスレッドだけが使う．
+ * コネクション毎に生成されるスレッド(仮想スレッドを含む)は終了時にキャッシュを失うため，
+ * 共有のリストだけを使わせる．
+ * MAX_SIZE を超えるサイズの要求は，プールを使わずに確保する．
+ * <p>
+ * ヒープ上のバッファ(配列を持つ)とダイレクトバッファのプールを1つずつ持つ．
+ * 共有のリストに保持するバッファの総量は，サイズクラス毎に
+ * システムプロパティ BufferPool.globalBudgetMB(既定値は 64)で指定できる．
+ */
+class BufferPool
+{
+    // クラス変数（定数）：
+    static final int MIN_SHIFT       = 8;                   // 最小のサイズクラス(2の累乗の指数)
+    static final int MAX_SHIFT       = 20;                  // 最大のサイズクラス(2の累乗の指数)
+    static final int MIN_SIZE        = 1 << MIN_SHIFT;      // 最小のサイズクラス(256バイト)
+    static final int MAX_SIZE        = 1 << MAX_SHIFT;      // 最大のサイズクラス(1MB)
+    static final int NUM_CLASSES     = MAX_SHIFT - MIN_SHIFT + 1;
+    static final int LOCAL_CAPACITY  = 8;                   // スレッド毎・サイズクラス毎の保持数
+    static final int LOCAL_THRESHOLD = 2;                   // スレッド毎のキャッシュを使い始める回数
+    static final int MIN_GLOBAL      = 16;                  // 共有のリストの保持数の下限
+    
+    // クラス変数：
+    private static final BufferPool HEAP   = new BufferPool(false);  // ヒープ上のバッファのプール
+    private static final BufferPool DIRECT = new BufferPool(true);   // ダイレクトバッファのプール
+    
+    /**
+     * ヒープ上のバッファのプールを返す．
+     */
+    static BufferPool getHeapInstance()
+    {
+        return HEAP;
+    }
+    
+    /**
+     * ダイレクトバッファのプールを返す．
+     */
+    static BufferPool getDirectInstance()
+    {
+        return DIRECT;
+    }
+    
+    // インスタンス変数：
+    private final boolean                             isDirect;     // ダイレクトバッファか否か
+    private final ConcurrentLinkedQueue<ByteBuffer>[] globalLists;  // 共有の空きバッファのリスト
+    private final AtomicInteger[]                     globalCounts; // 共有のリストの保持数
+    private final int[]                               globalLimits; // 共有のリストの保持数の上限
+    private final ThreadLocal<LocalCache>             localCaches;  // スレッド毎のキャッシュ
+    
+    private final LongAdder hits        = new LongAdder();  // プールから借りられた回数
+    private final LongAdder misses      = new LongAdder();  // 新たに確保した回数
+    private final LongAdder outstanding = new LongAdder();  // 貸し出し中のバッファ数
+    private final LongAdder discarded   = new LongAdder();  // 返されたが破棄したバッファ数
+    
+    /**
+     * BufferPool のインスタンスを生成する．
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private BufferPool(boolean isDirect)
+    {
+        this.isDirect = isDirect;
+        this.globalLists = new ConcurrentLinkedQueue[NUM_CLASSES];
+        this.globalCounts = new AtomicInteger[NUM_CLASSES];
+        this.globalLimits = new int[NUM_CLASSES];
+        long budget = (long)Integer.getInteger("BufferPool.globalBudgetMB", 64) * 1024 * 1024;
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            this.globalLists[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            this.globalCounts[i] = new AtomicInteger();
+            this.globalLimits[i] = (int)Math.max(MIN_GLOBAL, budget / sizeOf(i));
+        }
+        this.localCaches = ThreadLocal.withInitial(LocalCache::new);
+    }
+    
+    /**
+     * 指定されたサイズ以上の容量を持つバッファを借りる．
+     * 返されるバッファの位置は 0，リミットは容量に等しい．
+     */
+    ByteBuffer acquire(int size)
+    {
+        this.outstanding.increment();
+        
+        // MAX_SIZE を超える場合は，プールを使わずに確保する．
+        int index = indexOf(size);
+        if (index < 0) {
+            this.misses.increment();
+            return allocate(size);
+        }
+        // スレッド毎のキャッシュ，共有のリストの順に探す．
+        LocalCache cache  = getLocalCache(true);
+        ByteBuffer buffer = (cache != null) ? cache.pop(index) : null;
+        if (buffer == null) {
+            buffer = this.globalLists[index].poll();
+            if (buffer != null) {
+                this.globalCounts[index].decrementAndGet();
+            }
+        }
+        // どちらにも無ければ新たに確保する．
+        if (buffer == null) {
+            this.misses.increment();
+            return allocate(sizeOf(index));
+        }
+        this.hits.increment();
+        buffer.clear();
+        return buffer;
+    }
+    
+    /**
+     * 借りたバッファを返す．null の場合は何もしない．
+     */
+    void release(ByteBuffer buffer)
+    {
+        if (buffer == null) {
+            return;
+        }
+        this.outstanding.decrement();
+        
+        // サイズクラスに該当しないバッファと，種類の異なるバッファは破棄する．
+        int     index    = indexOf(buffer.capacity());
+        boolean isPooled = (index >= 0) && (sizeOf(index) == buffer.capacity());
+        if (!isPooled || (buffer.isDirect() != this.isDirect)) {
+            this.discarded.increment();
+            return;
+        }
+        // スレッド毎のキャッシュ，共有のリストの順に戻す．
+        LocalCache cache = getLocalCache(false);
+        if ((cache != null) && cache.push(index, buffer)) {
+            return;
+        }
+        if (this.globalCounts[index].incrementAndGet() > this.globalLimits[index]) {
+            this.globalCounts[index].decrementAndGet();
+            this.discarded.increment();
+            return;
+        }
+        this.globalLists[index].offer(buffer);
+    }
+    
+    /**
+     * プールから借りられた回数を返す．
+     */
+    long getHits()
+    {
+        return this.hits.sum();
+    }
+    
+    /**
+     * 新たに確保した回数を返す．
+     */
+    long getMisses()
+    {
+        return this.misses.sum();
+    }
+    
+    /**
+     * 貸し出し中のバッファ数を返す．
+     */
+    long getOutstanding()
+    {
+        return this.outstanding.sum();
+    }
+    
+    /**
+     * 返されたが破棄したバッファ数を返す．
+     */
+    long getDiscarded()
+    {
+        return this.discarded.sum();
+    }
+    
+    /**
+     * 現在のスレッドのキャッシュを返す．
+     * 借りた回数が LOCAL_THRESHOLD 未満のスレッドと仮想スレッドの場合は null を返す．
+     */
+    private LocalCache getLocalCache(boolean isAcquiring)
+    {
+        if (Thread.currentThread().isVirtual()) {
+            return null;
+        }
+        LocalCache cache = this.localCaches.get();
+        if (isAcquiring) {
+            cache.acquireCount++;
+        }
+        if (cache.acquireCount < LOCAL_THRESHOLD) {
+            return null;
+        }
+        return cache;
+    }
+    
+    /**
+     * 指定された容量のバッファを確保する．
+     */
+    private ByteBuffer allocate(int capacity)
+    {
+        if (this.isDirect) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        return ByteBuffer.allocate(capacity);
+    }
+    
+    /**
+     * 指定されたサイズを収めるサイズクラスの番号を返す．
+     * MAX_SIZE を超える場合は -1 を返す．
+     */
+    static int indexOf(int size)
+    {
+        if (size > MAX_SIZE) {
+            return -1;
+        }
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        // size 以上で最小の 2の累乗の指数を求める．
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift - MIN_SHIFT;
+    }
+    
+    /**
+     * サイズクラスの番号に対応するサイズを返す．
+     */
+    static int sizeOf(int index)
+    {
+        return 1 << (index + MIN_SHIFT);
+    }
+    
+    /**
+     * スレッド毎のキャッシュ
+     * <p>
+     * サイズクラス毎のスタックは，最初に使う時点で確保する．
+     */
+    private static class LocalCache
+    {
+        // インスタンス変数：
+        private int            acquireCount = 0;        // このスレッドで借りた回数
+        private ByteBuffer[][] stacks       = null;     // サイズクラス毎のスタック
+        private int[]          depths       = null;     // サイズクラス毎の保持数
+        
+        /**
+         * 指定されたサイズクラスのバッファを取り出す．無ければ null を返す．
+         */
+        ByteBuffer pop(int index)
+        {
+            if ((this.stacks == null) || (this.depths[index] == 0)) {
+                return null;
+            }
+            ByteBuffer buffer = this.stacks[index][--this.depths[index]];
+            this.stacks[index][this.depths[index]] = null;
+            return buffer;
+        }
+        
+        /**
+         * 指定されたサイズクラスのバッファを保持する．一杯の場合は false を返す．
+         */
+        boolean push(int index, ByteBuffer buffer)
+        {
+            if (this.stacks == null) {
+                this.stacks = new ByteBuffer[NUM_CLASSES][LOCAL_CAPACITY];
+                this.depths = new int[NUM_CLASSES];
+            }
+            if (this.depths[index] == LOCAL_CAPACITY) {
+                return false;
+            }
+            this.stacks[index][this.depths[index]++] = buffer;
+            return true;
+        }
+    }
+}
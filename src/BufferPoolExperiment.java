@@ -0,0 +1,231 @@
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * バッファの確保方法毎に，確保と解放の速度とヒープの割り当て量，GC の回数と時間を調べる実験
+ * <p>
+ * コネクション毎にバッファを確保して使い終えたら手放す処理を模擬する．
+ * 指定された数のスレッドが指定された秒数の間，バッファを確保し，
+ * 先頭と末尾に書き込んでから手放す処理を繰り返す．確保方法は下記の通り．
+ * <ul>
+ * <li>Allocate：毎回 new byte[] で確保する．
+ * <li>AllocateDirect：毎回 ByteBuffer.allocateDirect で確保する．
+ * <li>HeapPool：BufferPool のヒープ上のバッファのプールから借りて返す．
+ * <li>DirectPool：BufferPool のダイレクトバッファのプールから借りて返す．
+ * </ul>
+ */
+public class BufferPoolExperiment
+{
+    // クラス変数（定数）：
+    private static final int MEGA_BYTE = 1024 * 1024;
+    
+    /**
+     * バッファの確保方法
+     */
+    enum Mode
+    {
+        Allocate,
+        AllocateDirect,
+        HeapPool,
+        DirectPool
+    }
+    
+    /**
+     * バッファの確保方法の計測実験を実行するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 3) {
+            System.out.println("Parameters: <Threads> <Seconds> <Buffer Size>");
+            return;
+        }
+        try {
+            // スレッド数，確保方法毎の計測時間，バッファサイズを引数から取得する．
+            int numThreads = Integer.parseInt(args[0]);
+            int seconds    = Integer.parseInt(args[1]);
+            int bufferSize = Integer.parseInt(args[2]);
+            
+            // コンソールとファイルへのログ出力用のインスタンスを生成する．
+            ConsoleLogger clog = new ConsoleLogger();
+            FileLogger    flog = new FileLogger(
+                String.format("bufferpool_%d.txt", System.currentTimeMillis())
+            );
+            // IOException
+            
+            // 実験用のインスタンスを生成し，実験を実行する．
+            BufferPoolExperiment experiment = new BufferPoolExperiment(
+                numThreads, seconds, bufferSize, clog, flog
+            );
+            experiment.execute();
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    // インスタンス変数：
+    private final int           numThreads; // スレッド数
+    private final int           seconds;    // 確保方法毎の計測時間(秒)
+    private final int           bufferSize; // バッファサイズ
+    private final ConsoleLogger clog;       // コンソールへの出力用 Logger
+    private final FileLogger    flog;       // ファイルへの出力用 Logger
+    private final AtomicLong    sink;       // 書き込んだ値の合計(最適化による処理の削除を防ぐ)
+    
+    /**
+     * BufferPoolExperiment のインスタンスを生成する．
+     */
+    BufferPoolExperiment(
+        int numThreads, int seconds, int bufferSize, ConsoleLogger clog, FileLogger flog
+    )
+    {
+        this.numThreads = numThreads;
+        this.seconds = seconds;
+        this.bufferSize = bufferSize;
+        this.clog = clog;
+        this.flog = flog;
+        this.sink = new AtomicLong();
+    }
+    
+    /**
+     * 確保方法毎に計測し，結果を出力する．
+     */
+    void execute()
+        throws InterruptedException
+    {
+        this.flog.printf(
+            "mode\tthreads\tbuffer_size\tops_per_sec\talloc_MB_per_sec\tgc_count\tgc_ms\n"
+        );
+        for (Mode mode : Mode.values()) {
+            measure(mode);
+        }
+        this.flog.close();
+    }
+    
+    /**
+     * 1つの確保方法について，全スレッドで確保と解放を繰り返し，結果を出力する．
+     */
+    private void measure(Mode mode)
+        throws InterruptedException
+    {
+        com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        
+        // 開始時点の割り当て量，GC の回数と時間，プールの計数値を取得する．
+        long       startAlloc  = threadBean.getTotalThreadAllocatedBytes();
+        long[]     startGc     = getGcStatistics();
+        BufferPool pool        = (mode == Mode.DirectPool)
+            ? BufferPool.getDirectInstance()
+            : BufferPool.getHeapInstance();
+        long       startHits   = pool.getHits();
+        long       startMisses = pool.getMisses();
+        
+        // スレッドを開始し，計測時間が経過するまで確保と解放を繰り返させる．
+        long     endTime_ns = System.nanoTime() + this.seconds * 1000000000L;
+        long[]   counts     = new long[this.numThreads];
+        Thread[] threads    = new Thread[this.numThreads];
+        for (int i = 0; i < this.numThreads; i++) {
+            int index = i;
+            threads[i] = new Thread(() -> counts[index] = repeat(mode, endTime_ns));
+            threads[i].start();
+        }
+        long total = 0;
+        for (int i = 0; i < this.numThreads; i++) {
+            threads[i].join();
+            total += counts[i];
+        }
+        // 終了時点の値との差を求めて出力する．
+        long[] endGc     = getGcStatistics();
+        double opsPerSec = (double)total / this.seconds;
+        double allocMbps = (threadBean.getTotalThreadAllocatedBytes() - startAlloc)
+            / (double)MEGA_BYTE / this.seconds;
+        long   gcCount   = endGc[0] - startGc[0];
+        long   gc_ms     = endGc[1] - startGc[1];
+        String poolInfo  = "";
+        if ((mode == Mode.HeapPool) || (mode == Mode.DirectPool)) {
+            long hits   = pool.getHits() - startHits;
+            long misses = pool.getMisses() - startMisses;
+            poolInfo = String.format(
+                "，ヒット率 %.2f%%，貸出中 %d",
+                100.0 * hits / Math.max(1, hits + misses), pool.getOutstanding()
+            );
+        }
+        this.clog.printf(
+            "%-14s %4d threads %,8d バイト：%,14.0f 回/s，"
+                + "割り当て %,10.1f MB/s，GC %4d 回 %,6d ms%s\n",
+            mode, this.numThreads, this.bufferSize, opsPerSec, allocMbps, gcCount, gc_ms, poolInfo
+        );
+        this.flog.printf(
+            "%s\t%d\t%d\t%.0f\t%.1f\t%d\t%d\n",
+            mode, this.numThreads, this.bufferSize, opsPerSec, allocMbps, gcCount, gc_ms
+        );
+    }
+    
+    /**
+     * 終了時刻まで，バッファの確保，書き込み，解放を繰り返し，繰り返した回数を返す．
+     */
+    private long repeat(Mode mode, long endTime_ns)
+    {
+        BufferPool heapPool   = BufferPool.getHeapInstance();
+        BufferPool directPool = BufferPool.getDirectInstance();
+        long       count      = 0;
+        long       sum        = 0;
+        int        last       = this.bufferSize - 1;
+        
+        // 時刻の取得による負荷を抑えるため，一定回数毎に終了時刻を確認する．
+        while ((count & 0xff) != 0 || System.nanoTime() < endTime_ns) {
+            switch (mode) {
+            case Allocate: {
+                byte[] array = new byte[this.bufferSize];
+                array[0] = (byte)count;
+                array[last] = (byte)count;
+                sum += array[0] + array[last];
+                break;
+            }
+            case AllocateDirect: {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(this.bufferSize);
+                buffer.put(0, (byte)count).put(last, (byte)count);
+                sum += buffer.get(0) + buffer.get(last);
+                break;
+            }
+            case HeapPool: {
+                ByteBuffer buffer = heapPool.acquire(this.bufferSize);
+                byte[]     array  = buffer.array();
+                array[0] = (byte)count;
+                array[last] = (byte)count;
+                sum += array[0] + array[last];
+                heapPool.release(buffer);
+                break;
+            }
+            default: {
+                ByteBuffer buffer = directPool.acquire(this.bufferSize);
+                buffer.put(0, (byte)count).put(last, (byte)count);
+                sum += buffer.get(0) + buffer.get(last);
+                directPool.release(buffer);
+                break;
+            }
+            }
+            count++;
+        }
+        this.sink.addAndGet(sum);
+        return count;
+    }
+    
+    /**
+     * 全ての GC の回数の合計と時間(ms)の合計を返す．
+     */
+    private long[] getGcStatistics()
+    {
+        long count = 0;
+        long time  = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] { count, time };
+    }
+}
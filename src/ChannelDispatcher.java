@@ -0,0 +1,15 @@
+
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * チャネルを利用するディスパッチャ用のインターフェース
+ */
+public interface ChannelDispatcher
+{
+    /**
+     * ディスパッチ処理を開始する．
+     */
+    public void startDispatching(
+        ServerSocketChannel servChan, ChannelProtocolFactory protoFactory, Logger logger
+    );
+}
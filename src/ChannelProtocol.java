@@ -0,0 +1,27 @@
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * ノンブロッキング入出力によるプロトコル処理用のインターフェース
+ */
+public interface ChannelProtocol
+{
+    /**
+     * チャネルからデータを読み込める状態になった時に呼び出される．
+     */
+    public void handleRead(SelectionKey key)
+        throws IOException;
+    
+    /**
+     * チャネルへデータを書き込める状態になった時に呼び出される．
+     */
+    public void handleWrite(SelectionKey key)
+        throws IOException;
+    
+    /**
+     * チャネルが閉じられた後に，ディスパッチャから1度だけ呼び出される．
+     * プロトコルが確保した資源(バッファなど)を解放する．
+     */
+    public void handleClose();
+}
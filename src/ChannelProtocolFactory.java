@@ -0,0 +1,13 @@
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * ノンブロッキング入出力用のプロトコルファクトリのインターフェース
+ */
+public interface ChannelProtocolFactory
+{
+    /**
+     * プロトコル処理用のインスタンスを生成し， ChannelProtocol インターフェースとして返す．
+     */
+    public ChannelProtocol createProtocol(SocketChannel clntChan, Logger logger);
+}
@@ -0,0 +1,250 @@
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * ソケット数毎に，チャンクに分けた並行アップロードで1つのファイルを組み立てる速度を調べ，
+ * 切断後の再開を確認する実験
+ * <p>
+ * 指定されたサイズの送信元ファイルを用意し，ChunkedUploadProtocolFactory を用いるサーバを
+ * 同じプロセス内で起動する．ソケット数を 1 から指定された数まで倍にしながら
+ * ChunkedUploader でファイルを送信し，スループットを出力する．
+ * 確定したファイルの内容が送信元と一致することも確認する．
+ * <p>
+ * 最後に，各コネクションを割り当てた範囲の半分を送信した時点で切断させた後，
+ * 欠けている範囲を問い合わせて再開し，再開時に送信したバイト数が欠けていた範囲の
+ * バイト数と一致することと，確定したファイルの内容を確認する．
+ */
+public class ChunkedUploadExperiment
+{
+    // クラス変数（定数）：
+    private static final int MEGA_BYTE = 1024 * 1024;
+    
+    // 送信バッファサイズ
+    private static final int BUF_SIZE = 64 * 1024;
+    
+    /**
+     * チャンクに分けたアップロードの計測実験を実行するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 3) {
+            System.out.println("Parameters: <Directory> <File Size MB> <Max Sockets>");
+            return;
+        }
+        try {
+            // 作業用のディレクトリ，ファイルサイズ，最大のソケット数を引数から取得する．
+            Path directory  = Paths.get(args[0]);
+            long fileSize   = Long.parseLong(args[1]) * MEGA_BYTE;
+            int  maxSockets = Integer.parseInt(args[2]);
+            
+            // コンソールへのログ出力用のインスタンスを生成する．
+            ConsoleLogger clog = new ConsoleLogger();
+            
+            // ファイルへのログ出力用のインスタンスを，結果用とサーバ用に生成する．
+            long       now_ms = System.currentTimeMillis();
+            FileLogger flog   = new FileLogger(String.format("chunked_%d.txt", now_ms));
+            FileLogger slog   = new FileLogger(String.format("chunked_server_%d.txt", now_ms));
+            // IOException
+            
+            // 実験用のインスタンスを生成し，実験を実行する．
+            ChunkedUploadExperiment experiment = new ChunkedUploadExperiment(
+                directory, fileSize, maxSockets, clog, flog, slog
+            );
+            experiment.execute();
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    // インスタンス変数：
+    private final Path          directory;  // 作業用のディレクトリ
+    private final long          fileSize;   // 送信するファイルのサイズ
+    private final int           maxSockets; // 最大のソケット数
+    private final ConsoleLogger clog;       // コンソールへの出力用 Logger
+    private final FileLogger    flog;       // 結果のファイルへの出力用 Logger
+    private final FileLogger    slog;       // サーバのログのファイルへの出力用 Logger
+    
+    /**
+     * ChunkedUploadExperiment のインスタンスを生成する．
+     */
+    ChunkedUploadExperiment(
+        Path directory, long fileSize, int maxSockets,
+        ConsoleLogger clog, FileLogger flog, FileLogger slog
+    )
+    {
+        this.directory = directory;
+        this.fileSize = fileSize;
+        this.maxSockets = maxSockets;
+        this.clog = clog;
+        this.flog = flog;
+        this.slog = slog;
+    }
+    
+    /**
+     * 送信元ファイルを用意してサーバを起動し，ソケット数毎の計測と再開の確認を行う．
+     */
+    void execute()
+        throws Exception
+    {
+        // 送信元ファイルを用意する．
+        Files.createDirectories(this.directory);
+        Path source = this.directory.resolve("chunked_source.dat");
+        createSourceFile(source);
+        
+        // ループバックアドレスの空いているポートで待ち受けるソケットを生成し，
+        // デーモンスレッドでサーバのディスパッチ処理を開始する．
+        // 確定したファイルはディレクトリ内の received へ保存する．
+        ChunkedUploadProtocolFactory factory = new ChunkedUploadProtocolFactory(
+            this.directory.resolve("received"), true,
+            ChunkedUploadProtocolFactory.DEFAULT_IDLE_TIMEOUT_MS
+        );
+        ServerSocket servSock = ServerSocketChannel.open().socket();
+        servSock.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread server = new Thread(
+            () -> new ThreadPerConnectionDispatcher().startDispatching(
+                servSock, factory, this.slog
+            )
+        );
+        server.setDaemon(true);
+        server.start();
+        String servAddr = servSock.getInetAddress().getHostAddress();
+        int    servPort = servSock.getLocalPort();
+        
+        // ウォームアップを行ってから，ソケット数毎に計測する．
+        upload(factory, servAddr, servPort, source, "warmup", 1);
+        verify(factory, source, "warmup");
+        this.flog.printf("sockets\tMB\tMB_per_sec\tchunks\tidentical\n");
+        for (int numSockets = 1; numSockets <= this.maxSockets; numSockets *= 2) {
+            long    startChunks = factory.getChunkCount();
+            String  uploadId    = "chunked_" + numSockets;
+            long    elapsed_ns  = upload(factory, servAddr, servPort, source, uploadId, numSockets);
+            long    chunks      = factory.getChunkCount() - startChunks;
+            boolean isSame      = verify(factory, source, uploadId);
+            double  mbps        = ((double)this.fileSize / MEGA_BYTE) / (elapsed_ns / 1e9);
+            this.clog.printf(
+                "%2d sockets：%,8.1f MB/s，チャンク %d 個，内容の一致：%b\n",
+                numSockets, mbps, chunks, isSame
+            );
+            this.flog.printf(
+                "%d\t%d\t%.1f\t%d\t%b\n",
+                numSockets, this.fileSize / MEGA_BYTE, mbps, chunks, isSame
+            );
+        }
+        // 切断後の再開を確認する．
+        resume(factory, servAddr, servPort, source);
+        
+        Files.deleteIfExists(source);
+        this.flog.close();
+        this.slog.close();
+    }
+    
+    /**
+     * 1回のアップロードを実行し，経過時間(ns)を返す．
+     */
+    private long upload(
+        ChunkedUploadProtocolFactory factory, String servAddr, int servPort,
+        Path source, String uploadId, int numSockets
+    )
+        throws Exception
+    {
+        Files.deleteIfExists(factory.getCommittedFile(uploadId));
+        ChunkedUploader uploader = new ChunkedUploader(
+            servAddr, servPort, uploadId, source, BUF_SIZE, numSockets
+        );
+        long startTime_ns = System.nanoTime();
+        uploader.upload();
+        // IOException, InterruptedException
+        return System.nanoTime() - startTime_ns;
+    }
+    
+    /**
+     * 各コネクションを途中で切断させた後に再開し，結果を出力する．
+     */
+    private void resume(
+        ChunkedUploadProtocolFactory factory, String servAddr, int servPort, Path source
+    )
+        throws Exception
+    {
+        String uploadId = "chunked_resume";
+        Files.deleteIfExists(factory.getCommittedFile(uploadId));
+        ChunkedUploader uploader = new ChunkedUploader(
+            servAddr, servPort, uploadId, source, BUF_SIZE, this.maxSockets
+        );
+        // 各コネクションが割り当てた範囲の半分を送信した時点で切断させる．
+        long limit     = this.fileSize / this.maxSockets / 2;
+        long firstSent = uploader.send(limit);
+        
+        // サーバが切断を処理し終えるのを待ってから，欠けている範囲を問い合わせる．
+        Thread.sleep(200);
+        List<long[]> missing      = uploader.queryMissingRanges();
+        long         missingBytes = 0;
+        for (long[] range : missing) {
+            missingBytes += range[1];
+        }
+        // 再開し，欠けていた範囲だけが送信されることを確認する．
+        long    resumedSent = uploader.upload();
+        boolean isSame      = verify(factory, source, uploadId);
+        this.clog.printf(
+            "再開：切断前 %,d バイト，欠けた範囲 %d 個 %,d バイト，再開時 %,d バイト，"
+                + "送信量の一致：%b，内容の一致：%b\n",
+            firstSent, missing.size(), missingBytes, resumedSent,
+            resumedSent == missingBytes, isSame
+        );
+        this.flog.printf(
+            "resume\tfirst_sent\t%d\tmissing_ranges\t%d\tmissing_bytes\t%d\tresumed_sent\t%d"
+                + "\tidentical\t%b\n",
+            firstSent, missing.size(), missingBytes, resumedSent, isSame
+        );
+    }
+    
+    /**
+     * 確定したファイルの内容が送信元と一致することを確認し，確定したファイルを削除する．
+     */
+    private boolean verify(ChunkedUploadProtocolFactory factory, Path source, String uploadId)
+        throws Exception
+    {
+        Path    committed = factory.getCommittedFile(uploadId);
+        boolean isSame    = Files.exists(committed) && (Files.mismatch(source, committed) == -1);
+        Files.deleteIfExists(committed);
+        return isSame;
+    }
+    
+    /**
+     * 乱数で満たした送信元ファイルを生成する．
+     */
+    private void createSourceFile(Path source)
+        throws Exception
+    {
+        Random     rand   = new Random(System.currentTimeMillis());
+        ByteBuffer buffer = ByteBuffer.allocate(BUF_SIZE);
+        try (
+            FileChannel fileChan = FileChannel.open(
+                source, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+            )
+        ) {
+            long position = 0;
+            while (position < this.fileSize) {
+                rand.nextBytes(buffer.array());
+                buffer.clear().limit((int)Math.min(BUF_SIZE, this.fileSize - position));
+                while (buffer.hasRemaining()) {
+                    position += fileChan.write(buffer);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,754 @@
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ChunkedUploadProtocol のインスタンスを生成するためのファクトリ
+ * <p>
+ * 1つのファイルを複数のコネクションでチャンク(開始位置と長さで示す範囲)に分けて受信し，
+ * アップロードID 毎に1つのファイルへ組み立てる．受信中のファイルは「ID.part」とし，
+ * 全てのチャンクが揃った時点で「ID.dat」へ名前を変えて確定(コミット)する．
+ * 受信中のアップロードの状態(受信済みの範囲)はファクトリが保持するため，
+ * コネクションが切断されても，クライアントは欠けている範囲だけを送り直して再開できる．
+ * <p>
+ * どのコネクションも使用していない時間が上限を超えたアップロードは，放棄されたものとして
+ * ファイルを閉じ，受信中のファイルを削除して破棄する．上限はタイミングホイールで監視する．
+ * 受信済みの範囲はメモリ上にだけ保持するため，破棄した後やサーバを再起動した後は失われ，
+ * クライアントは全ての範囲を送り直す必要がある．
+ * <p>
+ * 下記のシステムプロパティで，保存先と確定時の同期，破棄するまでの時間を指定できる．
+ * <ul>
+ * <li>ChunkedUploadProtocolFactory.directory：保存先のディレクトリ(既定値は upload)
+ * <li>ChunkedUploadProtocolFactory.sync：確定する前にディスクへ同期するか否か(既定値は true)
+ * <li>ChunkedUploadProtocolFactory.idleTimeoutMs：使用されていないアップロードを破棄するまでの
+ *     時間(ms)(既定値は 600000，0 の場合は破棄しない)
+ * </ul>
+ */
+public class ChunkedUploadProtocolFactory
+    implements
+        ProtocolFactory
+{
+    // クラス変数（定数）：
+    static public final byte OP_CHUNK  = 1; // 要求の種類：チャンクの送信
+    static public final byte OP_STATUS = 2; // 要求の種類：欠けている範囲の問い合わせ
+    
+    static final long DEFAULT_IDLE_TIMEOUT_MS = 600000;    // 破棄するまでの時間の既定値(ms)
+    
+    static private final long TICK_MS    = 1000;    // タイミングホイールの1ティックの長さ(ms)
+    static private final int  WHEEL_SIZE = 64;      // タイミングホイールのバケット数
+    
+    // インスタンス変数：
+    private final Path                                     directory;      // 保存先
+    private final boolean                                  sync;           // 確定前に同期するか否か
+    private final long                                     idleTimeout_ns; // 破棄までの時間(ns)
+    private final HashedTimingWheel                        wheel;          // 破棄の監視用
+    private final ConcurrentHashMap<String, ChunkedUpload> uploads;        // 受信中のアップロード
+    
+    // 統計情報：
+    private final LongAdder numChunks    = new LongAdder();     // 受信したチャンク数
+    private final LongAdder bytesWritten = new LongAdder();     // 書き込んだ総バイト数
+    private final LongAdder numCommitted = new LongAdder();     // 確定したファイル数
+    
+    /**
+     * システムプロパティの設定値で ChunkedUploadProtocolFactory のインスタンスを生成する．
+     */
+    public ChunkedUploadProtocolFactory()
+    {
+        this(
+            Paths.get(System.getProperty("ChunkedUploadProtocolFactory.directory", "upload")),
+            Boolean.parseBoolean(System.getProperty("ChunkedUploadProtocolFactory.sync", "true")),
+            Long.getLong("ChunkedUploadProtocolFactory.idleTimeoutMs", DEFAULT_IDLE_TIMEOUT_MS)
+        );
+    }
+    
+    /**
+     * 保存先のディレクトリと，確定前に同期するか否か，使用されていないアップロードを
+     * 破棄するまでの時間(ms)を指定して ChunkedUploadProtocolFactory のインスタンスを生成する．
+     * 時間が 0 より大きい場合は，タイミングホイールを進めるデーモンスレッドを開始する．
+     */
+    ChunkedUploadProtocolFactory(Path directory, boolean sync, long idleTimeout_ms)
+    {
+        this.directory = directory.toAbsolutePath().normalize();
+        this.sync = sync;
+        this.idleTimeout_ns = idleTimeout_ms * 1000000;
+        this.uploads = new ConcurrentHashMap<String, ChunkedUpload>();
+        if (idleTimeout_ms <= 0) {
+            this.wheel = null;
+            return;
+        }
+        this.wheel = new HashedTimingWheel(TICK_MS, WHEEL_SIZE);
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(TICK_MS);
+                    this.wheel.advance(System.nanoTime());
+                }
+                catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }, "ChunkedUploadProtocolFactory");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * ChunkedUploadProtocol のインスタンスを生成し，Runnable インターフェースとして返す．
+     */
+    @Override
+    public Runnable createProtocol(Socket clntSock, Logger logger)
+    {
+        return new ChunkedUploadProtocol(clntSock, logger, this);
+    }
+    
+    /**
+     * アップロードIDに対応する，確定したファイルのパスを返す．
+     * 保存先のディレクトリの外を指す ID の場合は IOException を投げる．
+     */
+    Path getCommittedFile(String uploadId)
+        throws IOException
+    {
+        return resolve(uploadId, ".dat");
+    }
+    
+    /**
+     * アップロードIDに対応する受信中のアップロードを，使用中として返す．
+     * 受信中でなければ，総データサイズ分の領域を確保したファイルを用意して受信を開始する．
+     * 既に確定している場合は null を返す．返したアップロードは，使用後に release すること．
+     * 破棄の記録には logger を用いる．
+     */
+    ChunkedUpload open(String uploadId, long totalSize, Logger logger)
+        throws IOException
+    {
+        if (totalSize < 0) {
+            throw new IOException("総データサイズが不正です：" + totalSize);
+        }
+        Path committed = getCommittedFile(uploadId);
+        Path part      = resolve(uploadId, ".part");
+        try {
+            for (;;) {
+                ChunkedUpload upload = this.uploads.computeIfAbsent(uploadId, id -> {
+                    if (Files.exists(committed)) {
+                        return null;
+                    }
+                    try {
+                        Files.createDirectories(this.directory);
+                        ChunkedUpload created = new ChunkedUpload(id, part, committed, totalSize);
+                        if (this.wheel != null) {
+                            this.wheel.schedule(new IdleTimer(created, logger));
+                        }
+                        return created;
+                    }
+                    catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                });
+                if (upload == null) {
+                    return null;
+                }
+                // 取得した直後に破棄された場合は，受信中のアップロードから外して開き直す．
+                if (!upload.acquire()) {
+                    this.uploads.remove(uploadId, upload);
+                    continue;
+                }
+                if (upload.getTotalSize() != totalSize) {
+                    upload.release();
+                    throw new IOException(
+                        String.format(
+                            "総データサイズが受信中のアップロードと一致しません：%d，%d",
+                            totalSize, upload.getTotalSize()
+                        )
+                    );
+                }
+                return upload;
+            }
+        }
+        catch (RuntimeException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException)ex.getCause();
+            }
+            throw ex;
+        }
+    }
+    
+    /**
+     * 全ての範囲を受信していれば，ファイルを確定して受信中のアップロードから外す．
+     * このメソッドで確定した場合は true を返す．
+     */
+    boolean commitIfComplete(ChunkedUpload upload)
+        throws IOException
+    {
+        if (!upload.commitIfComplete(this.sync)) {
+            return false;
+        }
+        this.uploads.remove(upload.getUploadId(), upload);
+        this.numCommitted.increment();
+        return true;
+    }
+    
+    /**
+     * 1つのチャンクの受信結果を集計する．
+     */
+    void record(long bytes)
+    {
+        this.numChunks.increment();
+        this.bytesWritten.add(bytes);
+    }
+    
+    /**
+     * 受信したチャンク数の累計を返す．
+     */
+    long getChunkCount()
+    {
+        return this.numChunks.sum();
+    }
+    
+    /**
+     * 書き込んだバイト数の累計を返す．
+     */
+    long getBytesWritten()
+    {
+        return this.bytesWritten.sum();
+    }
+    
+    /**
+     * 確定したファイル数の累計を返す．
+     */
+    long getCommittedCount()
+    {
+        return this.numCommitted.sum();
+    }
+    
+    /**
+     * アップロードIDに拡張子を付けたファイルのパスを求める．
+     * 保存先のディレクトリの外は参照させない．
+     */
+    private Path resolve(String uploadId, String extension)
+        throws IOException
+    {
+        Path file = this.directory.resolve(uploadId + extension).normalize();
+        if (!this.directory.equals(file.getParent())) {
+            throw new IOException("アップロードIDが不正です：" + uploadId);
+        }
+        return file;
+    }
+    
+    /**
+     * 1つのアップロードが使用されていない時間を監視し，上限を超えたら破棄するための，
+     * タイミングホイールのエントリ
+     */
+    private class IdleTimer
+        extends
+            HashedTimingWheel.Entry
+    {
+        // インスタンス変数：
+        private final ChunkedUpload upload; // 監視するアップロード
+        private final Logger        logger; // ログ出力用の Logger インスタンス
+        
+        /**
+         * IdleTimer のインスタンスを生成する．
+         */
+        IdleTimer(ChunkedUpload upload, Logger logger)
+        {
+            this.upload = upload;
+            this.logger = logger;
+        }
+        
+        /**
+         * 使用されていない時間の期限(ns)を返す．使用中の場合は，今から上限だけ先とする．
+         */
+        @Override
+        long nextDeadline(long now_ns)
+        {
+            return this.upload.idleDeadline(now_ns, idleTimeout_ns);
+        }
+        
+        /**
+         * 確定または破棄したか否かを返す．
+         */
+        @Override
+        boolean isCancelled()
+        {
+            return this.upload.isFinished();
+        }
+        
+        /**
+         * 期限を問い合わせた後に使用が始まっていなければアップロードを破棄し，
+         * 受信中のアップロードから外す．使用が始まっていれば監視を続ける．
+         */
+        @Override
+        void expire(long now_ns)
+        {
+            try {
+                if (!this.upload.discardIfIdle(now_ns, idleTimeout_ns)) {
+                    wheel.schedule(this);
+                    return;
+                }
+                this.logger.printf(
+                    "アップロード破棄：%s，受信済み %,d / %,d バイト\n",
+                    this.upload.getUploadId(),
+                    this.upload.getTotalSize() - this.upload.getMissingBytes(),
+                    this.upload.getTotalSize()
+                );
+            }
+            catch (IOException ex) {
+                this.logger.printf("例外発生：%s\n", ex.getMessage());
+            }
+            finally {
+                if (this.upload.isFinished()) {
+                    uploads.remove(this.upload.getUploadId(), this.upload);
+                }
+            }
+        }
+    }
+}
+
+/**
+ * 1つのアップロードの受信状態を保持するクラス
+ * <p>
+ * 受信中のファイルは，生成時に総データサイズまで拡張しておき，各チャンクは
+ * 位置を指定した書き込み(FileChannel.write(ByteBuffer, long))で該当する位置へ直接書き込む．
+ * 位置を指定した書き込みはファイルの現在位置を変えないため，
+ * 複数のコネクションのスレッドが1つの FileChannel へ同時に書き込める．
+ * 書き込んだ範囲は，重なるか接する範囲を併合しながら記録する．
+ * <p>
+ * 受信中のファイルが既にある場合(サーバを再起動した場合など)は，内容を残したまま開くが，
+ * 書き込んだ範囲は空から記録し直すため，全ての範囲を受信するまで確定しない．
+ * 使用中のコネクション数と最後に使用を終えた時刻を記録し，使用されていない時間が
+ * 上限を超えた場合は，ファイルを閉じて受信中のファイルを削除する(破棄する)．
+ */
+class ChunkedUpload
+{
+    // インスタンス変数：
+    private final String              uploadId;     // アップロードID
+    private final Path                part;         // 受信中のファイル
+    private final Path                committed;    // 確定したファイル
+    private final long                totalSize;    // 総データサイズ
+    private final FileChannel         fileChan;     // 受信中のファイルのチャネル
+    private final TreeMap<Long, Long> received;     // 書き込んだ範囲(開始位置から終了位置へのマップ)
+    
+    private long    receivedBytes = 0;      // 書き込んだ範囲の合計バイト数
+    private boolean isCommitted   = false;  // 確定したか否か
+    private boolean isDiscarded   = false;  // 破棄したか否か
+    private int     numUsers      = 0;      // 使用中のコネクション数
+    private long    lastUsed_ns;            // 最後に使用を終えた時刻(ns)
+    
+    /**
+     * 受信中のファイルを開いて総データサイズに合わせ，
+     * ChunkedUpload のインスタンスを生成する．
+     */
+    ChunkedUpload(String uploadId, Path part, Path committed, long totalSize)
+        throws IOException
+    {
+        this.uploadId = uploadId;
+        this.part = part;
+        this.committed = committed;
+        this.totalSize = totalSize;
+        this.received = new TreeMap<Long, Long>();
+        this.lastUsed_ns = System.nanoTime();
+        this.fileChan = FileChannel.open(
+            part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+        );
+        // 既存のファイルが総データサイズより大きければ切り詰め，
+        // 最後の1バイトを書き込んで，ファイルを総データサイズまで拡張しておく．
+        if (this.fileChan.size() > totalSize) {
+            this.fileChan.truncate(totalSize);
+        }
+        if (totalSize > 0) {
+            this.fileChan.write(ByteBuffer.allocate(1), totalSize - 1);
+        }
+    }
+    
+    /**
+     * アップロードIDを返す．
+     */
+    String getUploadId()
+    {
+        return this.uploadId;
+    }
+    
+    /**
+     * 総データサイズを返す．
+     */
+    long getTotalSize()
+    {
+        return this.totalSize;
+    }
+    
+    /**
+     * 受信中のファイルのチャネルを返す．
+     */
+    FileChannel getChannel()
+    {
+        return this.fileChan;
+    }
+    
+    /**
+     * 確定したか否かを返す．
+     */
+    synchronized boolean isCommitted()
+    {
+        return this.isCommitted;
+    }
+    
+    /**
+     * 確定または破棄したか否かを返す．
+     */
+    synchronized boolean isFinished()
+    {
+        return this.isCommitted || this.isDiscarded;
+    }
+    
+    /**
+     * 使用を開始する．既に破棄していれば使用せずに false を返す．
+     */
+    synchronized boolean acquire()
+    {
+        if (this.isDiscarded) {
+            return false;
+        }
+        this.numUsers++;
+        return true;
+    }
+    
+    /**
+     * 使用を終える．
+     */
+    synchronized void release()
+    {
+        this.numUsers--;
+        this.lastUsed_ns = System.nanoTime();
+    }
+    
+    /**
+     * 使用されていない時間が上限(ns)に達する時刻(ns)を返す．
+     * 使用中の場合は，現在時刻から上限だけ先とする．
+     */
+    synchronized long idleDeadline(long now_ns, long idleTimeout_ns)
+    {
+        return ((this.numUsers > 0) ? now_ns : this.lastUsed_ns) + idleTimeout_ns;
+    }
+    
+    /**
+     * 使用されておらず，使用されていない時間が上限(ns)に達していれば，
+     * ファイルを閉じて受信中のファイルを削除する．このメソッドで破棄した場合は true を返す．
+     */
+    synchronized boolean discardIfIdle(long now_ns, long idleTimeout_ns)
+        throws IOException
+    {
+        if (this.isFinished() || (idleDeadline(now_ns, idleTimeout_ns) - now_ns > 0)) {
+            return false;
+        }
+        this.isDiscarded = true;
+        this.fileChan.close();
+        Files.deleteIfExists(this.part);
+        return true;
+    }
+    
+    /**
+     * 書き込んだ範囲を記録する．重なるか接する範囲とは併合する．
+     */
+    synchronized void markReceived(long start, long end)
+    {
+        if (start >= end) {
+            return;
+        }
+        // 直前の範囲と重なるか接していれば併合する．
+        Map.Entry<Long, Long> floor = this.received.floorEntry(start);
+        if ((floor != null) && (floor.getValue() >= start)) {
+            start = floor.getKey();
+            end = Math.max(end, floor.getValue());
+            this.receivedBytes -= floor.getValue() - floor.getKey();
+            this.received.remove(floor.getKey());
+        }
+        // 後続の範囲のうち，重なるか接するものを併合する．
+        Map.Entry<Long, Long> next = this.received.ceilingEntry(start);
+        while ((next != null) && (next.getKey() <= end)) {
+            end = Math.max(end, next.getValue());
+            this.receivedBytes -= next.getValue() - next.getKey();
+            this.received.remove(next.getKey());
+            next = this.received.ceilingEntry(start);
+        }
+        this.received.put(start, end);
+        this.receivedBytes += end - start;
+    }
+    
+    /**
+     * まだ書き込んでいない範囲のバイト数を返す．
+     */
+    synchronized long getMissingBytes()
+    {
+        return this.totalSize - this.receivedBytes;
+    }
+    
+    /**
+     * まだ書き込んでいない範囲を，開始位置と長さの組のリストとして返す．
+     */
+    synchronized List<long[]> getMissingRanges()
+    {
+        List<long[]> missing  = new ArrayList<long[]>();
+        long         position = 0;
+        for (Map.Entry<Long, Long> entry : this.received.entrySet()) {
+            if (entry.getKey() > position) {
+                missing.add(new long[] { position, entry.getKey() - position });
+            }
+            position = entry.getValue();
+        }
+        if (position < this.totalSize) {
+            missing.add(new long[] { position, this.totalSize - position });
+        }
+        return missing;
+    }
+    
+    /**
+     * 全ての範囲を書き込んでいれば，ファイルを閉じて確定したファイルへ名前を変える．
+     * 指定された場合は閉じる前にディスクへ同期する．このメソッドで確定した場合は true を返す．
+     */
+    synchronized boolean commitIfComplete(boolean sync)
+        throws IOException
+    {
+        if (this.isCommitted || (this.receivedBytes < this.totalSize)) {
+            return false;
+        }
+        if (sync) {
+            this.fileChan.force(true);
+        }
+        this.fileChan.close();
+        Files.move(
+            this.part, this.committed,
+            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING
+        );
+        this.isCommitted = true;
+        return true;
+    }
+}
+
+/**
+ * チャンクに分けて送信されるデータを受信し，アップロード毎に1つのファイルへ組み立てる
+ * サーバ側の機能の実装
+ * <p>
+ * 1つのコネクションで，下記の要求をクライアントがソケットを閉じるまで繰り返し受信する．
+ * <pre>
+ * 共通：要求の種類(byte)，アップロードIDのバイト数(int)，アップロードID(UTF-8)，
+ *       総データサイズ(long)
+ * チャンクの送信(OP_CHUNK)：
+ *   要求：共通部分，開始位置(long)，長さ(long)，データ
+ *   応答：確定したか否か(boolean)，まだ受信していないバイト数(long)
+ * 欠けている範囲の問い合わせ(OP_STATUS)：
+ *   要求：共通部分
+ *   応答：確定したか否か(boolean)，範囲の数(int)，範囲毎の開始位置(long)と長さ(long)
+ * </pre>
+ * チャンクの途中でコネクションが切断された場合も，それまでに書き込んだ範囲は受信済みとする．
+ * 要求毎に受信中のアップロードを使用中とし，応答を送信し終えたら使用を終える．
+ * 既に確定したアップロードへのチャンクは，読み捨てて確定したことを応答する．
+ */
+class ChunkedUploadProtocol
+    implements
+        Runnable
+{
+    // クラス変数（定数）：
+    static private final int BUF_SIZE   = 64 * 1024;    // 受信バッファサイズ
+    static private final int MAX_ID_LEN = 1024;         // アップロードIDの最大バイト数
+    
+    // インスタンス変数：
+    private final Socket                       clntSock;   // クライアントと通信するためのソケット
+    private final Logger                       logger;     // ログ出力用の Logger インスタンス
+    private final ChunkedUploadProtocolFactory factory;    // 受信中のアップロードを持つファクトリ
+    
+    private long numChunks  = 0;    // このコネクションで受信したチャンク数
+    private long totalBytes = 0;    // このコネクションで書き込んだバイト数
+    
+    /**
+     * ChunkedUploadProtocol のインスタンスを生成する．
+     */
+    public ChunkedUploadProtocol(
+        Socket clntSock, Logger logger, ChunkedUploadProtocolFactory factory
+    )
+    {
+        this.clntSock = clntSock;
+        this.logger = logger;
+        this.factory = factory;
+    }
+    
+    /**
+     * クライアントがソケットを閉じるまで，要求を受信して処理する．
+     */
+    @Override
+    public void run()
+    {
+        ByteBuffer buffer = BufferPool.getHeapInstance().acquire(BUF_SIZE);
+        try {
+            // ソケットから入出力ストリームを取得する．
+            DataInputStream  in  = new DataInputStream(this.clntSock.getInputStream());
+            DataOutputStream out = new DataOutputStream(this.clntSock.getOutputStream());
+            // IOException
+            
+            for (;;) {
+                // 要求の種類を受信する．クライアントがソケットを閉じた場合はループを抜ける．
+                int op = in.read();
+                if (op == -1) {
+                    break;
+                }
+                // 共通部分を受信し，受信中のアップロードを求める．
+                int idLength = in.readInt();
+                if ((idLength <= 0) || (idLength > MAX_ID_LEN)) {
+                    throw new IOException("アップロードIDのバイト数が不正です：" + idLength);
+                }
+                byte[] idBytes = new byte[idLength];
+                in.readFully(idBytes);
+                long totalSize = in.readLong();
+                ServerMetrics.getInstance().addBytesIn(1 + 4 + idLength + 8);
+                String        uploadId = new String(idBytes, StandardCharsets.UTF_8);
+                ChunkedUpload upload   = this.factory.open(uploadId, totalSize, this.logger);
+                try {
+                    if (op == ChunkedUploadProtocolFactory.OP_CHUNK) {
+                        receiveChunk(in, out, upload, buffer);
+                    }
+                    else if (op == ChunkedUploadProtocolFactory.OP_STATUS) {
+                        writeStatus(out, upload);
+                    }
+                    else {
+                        throw new IOException("要求の種類が不正です：" + op);
+                    }
+                }
+                finally {
+                    if (upload != null) {
+                        upload.release();
+                    }
+                }
+            }
+            this.logger.printf(
+                "チャンク受信完了：%,d 個，%,d バイト\n", this.numChunks, this.totalBytes
+            );
+        }
+        catch (IOException ex) {
+            this.logger.println("例外発生：" + ex.getMessage());
+        }
+        finally {
+            // バッファをプールへ返す．
+            BufferPool.getHeapInstance().release(buffer);
+            try {
+                // ソケットを閉じる．
+                this.clntSock.close();
+                // IOException
+            }
+            catch (IOException ex) {
+                this.logger.println("例外発生：" + ex.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * 1つのチャンクを受信し，受信中のファイルの該当する位置へ書き込む．
+     * 全ての範囲が揃った場合はファイルを確定し，確定したか否かと残りのバイト数を応答する．
+     */
+    private void receiveChunk(
+        DataInputStream in, DataOutputStream out, ChunkedUpload upload, ByteBuffer buffer
+    )
+        throws IOException
+    {
+        long offset = in.readLong();
+        long length = in.readLong();
+        ServerMetrics.getInstance().addBytesIn(16);
+        
+        // 既に確定している場合は，チャンクを読み捨てる．
+        if ((upload == null) || upload.isCommitted()) {
+            in.skipNBytes(length);
+            ServerMetrics.getInstance().addBytesIn(length);
+            writeChunkResult(out, true, 0);
+            return;
+        }
+        if ((offset < 0) || (length < 0) || (length > upload.getTotalSize() - offset)) {
+            throw new IOException(
+                String.format("チャンクの範囲が不正です：%d，%d", offset, length)
+            );
+        }
+        // 受信したデータを，位置を指定して受信中のファイルへ書き込む．
+        // 途中で切断された場合も，書き込んだ範囲までは受信済みとして記録する．
+        byte[]      recvBuffer = buffer.array();
+        FileChannel fileChan   = upload.getChannel();
+        long        written    = 0;
+        try {
+            while (written < length) {
+                int readSize  = (int)Math.min(recvBuffer.length, length - written);
+                int bytesRcvd = in.read(recvBuffer, 0, readSize);
+                if (bytesRcvd == -1) {
+                    throw new IOException("チャンクの途中でコネクションが切断されました．");
+                }
+                ServerMetrics.getInstance().addBytesIn(bytesRcvd);
+                buffer.clear().limit(bytesRcvd);
+                while (buffer.hasRemaining()) {
+                    fileChan.write(buffer, offset + written + buffer.position());
+                }
+                written += bytesRcvd;
+            }
+        }
+        finally {
+            upload.markReceived(offset, offset + written);
+            this.factory.record(written);
+            this.numChunks++;
+            this.totalBytes += written;
+        }
+        // 全ての範囲が揃っていれば確定する．
+        if (this.factory.commitIfComplete(upload)) {
+            this.logger.printf(
+                "アップロード確定：%s，%,d バイト\n", upload.getUploadId(), upload.getTotalSize()
+            );
+        }
+        writeChunkResult(out, upload.isCommitted(), upload.getMissingBytes());
+    }
+    
+    /**
+     * チャンクの送信に対する応答を送信する．
+     */
+    private void writeChunkResult(DataOutputStream out, boolean isCommitted, long missingBytes)
+        throws IOException
+    {
+        out.writeBoolean(isCommitted);
+        out.writeLong(missingBytes);
+        out.flush();
+        ServerMetrics.getInstance().addBytesOut(1 + 8);
+    }
+    
+    /**
+     * 確定したか否かと，まだ受信していない範囲を応答する．
+     * 総データサイズが 0 の場合など，全ての範囲が揃っていれば確定してから応答する．
+     */
+    private void writeStatus(DataOutputStream out, ChunkedUpload upload)
+        throws IOException
+    {
+        List<long[]> missing = new ArrayList<long[]>();
+        boolean      isDone  = (upload == null);
+        if (!isDone) {
+            this.factory.commitIfComplete(upload);
+            isDone = upload.isCommitted();
+            if (!isDone) {
+                missing = upload.getMissingRanges();
+            }
+        }
+        out.writeBoolean(isDone);
+        out.writeInt(missing.size());
+        for (long[] range : missing) {
+            out.writeLong(range[0]);
+            out.writeLong(range[1]);
+        }
+        out.flush();
+        ServerMetrics.getInstance().addBytesOut(1 + 4 + 16 * missing.size());
+    }
+}
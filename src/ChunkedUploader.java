@@ -0,0 +1,298 @@
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ソケット数と同数のスレッドを利用し，ファイルをチャンクに分けて並行して送信する機能の実装
+ * <p>
+ * ChunkedUploadProtocol を用いるサーバへファイルを送信する．
+ * 送信する前にサーバへ欠けている範囲を問い合わせ，その範囲だけをソケット数に分けて送信する．
+ * いずれかのコネクションが失敗した場合は，問い合わせからやり直して残りの範囲を送信する．
+ * これを，サーバがファイルを確定するか，MAX_ATTEMPTS 回に達するまで繰り返す．
+ */
+class ChunkedUploader
+{
+    // クラス変数（定数）：
+    static final int MAX_ATTEMPTS = 5;      // 問い合わせと送信を繰り返す最大回数
+    
+    // インスタンス変数：
+    private final String servAddr;      // サーバのIPアドレス(またはホスト名)
+    private final int    servPort;      // サーバのポート番号
+    private final String uploadId;      // アップロードID
+    private final Path   source;        // 送信するファイル
+    private final int    bufferSize;    // 送信バッファサイズ
+    private final int    numSockets;    // ソケット数
+    
+    /**
+     * ChunkedUploader のインスタンスを生成する．
+     */
+    ChunkedUploader(
+        String servAddr, int servPort, String uploadId, Path source,
+        int bufferSize, int numSockets
+    )
+    {
+        // 下記のインスタンス変数を，引数で初期化する．
+        this.servAddr = servAddr;
+        this.servPort = servPort;
+        this.uploadId = uploadId;
+        this.source = source;
+        this.bufferSize = bufferSize;
+        this.numSockets = numSockets;
+    }
+    
+    /**
+     * サーバがファイルを確定するまで，欠けている範囲の送信を繰り返す．
+     * この呼び出しで送信したデータサイズを返す．
+     */
+    long upload()
+        throws IOException,
+            InterruptedException
+    {
+        long        totalBytesSent = 0;
+        IOException lastError      = null;
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            try {
+                long bytesSent = send(Long.MAX_VALUE);
+                if (bytesSent < 0) {
+                    return totalBytesSent;
+                }
+                totalBytesSent += bytesSent;
+            }
+            catch (ExecutionException ex) {
+                // いずれかのコネクションが失敗したので，問い合わせからやり直す．
+                lastError = new IOException(ex.getCause());
+            }
+        }
+        // 最後に確定したか否かを確認する．
+        if (queryMissingRanges() == null) {
+            return totalBytesSent;
+        }
+        throw new IOException("アップロードを確定できませんでした：" + this.uploadId, lastError);
+    }
+    
+    /**
+     * 欠けている範囲を問い合わせ，その範囲をソケット数に分けて1回ずつ送信する．
+     * 各コネクションは，limitPerSocket バイトを送信した時点でチャンクの途中でも切断する．
+     * 送信したデータサイズを返す．問い合わせた時点で確定していた場合は -1 を返す．
+     */
+    long send(long limitPerSocket)
+        throws IOException,
+            InterruptedException,
+            ExecutionException
+    {
+        // 欠けている範囲を問い合わせる．
+        List<long[]> missing = queryMissingRanges();
+        if (missing == null) {
+            return -1;
+        }
+        // 欠けている範囲を，送信するバイト数がほぼ等しくなるようにソケット毎へ割り当てる．
+        List<List<long[]>> assignments = assign(missing);
+        
+        // ソケット数と同数のスレッドを利用するためのスレッドプールを生成する．
+        ExecutorService threadPool = Executors.newFixedThreadPool(this.numSockets);
+        
+        // 送信処理メソッドの完了を確認するための Future インスタンスのリストを生成する．
+        List<Future<Long>> futureList = new ArrayList<Future<Long>>();
+        try (FileChannel fileChan = FileChannel.open(this.source, StandardOpenOption.READ)) {
+            // 割り当てた範囲のあるソケット毎に，スレッドへ送信処理メソッドを渡す．
+            for (List<long[]> ranges : assignments) {
+                futureList.add(
+                    threadPool.submit(() -> sendPerSocket(ranges, fileChan, limitPerSocket))
+                );
+            }
+            // Future インスタンスのリストを走査し，各スレッドにおける送信処理の完了を確認する．
+            // 失敗したスレッドがあっても，他のスレッドの完了を待ってから例外を投げる．
+            long               totalBytesSent = 0;
+            ExecutionException error          = null;
+            for (Future<Long> future : futureList) {
+                try {
+                    totalBytesSent += future.get();
+                    // InterruptedException, ExecutionException
+                }
+                catch (ExecutionException ex) {
+                    error = ex;
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            return totalBytesSent;
+        }
+        finally {
+            // スレッドプールを終了させる．
+            shutdownAndAwaitTermination(threadPool);
+        }
+    }
+    
+    /**
+     * 欠けている範囲をサーバへ問い合わせ，開始位置と長さの組のリストとして返す．
+     * 確定していた場合は null を返す．
+     */
+    List<long[]> queryMissingRanges()
+        throws IOException
+    {
+        try (Socket socket = new Socket(this.servAddr, this.servPort)) {
+            DataInputStream  in  = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            
+            writeRequest(out, ChunkedUploadProtocolFactory.OP_STATUS);
+            out.flush();
+            
+            boolean      isCommitted = in.readBoolean();
+            int          numRanges   = in.readInt();
+            List<long[]> missing     = new ArrayList<long[]>();
+            for (int i = 0; i < numRanges; i++) {
+                missing.add(new long[] { in.readLong(), in.readLong() });
+            }
+            return isCommitted ? null : missing;
+        }
+    }
+    
+    /**
+     * 欠けている範囲を，送信するバイト数がほぼ等しくなるように分割してソケット毎へ割り当てる．
+     * 範囲が無い場合，または全体のバイト数がソケット数に満たない場合は，割り当てるソケット数を減らす．
+     */
+    private List<List<long[]>> assign(List<long[]> missing)
+    {
+        long total = 0;
+        for (long[] range : missing) {
+            total += range[1];
+        }
+        // ソケット毎の送信データサイズを求める．余りは先頭のソケットから 1 バイトずつ割り当てる．
+        List<List<long[]>> assignments = new ArrayList<List<long[]>>();
+        long               share       = total / this.numSockets;
+        long               extra       = total % this.numSockets;
+        int                index       = 0;
+        long               position    = missing.isEmpty() ? 0 : missing.get(0)[0];
+        for (int i = 0; i < this.numSockets; i++) {
+            long         quota  = share + ((i < extra) ? 1 : 0);
+            List<long[]> ranges = new ArrayList<long[]>();
+            while ((quota > 0) && (index < missing.size())) {
+                // 現在の範囲の残りから，割り当てられるだけを切り出す．
+                long[] range  = missing.get(index);
+                long   end    = range[0] + range[1];
+                long   length = Math.min(quota, end - position);
+                ranges.add(new long[] { position, length });
+                quota -= length;
+                position += length;
+                if (position >= end) {
+                    index++;
+                    position = (index < missing.size()) ? missing.get(index)[0] : 0;
+                }
+            }
+            if (!ranges.isEmpty()) {
+                assignments.add(ranges);
+            }
+        }
+        return assignments;
+    }
+    
+    /**
+     * ソケット毎の送信処理を実行する．このメソッドはスレッドプール内のスレッドから呼ばれる．
+     * 割り当てられた範囲を1つのコネクションで順に送信し，送信したデータサイズを返す．
+     * limitPerSocket バイトを送信した時点で，チャンクの途中でもコネクションを切断する．
+     */
+    private long sendPerSocket(List<long[]> ranges, FileChannel fileChan, long limitPerSocket)
+        throws IOException
+    {
+        ByteBuffer buffer     = BufferPool.getHeapInstance().acquire(this.bufferSize);
+        byte[]     sendBuffer = buffer.array();
+        long       bytesSent  = 0;
+        try (Socket socket = new Socket(this.servAddr, this.servPort)) {
+            DataInputStream  in  = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            
+            for (long[] range : ranges) {
+                // チャンクの要求を送信する．
+                writeRequest(out, ChunkedUploadProtocolFactory.OP_CHUNK);
+                out.writeLong(range[0]);
+                out.writeLong(range[1]);
+                
+                // ファイルの該当する範囲を，位置を指定して読み込みながら送信する．
+                long position = range[0];
+                long end      = range[0] + range[1];
+                while (position < end) {
+                    if (bytesSent >= limitPerSocket) {
+                        out.flush();
+                        return bytesSent;
+                    }
+                    long limit = Math.min(end - position, limitPerSocket - bytesSent);
+                    buffer.clear().limit((int)Math.min(this.bufferSize, limit));
+                    int bytesRead = fileChan.read(buffer, position);
+                    if (bytesRead == -1) {
+                        throw new IOException("送信するファイルが途中で切り詰められました．");
+                    }
+                    out.write(sendBuffer, 0, bytesRead);
+                    position += bytesRead;
+                    bytesSent += bytesRead;
+                }
+                out.flush();
+                
+                // チャンクの受信結果を確認する．確定していれば残りの範囲は送信しない．
+                boolean isCommitted = in.readBoolean();
+                in.readLong();
+                if (isCommitted) {
+                    break;
+                }
+            }
+            return bytesSent;
+        }
+        finally {
+            // バッファをプールへ返す．
+            BufferPool.getHeapInstance().release(buffer);
+        }
+    }
+    
+    /**
+     * 要求の共通部分(要求の種類，アップロードID，総データサイズ)を送信する．
+     */
+    private void writeRequest(DataOutputStream out, byte op)
+        throws IOException
+    {
+        byte[] idBytes = this.uploadId.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(op);
+        out.writeInt(idBytes.length);
+        out.write(idBytes);
+        out.writeLong(this.source.toFile().length());
+    }
+    
+    /**
+     * ExecutorService を2段階でシャットダウンする．
+     */
+    private void shutdownAndAwaitTermination(ExecutorService threadPool)
+    {
+        // 最初に shutdown メソッドを呼び出して着信タスクを拒否する．
+        threadPool.shutdown();
+        try {
+            // 実行中のタスクの終了を待つ．
+            if (!threadPool.awaitTermination(60, TimeUnit.SECONDS)) {
+                // 実行中のタスクの終了前に待ち時間が切れたので，実行中のタスクの停止を試みる．
+                threadPool.shutdownNow();
+                if (!threadPool.awaitTermination(60, TimeUnit.SECONDS)) {
+                    throw new RuntimeException(
+                        "ExecutorService を正常に終了できませんでした．"
+                    );
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            // 実行中のタスクすべての停止を試み，現在のスレッドの割り込みステータスを保持する．
+            threadPool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
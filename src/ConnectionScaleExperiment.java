@@ -0,0 +1,176 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * エコーサーバとのコネクション数を段階的に増やし，
+ * コネクション数とサーバプロセスのメモリ使用量(RSS)・スレッド数の関係を調べる実験
+ * <p>
+ * 同一ホスト上で，下記のようにディスパッチャだけを変えて起動したサーバに対して実行し，
+ * 結果を比較する．RSS とスレッド数は /proc/&lt;pid&gt;/status から取得するため，
+ * Linux 上でのみ計測できる．
+ * <pre>
+ * java -Djdk.tracePinnedThreads=full ProtocolLauncher &lt;Port&gt; Echo VirtualThread
+ * java ProtocolLauncher &lt;Port&gt; Echo ThreadPerConnection
+ * </pre>
+ */
+public class ConnectionScaleExperiment
+{
+    // コネクション数の増分と，計測前に待機する時間(ms)
+    private static final int  STEP_CONNECTIONS = 1000;
+    private static final long SETTLE_TIME_MS   = 2000;
+    
+    /**
+     * コネクション数とメモリ使用量の計測実験用クライアントを利用するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 4) {
+            System.out.println("Parameters: <Server> <Port> <Server PID> <Max Connections>");
+            return;
+        }
+        try {
+            // サーバ名(またはIPアドレス)，サーバのポート番号，サーバのプロセスID，
+            // 最大コネクション数を引数から取得する．
+            String servAddr       = args[0];
+            int    servPort       = Integer.parseInt(args[1]);
+            long   servPid        = Long.parseLong(args[2]);
+            int    maxConnections = Integer.parseInt(args[3]);
+            
+            // コンソールへのログ出力用のインスタンスを生成する．
+            ConsoleLogger clog = new ConsoleLogger();
+            
+            // ファイルへのログ出力用のインスタンスを生成する．
+            FileLogger flog = new FileLogger(
+                String.format("scale_%d.txt", System.currentTimeMillis())
+            );
+            // IOException
+            
+            // 実験用クライアントのインスタンスを生成し，実験を実行する．
+            ConnectionScaleExperiment client = new ConnectionScaleExperiment(
+                servAddr, servPort, servPid, clog, flog
+            );
+            client.execute(maxConnections);
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    // インスタンス変数：
+    private final String        servAddr;   // サーバのIPアドレス(またはホスト名)
+    private final int           servPort;   // サーバのポート番号
+    private final long          servPid;    // サーバのプロセスID
+    private final ConsoleLogger clog;       // コンソールへの出力用 Logger
+    private final FileLogger    flog;       // ファイルへの出力用 Logger
+    
+    /**
+     * ConnectionScaleExperiment のインスタンスを生成する．
+     */
+    ConnectionScaleExperiment(
+        String servAddr, int servPort, long servPid, ConsoleLogger clog, FileLogger flog
+    )
+    {
+        this.servAddr = servAddr;
+        this.servPort = servPort;
+        this.servPid = servPid;
+        this.clog = clog;
+        this.flog = flog;
+    }
+    
+    /**
+     * STEP_CONNECTIONS 本ずつコネクションを増やしながら，
+     * サーバの RSS とスレッド数を計測する．
+     */
+    void execute(int maxConnections)
+    {
+        // 確立したコネクション(ソケット)のリスト
+        List<Socket> sockets = new ArrayList<Socket>();
+        
+        // 1バイトのエコーデータ
+        byte[] echoData = new byte[1];
+        
+        this.flog.printf("connections\trss_kb\tthreads\n");
+        try {
+            // 最大コネクション数に達するまで，コネクションを増やす．
+            while (sockets.size() < maxConnections) {
+                for (int i = 0; i < STEP_CONNECTIONS && sockets.size() < maxConnections; i++) {
+                    // サーバとのコネクションを確立し，1バイトのエコーを行う．
+                    // エコーが返ってくれば，サーバ側でプロトコル処理が開始されている．
+                    Socket socket = new Socket(this.servAddr, this.servPort);
+                    sockets.add(socket);
+                    echoOneByte(socket, echoData);
+                }
+                // サーバ側の状態が落ち着くまで待ち，RSS とスレッド数を計測する．
+                Thread.sleep(SETTLE_TIME_MS);
+                long rss_kb  = readStatus("VmRSS:");
+                long threads = readStatus("Threads:");
+                
+                this.clog.printf(
+                    "コネクション数：%,7d，RSS：%,9d KB，スレッド数：%,6d\n",
+                    sockets.size(), rss_kb, threads
+                );
+                this.flog.printf("%d\t%d\t%d\n", sockets.size(), rss_kb, threads);
+            }
+        }
+        catch (IOException | InterruptedException ex) {
+            // 例外が発生した時点までの結果で実験を終える．
+            this.clog.printf("例外発生（コネクション数：%d）：%s\n", sockets.size(), ex.getMessage());
+        }
+        finally {
+            // 全てのコネクションを閉じる．
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                }
+                catch (IOException ex) {
+                    ;
+                }
+            }
+            // ファイルへのログ出力を終了する．
+            this.flog.close();
+        }
+    }
+    
+    /**
+     * 1バイトのデータを送信し，同じデータが返ってくるのを待つ．
+     */
+    private void echoOneByte(Socket socket, byte[] echoData)
+        throws IOException
+    {
+        OutputStream out = socket.getOutputStream();
+        InputStream  in  = socket.getInputStream();
+        out.write(echoData);
+        if (in.read(echoData) != 1) {
+            throw new IOException("サーバがコネクションを切断しました．");
+        }
+    }
+    
+    /**
+     * サーバプロセスの /proc/&lt;pid&gt;/status から，指定した項目の値を取得する．
+     * 取得できなかった場合は -1 を返す．
+     */
+    private long readStatus(String fieldName)
+        throws IOException
+    {
+        List<String> lines = Files.readAllLines(
+            Paths.get("/proc", Long.toString(this.servPid), "status")
+        );
+        for (String line : lines) {
+            if (line.startsWith(fieldName)) {
+                // 例："VmRSS:     123456 kB" の数値部分を取り出す．
+                String[] fields = line.substring(fieldName.length()).trim().split("\\s+");
+                return Long.parseLong(fields[0]);
+            }
+        }
+        return -1;
+    }
+}
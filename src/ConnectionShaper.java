@@ -0,0 +1,273 @@
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 1つのコネクションの送受信を，コネクション毎と IPアドレス毎のトークンバケットに通すクラス
+ * <p>
+ * 送受信したバイト数を両方のバケットで予約し，長い方の時間だけ次の送受信を待たせる．
+ * 入出力の方法毎に，下記の待ち方を用意する．
+ * <ul>
+ * <li>ブロッキング入出力：wrap で包んだストリームが，受信の後・送信の前にスレッドを休ませる．
+ * ただし，休んでいる間もスレッドを占有する．
+ * <li>ノンブロッキング入出力：pauseRead が読み込み可能状態の監視を止め，
+ * 待つ時間の経過後に TrafficShaper のスレッドが監視を再開してセレクタを起こす．
+ * 一時停止と干渉しないよう，プロトコルは interestOpsOr・interestOpsAnd で監視を変更すること．
+ * <li>非同期チャネル：paceAsync が次の受信・送信を開始する処理を遅らせる．
+ * </ul>
+ * 制限しない場合は，いずれも待たずに処理し，ストリームもそのまま返す．
+ * <p>
+ * プロトコルは，コネクションを閉じた時に close を呼び出し，IPアドレス毎のバケットを
+ * 使い終えたことを TrafficShaper に伝える．
+ */
+class ConnectionShaper
+{
+    // インスタンス変数：
+    private final TrafficShaper shaper;     // 設定と統計情報の記録先
+    private final TokenBucket   connection; // コネクション毎のバケット(制限しない場合は null)
+    private final TokenBucket   client;     // IPアドレス毎のバケット(制限しない場合は null)
+    private final InetAddress   address;    // IPアドレス毎のバケットのアドレス(無ければ null)
+    
+    private final AtomicBoolean isClosed = new AtomicBoolean(false);    // close を呼び出したか否か
+    
+    private volatile boolean isReadPaused = false;  // 読み込み可能状態の監視を止めているか否か
+    
+    /**
+     * ConnectionShaper のインスタンスを生成する．
+     * IPアドレス毎のバケットを使う場合は，そのアドレスも指定する．
+     */
+    ConnectionShaper(
+        TrafficShaper shaper, TokenBucket connection, TokenBucket client, InetAddress address
+    )
+    {
+        this.shaper = shaper;
+        this.connection = connection;
+        this.client = client;
+        this.address = address;
+    }
+    
+    /**
+     * 帯域を制限するか否かを返す．
+     */
+    boolean isEnabled()
+    {
+        return (this.connection != null) || (this.client != null);
+    }
+    
+    /**
+     * 送受信したバイト数を両方のバケットで予約し，次の送受信まで待つ時間(ns)を返す．
+     */
+    long reserve(long bytes)
+    {
+        if (!isEnabled() || (bytes <= 0)) {
+            return 0;
+        }
+        long now_ns   = System.nanoTime();
+        long delay_ns = 0;
+        if (this.connection != null) {
+            delay_ns = this.connection.reserve(bytes, now_ns);
+        }
+        if (this.client != null) {
+            delay_ns = Math.max(delay_ns, this.client.reserve(bytes, now_ns));
+        }
+        if (delay_ns > 0) {
+            this.shaper.recordDelay(delay_ns);
+        }
+        return delay_ns;
+    }
+    
+    /**
+     * 送受信したバイト数を予約し，必要な時間だけ呼び出したスレッドを休ませる．
+     */
+    void pace(long bytes)
+        throws InterruptedIOException
+    {
+        long delay_ns = reserve(bytes);
+        if (delay_ns <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(delay_ns);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("帯域制限の待機中に割り込まれました．");
+        }
+    }
+    
+    /**
+     * 受信したバイト数を予約し，受信を待たせる必要があれば読み込み可能状態の監視を止め，
+     * 待つ時間の経過後に再開するよう予約する．セレクタのスレッドから呼び出すこと．
+     * 監視を止めた(または既に止めている)場合は true を返す．
+     */
+    boolean pauseRead(SelectionKey key, long bytes)
+    {
+        long delay_ns = reserve(bytes);
+        if (delay_ns <= 0) {
+            return this.isReadPaused;
+        }
+        key.interestOpsAnd(~SelectionKey.OP_READ);
+        if (!this.isReadPaused) {
+            this.isReadPaused = true;
+            this.shaper.schedule(() -> resumeRead(key), delay_ns);
+        }
+        return true;
+    }
+    
+    /**
+     * 読み込み可能状態の監視を再開し，セレクタを起こす．
+     * TrafficShaper のスレッドから呼び出される．
+     */
+    private void resumeRead(SelectionKey key)
+    {
+        this.isReadPaused = false;
+        try {
+            key.interestOpsOr(SelectionKey.OP_READ);
+            key.selector().wakeup();
+        }
+        catch (CancelledKeyException ex) {
+            // 待つ間にチャネルが閉じられた．
+            ;
+        }
+    }
+    
+    /**
+     * 送受信したバイト数を予約し，待つ必要が無ければ次の処理をそのまま実行し，
+     * 必要があれば待つ時間の経過後に TrafficShaper のスレッドで実行する．
+     * 非同期チャネルで，次の受信・送信の開始を遅らせるために用いる．
+     */
+    void paceAsync(long bytes, Runnable next)
+    {
+        long delay_ns = reserve(bytes);
+        if (delay_ns <= 0) {
+            next.run();
+        }
+        else {
+            this.shaper.schedule(next, delay_ns);
+        }
+    }
+    
+    /**
+     * IPアドレス毎のバケットを使い終えたことを TrafficShaper に伝える．
+     * コネクションを閉じた時に呼び出す．2回目以降の呼び出しでは何もしない．
+     */
+    void close()
+    {
+        if ((this.address != null) && this.isClosed.compareAndSet(false, true)) {
+            this.shaper.release(this.address);
+        }
+    }
+    
+    /**
+     * 受信の後に帯域を制限する入力ストリームで包んで返す．制限しない場合はそのまま返す．
+     */
+    InputStream wrap(InputStream in)
+    {
+        return isEnabled() ? new ShapedInputStream(in) : in;
+    }
+    
+    /**
+     * 送信の前に帯域を制限する出力ストリームで包んで返す．制限しない場合はそのまま返す．
+     */
+    OutputStream wrap(OutputStream out)
+    {
+        return isEnabled() ? new ShapedOutputStream(out) : out;
+    }
+    
+    /**
+     * 受信したバイト数に応じてスレッドを休ませる入力ストリーム
+     */
+    private class ShapedInputStream
+        extends
+            FilterInputStream
+    {
+        /**
+         * ShapedInputStream のインスタンスを生成する．
+         */
+        ShapedInputStream(InputStream in)
+        {
+            super(in);
+        }
+        
+        /**
+         * 1バイトを受信する．
+         */
+        @Override
+        public int read()
+            throws IOException
+        {
+            int value = this.in.read();
+            if (value != -1) {
+                pace(1);
+            }
+            return value;
+        }
+        
+        /**
+         * 最大 len バイトを受信する．
+         */
+        @Override
+        public int read(byte[] b, int off, int len)
+            throws IOException
+        {
+            int bytesRcvd = this.in.read(b, off, len);
+            pace(bytesRcvd);
+            return bytesRcvd;
+        }
+    }
+    
+    /**
+     * 送信するバイト数に応じてスレッドを休ませる出力ストリーム
+     * <p>
+     * 一度に送信するデータは，待たずに送受信できる最大のバイト数毎に分けて送信する．
+     */
+    private class ShapedOutputStream
+        extends
+            FilterOutputStream
+    {
+        /**
+         * ShapedOutputStream のインスタンスを生成する．
+         */
+        ShapedOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+        
+        /**
+         * 1バイトを送信する．
+         */
+        @Override
+        public void write(int b)
+            throws IOException
+        {
+            pace(1);
+            this.out.write(b);
+        }
+        
+        /**
+         * len バイトを送信する．
+         */
+        @Override
+        public void write(byte[] b, int off, int len)
+            throws IOException
+        {
+            int slice = (int)Math.min(Integer.MAX_VALUE, shaper.getBurstBytes());
+            while (len > 0) {
+                int length = Math.min(len, slice);
+                pace(length);
+                this.out.write(b, off, length);
+                off += length;
+                len -= length;
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.AsynchronousSocketChannel;
+
+/**
+ * ディスパッチャがコネクション毎に監視する無通信・受信待ち・送信待ちの時間の上限と，
+ * 監視に用いるタイミングホイールの設定
+ * <p>
+ * 各値は，下記のシステムプロパティで指定できる．上限を 0 にした種類は監視せず，
+ * 全ての上限が 0 の場合はタイミングホイールも利用しない．
+ * <ul>
+ * <li>ConnectionTimeouts.idleTimeoutMs：無通信の時間の上限(ms)(既定値は 300000)
+ * <li>ConnectionTimeouts.readTimeoutMs：受信待ちの時間の上限(ms)(既定値は 30000)
+ * <li>ConnectionTimeouts.writeTimeoutMs：送信待ちの時間の上限(ms)(既定値は 30000)
+ * <li>ConnectionTimeouts.tickMs：タイミングホイールの1ティックの長さ(ms)(既定値は 100)
+ * <li>ConnectionTimeouts.wheelSize：タイミングホイールのバケット数(既定値は 512)
+ * </ul>
+ * 受信待ちの上限はメッセージの受信途中だけ適用し，次のメッセージを待っている間は
+ * 無通信の上限を適用する(ConnectionTimer を参照)．
+ * ブロッキング入出力のディスパッチャは，startWheel で開始したスレッドでホイールを進め，
+ * wrap で包んだソケットをプロトコルに渡す．非同期チャネルのディスパッチャも同様に，
+ * wrap で包んだチャネルを渡す．ノンブロッキング入出力のディスパッチャは，
+ * createWheel で生成したホイールをセレクタのループの中で進める．
+ */
+class ConnectionTimeouts
+{
+    // インスタンス変数：
+    private final long idleTimeout_ms;  // 無通信の時間の上限(ms)
+    private final long readTimeout_ms;  // 受信待ちの時間の上限(ms)
+    private final long writeTimeout_ms; // 送信待ちの時間の上限(ms)
+    private final long tick_ms;         // タイミングホイールの1ティックの長さ(ms)
+    private final int  wheelSize;       // タイミングホイールのバケット数
+    
+    /**
+     * システムプロパティの設定値で ConnectionTimeouts のインスタンスを生成する．
+     */
+    ConnectionTimeouts()
+    {
+        this(
+            Long.getLong("ConnectionTimeouts.idleTimeoutMs", 300000),
+            Long.getLong("ConnectionTimeouts.readTimeoutMs", 30000),
+            Long.getLong("ConnectionTimeouts.writeTimeoutMs", 30000),
+            Long.getLong("ConnectionTimeouts.tickMs", 100),
+            Integer.getInteger("ConnectionTimeouts.wheelSize", 512)
+        );
+    }
+    
+    /**
+     * 各時間の上限(ms)とタイミングホイールの設定を指定して
+     * ConnectionTimeouts のインスタンスを生成する．
+     */
+    ConnectionTimeouts(
+        long idleTimeout_ms, long readTimeout_ms, long writeTimeout_ms,
+        long tick_ms, int wheelSize
+    )
+    {
+        this.idleTimeout_ms = Math.max(0, idleTimeout_ms);
+        this.readTimeout_ms = Math.max(0, readTimeout_ms);
+        this.writeTimeout_ms = Math.max(0, writeTimeout_ms);
+        this.tick_ms = tick_ms;
+        this.wheelSize = wheelSize;
+    }
+    
+    /**
+     * 監視を行わない ConnectionTimeouts のインスタンスを返す．
+     */
+    static ConnectionTimeouts disabled()
+    {
+        return new ConnectionTimeouts(0, 0, 0, 100, 512);
+    }
+    
+    /**
+     * いずれかの時間を監視するか否かを返す．
+     */
+    boolean isEnabled()
+    {
+        return (this.idleTimeout_ms > 0) || (this.readTimeout_ms > 0) || (this.writeTimeout_ms > 0);
+    }
+    
+    /**
+     * タイミングホイールの1ティックの長さ(ms)を返す．
+     */
+    long getTick_ms()
+    {
+        return this.tick_ms;
+    }
+    
+    /**
+     * 監視しない場合は null を，監視する場合は新しいタイミングホイールを返す．
+     */
+    HashedTimingWheel createWheel()
+    {
+        return isEnabled() ? new HashedTimingWheel(this.tick_ms, this.wheelSize) : null;
+    }
+    
+    /**
+     * 監視しない場合は null を返す．監視する場合は新しいタイミングホイールを生成し，
+     * 1ティック毎にホイールを進めるデーモンスレッドを開始して返す．
+     */
+    HashedTimingWheel startWheel(Logger logger)
+    {
+        HashedTimingWheel wheel = createWheel();
+        if (wheel == null) {
+            return null;
+        }
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(this.tick_ms);
+                    wheel.advance(System.nanoTime());
+                }
+                catch (InterruptedException ex) {
+                    return;
+                }
+                catch (RuntimeException ex) {
+                    logger.printf("例外発生：%s\n", ex.getMessage());
+                }
+            }
+        }, "ConnectionTimeouts");
+        thread.setDaemon(true);
+        thread.start();
+        return wheel;
+    }
+    
+    /**
+     * ホイールが null の場合はソケットをそのまま返す．
+     * それ以外の場合は，入出力を監視し，上限を超えた時にソケットを閉じる
+     * TimedSocket で包んで返す．
+     */
+    Socket wrap(Socket clntSock, HashedTimingWheel wheel, Logger logger)
+        throws IOException
+    {
+        if (wheel == null) {
+            return clntSock;
+        }
+        ConnectionTimer timer     = newTimer();
+        Socket          timedSock = new TimedSocket(clntSock, timer);
+        start(timer, wheel, clntSock, logger);
+        return timedSock;
+    }
+    
+    /**
+     * ホイールが null の場合はチャネルをそのまま返す．
+     * それ以外の場合は，受信・送信を監視し，上限を超えた時にチャネルを閉じる
+     * TimedAsyncChannel で包んで返す．
+     */
+    AsynchronousSocketChannel wrap(
+        AsynchronousSocketChannel clntChan, HashedTimingWheel wheel, Logger logger
+    )
+    {
+        if (wheel == null) {
+            return clntChan;
+        }
+        ConnectionTimer           timer     = newTimer();
+        AsynchronousSocketChannel timedChan = new TimedAsyncChannel(clntChan, timer);
+        start(timer, wheel, clntChan, logger);
+        return timedChan;
+    }
+    
+    /**
+     * 上限を超えた時に包まれているソケット・チャネルを閉じるよう，監視を開始する．
+     */
+    private void start(
+        ConnectionTimer timer, HashedTimingWheel wheel, Closeable target, Logger logger
+    )
+    {
+        timer.start(wheel, () -> {
+            try {
+                target.close();
+            }
+            catch (IOException ex) {
+                logger.printf("例外発生：%s\n", ex.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * 各時間の上限を設定した ConnectionTimer を返す．監視の開始は呼び出し側で行う．
+     */
+    ConnectionTimer newTimer()
+    {
+        return new ConnectionTimer(this.idleTimeout_ms, this.readTimeout_ms, this.writeTimeout_ms);
+    }
+    
+    /**
+     * 設定をログ出力用の文字列として返す．
+     */
+    @Override
+    public String toString()
+    {
+        if (!isEnabled()) {
+            return "タイムアウト無し";
+        }
+        return String.format(
+            "タイムアウト：無通信 %dms，受信 %dms，送信 %dms，ティック %dms",
+            this.idleTimeout_ms, this.readTimeout_ms, this.writeTimeout_ms, this.tick_ms
+        );
+    }
+}
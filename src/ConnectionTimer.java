@@ -0,0 +1,242 @@
+
+import java.net.SocketTimeoutException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * 1つのコネクションの無通信・受信待ち・送信待ちの時間を監視し，
+ * いずれかが上限を超えた時にコネクションを切断するための，タイミングホイールのエントリ
+ * <p>
+ * 入出力の度に呼び出す記録用のメソッドは，volatile なフィールドに時刻を書き込むだけで，
+ * ホイールには触れない．ホイールは，バケットに到達した時点で nextDeadline により
+ * 最新の期限を求める．上限が 0 の種類は監視しない．
+ * <ul>
+ * <li>無通信：最後に送受信してからの時間
+ * <li>受信待ち：メッセージの受信途中に受信を待ち始めてから，1バイトも受信できていない時間
+ * <li>送信待ち：送信を始めてから，送信が進んでいない時間
+ * </ul>
+ * データを受信してから応答を送信するまでを，メッセージの受信途中とみなす．
+ * 応答を送信した後(接続した直後を含む)に次のメッセージを待っている間は受信待ちとせず，
+ * 無通信の上限だけを適用する．
+ */
+class ConnectionTimer
+    extends
+        HashedTimingWheel.Entry
+{
+    /**
+     * 上限を超えた時間の種類
+     */
+    enum Kind
+    {
+        Idle,   // 無通信
+        Read,   // 受信待ち
+        Write   // 送信待ち
+    }
+    
+    // インスタンス変数：
+    private final long idleTimeout_ns;  // 無通信の時間の上限(ns)
+    private final long readTimeout_ns;  // 受信待ちの時間の上限(ns)
+    private final long writeTimeout_ns; // 送信待ちの時間の上限(ns)
+    
+    private volatile long     lastActivity_ns;          // 最後に送受信した時刻(ns)
+    private volatile long     readSince_ns  = 0;        // 受信を待ち始めた時刻(ns)(無ければ 0)
+    private volatile long     writeSince_ns = 0;        // 送信を始めた時刻(ns)(無ければ 0)
+    private volatile boolean  isReceiving   = false;    // メッセージの受信途中か否か
+    private volatile boolean  isCancelled   = false;    // 監視を終えたか否か
+    private volatile Runnable reaper        = null;     // 切断する処理
+    private volatile Kind     expiredKind   = null;     // 上限を超えた時間の種類(無ければ null)
+    
+    /**
+     * 各時間の上限(ms)を指定して ConnectionTimer のインスタンスを生成する．
+     */
+    ConnectionTimer(long idleTimeout_ms, long readTimeout_ms, long writeTimeout_ms)
+    {
+        this.idleTimeout_ns = idleTimeout_ms * 1000000;
+        this.readTimeout_ns = readTimeout_ms * 1000000;
+        this.writeTimeout_ns = writeTimeout_ms * 1000000;
+        this.lastActivity_ns = System.nanoTime();
+    }
+    
+    /**
+     * 切断する処理を指定して，ホイールでの監視を開始する．
+     */
+    void start(HashedTimingWheel wheel, Runnable reaper)
+    {
+        this.reaper = reaper;
+        wheel.schedule(this);
+    }
+    
+    /**
+     * 受信を待ち始めたことを記録する．メッセージの受信途中でなければ受信待ちとしない．
+     */
+    void beginRead()
+    {
+        this.readSince_ns = this.isReceiving ? System.nanoTime() : 0;
+    }
+    
+    /**
+     * 受信を終えた(データ・切断の受信または例外)ことを記録する．
+     * データを受信した(バイト数が 0 より大きい)場合は，メッセージの受信途中とする．
+     */
+    void endRead(long bytesRead)
+    {
+        this.lastActivity_ns = System.nanoTime();
+        this.readSince_ns = 0;
+        if (bytesRead > 0) {
+            this.isReceiving = true;
+        }
+    }
+    
+    /**
+     * 送信を始めたことを記録する．
+     */
+    void beginWrite()
+    {
+        this.writeSince_ns = System.nanoTime();
+    }
+    
+    /**
+     * 送信を終えたことを記録する．応答を送信したため，メッセージの受信途中ではなくなる．
+     */
+    void endWrite()
+    {
+        this.lastActivity_ns = System.nanoTime();
+        this.writeSince_ns = 0;
+        this.isReceiving = false;
+    }
+    
+    /**
+     * セレクタで読み込み・書き込みを処理したことを記録する．
+     * 処理した方向は進んだものとし，読み込みの場合はメッセージの受信途中，
+     * 書き込みの場合は受信途中ではないとする．処理後のキーの監視対象に応じて，
+     * 受信待ち・送信待ちの開始時刻を更新する．
+     */
+    void recordChannelEvent(SelectionKey key, boolean isRead)
+    {
+        long now_ns = System.nanoTime();
+        this.lastActivity_ns = now_ns;
+        this.isReceiving = isRead;
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = key.interestOps();
+            if (isRead && ((ops & SelectionKey.OP_READ) != 0)) {
+                this.readSince_ns = now_ns;
+            }
+            else {
+                this.readSince_ns = 0;
+            }
+            if ((ops & SelectionKey.OP_WRITE) == 0) {
+                this.writeSince_ns = 0;
+            }
+            else if (!isRead || (this.writeSince_ns == 0)) {
+                this.writeSince_ns = now_ns;
+            }
+        }
+        catch (CancelledKeyException ex) {
+            // 処理中にチャネルが閉じられた．
+            ;
+        }
+    }
+    
+    /**
+     * 上限を超えて切断した場合はその時間の種類を，それ以外の場合は null を返す．
+     */
+    Kind getExpiredKind()
+    {
+        return this.expiredKind;
+    }
+    
+    /**
+     * 上限を超えて切断した場合はその時間の種類を示す SocketTimeoutException を，
+     * それ以外の場合は null を返す．切断により失敗した入出力の例外を置き換えるために用いる．
+     */
+    SocketTimeoutException timeoutException()
+    {
+        Kind kind = this.expiredKind;
+        if (kind == null) {
+            return null;
+        }
+        return new SocketTimeoutException("時間の上限を超えたため切断しました（" + kind + "）");
+    }
+    
+    /**
+     * 監視を終える．コネクションを閉じた時に呼び出す．
+     */
+    void cancel()
+    {
+        this.isCancelled = true;
+    }
+    
+    /**
+     * 各時間の上限のうち，最も早く来る期限(ns)を返す．
+     * 受信待ち・送信待ちでない場合は，今から待ち始めた場合の期限とする．
+     * 受信途中でない間の受信待ちの期限は切れないため，無通信の期限で切断される．
+     * 少なくとも1つの上限が 0 より大きいこと．
+     */
+    @Override
+    long nextDeadline(long now_ns)
+    {
+        long deadline_ns = Long.MAX_VALUE;
+        if (this.idleTimeout_ns > 0) {
+            deadline_ns = Math.min(deadline_ns, this.lastActivity_ns + this.idleTimeout_ns);
+        }
+        if (this.readTimeout_ns > 0) {
+            long since_ns = this.readSince_ns;
+            if (since_ns == 0) {
+                since_ns = now_ns;
+            }
+            deadline_ns = Math.min(deadline_ns, since_ns + this.readTimeout_ns);
+        }
+        if (this.writeTimeout_ns > 0) {
+            long since_ns = this.writeSince_ns;
+            if (since_ns == 0) {
+                since_ns = now_ns;
+            }
+            deadline_ns = Math.min(deadline_ns, since_ns + this.writeTimeout_ns);
+        }
+        return deadline_ns;
+    }
+    
+    /**
+     * 監視を終えたか否かを返す．
+     */
+    @Override
+    boolean isCancelled()
+    {
+        return this.isCancelled;
+    }
+    
+    /**
+     * 上限を超えた時間の種類を記録し，コネクションを切断する．
+     */
+    @Override
+    void expire(long now_ns)
+    {
+        this.isCancelled = true;
+        this.expiredKind = kindOf(now_ns);
+        ServerMetrics.getInstance().connectionReaped(this.expiredKind);
+        this.reaper.run();
+    }
+    
+    /**
+     * 上限を超えた時間の種類を返す．
+     */
+    private Kind kindOf(long now_ns)
+    {
+        long    readSince_ns   = this.readSince_ns;
+        long    writeSince_ns  = this.writeSince_ns;
+        boolean isReadExpired  = (this.readTimeout_ns > 0) && (readSince_ns != 0)
+            && (now_ns - readSince_ns >= this.readTimeout_ns);
+        boolean isWriteExpired = (this.writeTimeout_ns > 0) && (writeSince_ns != 0)
+            && (now_ns - writeSince_ns >= this.writeTimeout_ns);
+        if (isReadExpired) {
+            return Kind.Read;
+        }
+        if (isWriteExpired) {
+            return Kind.Write;
+        }
+        return Kind.Idle;
+    }
+}
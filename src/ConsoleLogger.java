@@ -1,40 +1,69 @@
 
 import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * コンソールへのログ出力用クラス
+ * <p>
+ * 排他制御には synchronized ではなく ReentrantLock を利用する．
+ * これにより，仮想スレッドから呼び出された場合でも，
+ * ロック待ちの間にキャリアスレッドが固定(pinning)されない．
  */
 public class ConsoleLogger
     implements
         Logger
 {
+    // インスタンス変数：
+    private final ReentrantLock lock = new ReentrantLock();    // 出力の排他制御用ロック
+    
     /**
      * 文字列をコンソールへ出力する．
      */
     @Override
-    public synchronized void println(String line)
+    public void println(String line)
     {
-        System.out.println(line);
+        this.lock.lock();
+        try {
+            System.out.println(line);
+        }
+        finally {
+            this.lock.unlock();
+        }
     }
     
     /**
      * フォーマットを指定した文字列をコンソールへ出力する．
      */
     @Override
-    public synchronized void printf(String format, Object... args)
+    public void printf(String format, Object... args)
     {
-        System.out.print(String.format(format, args));
+        // 文字列の整形はロックの外で行う．
+        String formatted = String.format(format, args);
+        
+        this.lock.lock();
+        try {
+            System.out.print(formatted);
+        }
+        finally {
+            this.lock.unlock();
+        }
     }
     
     /**
      * 行のリストをコンソールへ出力する．
      */
     @Override
-    public synchronized void printlist(Collection<String> entry)
+    public void printlist(Collection<String> entry)
     {
-        for (String line : entry) {
-            System.out.println(line);
+        this.lock.lock();
+        try {
+            for (String line : entry) {
+                System.out.println(line);
+            }
+            System.out.println();
+        }
+        finally {
+            this.lock.unlock();
         }
-        System.out.println();
     }
 }
@@ -0,0 +1,15 @@
+
+import java.nio.channels.DatagramChannel;
+
+/**
+ * データグラムチャネルを利用するディスパッチャ用のインターフェース
+ */
+public interface DatagramDispatcher
+{
+    /**
+     * ディスパッチ処理を開始する．
+     */
+    public void startDispatching(
+        DatagramChannel chan, DatagramProtocolFactory protoFactory, Logger logger
+    );
+}
@@ -0,0 +1,448 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 同一ホスト上で，UDP と TCP のエコーの往復時間と，一方向の大量送信のスループットを比較する実験
+ * <p>
+ * 同じプロセス内で，ループバックアドレスの空いているポートに下記のサーバを起動する．
+ * <ul>
+ * <li>UDP：DatagramSelectorDispatcher と EchoDatagramProtocolFactory・
+ * UploadDatagramProtocolFactory
+ * <li>TCP：SelectorDispatcher と DirectEchoChannelProtocolFactory・UploadChannelProtocolFactory
+ * </ul>
+ * TCP のエコーには，UDP と同じくプールしたダイレクトバッファを用いる DirectEcho を用いる．
+ * 256バイトずつ送り返す Echo では，それより大きいメッセージの2回目以降の送信が
+ * Nagle アルゴリズムと遅延 ACK により待たされ，往復時間を比較できないためである．
+ * 往復時間は，メッセージを1つ送信してはエコーを受信するまで待つことを繰り返して計測する．
+ * UDP では RECEIVE_TIMEOUT_MS 以内にエコーが届かなければ失われたものとし，
+ * その後に届いた古いエコーは遅延到着として数える．
+ * <p>
+ * スループットは，指定された数のデータグラムを指定された送信レートで送信し，
+ * サーバからの報告で受信数・順序の入れ替わり数・受信バイト数を求める．
+ * スループットは，受信バイト数を送信に要した時間で割って求める．
+ * TCP では同じバイト数を1つのコネクションで送信し，サーバが受信し終えて
+ * コネクションを閉じるまでの時間で割って求める．
+ * 送信レートを 0 とした場合は間隔を空けずに送信するため，UDP では受信側の
+ * バッファから溢れたデータグラムが失われる．
+ */
+public class DatagramExperiment
+{
+    // クラス変数（定数）：
+    private static final int MEGA_BYTE = 1024 * 1024;
+    
+    // 往復時間の計測に用いるメッセージサイズと，サイズ毎のメッセージ数
+    private static final int[] RTT_SIZE_ARRAY = { 64, 512, 1400, 8192 };
+    private static final int   RTT_MESSAGES   = 5000;
+    
+    // スループットの計測に用いるデータグラムのサイズ(ヘッダを含む)
+    private static final int[] BULK_SIZE_ARRAY = { 512, 1400, 8192 };
+    
+    // UDP のエコー・報告を待つ時間(ms)と，終了を送り直す回数の上限
+    private static final int RECEIVE_TIMEOUT_MS = 200;
+    private static final int MAX_END_RETRIES    = 10;
+    
+    // 送信間隔を待つ際に，スレッドを休ませずにスピンする時間(ns)
+    private static final long PARK_MARGIN_NS = 50000;
+    
+    /**
+     * UDP と TCP の比較実験を実行するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 2) {
+            System.out.println("Parameters: <Rate (datagrams/s, 0 = unpaced)> <Datagrams>");
+            return;
+        }
+        try {
+            // 送信レートと，スループットの計測で送信するデータグラム数を引数から取得する．
+            int rate         = Integer.parseInt(args[0]);
+            int numDatagrams = Integer.parseInt(args[1]);
+            
+            // コンソールへのログ出力用のインスタンスを生成する．
+            ConsoleLogger clog = new ConsoleLogger();
+            
+            // ファイルへのログ出力用のインスタンスを，結果用とサーバ用に生成する．
+            long       now_ms = System.currentTimeMillis();
+            FileLogger flog   = new FileLogger(String.format("datagram_%d.txt", now_ms));
+            FileLogger slog   = new FileLogger(String.format("datagram_server_%d.txt", now_ms));
+            // IOException
+            
+            // 実験用のインスタンスを生成し，実験を実行する．
+            DatagramExperiment experiment = new DatagramExperiment(
+                rate, numDatagrams, clog, flog, slog
+            );
+            experiment.execute();
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    // インスタンス変数：
+    private final int           rate;           // 送信レート(個/秒，0 の場合は間隔を空けない)
+    private final int           numDatagrams;   // スループットの計測で送信するデータグラム数
+    private final ConsoleLogger clog;           // コンソールへの出力用 Logger
+    private final FileLogger    flog;           // 結果のファイルへの出力用 Logger
+    private final FileLogger    slog;           // サーバのログのファイルへの出力用 Logger
+    private final InetAddress   servAddr;       // サーバのアドレス(ループバックアドレス)
+    
+    /**
+     * DatagramExperiment のインスタンスを生成する．
+     */
+    DatagramExperiment(
+        int rate, int numDatagrams, ConsoleLogger clog, FileLogger flog, FileLogger slog
+    )
+    {
+        this.rate = rate;
+        this.numDatagrams = numDatagrams;
+        this.clog = clog;
+        this.flog = flog;
+        this.slog = slog;
+        this.servAddr = InetAddress.getLoopbackAddress();
+    }
+    
+    /**
+     * サーバを起動し，往復時間とスループットを UDP と TCP で計測して結果を出力する．
+     */
+    void execute()
+        throws Exception
+    {
+        int udpEchoPort   = startDatagramServer(new EchoDatagramProtocolFactory());
+        int udpUploadPort = startDatagramServer(new UploadDatagramProtocolFactory());
+        int tcpEchoPort   = startChannelServer(new DirectEchoChannelProtocolFactory());
+        int tcpUploadPort = startChannelServer(new UploadChannelProtocolFactory());
+        
+        this.clog.printf("送信レート：%s\n", (this.rate > 0) ? this.rate + " 個/秒" : "制限無し");
+        this.flog.printf("test\ttransport\tsize\tcount\tp50_us\tp99_us\tlost\tlate\tMB_per_sec\n");
+        for (int size : RTT_SIZE_ARRAY) {
+            measureDatagramRtt(udpEchoPort, size);
+            measureStreamRtt(tcpEchoPort, size);
+        }
+        for (int size : BULK_SIZE_ARRAY) {
+            measureDatagramBulk(udpUploadPort, size);
+            measureStreamBulk(tcpUploadPort, size);
+        }
+        this.flog.close();
+        this.slog.close();
+    }
+    
+    /**
+     * DatagramSelectorDispatcher によるサーバを，ループバックアドレスの
+     * 空いているポートでデーモンスレッドとして起動し，ポート番号を返す．
+     */
+    private int startDatagramServer(DatagramProtocolFactory factory)
+        throws IOException
+    {
+        DatagramChannel chan = DatagramChannel.open();
+        chan.bind(new InetSocketAddress(this.servAddr, 0));
+        Thread server = new Thread(
+            () -> new DatagramSelectorDispatcher().startDispatching(chan, factory, this.slog)
+        );
+        server.setDaemon(true);
+        server.start();
+        return chan.socket().getLocalPort();
+    }
+    
+    /**
+     * SelectorDispatcher によるサーバを，ループバックアドレスの
+     * 空いているポートでデーモンスレッドとして起動し，ポート番号を返す．
+     */
+    private int startChannelServer(ChannelProtocolFactory factory)
+        throws IOException
+    {
+        ServerSocketChannel servChan = ServerSocketChannel.open();
+        servChan.bind(new InetSocketAddress(this.servAddr, 0));
+        Thread server = new Thread(
+            () -> new SelectorDispatcher(ConnectionTimeouts.disabled()).startDispatching(
+                servChan, factory, this.slog
+            )
+        );
+        server.setDaemon(true);
+        server.start();
+        return servChan.socket().getLocalPort();
+    }
+    
+    /**
+     * UDP で，通し番号を付けたメッセージを送信してはエコーを待つことを繰り返し，
+     * 往復時間・損失数・遅延到着数を出力する．
+     */
+    private void measureDatagramRtt(int port, int size)
+        throws IOException
+    {
+        LogLinearHistogram rtts     = new LogLinearHistogram();
+        byte[]             message  = new byte[size];
+        byte[]             recvData = new byte[size];
+        ByteBuffer         header   = ByteBuffer.wrap(message);
+        ByteBuffer         echoed   = ByteBuffer.wrap(recvData);
+        DatagramPacket     packet   = new DatagramPacket(message, size);
+        DatagramPacket     echo     = new DatagramPacket(recvData, size);
+        long               numLost  = 0;
+        long               numLate  = 0;
+        
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(this.servAddr, port);
+            socket.setSoTimeout(RECEIVE_TIMEOUT_MS);
+            long interval_ns = interval_ns();
+            long due_ns      = System.nanoTime();
+            for (int seq = 0; seq < RTT_MESSAGES; seq++) {
+                pace(due_ns);
+                due_ns += interval_ns;
+                
+                // 先頭 4バイトに通し番号を格納して送信する．
+                header.putInt(0, seq);
+                long sendTime_ns = System.nanoTime();
+                socket.send(packet);
+                
+                // 同じ通し番号のエコーが届くまで受信する．古いエコーは遅延到着とする．
+                try {
+                    while (true) {
+                        echo.setLength(size);
+                        socket.receive(echo);
+                        if (echoed.getInt(0) == seq) {
+                            rtts.record(System.nanoTime() - sendTime_ns);
+                            break;
+                        }
+                        numLate++;
+                    }
+                }
+                catch (SocketTimeoutException ex) {
+                    numLost++;
+                }
+            }
+        }
+        printRtt("UDP", size, rtts, numLost, numLate);
+    }
+    
+    /**
+     * TCP で，メッセージを送信してはエコーを受信し終えるまで待つことを繰り返し，
+     * 往復時間を出力する．
+     */
+    private void measureStreamRtt(int port, int size)
+        throws IOException
+    {
+        LogLinearHistogram rtts       = new LogLinearHistogram();
+        byte[]             message    = new byte[size];
+        byte[]             recvBuffer = new byte[size];
+        
+        try (Socket socket = new Socket(this.servAddr, port)) {
+            socket.setTcpNoDelay(true);
+            InputStream  in          = socket.getInputStream();
+            OutputStream out         = socket.getOutputStream();
+            long         interval_ns = interval_ns();
+            long         due_ns      = System.nanoTime();
+            for (int i = 0; i < RTT_MESSAGES; i++) {
+                pace(due_ns);
+                due_ns += interval_ns;
+                
+                long sendTime_ns = System.nanoTime();
+                out.write(message);
+                int totalBytesRcvd = 0;
+                while (totalBytesRcvd < size) {
+                    int bytesRcvd = in.read(recvBuffer, totalBytesRcvd, size - totalBytesRcvd);
+                    if (bytesRcvd == -1) {
+                        throw new IOException("サーバがコネクションを切断しました．");
+                    }
+                    totalBytesRcvd += bytesRcvd;
+                }
+                rtts.record(System.nanoTime() - sendTime_ns);
+            }
+        }
+        printRtt("TCP", size, rtts, 0, 0);
+    }
+    
+    /**
+     * UDP で，通し番号を付けたデータグラムを送信レートに従って送信し，
+     * 終了を送って報告を受信する．受信数・損失率・入れ替わり数・スループットを出力する．
+     */
+    private void measureDatagramBulk(int port, int size)
+        throws IOException
+    {
+        int        session = new Random().nextInt(Integer.MAX_VALUE);
+        byte[]     data    = new byte[size];
+        ByteBuffer header  = ByteBuffer.wrap(data);
+        byte[]     report  = new byte[UploadDatagramProtocolFactory.REPORT_SIZE];
+        
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(this.servAddr, port);
+            socket.setSoTimeout(RECEIVE_TIMEOUT_MS);
+            DatagramPacket packet = new DatagramPacket(data, size);
+            
+            // 通し番号を付けて，送信レートに従って送信する．
+            long interval_ns  = interval_ns();
+            long startTime_ns = System.nanoTime();
+            long due_ns       = startTime_ns;
+            header.putInt(0, session);
+            for (int seq = 0; seq < this.numDatagrams; seq++) {
+                pace(due_ns);
+                due_ns += interval_ns;
+                header.putInt(4, seq);
+                socket.send(packet);
+            }
+            long sendTime_ns = System.nanoTime() - startTime_ns;
+            
+            // 報告を受信するまで終了を送り直す．
+            byte[] end = ByteBuffer
+                .allocate(UploadDatagramProtocolFactory.HEADER_SIZE)
+                .putInt(session)
+                .putInt(UploadDatagramProtocolFactory.END_SEQUENCE)
+                .array();
+            ByteBuffer reported = null;
+            for (int i = 0; (i < MAX_END_RETRIES) && (reported == null); i++) {
+                socket.send(new DatagramPacket(end, end.length));
+                reported = receiveReport(socket, report, session);
+            }
+            if (reported == null) {
+                throw new IOException("報告を受信できませんでした．");
+            }
+            long   received  = reported.getLong();
+            long   bytes     = reported.getLong();
+            long   reordered = reported.getLong();
+            double lossRate  = 100.0 * (this.numDatagrams - received) / this.numDatagrams;
+            double mbps      = ((double)bytes / MEGA_BYTE) / (sendTime_ns / 1e9);
+            this.clog.printf(
+                "UDP 送信 %,6d バイト x %,8d：受信 %,8d（損失 %6.2f%%），入れ替わり %,d，"
+                    + "%,9.2f MB/s\n",
+                size, this.numDatagrams, received, lossRate, reordered, mbps
+            );
+            this.flog.printf(
+                "bulk\tUDP\t%d\t%d\t\t\t%d\t%d\t%.2f\n",
+                size, this.numDatagrams, this.numDatagrams - received, reordered, mbps
+            );
+        }
+    }
+    
+    /**
+     * セッション番号の一致する報告を受信し，受信数の位置に合わせたバッファを返す．
+     * 待つ時間内に受信できなければ null を返す．
+     */
+    private ByteBuffer receiveReport(DatagramSocket socket, byte[] report, int session)
+        throws IOException
+    {
+        DatagramPacket packet = new DatagramPacket(report, report.length);
+        try {
+            while (true) {
+                packet.setLength(report.length);
+                socket.receive(packet);
+                // 報告のサイズで，セッション番号と通し番号が一致するものだけを受け付ける．
+                ByteBuffer buffer = ByteBuffer.wrap(report, 0, packet.getLength());
+                if (packet.getLength() != report.length) {
+                    continue;
+                }
+                int reportSession  = buffer.getInt();
+                int reportSequence = buffer.getInt();
+                if (reportSession != session) {
+                    continue;
+                }
+                if (reportSequence == UploadDatagramProtocolFactory.END_SEQUENCE) {
+                    return buffer;
+                }
+            }
+        }
+        catch (SocketTimeoutException ex) {
+            return null;
+        }
+    }
+    
+    /**
+     * TCP で，UDP と同じ数・サイズのデータを送信レートに従って送信し，
+     * サーバが受信し終えてコネクションを閉じるまでの時間からスループットを出力する．
+     */
+    private void measureStreamBulk(int port, int size)
+        throws IOException
+    {
+        // 上位 2ビットはフラグに用いるため，4バイトのヘッダで表せるサイズまでとする．
+        long totalSize = UploadProtocolFactory.HEADER_SIZE + (long)size * this.numDatagrams;
+        if (totalSize > UploadProtocolFactory.MAX_INT_SIZE) {
+            this.clog.printf("TCP 送信 %,6d バイト：データサイズが大き過ぎます．\n", size);
+            return;
+        }
+        byte[] data = new byte[size];
+        
+        try (Socket socket = new Socket(this.servAddr, port)) {
+            InputStream  in           = socket.getInputStream();
+            OutputStream out          = socket.getOutputStream();
+            long         interval_ns  = interval_ns();
+            long         startTime_ns = System.nanoTime();
+            long         due_ns       = startTime_ns;
+            
+            // 先頭 4バイトのデータサイズに続けて，送信レートに従って送信する．
+            out.write(UploadProtocolFactory.encodeHeader(totalSize, 0));
+            for (int i = 0; i < this.numDatagrams; i++) {
+                pace(due_ns);
+                due_ns += interval_ns;
+                out.write(data);
+            }
+            // サーバが全て受信してコネクションを閉じるまで待つ．
+            in.read();
+            long   elapsed_ns = System.nanoTime() - startTime_ns;
+            double mbps       = ((double)(totalSize - 4) / MEGA_BYTE) / (elapsed_ns / 1e9);
+            this.clog.printf(
+                "TCP 送信 %,6d バイト x %,8d：%,9.2f MB/s\n", size, this.numDatagrams, mbps
+            );
+            this.flog.printf(
+                "bulk\tTCP\t%d\t%d\t\t\t0\t0\t%.2f\n", size, this.numDatagrams, mbps
+            );
+        }
+    }
+    
+    /**
+     * 往復時間の結果を出力する．
+     */
+    private void printRtt(
+        String transport, int size, LogLinearHistogram rtts, long numLost, long numLate
+    )
+    {
+        // 百分位数はバケットの上限値となるため，最大値を超えないようにする．
+        double max = rtts.getMax() / 1000.0;
+        double p50 = Math.min(rtts.getPercentile(0.50) / 1000.0, max);
+        double p99 = Math.min(rtts.getPercentile(0.99) / 1000.0, max);
+        this.clog.printf(
+            "%s 往復 %,6d バイト x %,6d：p50 %,9.1fμs p99 %,9.1fμs，損失 %d，遅延到着 %d\n",
+            transport, size, RTT_MESSAGES, p50, p99, numLost, numLate
+        );
+        this.flog.printf(
+            "rtt\t%s\t%d\t%d\t%.1f\t%.1f\t%d\t%d\t\n",
+            transport, size, RTT_MESSAGES, p50, p99, numLost, numLate
+        );
+    }
+    
+    /**
+     * 送信レートから送信間隔(ns)を求める．送信レートが 0 の場合は 0 を返す．
+     */
+    private long interval_ns()
+    {
+        return (this.rate > 0) ? 1000000000L / this.rate : 0;
+    }
+    
+    /**
+     * 指定された時刻(ns)まで待つ．長く待つ場合はスレッドを休ませ，
+     * 最後の PARK_MARGIN_NS はスピンして時刻を合わせる．
+     */
+    private static void pace(long due_ns)
+    {
+        long wait_ns;
+        while ((wait_ns = due_ns - System.nanoTime()) > 0) {
+            if (wait_ns > PARK_MARGIN_NS) {
+                LockSupport.parkNanos(wait_ns - PARK_MARGIN_NS);
+            }
+            else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * データグラム用のプロトコルのインターフェース
+ * <p>
+ * データグラムにはコネクションが無いため，1つのインスタンスが
+ * チャネルに届く全ての送信元からのデータグラムを処理する．
+ * 各メソッドはディスパッチャの1つのスレッドから呼び出される．
+ */
+public interface DatagramProtocol
+{
+    /**
+     * 受信したデータグラムを1つ処理する．
+     * datagram は呼び出し後に再利用されるため，参照を保持しないこと．
+     */
+    public void handleDatagram(ByteBuffer datagram, SocketAddress source)
+        throws IOException;
+    
+    /**
+     * 統計情報をログに出力する．一定間隔毎に呼び出される．
+     */
+    public void report(Logger logger);
+}
@@ -0,0 +1,14 @@
+
+import java.nio.channels.DatagramChannel;
+
+/**
+ * データグラム用のプロトコルファクトリのインターフェース
+ */
+public interface DatagramProtocolFactory
+{
+    /**
+     * データグラムチャネル1つ分のプロトコル処理用のインスタンスを生成し，
+     * DatagramProtocol インターフェースとして返す．
+     */
+    public DatagramProtocol createProtocol(DatagramChannel chan, Logger logger);
+}
@@ -0,0 +1,181 @@
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * セレクタで受信可能になるのを待ち，データグラムをまとめて受信するディスパッチャ用のクラス
+ * <p>
+ * 受信可能になる度に，受信できるデータグラムが無くなるまで，最大 batchSize 個ずつ
+ * BufferPool のダイレクトバッファへ受信してから，まとめてプロトコルに処理させる．
+ * 1回の起床で多数のデータグラムを処理するため，データグラム毎の select() の
+ * 呼び出しを省ける．各値は，下記のシステムプロパティで指定できる．
+ * <ul>
+ * <li>DatagramSelectorDispatcher.batchSize：まとめて受信するデータグラム数(既定値は 32)
+ * <li>DatagramSelectorDispatcher.bufferSize：データグラム1つ分のバッファサイズ(既定値は 65536)．
+ * これより大きいデータグラムは，超えた部分が破棄される．
+ * </ul>
+ */
+class DatagramSelectorDispatcher
+    implements
+        DatagramDispatcher
+{
+    // クラス変数（定数）：
+    static final long REPORT_INTERVAL_MS = 10000;   // 統計情報を出力する間隔(ms)
+    
+    // インスタンス変数：
+    private final int batchSize;    // まとめて受信するデータグラム数
+    private final int bufferSize;   // データグラム1つ分のバッファサイズ
+    
+    // 統計情報(ディスパッチャのスレッドのみが参照・更新する)：
+    private long numWakeups   = 0;  // 受信可能になって起床した回数
+    private long numDatagrams = 0;  // 受信したデータグラム数
+    private long numBytes     = 0;  // 受信したバイト数
+    private int  maxDrained   = 0;  // 1回の起床で受信したデータグラム数の最大値
+    
+    /**
+     * システムプロパティの設定値で DatagramSelectorDispatcher のインスタンスを生成する．
+     */
+    DatagramSelectorDispatcher()
+    {
+        this(
+            Integer.getInteger("DatagramSelectorDispatcher.batchSize", 32),
+            Integer.getInteger("DatagramSelectorDispatcher.bufferSize", 65536)
+        );
+    }
+    
+    /**
+     * まとめて受信するデータグラム数とバッファサイズを指定して
+     * DatagramSelectorDispatcher のインスタンスを生成する．
+     */
+    DatagramSelectorDispatcher(int batchSize, int bufferSize)
+    {
+        this.batchSize = Math.max(1, batchSize);
+        this.bufferSize = Math.min(bufferSize, BufferPool.MAX_SIZE);
+    }
+    
+    /**
+     * セレクタによるディスパッチ処理を開始する．
+     */
+    @Override
+    public void startDispatching(
+        DatagramChannel chan, DatagramProtocolFactory factory, Logger logger
+    )
+    {
+        // このメソッドを呼び出しているスレッド名を取得する．
+        String threadName = Thread.currentThread().getName();
+        
+        try (Selector selector = Selector.open()) {
+            // チャネルをノンブロッキングモードにし，受信可能状態を監視するよう登録する．
+            chan.configureBlocking(false);
+            chan.register(selector, SelectionKey.OP_READ);
+            
+            // チャネル1つ分のプロトコル処理用のインスタンスを生成する．
+            DatagramProtocol protocol = factory.createProtocol(chan, logger);
+            
+            // このメソッドを呼び出しているスレッド名をログに出力する．
+            logger.printf(
+                "処理開始（スレッド名：%s，まとめて受信する数：%d，バッファサイズ：%d）\n",
+                threadName, this.batchSize, this.bufferSize
+            );
+            // 受信したデータグラムと送信元の格納先
+            ByteBuffer[]    datagrams = new ByteBuffer[this.batchSize];
+            SocketAddress[] sources   = new SocketAddress[this.batchSize];
+            
+            // 受信可能になる度に，受信できるデータグラムを全て処理する．
+            long nextReport_ms = System.currentTimeMillis() + REPORT_INTERVAL_MS;
+            while (true) {
+                // 受信可能になるか，統計情報を出力する時刻になるまで待つ．
+                long timeout_ms = Math.max(1, nextReport_ms - System.currentTimeMillis());
+                if (selector.select(timeout_ms) > 0) {
+                    selector.selectedKeys().clear();
+                    drain(chan, protocol, datagrams, sources, logger);
+                }
+                // 一定間隔毎に統計情報をログに出力する．
+                if (System.currentTimeMillis() >= nextReport_ms) {
+                    report(protocol, logger);
+                    nextReport_ms += REPORT_INTERVAL_MS;
+                }
+            }
+        }
+        catch (IOException ex) {
+            logger.printf("例外発生（%s）：%s\n", threadName, ex.getMessage());
+        }
+    }
+    
+    /**
+     * 受信できるデータグラムが無くなるまで，最大 batchSize 個ずつ受信してから
+     * プロトコルに処理させることを繰り返す．
+     */
+    private void drain(
+        DatagramChannel chan, DatagramProtocol protocol,
+        ByteBuffer[] datagrams, SocketAddress[] sources, Logger logger
+    )
+        throws IOException
+    {
+        BufferPool    pool       = BufferPool.getDirectInstance();
+        ServerMetrics metrics    = ServerMetrics.getInstance();
+        int           numDrained = 0;
+        boolean       isEmpty    = false;
+        while (!isEmpty) {
+            // プールから借りたバッファへ，受信できるだけ受信する．
+            int count = 0;
+            while (count < datagrams.length) {
+                ByteBuffer    buffer = pool.acquire(this.bufferSize);
+                buffer.limit(this.bufferSize);
+                SocketAddress source = chan.receive(buffer);
+                if (source == null) {
+                    pool.release(buffer);
+                    isEmpty = true;
+                    break;
+                }
+                buffer.flip();
+                datagrams[count] = buffer;
+                sources[count] = source;
+                count++;
+                this.numBytes += buffer.remaining();
+                metrics.addBytesIn(buffer.remaining());
+            }
+            // 受信したデータグラムをまとめてプロトコルに処理させ，バッファをプールへ返す．
+            for (int i = 0; i < count; i++) {
+                try {
+                    protocol.handleDatagram(datagrams[i], sources[i]);
+                }
+                catch (IOException ex) {
+                    // 送信元毎の失敗であり，チャネルは引き続き利用できる．
+                    logger.printf("例外発生：%s\n", ex.getMessage());
+                }
+                pool.release(datagrams[i]);
+                datagrams[i] = null;
+                sources[i] = null;
+            }
+            numDrained += count;
+        }
+        this.numWakeups++;
+        this.numDatagrams += numDrained;
+        this.maxDrained = Math.max(this.maxDrained, numDrained);
+    }
+    
+    /**
+     * 前回の出力以降にデータグラムを受信していれば，統計情報をログに出力し，リセットする．
+     */
+    private void report(DatagramProtocol protocol, Logger logger)
+    {
+        if (this.numDatagrams == 0) {
+            return;
+        }
+        logger.printf(
+            "統計：受信 %d 個（%d バイト），起床 %d 回，1回あたり 平均 %.1f 個 最大 %d 個\n",
+            this.numDatagrams, this.numBytes, this.numWakeups,
+            (double)this.numDatagrams / this.numWakeups, this.maxDrained
+        );
+        protocol.report(logger);
+        this.numWakeups = 0;
+        this.numDatagrams = 0;
+        this.numBytes = 0;
+        this.maxDrained = 0;
+    }
+}
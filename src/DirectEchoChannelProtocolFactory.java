@@ -0,0 +1,190 @@
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+/**
+ * DirectEchoChannelProtocol のインスタンスを生成するためのファクトリクラス
+ * <p>
+ * エコーデータ格納用バッファのサイズは，システムプロパティ
+ * DirectEchoChannelProtocolFactory.bufferSize で指定できる．
+ * 指定しない場合は，最初のコネクションの受信バッファサイズ(SO_RCVBUF)とする．
+ * バッファは BufferPool のダイレクトバッファのプールから借りるため，
+ * サイズは BufferPool.MAX_SIZE 以下に制限する．
+ */
+public class DirectEchoChannelProtocolFactory
+    implements
+        ChannelProtocolFactory
+{
+    // インスタンス変数：
+    private int bufferSize = 0;     // エコーデータ格納用バッファサイズ(0 の場合は未決定)
+    
+    /**
+     * DirectEchoChannelProtocol のインスタンスを生成し，
+     * ChannelProtocol インターフェースとして返す．
+     */
+    @Override
+    public ChannelProtocol createProtocol(SocketChannel clntChan, Logger logger)
+    {
+        return new DirectEchoChannelProtocol(
+            clntChan, logger, getBufferSize(clntChan, logger)
+        );
+    }
+    
+    /**
+     * エコーデータ格納用バッファサイズを返す．
+     * 最初の呼び出し時に，バッファサイズを決める．
+     */
+    private synchronized int getBufferSize(SocketChannel clntChan, Logger logger)
+    {
+        if (this.bufferSize == 0) {
+            int bufferSize = Integer.getInteger("DirectEchoChannelProtocolFactory.bufferSize", 0);
+            if (bufferSize <= 0) {
+                try {
+                    bufferSize = clntChan.getOption(StandardSocketOptions.SO_RCVBUF);
+                }
+                catch (IOException ex) {
+                    logger.printf("例外発生：%s\n", ex.getMessage());
+                    bufferSize = 64 * 1024;
+                }
+            }
+            this.bufferSize = Math.min(bufferSize, BufferPool.MAX_SIZE);
+            logger.printf("エコーデータ格納用バッファサイズ：%d\n", this.bufferSize);
+        }
+        return this.bufferSize;
+    }
+}
+
+/**
+ * エコープロトコルのサーバ側の機能を，プールから借りたダイレクトバッファを用いて
+ * ノンブロッキング入出力で実装したクラス
+ * <p>
+ * 受信した直後にノンブロッキングで送信を試み，送り切れなかった場合のみ
+ * 書き込み可能状態を監視する．バッファが一杯の間は受信を止める．
+ */
+class DirectEchoChannelProtocol
+    implements
+        ChannelProtocol
+{
+    // インスタンス変数：
+    private final SocketChannel     clntChan;   // クライアントと通信するためのチャネル
+    private final Logger            logger;     // ログ出力用の Logger インスタンス
+    private final ArrayList<String> logList;    // 処理結果を保持するためのログリスト
+    
+    private ByteBuffer echoBuffer;                  // エコーデータ格納用バッファ
+    private long       totalBytesEchoed = 0;        // クライアントへの総送信バイト数
+    private boolean    isEndOfStream    = false;    // クライアントが送信を終えたか否か
+    
+    /**
+     * DirectEchoChannelProtocol のインスタンスを生成する．
+     */
+    public DirectEchoChannelProtocol(SocketChannel clntChan, Logger logger, int bufferSize)
+    {
+        this.clntChan = clntChan;
+        this.logger = logger;
+        this.echoBuffer = BufferPool.getDirectInstance().acquire(bufferSize);
+        
+        // スレッド名，クライアントのアドレスとポート番号を
+        // ログリストに追加する．
+        this.logList = new ArrayList<String>();
+        this.logList.add("▽スレッド：" + Thread.currentThread().getName());
+        this.logList.add(
+            "・クライアント："
+                + clntChan.socket().getInetAddress().getHostAddress() + "，"
+                + clntChan.socket().getPort()
+        );
+    }
+    
+    /**
+     * クライアントから受信したデータを，そのまま送り返す．
+     */
+    @Override
+    public void handleRead(SelectionKey key)
+        throws IOException
+    {
+        int bytesRead = this.clntChan.read(this.echoBuffer);
+        if (bytesRead == -1) {
+            // クライアントが送信を終えた．
+            // 未送信のデータが残っていれば，それを送り終えてから閉じる．
+            this.isEndOfStream = true;
+        }
+        else {
+            ServerMetrics.getInstance().addBytesIn(bytesRead);
+        }
+        // 書き込み可能になるのを待たずに，送信を試みる．
+        writePending(key);
+    }
+    
+    /**
+     * 送り切れなかったデータを送信する．
+     */
+    @Override
+    public void handleWrite(SelectionKey key)
+        throws IOException
+    {
+        writePending(key);
+    }
+    
+    /**
+     * バッファ内のデータをノンブロッキングで送信し，
+     * 送信の結果に応じて監視する状態を切り替える．
+     */
+    private void writePending(SelectionKey key)
+        throws IOException
+    {
+        // バッファを読み出し用に切り替え，送信できるだけ送信する．
+        this.echoBuffer.flip();
+        if (this.echoBuffer.hasRemaining()) {
+            int bytesWritten = this.clntChan.write(this.echoBuffer);
+            this.totalBytesEchoed += bytesWritten;
+            ServerMetrics.getInstance().addBytesOut(bytesWritten);
+        }
+        boolean isDrained = !this.echoBuffer.hasRemaining();
+        
+        // 送信し切れなかったデータをバッファの先頭へ詰める．
+        this.echoBuffer.compact();
+        
+        if (isDrained) {
+            if (this.isEndOfStream) {
+                // 全て送り返したので閉じる．
+                close();
+                return;
+            }
+            // 次の受信を待つ．
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        else if (this.isEndOfStream || !this.echoBuffer.hasRemaining()) {
+            // クライアントが送信を終えたか，バッファが一杯なので，
+            // 受信は止めて書き込み可能状態のみを監視する．
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+        else {
+            // 受信を続けながら，書き込み可能状態も監視する．
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+    
+    /**
+     * エコーデータ格納用バッファをプールへ返す．
+     */
+    @Override
+    public void handleClose()
+    {
+        BufferPool.getDirectInstance().release(this.echoBuffer);
+        this.echoBuffer = null;
+    }
+    
+    /**
+     * チャネルを閉じ，ログリストをまとめて出力する．
+     */
+    private void close()
+        throws IOException
+    {
+        this.logList.add("・総送信バイト数：" + this.totalBytesEchoed);
+        this.clntChan.close();
+        this.logger.printlist(this.logList);
+    }
+}
@@ -0,0 +1,200 @@
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * ファイルの送信方法(TransferTo と HeapCopy)毎に，ダウンロードのスループットと
+ * CPU 時間を調べる実験
+ * <p>
+ * 指定されたサイズのファイルを保存先のディレクトリに用意し，送信方法毎に
+ * DownloadProtocolFactory を用いるサーバを同じプロセス内で起動する．
+ * MultiThreadDownloader でファイル全体のダウンロードを TRY_COUNT 回繰り返し，
+ * スループットと，1GB あたりのプロセスの CPU 時間を出力する．
+ * 受信したデータは破棄するため，クライアント側の CPU 時間は両者で等しい．
+ */
+public class DownloadExperiment
+{
+    // クラス変数（定数）：
+    private static final int MEGA_BYTE = 1024 * 1024;
+    private static final int GIGA_BYTE = MEGA_BYTE * 1024;
+    
+    // 受信バッファサイズと試行回数
+    private static final int BUF_SIZE  = 64 * 1024;
+    private static final int TRY_COUNT = 3;
+    
+    // 実験に用いるファイルのID
+    private static final String FILE_ID = "download_experiment.dat";
+    
+    /**
+     * ダウンロードの計測実験を実行するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 3) {
+            System.out.println("Parameters: <Directory> <File Size MB> <Sockets>");
+            return;
+        }
+        try {
+            // ファイルを置くディレクトリ，ファイルサイズ，ソケット数を引数から取得する．
+            Path directory  = Paths.get(args[0]);
+            long fileSize   = Long.parseLong(args[1]) * MEGA_BYTE;
+            int  numSockets = Integer.parseInt(args[2]);
+            
+            // コンソールへのログ出力用のインスタンスを生成する．
+            ConsoleLogger clog = new ConsoleLogger();
+            
+            // ファイルへのログ出力用のインスタンスを，結果用とサーバ用に生成する．
+            long       now_ms = System.currentTimeMillis();
+            FileLogger flog   = new FileLogger(String.format("download_%d.txt", now_ms));
+            FileLogger slog   = new FileLogger(String.format("download_server_%d.txt", now_ms));
+            // IOException
+            
+            // 実験用のインスタンスを生成し，実験を実行する．
+            DownloadExperiment experiment = new DownloadExperiment(
+                directory, fileSize, numSockets, clog, flog, slog
+            );
+            experiment.execute();
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    // インスタンス変数：
+    private final Path          directory;  // ファイルを置くディレクトリ
+    private final long          fileSize;   // ファイルサイズ
+    private final int           numSockets; // 同時に利用するソケット数
+    private final ConsoleLogger clog;       // コンソールへの出力用 Logger
+    private final FileLogger    flog;       // 結果のファイルへの出力用 Logger
+    private final FileLogger    slog;       // サーバのログのファイルへの出力用 Logger
+    
+    /**
+     * DownloadExperiment のインスタンスを生成する．
+     */
+    DownloadExperiment(
+        Path directory, long fileSize, int numSockets,
+        ConsoleLogger clog, FileLogger flog, FileLogger slog
+    )
+    {
+        this.directory = directory;
+        this.fileSize = fileSize;
+        this.numSockets = numSockets;
+        this.clog = clog;
+        this.flog = flog;
+        this.slog = slog;
+    }
+    
+    /**
+     * 実験用のファイルを用意し，送信方法毎にダウンロードを計測して結果を出力する．
+     */
+    void execute()
+        throws Exception
+    {
+        prepareFile();
+        this.flog.printf("mode\tsockets\tMB_per_sec\tcpu_ms_per_GB\n");
+        
+        // 1回目の計測がページキャッシュの影響を受けないよう，先に1回ずつ実行しておく．
+        for (DownloadProtocolFactory.Mode mode : DownloadProtocolFactory.Mode.values()) {
+            measure(mode, 1, false);
+        }
+        for (DownloadProtocolFactory.Mode mode : DownloadProtocolFactory.Mode.values()) {
+            measure(mode, TRY_COUNT, true);
+        }
+        this.flog.close();
+        this.slog.close();
+    }
+    
+    /**
+     * 実験用のファイルが無いかサイズが異なる場合は，乱数で埋めたファイルを生成する．
+     */
+    private void prepareFile()
+        throws Exception
+    {
+        Files.createDirectories(this.directory);
+        Path file = this.directory.resolve(FILE_ID);
+        if (Files.isRegularFile(file) && (Files.size(file) == this.fileSize)) {
+            return;
+        }
+        this.clog.printf("実験用のファイルを生成します：%s (%,d バイト)\n", file, this.fileSize);
+        byte[] block = new byte[MEGA_BYTE];
+        new Random(System.currentTimeMillis()).nextBytes(block);
+        try (
+            FileChannel fileChan = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+            )
+        ) {
+            long remainder = this.fileSize;
+            while (remainder > 0) {
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int)Math.min(MEGA_BYTE, remainder));
+                while (buffer.hasRemaining()) {
+                    fileChan.write(buffer);
+                }
+                remainder -= MEGA_BYTE;
+            }
+        }
+    }
+    
+    /**
+     * 1つの送信方法について，サーバを起動してダウンロードを繰り返し，
+     * 指定された場合は結果を出力する．
+     */
+    private void measure(DownloadProtocolFactory.Mode mode, int tryCount, boolean isReported)
+        throws Exception
+    {
+        // ループバックアドレスの空いているポートで待ち受けるソケットを生成し，
+        // デーモンスレッドでサーバのディスパッチ処理を開始する．
+        DownloadProtocolFactory factory  = new DownloadProtocolFactory(this.directory, mode);
+        ServerSocket            servSock = ServerSocketChannel.open().socket();
+        servSock.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread server = new Thread(
+            () -> new ThreadPerConnectionDispatcher().startDispatching(
+                servSock, factory, this.slog
+            )
+        );
+        server.setDaemon(true);
+        server.start();
+        
+        // ダウンロードを繰り返し，経過時間とプロセスの CPU 時間を求める．
+        com.sun.management.OperatingSystemMXBean os =
+            (com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean();
+        long startCpu_ns  = os.getProcessCpuTime();
+        long startTime_ns = System.nanoTime();
+        long totalBytes   = 0;
+        for (int i = 0; i < tryCount; i++) {
+            MultiThreadDownloader downloader = new MultiThreadDownloader(
+                servSock.getInetAddress().getHostAddress(), servSock.getLocalPort(),
+                FILE_ID, 0, -1, BUF_SIZE, this.numSockets, null
+            );
+            totalBytes += downloader.download();
+            // IOException, InterruptedException, ExecutionException
+        }
+        long elapsed_ns = System.nanoTime() - startTime_ns;
+        long cpu_ns     = os.getProcessCpuTime() - startCpu_ns;
+        if (!isReported) {
+            return;
+        }
+        // スループットと，1GB あたりの CPU 時間を出力する．
+        double mbps       = ((double)totalBytes / MEGA_BYTE) / (elapsed_ns / 1e9);
+        double cpuMsPerGB = (cpu_ns / 1e6) / ((double)totalBytes / GIGA_BYTE);
+        this.clog.printf(
+            "%-10s %2d sockets：%,10.1f MB/s，CPU 時間 %,10.1f ms/GB\n",
+            mode, this.numSockets, mbps, cpuMsPerGB
+        );
+        this.flog.printf("%s\t%d\t%.1f\t%.1f\n", mode, this.numSockets, mbps, cpuMsPerGB);
+    }
+}
@@ -0,0 +1,254 @@
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * DownloadProtocol のインスタンスを生成するためのファクトリ
+ * <p>
+ * 下記のシステムプロパティで，配信するファイルと送信方法を指定できる．
+ * <ul>
+ * <li>DownloadProtocolFactory.directory：配信するファイルを置くディレクトリ(既定値は download)
+ * <li>DownloadProtocolFactory.mode：TransferTo または HeapCopy(既定値は TransferTo)
+ * </ul>
+ */
+public class DownloadProtocolFactory
+    implements
+        ProtocolFactory
+{
+    /**
+     * ファイルの送信方法
+     */
+    enum Mode
+    {
+        TransferTo,     // FileChannel.transferTo で送信する(ヒープを経由しない)．
+        HeapCopy        // ヒープ上の配列へ読み込み，出力ストリームへ書き込む．
+    }
+    
+    // インスタンス変数：
+    private final Path directory;   // 配信するファイルを置くディレクトリ
+    private final Mode mode;        // ファイルの送信方法
+    
+    /**
+     * システムプロパティの設定値で DownloadProtocolFactory のインスタンスを生成する．
+     */
+    public DownloadProtocolFactory()
+    {
+        this(
+            Paths.get(System.getProperty("DownloadProtocolFactory.directory", "download")),
+            Mode.valueOf(System.getProperty("DownloadProtocolFactory.mode", "TransferTo"))
+        );
+    }
+    
+    /**
+     * 配信するファイルを置くディレクトリと送信方法を指定して
+     * DownloadProtocolFactory のインスタンスを生成する．
+     */
+    DownloadProtocolFactory(Path directory, Mode mode)
+    {
+        this.directory = directory.toAbsolutePath().normalize();
+        this.mode = mode;
+    }
+    
+    /**
+     * DownloadProtocol のインスタンスを生成し，Runnable インターフェースとして返す．
+     */
+    @Override
+    public Runnable createProtocol(Socket clntSock, Logger logger)
+    {
+        return new DownloadProtocol(clntSock, logger, this.directory, this.mode);
+    }
+}
+
+/**
+ * クライアントが要求するファイルの範囲を送信するサーバ側の機能の実装
+ * <p>
+ * 要求と応答の形式は下記の通り．応答を送信し終えたらソケットを閉じる．
+ * <pre>
+ * 要求：ファイルIDのバイト数(int)，ファイルID(UTF-8)，開始位置(long)，長さ(long)
+ * 応答：ファイルサイズ(long)，送信するデータサイズ(long)，データ
+ * </pre>
+ * 長さが負の場合は，開始位置からファイルの末尾までを要求したものとする．
+ * ファイルが存在しない場合や開始位置が不正な場合は，ファイルサイズとして -1 を返す．
+ * 長さに 0 を指定すると，ファイルサイズだけを問い合わせることができる．
+ */
+class DownloadProtocol
+    implements
+        Runnable
+{
+    // クラス変数（定数）：
+    static private final int  BUF_SIZE       = 64 * 1024;   // HeapCopy の場合の送信バッファサイズ
+    static private final int  MAX_ID_LEN     = 1024;        // ファイルIDの最大バイト数
+    static private final long TRANSFER_CHUNK = 1024 * 1024; // transferTo 1回の最大転送量
+    
+    // インスタンス変数：
+    private final Socket                       clntSock;   // クライアントと通信するためのソケット
+    private final Logger                       logger;     // ログ出力用の Logger インスタンス
+    private final Path                         directory;  // 配信するファイルを置くディレクトリ
+    private final DownloadProtocolFactory.Mode mode;       // ファイルの送信方法
+    
+    /**
+     * DownloadProtocol のインスタンスを生成する．
+     */
+    public DownloadProtocol(
+        Socket clntSock, Logger logger, Path directory, DownloadProtocolFactory.Mode mode
+    )
+    {
+        this.clntSock = clntSock;
+        this.logger = logger;
+        this.directory = directory;
+        this.mode = mode;
+    }
+    
+    /**
+     * 要求を受信し，要求されたファイルの範囲を送信する．
+     */
+    @Override
+    public void run()
+    {
+        try {
+            // ソケットから入出力ストリームを取得する．
+            DataInputStream  in     = new DataInputStream(this.clntSock.getInputStream());
+            OutputStream     out    = this.clntSock.getOutputStream();
+            DataOutputStream header = new DataOutputStream(out);
+            // IOException
+            
+            // 要求を受信する．
+            int idLength = in.readInt();
+            if ((idLength <= 0) || (idLength > MAX_ID_LEN)) {
+                throw new IOException("ファイルIDのバイト数が不正です：" + idLength);
+            }
+            byte[] idBytes = new byte[idLength];
+            in.readFully(idBytes);
+            long offset = in.readLong();
+            long length = in.readLong();
+            ServerMetrics.getInstance().addBytesIn(4 + idLength + 8 + 8);
+            String fileId = new String(idBytes, StandardCharsets.UTF_8);
+            
+            // 要求されたファイルを求める．配信用のディレクトリの外は参照させない．
+            Path file = this.directory.resolve(fileId).normalize();
+            if (!file.startsWith(this.directory) || !Files.isRegularFile(file)) {
+                writeHeader(header, -1, 0);
+                this.logger.printf("ファイルが存在しません：%s\n", fileId);
+                return;
+            }
+            try (FileChannel fileChan = FileChannel.open(file, StandardOpenOption.READ)) {
+                // 要求された範囲をファイルサイズに収める．
+                long fileSize = fileChan.size();
+                if ((offset < 0) || (offset > fileSize)) {
+                    writeHeader(header, -1, 0);
+                    this.logger.printf("開始位置が不正です：%s，%d\n", fileId, offset);
+                    return;
+                }
+                long count = fileSize - offset;
+                if ((length >= 0) && (length < count)) {
+                    count = length;
+                }
+                // 応答のヘッダを送信した後，送信方法に従ってデータを送信する．
+                writeHeader(header, fileSize, count);
+                if (this.mode == DownloadProtocolFactory.Mode.TransferTo) {
+                    transferTo(fileChan, out, offset, count);
+                }
+                else {
+                    heapCopy(fileChan, out, offset, count);
+                }
+            }
+        }
+        catch (IOException ex) {
+            this.logger.println("例外発生：" + ex.getMessage());
+        }
+        finally {
+            try {
+                // ソケットを閉じる．
+                this.clntSock.close();
+                // IOException
+            }
+            catch (IOException ex) {
+                this.logger.println("例外発生：" + ex.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * 応答のヘッダを送信する．
+     */
+    private void writeHeader(DataOutputStream header, long fileSize, long count)
+        throws IOException
+    {
+        header.writeLong(fileSize);
+        header.writeLong(count);
+        header.flush();
+        ServerMetrics.getInstance().addBytesOut(16);
+    }
+    
+    /**
+     * FileChannel.transferTo により，ファイルの内容をヒープを経由せずに送信する．
+     * ソケットがチャネルを持たない場合は，出力ストリームをチャネルとして扱う．
+     * 各転送は TimedSocket.timedWrite で送信待ちとして記録する．
+     */
+    private void transferTo(FileChannel fileChan, OutputStream out, long offset, long count)
+        throws IOException
+    {
+        WritableByteChannel dst = this.clntSock.getChannel();
+        if (dst == null) {
+            dst = Channels.newChannel(out);
+        }
+        long position = offset;
+        long end      = offset + count;
+        while (position < end) {
+            // 送信が進んでいることを記録できるよう，1回の転送量を TRANSFER_CHUNK に制限する．
+            long                from   = position;
+            long                length = Math.min(TRANSFER_CHUNK, end - position);
+            WritableByteChannel target = dst;
+            long bytes = TimedSocket.timedWrite(
+                this.clntSock, () -> fileChan.transferTo(from, length, target)
+            );
+            if ((bytes == 0) && (position >= fileChan.size())) {
+                throw new IOException("ファイルが途中で切り詰められました．");
+            }
+            position += bytes;
+            ServerMetrics.getInstance().addBytesOut(bytes);
+        }
+    }
+    
+    /**
+     * ファイルの内容をヒープ上の配列(プールから借りる)へ読み込み，出力ストリームへ書き込む．
+     */
+    private void heapCopy(FileChannel fileChan, OutputStream out, long offset, long count)
+        throws IOException
+    {
+        ByteBuffer buffer     = BufferPool.getHeapInstance().acquire(BUF_SIZE);
+        byte[]     sendBuffer = buffer.array();
+        long       position   = offset;
+        long       end        = offset + count;
+        try {
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int)Math.min(BUF_SIZE, end - position));
+                int bytesRead = fileChan.read(buffer, position);
+                if (bytesRead == -1) {
+                    throw new IOException("ファイルが途中で切り詰められました．");
+                }
+                out.write(sendBuffer, 0, bytesRead);
+                position += bytesRead;
+                ServerMetrics.getInstance().addBytesOut(bytesRead);
+            }
+            out.flush();
+        }
+        finally {
+            // バッファをプールへ返す．
+            BufferPool.getHeapInstance().release(buffer);
+        }
+    }
+}
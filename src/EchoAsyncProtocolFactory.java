@@ -0,0 +1,196 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+
+/**
+ * EchoAsyncProtocol のインスタンスを生成するためのファクトリクラス
+ * <p>
+ * 送受信は TrafficShaper による帯域制限に通す．
+ */
+public class EchoAsyncProtocolFactory
+    implements
+        AsyncProtocolFactory
+{
+    // インスタンス変数：
+    private final TrafficShaper shaper; // 帯域制限の設定
+    
+    /**
+     * システムプロパティの帯域制限で EchoAsyncProtocolFactory のインスタンスを生成する．
+     */
+    public EchoAsyncProtocolFactory()
+    {
+        this(TrafficShaper.getInstance());
+    }
+    
+    /**
+     * 帯域制限を指定して EchoAsyncProtocolFactory のインスタンスを生成する．
+     */
+    EchoAsyncProtocolFactory(TrafficShaper shaper)
+    {
+        this.shaper = shaper;
+    }
+    
+    /**
+     * EchoAsyncProtocol のインスタンスを生成し，
+     * AsyncProtocol インターフェースとして返す．
+     */
+    @Override
+    public AsyncProtocol createProtocol(
+        AsynchronousSocketChannel clntChan, long acceptTime_ns, Logger logger
+    )
+    {
+        return new EchoAsyncProtocol(clntChan, acceptTime_ns, logger, this.shaper.open(clntChan));
+    }
+}
+
+/**
+ * エコープロトコルのサーバ側の機能を非同期チャネルで実装したクラス
+ */
+class EchoAsyncProtocol
+    implements
+        AsyncProtocol
+{
+    // クラス変数（定数）：
+    static public final int BUFSIZE = 256;  // エコーデータ格納用バッファサイズ
+    
+    // インスタンス変数：
+    private final AsynchronousSocketChannel clntChan;       // クライアントと通信するためのチャネル
+    private final Logger                    logger;         // ログ出力用の Logger インスタンス
+    private final ByteBuffer                echoBuffer;     // エコーデータ格納用バッファ(プールから借りる)
+    private final ArrayList<String>         logList;        // 処理結果を保持するためのログリスト
+    private final ReadHandler               readHandler;    // 受信完了時のハンドラ
+    private final WriteHandler              writeHandler;   // 送信完了時のハンドラ
+    private final long                      acceptTime_ns;  // コネクションを確立した時刻(ns)
+    private final ConnectionShaper          shaping;        // 送受信の帯域制限
+    
+    private long totalBytesEchoed = 0;  // クライアントへの総送信バイト数
+    
+    /**
+     * EchoAsyncProtocol のインスタンスを生成する．
+     */
+    public EchoAsyncProtocol(
+        AsynchronousSocketChannel clntChan, long acceptTime_ns, Logger logger,
+        ConnectionShaper shaping
+    )
+    {
+        this.clntChan = clntChan;
+        this.acceptTime_ns = acceptTime_ns;
+        this.logger = logger;
+        this.shaping = shaping;
+        this.echoBuffer = BufferPool.getHeapInstance().acquire(BUFSIZE);
+        this.logList = new ArrayList<String>();
+        this.readHandler = new ReadHandler();
+        this.writeHandler = new WriteHandler();
+    }
+    
+    /**
+     * クライアントからの最初の受信を開始する．
+     */
+    @Override
+    public void start()
+    {
+        // スレッド名，クライアントのアドレスとポート番号を
+        // ログリストに追加する．
+        this.logList.add("▽スレッド：" + Thread.currentThread().getName());
+        try {
+            this.logList.add("・クライアント：" + this.clntChan.getRemoteAddress());
+        }
+        catch (IOException ex) {
+            this.logList.add("・例外発生：" + ex.getMessage());
+        }
+        this.clntChan.read(this.echoBuffer, null, this.readHandler);
+    }
+    
+    /**
+     * チャネルを閉じてバッファをプールへ返し，帯域制限にコネクションの終了を伝えて，
+     * ログリストをまとめて出力する．
+     */
+    private void close()
+    {
+        this.logList.add("・総送信バイト数：" + this.totalBytesEchoed);
+        try {
+            this.clntChan.close();
+        }
+        catch (IOException ex) {
+            this.logList.add("・例外発生：" + ex.getMessage());
+        }
+        BufferPool.getHeapInstance().release(this.echoBuffer);
+        this.shaping.close();
+        this.logger.printlist(this.logList);
+        
+        // コネクションの終了を記録する．
+        ServerMetrics.getInstance().connectionClosed(this.acceptTime_ns);
+    }
+    
+    /**
+     * 受信が完了した時に呼び出されるハンドラ
+     */
+    private class ReadHandler
+        implements
+            CompletionHandler<Integer, Void>
+    {
+        /**
+         * 受信したデータをクライアントへ送り返す．帯域を超えた場合は，送信の開始を遅らせる．
+         * クライアントが送信を終えていればチャネルを閉じる．
+         */
+        @Override
+        public void completed(Integer bytesRead, Void attachment)
+        {
+            if (bytesRead == -1) {
+                close();
+                return;
+            }
+            ServerMetrics.getInstance().addBytesIn(bytesRead);
+            echoBuffer.flip();
+            shaping.paceAsync(bytesRead, () -> clntChan.write(echoBuffer, null, writeHandler));
+        }
+        
+        /**
+         * 受信に失敗したので，チャネルを閉じる．
+         */
+        @Override
+        public void failed(Throwable exc, Void attachment)
+        {
+            logList.add("・例外発生：" + exc.getMessage());
+            close();
+        }
+    }
+    
+    /**
+     * 送信が完了した時に呼び出されるハンドラ
+     */
+    private class WriteHandler
+        implements
+            CompletionHandler<Integer, Void>
+    {
+        /**
+         * 送り切れなかったデータがあれば続けて送信し，
+         * 全て送り終えたら次の受信を開始する．帯域を超えた場合は，次の送受信の開始を遅らせる．
+         */
+        @Override
+        public void completed(Integer bytesWritten, Void attachment)
+        {
+            totalBytesEchoed += bytesWritten;
+            ServerMetrics.getInstance().addBytesOut(bytesWritten);
+            if (echoBuffer.hasRemaining()) {
+                shaping.paceAsync(bytesWritten, () -> clntChan.write(echoBuffer, null, this));
+                return;
+            }
+            echoBuffer.clear();
+            shaping.paceAsync(bytesWritten, () -> clntChan.read(echoBuffer, null, readHandler));
+        }
+        
+        /**
+         * 送信に失敗したので，チャネルを閉じる．
+         */
+        @Override
+        public void failed(Throwable exc, Void attachment)
+        {
+            logList.add("・例外発生：" + exc.getMessage());
+            close();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+/**
+ * EchoChannelProtocol のインスタンスを生成するためのファクトリクラス
+ * <p>
+ * 送受信は TrafficShaper による帯域制限に通す．
+ * TlsChannelProtocolFactory で包むと，TLS で暗号化して送受信する．
+ */
+public class EchoChannelProtocolFactory
+    implements
+        LayeredChannelProtocolFactory
+{
+    // インスタンス変数：
+    private final TrafficShaper shaper; // 帯域制限の設定
+    
+    /**
+     * システムプロパティの帯域制限で EchoChannelProtocolFactory のインスタンスを生成する．
+     */
+    public EchoChannelProtocolFactory()
+    {
+        this(TrafficShaper.getInstance());
+    }
+    
+    /**
+     * 帯域制限を指定して EchoChannelProtocolFactory のインスタンスを生成する．
+     */
+    EchoChannelProtocolFactory(TrafficShaper shaper)
+    {
+        this.shaper = shaper;
+    }
+    
+    /**
+     * transport 経由で送受信する EchoChannelProtocol のインスタンスを生成し，
+     * ChannelProtocol インターフェースとして返す．
+     */
+    @Override
+    public ChannelProtocol createProtocol(
+        SocketChannel clntChan, ByteChannel transport, Logger logger
+    )
+    {
+        return new EchoChannelProtocol(clntChan, transport, logger, this.shaper.open(clntChan));
+    }
+}
+
+/**
+ * エコープロトコルのサーバ側の機能をノンブロッキング入出力で実装したクラス
+ * <p>
+ * 帯域制限による読み込み可能状態の一時停止と干渉しないよう，監視する状態は
+ * interestOpsOr・interestOpsAnd で変更する．バッファが一杯の間は受信を止める．
+ */
+class EchoChannelProtocol
+    implements
+        ChannelProtocol
+{
+    // クラス変数（定数）：
+    static public final int BUFSIZE = 256;  // エコーデータ格納用バッファサイズ
+    
+    // インスタンス変数：
+    private final ByteChannel       transport;  // 送受信に用いるチャネル(TLS の場合は TlsChannel)
+    private final Logger            logger;     // ログ出力用の Logger インスタンス
+    private final ArrayList<String> logList;    // 処理結果を保持するためのログリスト
+    private final ConnectionShaper  shaping;    // 送受信の帯域制限
+    
+    private ByteBuffer echoBuffer;                  // エコーデータ格納用バッファ(プールから借りる)
+    private long       totalBytesEchoed = 0;        // クライアントへの総送信バイト数
+    private boolean    isEndOfStream    = false;    // クライアントが送信を終えたか否か
+    
+    /**
+     * EchoChannelProtocol のインスタンスを生成する．
+     */
+    public EchoChannelProtocol(
+        SocketChannel clntChan, ByteChannel transport, Logger logger, ConnectionShaper shaping
+    )
+    {
+        this.transport = transport;
+        this.logger = logger;
+        this.shaping = shaping;
+        this.echoBuffer = BufferPool.getHeapInstance().acquire(BUFSIZE);
+        
+        // スレッド名，クライアントのアドレスとポート番号を
+        // ログリストに追加する．
+        this.logList = new ArrayList<String>();
+        this.logList.add("▽スレッド：" + Thread.currentThread().getName());
+        this.logList.add(
+            "・クライアント："
+                + clntChan.socket().getInetAddress().getHostAddress() + "，"
+                + clntChan.socket().getPort()
+        );
+    }
+    
+    /**
+     * クライアントから受信したデータをエコーデータ格納用バッファに格納し，
+     * 書き込み可能状態の監視を開始する．
+     */
+    @Override
+    public void handleRead(SelectionKey key)
+        throws IOException
+    {
+        int bytesRead = this.transport.read(this.echoBuffer);
+        if (bytesRead == -1) {
+            // クライアントが送信を終えた．
+            // 未送信のデータが残っていれば，それを送り終えてから閉じる．
+            this.isEndOfStream = true;
+            if (this.echoBuffer.position() == 0) {
+                close();
+            }
+            else {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+        else if (bytesRead > 0) {
+            ServerMetrics.getInstance().addBytesIn(bytesRead);
+            
+            // 受信したデータを送り返すため，書き込み可能状態も監視する．
+            // 帯域を超えた場合は，読み込み可能状態の監視を一時的に止める．
+            key.interestOpsOr(SelectionKey.OP_WRITE);
+            this.shaping.pauseRead(key, bytesRead);
+        }
+        if (!this.isEndOfStream && !this.echoBuffer.hasRemaining()) {
+            // バッファが一杯の間は読み込んでも 0 バイトとなりセレクタが空回りするため，
+            // 送信して空きができるまで読み込み可能状態の監視を止める．
+            key.interestOpsAnd(~SelectionKey.OP_READ);
+        }
+    }
+    
+    /**
+     * エコーデータ格納用バッファ内のデータをクライアントへ送り返す．
+     */
+    @Override
+    public void handleWrite(SelectionKey key)
+        throws IOException
+    {
+        // バッファを読み出し用に切り替え，送信できるだけ送信する．
+        this.echoBuffer.flip();
+        int bytesWritten = this.transport.write(this.echoBuffer);
+        this.totalBytesEchoed += bytesWritten;
+        ServerMetrics.getInstance().addBytesOut(bytesWritten);
+        boolean isPaused = this.shaping.pauseRead(key, bytesWritten);
+        
+        if (!this.echoBuffer.hasRemaining()) {
+            // 全て送り返した．
+            if (this.isEndOfStream) {
+                this.echoBuffer.clear();
+                close();
+                return;
+            }
+            // 書き込み可能状態の監視を止め，次の受信を待つ．
+            key.interestOpsAnd(~SelectionKey.OP_WRITE);
+        }
+        // 送信し切れなかったデータをバッファの先頭へ詰める．
+        this.echoBuffer.compact();
+        
+        // 空きができたので，帯域制限で止めていなければ読み込み可能状態の監視を再開する．
+        if (!this.isEndOfStream && !isPaused && this.echoBuffer.hasRemaining()) {
+            key.interestOpsOr(SelectionKey.OP_READ);
+        }
+    }
+    
+    /**
+     * チャネルを閉じ，ログリストをまとめて出力する．
+     */
+    private void close()
+        throws IOException
+    {
+        this.logList.add("・総送信バイト数：" + this.totalBytesEchoed);
+        this.transport.close();
+        this.logger.printlist(this.logList);
+    }
+    
+    /**
+     * エコーデータ格納用バッファをプールへ返し，帯域制限にコネクションの終了を伝える．
+     */
+    @Override
+    public void handleClose()
+    {
+        BufferPool.getHeapInstance().release(this.echoBuffer);
+        this.echoBuffer = null;
+        this.shaping.close();
+    }
+}
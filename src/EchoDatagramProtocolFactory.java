@@ -0,0 +1,77 @@
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * EchoDatagramProtocol のインスタンスを生成するためのファクトリクラス
+ */
+public class EchoDatagramProtocolFactory
+    implements
+        DatagramProtocolFactory
+{
+    /**
+     * EchoDatagramProtocol のインスタンスを生成し，
+     * DatagramProtocol インターフェースとして返す．
+     */
+    @Override
+    public DatagramProtocol createProtocol(DatagramChannel chan, Logger logger)
+    {
+        return new EchoDatagramProtocol(chan);
+    }
+}
+
+/**
+ * エコープロトコルのサーバ側の機能を，データグラムで実装したクラス
+ * <p>
+ * 受信したデータグラムを，そのまま送信元へ送り返す．
+ * チャネルの送信バッファが一杯で送れない場合は，待たずに破棄する．
+ */
+class EchoDatagramProtocol
+    implements
+        DatagramProtocol
+{
+    // インスタンス変数：
+    private final DatagramChannel chan; // 送受信に用いるチャネル
+    
+    // 統計情報(ディスパッチャのスレッドのみが参照・更新する)：
+    private long numEchoed  = 0;    // 送り返したデータグラム数
+    private long numDropped = 0;    // 送信バッファが一杯で破棄したデータグラム数
+    
+    /**
+     * EchoDatagramProtocol のインスタンスを生成する．
+     */
+    EchoDatagramProtocol(DatagramChannel chan)
+    {
+        this.chan = chan;
+    }
+    
+    /**
+     * 受信したデータグラムを送信元へ送り返す．
+     */
+    @Override
+    public void handleDatagram(ByteBuffer datagram, SocketAddress source)
+        throws IOException
+    {
+        // 送れない場合は 0 が返る(空のデータグラムは 0 バイトで送れる)．
+        int length = datagram.remaining();
+        if (this.chan.send(datagram, source) < length) {
+            this.numDropped++;
+            return;
+        }
+        this.numEchoed++;
+        ServerMetrics.getInstance().addBytesOut(length);
+    }
+    
+    /**
+     * 送り返した数と破棄した数をログに出力し，リセットする．
+     */
+    @Override
+    public void report(Logger logger)
+    {
+        logger.printf("エコー：送信 %d 個，破棄 %d 個\n", this.numEchoed, this.numDropped);
+        this.numEchoed = 0;
+        this.numDropped = 0;
+    }
+}
@@ -0,0 +1,221 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * メッセージサイズを変化させ，エコーのスループットとメッセージ毎の往復時間を調べる実験
+ * <p>
+ * メッセージサイズ毎に1つのコネクションを確立し，メッセージを1つ送信しては
+ * 同じサイズのエコーを受信し終えるまで待つ処理を繰り返す．
+ * 送信と受信は別のスレッドで行うため，メッセージがソケットのバッファより大きくても
+ * 送受信が互いを待ち合うことはない．計測時間が TIME_LIMIT_MS を超えた場合は，
+ * その時点までに往復したメッセージで結果を求める．
+ * 同一ホスト上で，下記のようにプロトコルだけを変えて起動したサーバに対して実行し，
+ * 結果を比較する．
+ * <pre>
+ * java ProtocolLauncher &lt;Port&gt; Echo ThreadPool        (ブロッキング，256バイトの配列)
+ * java ProtocolLauncher &lt;Port&gt; Echo Selector          (ノンブロッキング，256バイトのヒープバッファ)
+ * java ProtocolLauncher &lt;Port&gt; DirectEcho Selector    (ノンブロッキング，プールしたダイレクトバッファ)
+ * </pre>
+ */
+public class EchoExperiment
+{
+    // クラス変数（定数）：
+    private static final int KILO_BYTE = 1024;
+    private static final int MEGA_BYTE = KILO_BYTE * 1024;
+    
+    // メッセージサイズ毎に送信する総データサイズと，メッセージ数の上下限
+    private static final long TOTAL_SIZE   = 64L * MEGA_BYTE;
+    private static final int  MIN_MESSAGES = 50;
+    private static final int  MAX_MESSAGES = 20000;
+    
+    // 計測前に送受信するメッセージ数(ウォームアップ)と，メッセージサイズ毎の計測時間の上限(ms)
+    private static final int  WARMUP_MESSAGES = 20;
+    private static final long TIME_LIMIT_MS   = 10000;
+    
+    // メッセージサイズの配列
+    private static final int[] MSG_SIZE_ARRAY = {
+        64, 256, 1 * KILO_BYTE, 4 * KILO_BYTE, 16 * KILO_BYTE,
+        64 * KILO_BYTE, 256 * KILO_BYTE, 1 * MEGA_BYTE
+    };
+    
+    /**
+     * エコーの計測実験用クライアントを利用するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 2) {
+            System.out.println("Parameters: <Server> <Port>");
+            return;
+        }
+        try {
+            // サーバ名(またはIPアドレス)とサーバのポート番号を引数から取得する．
+            String servAddr = args[0];
+            int    servPort = Integer.parseInt(args[1]);
+            
+            // コンソールへのログ出力用のインスタンスを生成する．
+            ConsoleLogger clog = new ConsoleLogger();
+            
+            // ファイルへのログ出力用のインスタンスを生成する．
+            FileLogger flog = new FileLogger(
+                String.format("echo_%d.txt", System.currentTimeMillis())
+            );
+            // IOException
+            
+            // 実験用クライアントのインスタンスを生成し，実験を実行する．
+            EchoExperiment client = new EchoExperiment(servAddr, servPort, clog, flog);
+            client.execute();
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    // インスタンス変数：
+    private final String        servAddr;   // サーバのIPアドレス(またはホスト名)
+    private final int           servPort;   // サーバのポート番号
+    private final ConsoleLogger clog;       // コンソールへの出力用 Logger
+    private final FileLogger    flog;       // ファイルへの出力用 Logger
+    
+    /**
+     * EchoExperiment のインスタンスを生成する．
+     */
+    EchoExperiment(String servAddr, int servPort, ConsoleLogger clog, FileLogger flog)
+    {
+        this.servAddr = servAddr;
+        this.servPort = servPort;
+        this.clog = clog;
+        this.flog = flog;
+    }
+    
+    /**
+     * メッセージサイズ毎にエコーを計測し，結果を出力する．
+     */
+    void execute()
+    {
+        this.flog.printf("msg_size\tmessages\tMB_per_sec\tp50_us\tp99_us\tmax_us\n");
+        for (int msgSize : MSG_SIZE_ARRAY) {
+            // メッセージ数を決める．
+            long count       = TOTAL_SIZE / msgSize;
+            int  numMessages = (int)Math.max(MIN_MESSAGES, Math.min(MAX_MESSAGES, count));
+            try {
+                measure(msgSize, numMessages);
+            }
+            catch (IOException | InterruptedException ex) {
+                this.clog.printf("%,9d バイト：例外発生：%s\n", msgSize, ex.getMessage());
+            }
+        }
+        // ファイルへのログ出力を終了する．
+        this.flog.close();
+    }
+    
+    /**
+     * 1つのコネクションで，指定したサイズのメッセージのエコーを指定した回数繰り返し，
+     * スループットと往復時間を出力する．
+     */
+    private void measure(int msgSize, int numMessages)
+        throws IOException,
+            InterruptedException
+    {
+        // 送信するメッセージを乱数で初期化する．
+        byte[] message = new byte[msgSize];
+        new Random(System.currentTimeMillis()).nextBytes(message);
+        byte[] recvBuffer = new byte[msgSize];
+        
+        // 往復時間の記録先
+        LogLinearHistogram rtts = new LogLinearHistogram();
+        
+        try (Socket socket = new Socket(this.servAddr, this.servPort)) {
+            socket.setTcpNoDelay(true);
+            InputStream  in  = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            
+            // 送信用のスレッドは，受信用のスレッド(このスレッド)が
+            // 前のメッセージのエコーを受信し終えるまで，次のメッセージを送信しない．
+            int           total        = WARMUP_MESSAGES + numMessages;
+            Semaphore     permits      = new Semaphore(1);
+            long[]        sendTimes_ns = new long[total];
+            IOException[] sendError    = new IOException[1];
+            AtomicBoolean isStopped    = new AtomicBoolean(false);
+            Thread sender = new Thread(() -> {
+                try {
+                    for (int i = 0; i < total; i++) {
+                        permits.acquire();
+                        if (isStopped.get()) {
+                            break;
+                        }
+                        sendTimes_ns[i] = System.nanoTime();
+                        out.write(message);
+                    }
+                }
+                catch (IOException ex) {
+                    sendError[0] = ex;
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            sender.start();
+            
+            long startTime_ns = 0;
+            long endTime_ns   = System.nanoTime() + TIME_LIMIT_MS * 1000000L;
+            int  numMeasured  = 0;
+            for (int i = 0; i < total; i++) {
+                // メッセージ1つ分のエコーを受信し終えるまで受信を続ける．
+                int totalBytesRcvd = 0;
+                while (totalBytesRcvd < msgSize) {
+                    int bytesRcvd = in.read(recvBuffer, totalBytesRcvd, msgSize - totalBytesRcvd);
+                    if (bytesRcvd == -1) {
+                        sender.interrupt();
+                        throw new IOException("サーバがコネクションを切断しました．");
+                    }
+                    totalBytesRcvd += bytesRcvd;
+                }
+                long now_ns = System.nanoTime();
+                
+                // ウォームアップ後の往復時間を記録する．
+                if (i == WARMUP_MESSAGES) {
+                    startTime_ns = sendTimes_ns[i];
+                }
+                if (i >= WARMUP_MESSAGES) {
+                    rtts.record(now_ns - sendTimes_ns[i]);
+                    numMeasured++;
+                }
+                // 計測時間の上限を超えた場合は，送信用のスレッドを止める．
+                if ((now_ns > endTime_ns) && (numMeasured > 0)) {
+                    isStopped.set(true);
+                    permits.release();
+                    break;
+                }
+                // 次のメッセージの送信を許可する．
+                permits.release();
+            }
+            long elapsed_ns = System.nanoTime() - startTime_ns;
+            sender.join();
+            if (sendError[0] != null) {
+                throw sendError[0];
+            }
+            // 結果を出力する．
+            double mbps = ((double)msgSize * numMeasured / MEGA_BYTE) / (elapsed_ns / 1e9);
+            // 百分位数はバケットの上限値となるため，最大値を超えないようにする．
+            double max  = rtts.getMax() / 1000.0;
+            double p50  = Math.min(rtts.getPercentile(0.50) / 1000.0, max);
+            double p99  = Math.min(rtts.getPercentile(0.99) / 1000.0, max);
+            this.clog.printf(
+                "%,9d バイト x %,6d：%,9.2f MB/s，"
+                    + "往復時間 p50 %,10.1fμs p99 %,10.1fμs 最大 %,10.1fμs\n",
+                msgSize, numMeasured, mbps, p50, p99, max
+            );
+            this.flog.printf(
+                "%d\t%d\t%.2f\t%.1f\t%.1f\t%.1f\n", msgSize, numMeasured, mbps, p50, p99, max
+            );
+        }
+    }
+}
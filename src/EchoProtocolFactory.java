@@ -3,15 +3,37 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 /**
  * EchoProtocol のインスタンスを生成するためのファクトリクラス
+ * <p>
+ * 送受信は TrafficShaper による帯域制限に通す．
  */
 public class EchoProtocolFactory
     implements
         ProtocolFactory
 {
+    // インスタンス変数：
+    private final TrafficShaper shaper; // 帯域制限の設定
+    
+    /**
+     * システムプロパティの帯域制限で EchoProtocolFactory のインスタンスを生成する．
+     */
+    public EchoProtocolFactory()
+    {
+        this(TrafficShaper.getInstance());
+    }
+    
+    /**
+     * 帯域制限を指定して EchoProtocolFactory のインスタンスを生成する．
+     */
+    EchoProtocolFactory(TrafficShaper shaper)
+    {
+        this.shaper = shaper;
+    }
+    
     /**
      * EchoProtocol のインスタンスを生成し，
      * Runnable インターフェースとして返す．
@@ -19,7 +41,7 @@ public class EchoProtocolFactory
     @Override
     public Runnable createProtocol(Socket clntSock, Logger logger)
     {
-        return new EchoProtocol(clntSock, logger);
+        return new EchoProtocol(clntSock, logger, this.shaper);
     }
 }
 
@@ -34,16 +56,18 @@ class EchoProtocol
     static public final int BUFSIZE = 256;  // エコーデータ格納用バッファサイズ
     
     // インスタンス変数：
-    private final Socket clntSock;  // クライアントと通信するためのソケット
-    private final Logger logger;    // ログ出力用の Logger インスタンス
+    private final Socket           clntSock;    // クライアントと通信するためのソケット
+    private final Logger           logger;      // ログ出力用の Logger インスタンス
+    private final TrafficShaper    shaper;      // 帯域制限の設定
     
     /**
      * EchoProtocol のインスタンスを生成する．
      */
-    public EchoProtocol(Socket clntSock, Logger logger)
+    public EchoProtocol(Socket clntSock, Logger logger, TrafficShaper shaper)
     {
         this.clntSock = clntSock;
         this.logger = logger;
+        this.shaper = shaper;
     }
     
     /**
@@ -65,13 +89,16 @@ class EchoProtocol
                 + this.clntSock.getPort()
         );
         
+        // エコーデータ格納用バッファをプールから借り，このコネクションの帯域制限を開始する．
+        ByteBuffer       buffer  = BufferPool.getHeapInstance().acquire(BUFSIZE);
+        ConnectionShaper shaping = this.shaper.open(this.clntSock);
         try {
-            // ソケットから入出力ストリームを取得する．
-            InputStream  in  = this.clntSock.getInputStream();
-            OutputStream out = this.clntSock.getOutputStream();
+            // ソケットから入出力ストリームを取得し，帯域を制限するストリームで包む．
+            InputStream  in  = shaping.wrap(this.clntSock.getInputStream());
+            OutputStream out = shaping.wrap(this.clntSock.getOutputStream());
             
-            // エコーデータ格納用バッフを生成する．
-            byte[] echoBuffer = new byte[BUFSIZE];
+            // 借りたバッファの配列を，エコーデータ格納用バッファとして使う．
+            byte[] echoBuffer = buffer.array();
             
             // 受信したメッセージのサイズと，
             // クライアントへの総送信バイト数
@@ -82,8 +109,11 @@ class EchoProtocol
             // エコーデータ格納用バッフに格納し，
             // そのデータをそのままクライアントへ送り返す．
             // コネクションが切断されるまで，この処理を繰り返す．
+            ServerMetrics metrics = ServerMetrics.getInstance();
             while ((recvMsgSize = in.read(echoBuffer)) != -1) {
+                metrics.addBytesIn(recvMsgSize);
                 out.write(echoBuffer, 0, recvMsgSize);
+                metrics.addBytesOut(recvMsgSize);
                 totalBytesEchoed += recvMsgSize;
             }
             // 総送信バイト数をログリストに追加する．
@@ -100,6 +130,9 @@ class EchoProtocol
             catch (IOException ex) {
                 logList.add("・例外発生：" + ex.getMessage());
             }
+            // エコーデータ格納用バッファをプールへ返し，帯域制限を終える．
+            BufferPool.getHeapInstance().release(buffer);
+            shaping.close();
         }
         // ログリストをまとめて出力する．
         logger.printlist(logList);
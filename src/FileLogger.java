@@ -3,16 +3,22 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * ファイルへのログ出力用クラス
+ * <p>
+ * 排他制御には synchronized ではなく ReentrantLock を利用する．
+ * これにより，仮想スレッドから呼び出された場合でも，
+ * ロック待ちの間にキャリアスレッドが固定(pinning)されない．
  */
 public class FileLogger
     implements
         Logger
 {
     // インスタンス変数：
-    private final PrintWriter out;  // ファイルへのログ出力用 PrintWriter
+    private final PrintWriter   out;                        // ファイルへのログ出力用 PrintWriter
+    private final ReentrantLock lock = new ReentrantLock(); // 出力の排他制御用ロック
     
     /**
      * 文字列をファイルへ出力する．
@@ -28,39 +34,66 @@ public class FileLogger
      * 文字列をファイルへ出力する．
      */
     @Override
-    public synchronized void println(String line)
+    public void println(String line)
     {
-        this.out.println(line);
+        this.lock.lock();
+        try {
+            this.out.println(line);
+        }
+        finally {
+            this.lock.unlock();
+        }
     }
     
     /**
      * フォーマットを指定した文字列をファイルへ出力する．
      */
     @Override
-    public synchronized void printf(String format, Object... args)
+    public void printf(String format, Object... args)
     {
-        this.out.print(String.format(format, args));
+        // 文字列の整形はロックの外で行う．
+        String formatted = String.format(format, args);
+        
+        this.lock.lock();
+        try {
+            this.out.print(formatted);
+        }
+        finally {
+            this.lock.unlock();
+        }
     }
     
     /**
      * 行のリストをファイルへ出力する．
      */
     @Override
-    public synchronized void printlist(Collection<String> entry)
+    public void printlist(Collection<String> entry)
     {
-        for (String line : entry) {
-            this.out.println(line);
+        this.lock.lock();
+        try {
+            for (String line : entry) {
+                this.out.println(line);
+            }
+            this.out.println();
+        }
+        finally {
+            this.lock.unlock();
         }
-        this.out.println();
     }
     
     /**
      * ファイルへのログ出力を終了する．
      */
-    public synchronized void close()
+    public void close()
     {
-        if (this.out != null) {
-            this.out.close();
+        this.lock.lock();
+        try {
+            if (this.out != null) {
+                this.out.close();
+            }
+        }
+        finally {
+            this.lock.unlock();
         }
     }
 }
@@ -0,0 +1,317 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * FramedChannelProtocol のインスタンスを生成するためのファクトリクラス
+ * <p>
+ * フレームの最大長(ヘッダを除くバイト数)は，システムプロパティ
+ * FramedChannelProtocolFactory.maxFrameSize で指定できる
+ * (既定値は 65532．ヘッダと合わせて 64KB)．
+ * 全てのコネクションでの読み込み・書き込みの回数と処理したフレーム数を記録する．
+ */
+public class FramedChannelProtocolFactory
+    implements
+        ChannelProtocolFactory
+{
+    // クラス変数（定数）：
+    static public final int HEADER_SIZE = 4;    // フレームのヘッダ(ペイロードのバイト数)のサイズ
+    
+    // インスタンス変数：
+    private final int maxFrameSize; // フレームの最大長(ヘッダを除く)
+    
+    // 統計情報：
+    private final LongAdder frames = new LongAdder();   // 処理したフレーム数
+    private final LongAdder reads  = new LongAdder();   // 読み込みの回数
+    private final LongAdder writes = new LongAdder();   // 書き込みの回数
+    
+    /**
+     * システムプロパティの設定値で FramedChannelProtocolFactory のインスタンスを生成する．
+     */
+    public FramedChannelProtocolFactory()
+    {
+        this(
+            Integer.getInteger(
+                "FramedChannelProtocolFactory.maxFrameSize",
+                64 * 1024 - HEADER_SIZE
+            )
+        );
+    }
+    
+    /**
+     * フレームの最大長を指定して FramedChannelProtocolFactory のインスタンスを生成する．
+     */
+    FramedChannelProtocolFactory(int maxFrameSize)
+    {
+        this.maxFrameSize = Math.min(
+            maxFrameSize, BufferPool.MAX_SIZE - HEADER_SIZE
+        );
+    }
+    
+    /**
+     * FramedChannelProtocol のインスタンスを生成し，
+     * ChannelProtocol インターフェースとして返す．
+     */
+    @Override
+    public ChannelProtocol createProtocol(SocketChannel clntChan, Logger logger)
+    {
+        return new FramedChannelProtocol(clntChan, logger, this, this.maxFrameSize);
+    }
+    
+    /**
+     * 1回の読み込みを記録する．
+     */
+    void recordRead()
+    {
+        this.reads.increment();
+    }
+    
+    /**
+     * 1回の書き込みを記録する．
+     */
+    void recordWrite()
+    {
+        this.writes.increment();
+    }
+    
+    /**
+     * 処理したフレーム数を記録する．
+     */
+    void addFrames(int numFrames)
+    {
+        this.frames.add(numFrames);
+    }
+    
+    /**
+     * 処理したフレーム数の累計を返す．
+     */
+    long getFrames()
+    {
+        return this.frames.sum();
+    }
+    
+    /**
+     * 読み込みの回数の累計を返す．
+     */
+    long getReads()
+    {
+        return this.reads.sum();
+    }
+    
+    /**
+     * 書き込みの回数の累計を返す．
+     */
+    long getWrites()
+    {
+        return this.writes.sum();
+    }
+}
+
+/**
+ * 長さを前置したフレームを1つのコネクションで繰り返し送受信するプロトコルの，
+ * サーバ側の機能をノンブロッキング入出力で実装したクラス
+ * <p>
+ * 要求と応答はどちらも，ペイロードのバイト数(int，ビッグエンディアン)とペイロードから成る
+ * フレームとする．応答のペイロードは要求のペイロードと同じ(エコー)とする．
+ * クライアントは応答を待たずに複数の要求を送信(パイプライン化)できる．
+ * <p>
+ * 1回の読み込みで受信バッファに揃った完全なフレームを全てデコードし，
+ * それらの応答(ヘッダとペイロードの組)を1回の集約書き込み(gathering write)で送信する．
+ * 応答を送信し終えるまでは次の読み込みを行わないため，受信バッファ内のペイロードを
+ * 複写せずに，そのまま応答のペイロードとして送信できる．
+ * 1回の書き込みにまとめるフレーム数は MAX_BATCH 以下とする．
+ */
+class FramedChannelProtocol
+    implements
+        ChannelProtocol
+{
+    // クラス変数（定数）：
+    static public final int HEADER_SIZE = FramedChannelProtocolFactory.HEADER_SIZE;
+    static public final int MAX_BATCH   = 256;  // 1回の書き込みにまとめるフレーム数の上限
+    
+    // インスタンス変数：
+    private final SocketChannel                clntChan;        // クライアントと通信するためのチャネル
+    private final Logger                       logger;          // ログ出力用の Logger インスタンス
+    private final FramedChannelProtocolFactory factory;         // 統計情報の記録先
+    private final int                          maxFrameSize;    // フレームの最大長(ヘッダを除く)
+    private final ByteBuffer[]                 writeBuffers;    // 集約書き込みするバッファの配列
+    private final ArrayList<String>            logList;         // 処理結果を保持するためのログリスト
+    
+    private ByteBuffer readBuffer;              // 受信バッファ(プールから借りる)
+    private ByteBuffer headerBuffer;            // 応答のヘッダ格納用バッファ(プールから借りる)
+    private int        numWriteBuffers = 0;     // 集約書き込みするバッファ数
+    private int        writeIndex      = 0;     // 送信し終えていない最初のバッファの位置
+    private long       totalFrames     = 0;     // 処理したフレーム数
+    
+    /**
+     * FramedChannelProtocol のインスタンスを生成する．
+     */
+    public FramedChannelProtocol(
+        SocketChannel clntChan, Logger logger, FramedChannelProtocolFactory factory,
+        int maxFrameSize
+    )
+    {
+        this.clntChan = clntChan;
+        this.logger = logger;
+        this.factory = factory;
+        this.maxFrameSize = maxFrameSize;
+        this.writeBuffers = new ByteBuffer[MAX_BATCH * 2];
+        this.readBuffer = BufferPool.getHeapInstance().acquire(HEADER_SIZE + maxFrameSize);
+        this.headerBuffer = BufferPool.getHeapInstance().acquire(HEADER_SIZE * MAX_BATCH);
+        
+        // スレッド名，クライアントのアドレスとポート番号を
+        // ログリストに追加する．
+        this.logList = new ArrayList<String>();
+        this.logList.add("▽スレッド：" + Thread.currentThread().getName());
+        this.logList.add(
+            "・クライアント："
+                + clntChan.socket().getInetAddress().getHostAddress() + "，"
+                + clntChan.socket().getPort()
+        );
+    }
+    
+    /**
+     * クライアントから受信したデータを受信バッファに格納し，
+     * 完全なフレームが揃っていれば，それらの応答を送信する．
+     */
+    @Override
+    public void handleRead(SelectionKey key)
+        throws IOException
+    {
+        int bytesRead = this.clntChan.read(this.readBuffer);
+        this.factory.recordRead();
+        if (bytesRead == -1) {
+            // クライアントが送信を終えた．
+            // 応答は送信し終えているため，途中までのフレームが残っていれば破棄して閉じる．
+            if (this.readBuffer.position() > 0) {
+                this.logList.add("・途中で切れたフレーム：" + this.readBuffer.position() + " バイト");
+            }
+            close();
+            return;
+        }
+        if (bytesRead == 0) {
+            return;
+        }
+        ServerMetrics.getInstance().addBytesIn(bytesRead);
+        
+        // 受信バッファを読み出し用に切り替え，完全なフレームをデコードする．
+        this.readBuffer.flip();
+        if (decodeFrames()) {
+            // 書き込み可能状態を待たずに，応答の送信を試みる．
+            flush(key);
+        }
+        else {
+            // 途中までのフレームを受信バッファの先頭へ詰め，次の受信を待つ．
+            this.readBuffer.compact();
+        }
+    }
+    
+    /**
+     * 送信し切れなかった応答を送信する．
+     */
+    @Override
+    public void handleWrite(SelectionKey key)
+        throws IOException
+    {
+        flush(key);
+    }
+    
+    /**
+     * 受信バッファ内の完全なフレームを MAX_BATCH 個までデコードし，
+     * 応答のヘッダとペイロードを集約書き込みするバッファの配列に並べる．
+     * 1つ以上のフレームをデコードした場合は true を返す．
+     */
+    private boolean decodeFrames()
+        throws IOException
+    {
+        this.numWriteBuffers = 0;
+        this.writeIndex = 0;
+        this.headerBuffer.clear();
+        
+        int numFrames = 0;
+        while ((numFrames < MAX_BATCH) && (this.readBuffer.remaining() >= HEADER_SIZE)) {
+            // ヘッダからペイロードのバイト数を取得し，ペイロードが揃っているか確認する．
+            int position = this.readBuffer.position();
+            int length   = this.readBuffer.getInt(position);
+            if ((length < 0) || (length > this.maxFrameSize)) {
+                throw new IOException("フレームの長さが不正です：" + length);
+            }
+            if (this.readBuffer.remaining() < HEADER_SIZE + length) {
+                break;
+            }
+            // 応答のヘッダを書き込み，ペイロードは受信バッファの該当範囲をそのまま送信する．
+            int headerPosition = this.headerBuffer.position();
+            this.headerBuffer.putInt(length);
+            this.writeBuffers[this.numWriteBuffers++] =
+                this.headerBuffer.slice(headerPosition, HEADER_SIZE);
+            this.writeBuffers[this.numWriteBuffers++] =
+                this.readBuffer.slice(position + HEADER_SIZE, length);
+            this.readBuffer.position(position + HEADER_SIZE + length);
+            numFrames++;
+        }
+        this.totalFrames += numFrames;
+        this.factory.addFrames(numFrames);
+        return (numFrames > 0);
+    }
+    
+    /**
+     * 並べた応答を集約書き込みで送信する．送信し切れなかった場合は書き込み可能状態を監視する．
+     * 送信し終えたら，受信バッファに残っている完全なフレームを続けて処理し，
+     * 残っていなければ次の受信を待つ．
+     */
+    private void flush(SelectionKey key)
+        throws IOException
+    {
+        do {
+            long bytesWritten = this.clntChan.write(
+                this.writeBuffers, this.writeIndex, this.numWriteBuffers - this.writeIndex
+            );
+            this.factory.recordWrite();
+            ServerMetrics.getInstance().addBytesOut(bytesWritten);
+            
+            // 送信し終えたバッファを配列から外す．
+            while (this.writeIndex < this.numWriteBuffers) {
+                if (this.writeBuffers[this.writeIndex].hasRemaining()) {
+                    break;
+                }
+                this.writeBuffers[this.writeIndex++] = null;
+            }
+            if (this.writeIndex < this.numWriteBuffers) {
+                // 送信し切れなかったので，書き込み可能状態になるのを待つ．
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+        } while (decodeFrames());
+        
+        // 途中までのフレームを受信バッファの先頭へ詰め，次の受信を待つ．
+        this.readBuffer.compact();
+        key.interestOps(SelectionKey.OP_READ);
+    }
+    
+    /**
+     * チャネルを閉じ，ログリストをまとめて出力する．
+     */
+    private void close()
+        throws IOException
+    {
+        this.logList.add("・処理したフレーム数：" + this.totalFrames);
+        this.clntChan.close();
+        this.logger.printlist(this.logList);
+    }
+    
+    /**
+     * 受信バッファと応答のヘッダ格納用バッファをプールへ返す．
+     */
+    @Override
+    public void handleClose()
+    {
+        BufferPool.getHeapInstance().release(this.readBuffer);
+        BufferPool.getHeapInstance().release(this.headerBuffer);
+        this.readBuffer = null;
+        this.headerBuffer = null;
+    }
+}
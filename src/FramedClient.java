@@ -0,0 +1,173 @@
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+/**
+ * FramedChannelProtocol を用いるサーバへ，長さを前置したフレームを
+ * パイプライン化して送信するクライアントの実装
+ * <p>
+ * 応答を受信していない要求の数(パイプラインの深さ)を depth 以下に保ちながら，
+ * 1つのコネクションで同じサイズのメッセージを繰り返し送信する．
+ * depth が 1 の場合は，応答を受信してから次の要求を送信する．
+ * 送信用のスレッドは，その時点で送信できる要求をまとめて1回の書き込みで送信し，
+ * 受信用のスレッド(exchange を呼び出したスレッド)は，1回の読み込みで揃った応答を全て処理する．
+ */
+class FramedClient
+{
+    // クラス変数（定数）：
+    private static final int HEADER_SIZE = FramedChannelProtocolFactory.HEADER_SIZE;
+    private static final int BUF_SIZE    = 64 * 1024;   // 受信バッファサイズ(下限)
+    
+    // インスタンス変数：
+    private final String             servAddr;  // サーバのIPアドレス(またはホスト名)
+    private final int                servPort;  // サーバのポート番号
+    private final int                msgSize;   // メッセージ(ペイロード)のサイズ
+    private final int                depth;     // パイプラインの深さ
+    private final LogLinearHistogram rtts;      // 要求毎の往復時間(ns)
+    
+    private long numWrites = 0;     // 送信時の書き込みの回数
+    
+    /**
+     * FramedClient のインスタンスを生成する．
+     */
+    FramedClient(String servAddr, int servPort, int msgSize, int depth)
+    {
+        this.servAddr = servAddr;
+        this.servPort = servPort;
+        this.msgSize = msgSize;
+        this.depth = depth;
+        this.rtts = new LogLinearHistogram();
+    }
+    
+    /**
+     * 1つのコネクションで，指定された数の要求を送信して全ての応答を受信し，
+     * 最初の送信から最後の受信までの経過時間(ns)を返す．
+     */
+    long exchange(int numMessages)
+        throws IOException,
+            InterruptedException
+    {
+        // depth 個分のフレームを並べた送信用のバッファを用意する．
+        int    frameSize = HEADER_SIZE + this.msgSize;
+        byte[] payload   = new byte[this.msgSize];
+        new Random(System.currentTimeMillis()).nextBytes(payload);
+        ByteBuffer frames = ByteBuffer.allocate(frameSize * this.depth);
+        for (int i = 0; i < this.depth; i++) {
+            frames.putInt(this.msgSize).put(payload);
+        }
+        // 応答を受信していない要求の数を，セマフォの許可数で depth 以下に保つ．
+        Semaphore     permits      = new Semaphore(this.depth);
+        long[]        sendTimes_ns = new long[numMessages];
+        IOException[] sendError    = new IOException[1];
+        
+        ByteBuffer recvBuffer = BufferPool.getHeapInstance().acquire(Math.max(BUF_SIZE, frameSize));
+        try (
+            SocketChannel clntChan = SocketChannel.open(
+                new InetSocketAddress(this.servAddr, this.servPort)
+            )
+        ) {
+            clntChan.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            
+            // 送信用のスレッドを開始する．
+            Thread sender = new Thread(() -> {
+                try {
+                    int numSent = 0;
+                    while (numSent < numMessages) {
+                        // 1つ以上の許可を得たら，その時点で得られる許可を全て使って送信する．
+                        // 残りの要求数より多く得た許可は返す．
+                        permits.acquire();
+                        int acquired = 1 + permits.drainPermits();
+                        int count    = Math.min(acquired, numMessages - numSent);
+                        if (acquired > count) {
+                            permits.release(acquired - count);
+                        }
+                        long now_ns = System.nanoTime();
+                        for (int i = 0; i < count; i++) {
+                            sendTimes_ns[numSent + i] = now_ns;
+                        }
+                        ByteBuffer buffer = frames.duplicate().clear().limit(count * frameSize);
+                        while (buffer.hasRemaining()) {
+                            clntChan.write(buffer);
+                            this.numWrites++;
+                        }
+                        numSent += count;
+                    }
+                }
+                catch (IOException ex) {
+                    // 受信用のスレッドを止めるため，チャネルの入力を終了させる．
+                    sendError[0] = ex;
+                    try {
+                        clntChan.shutdownInput();
+                    }
+                    catch (IOException ex2) {
+                        ;
+                    }
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            long startTime_ns = System.nanoTime();
+            sender.start();
+            
+            // 全ての応答を受信するまで受信を続ける．
+            int numReceived = 0;
+            try {
+                while (numReceived < numMessages) {
+                    if (clntChan.read(recvBuffer) == -1) {
+                        throw new IOException("サーバがコネクションを切断しました．");
+                    }
+                    // 受信バッファに揃った応答を全て処理する．
+                    long now_ns = System.nanoTime();
+                    recvBuffer.flip();
+                    while (recvBuffer.remaining() >= HEADER_SIZE) {
+                        int length = recvBuffer.getInt(recvBuffer.position());
+                        if (length != this.msgSize) {
+                            throw new IOException("応答の長さが要求と一致しません：" + length);
+                        }
+                        if (recvBuffer.remaining() < frameSize) {
+                            break;
+                        }
+                        recvBuffer.position(recvBuffer.position() + frameSize);
+                        this.rtts.record(now_ns - sendTimes_ns[numReceived]);
+                        numReceived++;
+                        permits.release();
+                    }
+                    recvBuffer.compact();
+                }
+            }
+            catch (IOException ex) {
+                sender.interrupt();
+                throw (sendError[0] != null) ? sendError[0] : ex;
+            }
+            long elapsed_ns = System.nanoTime() - startTime_ns;
+            sender.join();
+            return elapsed_ns;
+        }
+        finally {
+            // 受信バッファをプールへ返す．
+            BufferPool.getHeapInstance().release(recvBuffer);
+        }
+    }
+    
+    /**
+     * 要求毎の往復時間(ns)の記録を返す．
+     */
+    LogLinearHistogram getRoundTripTimes()
+    {
+        return this.rtts;
+    }
+    
+    /**
+     * 送信時の書き込みの回数を返す．
+     */
+    long getWriteCount()
+    {
+        return this.numWrites;
+    }
+}
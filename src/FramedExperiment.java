@@ -0,0 +1,156 @@
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * パイプラインの深さを変化させ，フレーム化したメッセージの往復の速度と，
+ * メッセージあたりの読み込み・書き込みの回数を調べる実験
+ * <p>
+ * FramedChannelProtocolFactory を用いるサーバを，SelectorDispatcher で同じプロセス内に起動する．
+ * パイプラインの深さ毎に FramedClient で指定された数のメッセージを往復させ，
+ * メッセージ数/秒，往復時間，クライアントの書き込み回数と，サーバの読み込み・書き込み回数の
+ * メッセージあたりの値を出力する．深さが 1 の場合が，応答を待ってから次の要求を送る従来の方法に当たる．
+ */
+public class FramedExperiment
+{
+    // クラス変数（定数）：
+    private static final int MEGA_BYTE = 1024 * 1024;
+    
+    // パイプラインの深さの配列
+    private static final int[] DEPTH_ARRAY = { 1, 2, 4, 8, 16, 32, 64, 128, 256 };
+    
+    // 計測前に往復させるメッセージ数(ウォームアップ)
+    private static final int WARMUP_MESSAGES = 20000;
+    
+    /**
+     * パイプライン化の計測実験を実行するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 2) {
+            System.out.println("Parameters: <Message Size> <Messages>");
+            return;
+        }
+        try {
+            // メッセージサイズと，深さ毎に往復させるメッセージ数を引数から取得する．
+            int msgSize     = Integer.parseInt(args[0]);
+            int numMessages = Integer.parseInt(args[1]);
+            
+            // コンソールへのログ出力用のインスタンスを生成する．
+            ConsoleLogger clog = new ConsoleLogger();
+            
+            // ファイルへのログ出力用のインスタンスを，結果用とサーバ用に生成する．
+            long       now_ms = System.currentTimeMillis();
+            FileLogger flog   = new FileLogger(String.format("framed_%d.txt", now_ms));
+            FileLogger slog   = new FileLogger(String.format("framed_server_%d.txt", now_ms));
+            // IOException
+            
+            // 実験用のインスタンスを生成し，実験を実行する．
+            FramedExperiment experiment = new FramedExperiment(
+                msgSize, numMessages, clog, flog, slog
+            );
+            experiment.execute();
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    // インスタンス変数：
+    private final int           msgSize;        // メッセージ(ペイロード)のサイズ
+    private final int           numMessages;    // 深さ毎に往復させるメッセージ数
+    private final ConsoleLogger clog;           // コンソールへの出力用 Logger
+    private final FileLogger    flog;           // 結果のファイルへの出力用 Logger
+    private final FileLogger    slog;           // サーバのログのファイルへの出力用 Logger
+    
+    /**
+     * FramedExperiment のインスタンスを生成する．
+     */
+    FramedExperiment(
+        int msgSize, int numMessages, ConsoleLogger clog, FileLogger flog, FileLogger slog
+    )
+    {
+        this.msgSize = msgSize;
+        this.numMessages = numMessages;
+        this.clog = clog;
+        this.flog = flog;
+        this.slog = slog;
+    }
+    
+    /**
+     * サーバを起動し，パイプラインの深さ毎に計測して結果を出力する．
+     */
+    void execute()
+        throws Exception
+    {
+        // ループバックアドレスの空いているポートで待ち受けるチャネルを生成し，
+        // デーモンスレッドでサーバのディスパッチ処理を開始する．
+        FramedChannelProtocolFactory factory  = new FramedChannelProtocolFactory();
+        ServerSocketChannel          servChan = ServerSocketChannel.open();
+        servChan.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread server = new Thread(
+            () -> new SelectorDispatcher().startDispatching(servChan, factory, this.slog)
+        );
+        server.setDaemon(true);
+        server.start();
+        String servAddr = InetAddress.getLoopbackAddress().getHostAddress();
+        int    servPort = servChan.socket().getLocalPort();
+        
+        // ウォームアップを行う．
+        new FramedClient(servAddr, servPort, this.msgSize, 16).exchange(WARMUP_MESSAGES);
+        
+        this.flog.printf(
+            "depth\tmsg_size\tmsgs_per_sec\tMB_per_sec\tp50_us\tp99_us"
+                + "\tclient_writes_per_msg\tserver_reads_per_msg\tserver_writes_per_msg\n"
+        );
+        for (int depth : DEPTH_ARRAY) {
+            measure(factory, servAddr, servPort, depth);
+        }
+        this.flog.close();
+        this.slog.close();
+    }
+    
+    /**
+     * 1つのパイプラインの深さについてメッセージを往復させ，結果を出力する．
+     */
+    private void measure(
+        FramedChannelProtocolFactory factory, String servAddr, int servPort, int depth
+    )
+        throws Exception
+    {
+        // サーバ側の統計情報は全コネクションの累計のため，開始時点の値との差を求める．
+        long startFrames = factory.getFrames();
+        long startReads  = factory.getReads();
+        long startWrites = factory.getWrites();
+        
+        FramedClient client     = new FramedClient(servAddr, servPort, this.msgSize, depth);
+        long         elapsed_ns = client.exchange(this.numMessages);
+        // IOException, InterruptedException
+        
+        // サーバがコネクションの終了を処理し終えるのを待たずに，往復したメッセージ数で割る．
+        double frames       = Math.max(1, factory.getFrames() - startFrames);
+        double readsPerMsg  = (factory.getReads() - startReads) / frames;
+        double writesPerMsg = (factory.getWrites() - startWrites) / frames;
+        double clientWrites = (double)client.getWriteCount() / this.numMessages;
+        double msgsPerSec   = this.numMessages / (elapsed_ns / 1e9);
+        double mbps         = msgsPerSec * this.msgSize / MEGA_BYTE;
+        
+        // 百分位数はバケットの上限値となるため，最大値を超えないようにする．
+        LogLinearHistogram rtts = client.getRoundTripTimes();
+        double max = rtts.getMax() / 1000.0;
+        double p50 = Math.min(rtts.getPercentile(0.50) / 1000.0, max);
+        double p99 = Math.min(rtts.getPercentile(0.99) / 1000.0, max);
+        this.clog.printf(
+            "深さ %3d，%,7d バイト：%,11.0f 回/s，%,9.2f MB/s，往復時間 p50 %,9.1fμs p99 %,9.1fμs，"
+                + "メッセージあたり 送信 %.3f 回 サーバ読込 %.3f 回 サーバ書込 %.3f 回\n",
+            depth, this.msgSize, msgsPerSec, mbps, p50, p99, clientWrites, readsPerMsg, writesPerMsg
+        );
+        this.flog.printf(
+            "%d\t%d\t%.0f\t%.2f\t%.1f\t%.1f\t%.3f\t%.3f\t%.3f\n",
+            depth, this.msgSize, msgsPerSec, mbps, p50, p99, clientWrites, readsPerMsg, writesPerMsg
+        );
+    }
+}
@@ -0,0 +1,157 @@
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 多数の期限を一定の刻み(ティック)単位で管理する，ハッシュ化したタイミングホイールの実装
+ * <p>
+ * ホイールはティック数が2のべき乗のバケットの配列で，各エントリは期限のティック数に
+ * 対応するバケットの連結リストに入る．ホイールを1周以上先の期限は，残りの周回数を持たせて
+ * 同じバケットに入れる．そのため，エントリの追加と，1ティック分の進行時の判定は，
+ * 管理するエントリ数に依らず O(1)(バケット内のエントリ数に比例)で済む．
+ * <p>
+ * エントリの期限は，登録後に延長されても入れ直さない．バケットに到達した時点で
+ * nextDeadline で期限を問い合わせ，まだ来ていなければその期限のバケットへ入れ直す．
+ * このため，入出力の度に期限を延長する処理は，エントリのフィールドへの書き込みだけで済む．
+ * <p>
+ * schedule はどのスレッドからも呼び出せる．advance は1つのスレッドだけが呼び出すこと．
+ * エントリの期限切れの処理(expire)も，advance を呼び出したスレッドで実行される．
+ */
+class HashedTimingWheel
+{
+    /**
+     * ホイールに登録するエントリ
+     */
+    abstract static class Entry
+    {
+        // ホイールが管理する値(advance を呼び出すスレッドのみが参照・更新する)：
+        private Entry next   = null;    // 同じバケット内の次のエントリ
+        private long  rounds = 0;       // 期限のバケットに到達するまでの残りの周回数
+        
+        /**
+         * 現在時刻(ns)から見た次の期限(ns)を返す．
+         */
+        abstract long nextDeadline(long now_ns);
+        
+        /**
+         * 登録を取り消したか否かを返す．取り消したエントリは，次にバケットに到達した時点で外す．
+         */
+        abstract boolean isCancelled();
+        
+        /**
+         * 期限が切れた時に1度だけ呼び出される．
+         */
+        abstract void expire(long now_ns);
+    }
+    
+    // インスタンス変数：
+    private final long         tick_ns;         // 1ティックの長さ(ns)
+    private final Entry[]      buckets;         // バケット毎の連結リストの先頭
+    private final int          mask;            // ティック数からバケットの位置を求めるためのマスク
+    private final long         startTime_ns;    // ホイールの基準時刻(ns)
+    private final Queue<Entry> pendingQueue;    // 登録待ちのエントリ
+    
+    private long tickCount = 0;     // 次に処理するティック数
+    
+    /**
+     * 1ティックの長さ(ms)とバケット数を指定して HashedTimingWheel のインスタンスを生成する．
+     * バケット数は2のべき乗に切り上げる．
+     */
+    HashedTimingWheel(long tick_ms, int wheelSize)
+    {
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tick_ns = Math.max(1, tick_ms) * 1000000;
+        this.buckets = new Entry[size];
+        this.mask = size - 1;
+        this.startTime_ns = System.nanoTime();
+        this.pendingQueue = new ConcurrentLinkedQueue<Entry>();
+    }
+    
+    /**
+     * 1ティックの長さ(ms)を返す．
+     */
+    long getTick_ms()
+    {
+        return this.tick_ns / 1000000;
+    }
+    
+    /**
+     * エントリを登録する．実際にバケットへ入れるのは，次の advance の呼び出し時となる．
+     */
+    void schedule(Entry entry)
+    {
+        this.pendingQueue.add(entry);
+    }
+    
+    /**
+     * 指定された時刻(ns)までのティックを処理する．
+     * 到達したバケットのエントリ毎に，期限が切れていれば expire を呼び出し，
+     * 期限が延長されていれば入れ直す．
+     */
+    void advance(long now_ns)
+    {
+        // 登録待ちのエントリを，それぞれの期限のバケットへ入れる．
+        Entry entry;
+        while ((entry = this.pendingQueue.poll()) != null) {
+            insert(entry, entry.nextDeadline(now_ns));
+        }
+        // 指定された時刻までのティックのバケットを順に処理する．
+        long lastTick = (now_ns - this.startTime_ns) / this.tick_ns;
+        while (this.tickCount <= lastTick) {
+            int index = (int)(this.tickCount & this.mask);
+            this.tickCount++;
+            expireBucket(index, now_ns);
+        }
+    }
+    
+    /**
+     * 1つのバケットのエントリを処理する．
+     */
+    private void expireBucket(int index, long now_ns)
+    {
+        // バケットを空にしてから走査する．入れ直すエントリは同じバケットに入り得る．
+        Entry entry = this.buckets[index];
+        this.buckets[index] = null;
+        while (entry != null) {
+            Entry next = entry.next;
+            entry.next = null;
+            if (entry.isCancelled()) {
+                // 取り消されたエントリは外す．
+                ;
+            }
+            else if (entry.rounds > 0) {
+                // まだ期限の周回に達していない．
+                entry.rounds--;
+                entry.next = this.buckets[index];
+                this.buckets[index] = entry;
+            }
+            else {
+                // 期限を問い合わせ，切れていれば期限切れの処理を，
+                // 延長されていれば延長後の期限のバケットへ入れ直す．
+                long deadline_ns = entry.nextDeadline(now_ns);
+                if (deadline_ns - now_ns <= 0) {
+                    entry.expire(now_ns);
+                }
+                else {
+                    insert(entry, deadline_ns);
+                }
+            }
+            entry = next;
+        }
+    }
+    
+    /**
+     * エントリを期限(ns)のティックに対応するバケットへ入れる．
+     * 既に処理したティックの期限は，次に処理するティックとして扱う．
+     */
+    private void insert(Entry entry, long deadline_ns)
+    {
+        long ticks = (deadline_ns - this.startTime_ns + this.tick_ns - 1) / this.tick_ns;
+        ticks = Math.max(ticks, this.tickCount);
+        
+        int index = (int)(ticks & this.mask);
+        entry.rounds = (ticks - this.tickCount) / this.buckets.length;
+        entry.next = this.buckets[index];
+        this.buckets[index] = entry;
+    }
+}
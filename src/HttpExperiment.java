@@ -0,0 +1,315 @@
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP/1.1 の持続的なコネクションで，ThreadPoolDispatcher と ThreadPerConnectionDispatcher の
+ * 要求の処理速度と応答時間を比較する実験
+ * <p>
+ * ディスパッチャ毎に HttpProtocolFactory を用いるサーバを同じプロセス内で起動し，
+ * 指定された数のコネクションを計測の前に全て確立し，それぞれ1つのクライアントのスレッドで持続する．
+ * 各スレッドは，指定された数の GET 要求をパイプライン化して1度に送信し，全ての応答を
+ * 受信するまでの時間(バッチの応答時間)を期限まで繰り返し記録する．
+ * ディスパッチャはコネクション毎にスレッドを割り当てるため，ThreadPoolDispatcher では
+ * 最大スレッド数を超えるコネクションは，他のコネクションが閉じられるまで処理されない．
+ * 計測時間内に1度でも応答を受信したコネクションの数も出力する．
+ * <p>
+ * ディスパッチャ毎のスレッドの生成と JIT コンパイルの影響を除くため，全てのディスパッチャを
+ * 1度ずつ計測してから，もう1度計測した結果を出力する．最初の WARMUP_MS は計測から除く．
+ */
+public class HttpExperiment
+{
+    // クラス変数（定数）：
+    private static final long WARMUP_MS   = 1000;   // 計測から除く最初の時間(ms)
+    private static final int  HEADER_SIZE = 1024;   // 応答の状態行とヘッダの最大サイズ
+    
+    // クライアントが送信する要求
+    private static final byte[] REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"
+        .getBytes(StandardCharsets.US_ASCII);
+    
+    // 応答の本体のサイズを示すヘッダ
+    private static final byte[] CONTENT_LENGTH = "Content-Length: "
+        .getBytes(StandardCharsets.US_ASCII);
+    
+    /**
+     * HTTP のディスパッチャの比較実験を実行するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 3) {
+            System.out.println("Parameters: <Seconds> <Connections> <Pipeline Depth>");
+            return;
+        }
+        try {
+            // 1回の計測の時間，コネクション数，パイプライン化する要求の数を引数から取得する．
+            long duration_ms    = Long.parseLong(args[0]) * 1000;
+            int  numConnections = Integer.parseInt(args[1]);
+            int  pipelineDepth  = Integer.parseInt(args[2]);
+            
+            // コンソールへのログ出力用のインスタンスを生成する．
+            ConsoleLogger clog = new ConsoleLogger();
+            
+            // ファイルへのログ出力用のインスタンスを，結果用とサーバ用に生成する．
+            long       now_ms = System.currentTimeMillis();
+            FileLogger flog   = new FileLogger(String.format("http_%d.txt", now_ms));
+            FileLogger slog   = new FileLogger(String.format("http_server_%d.txt", now_ms));
+            // IOException
+            
+            // 実験用のインスタンスを生成し，実験を実行する．
+            HttpExperiment experiment = new HttpExperiment(
+                duration_ms, numConnections, pipelineDepth, clog, flog, slog
+            );
+            experiment.execute();
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+        // ThreadPoolDispatcher のスレッドプールのスレッドはデーモンスレッドではないため，
+        // 明示的に終了する．
+        System.exit(0);
+    }
+    
+    // インスタンス変数：
+    private final long          duration_ms;    // 1回の計測の時間(ms)
+    private final int           numConnections; // クライアントのコネクション数
+    private final int           pipelineDepth;  // 1度に送信する要求の数
+    private final ConsoleLogger clog;           // コンソールへの出力用 Logger
+    private final FileLogger    flog;           // 結果のファイルへの出力用 Logger
+    private final FileLogger    slog;           // サーバのログのファイルへの出力用 Logger
+    private final InetAddress   servAddr;       // サーバのアドレス(ループバックアドレス)
+    
+    /**
+     * HttpExperiment のインスタンスを生成する．
+     */
+    HttpExperiment(
+        long duration_ms, int numConnections, int pipelineDepth,
+        ConsoleLogger clog, FileLogger flog, FileLogger slog
+    )
+    {
+        this.duration_ms = duration_ms;
+        this.numConnections = numConnections;
+        this.pipelineDepth = Math.max(1, pipelineDepth);
+        this.clog = clog;
+        this.flog = flog;
+        this.slog = slog;
+        this.servAddr = InetAddress.getLoopbackAddress();
+    }
+    
+    /**
+     * ディスパッチャ毎にサーバを起動して計測し，結果を出力する．
+     */
+    void execute()
+        throws Exception
+    {
+        this.clog.printf(
+            "計測時間：%d 秒，コネクション数：%d，パイプライン：%d\n",
+            this.duration_ms / 1000, this.numConnections, this.pipelineDepth
+        );
+        this.flog.printf(
+            "dispatcher\tconnections\tdepth\treqs_per_sec\tbatch_p50_us\tbatch_p99_us"
+                + "\tbatch_max_us\tserved_connections\n"
+        );
+        for (boolean isReported : new boolean[] { false, true }) {
+            // ThreadPoolDispatcher のスレッド数の範囲と目標値は，システムプロパティで指定できる．
+            measure(
+                "ThreadPool",
+                new ThreadPoolDispatcher(
+                    Integer.getInteger("ThreadPoolDispatcher.minThreads", 8),
+                    Integer.getInteger("ThreadPoolDispatcher.maxThreads", 256),
+                    Integer.getInteger("ThreadPoolDispatcher.targetLatencyMs", 10),
+                    Integer.getInteger("ThreadPoolDispatcher.targetQueueDepth", 4),
+                    Integer.getInteger("ThreadPoolDispatcher.window", 8),
+                    ConnectionTimeouts.disabled()
+                ),
+                isReported
+            );
+            measure(
+                "ThreadPerConnection",
+                new ThreadPerConnectionDispatcher(ConnectionTimeouts.disabled()),
+                isReported
+            );
+        }
+        this.flog.close();
+        this.slog.close();
+    }
+    
+    /**
+     * ディスパッチャによるサーバを起動し，クライアントのスレッドで期限まで要求を繰り返して，
+     * 結果を出力する場合は出力する．
+     */
+    private void measure(String name, Dispatcher dispatcher, boolean isReported)
+        throws Exception
+    {
+        // ループバックアドレスの空いているポートで待ち受けるソケットを生成し，
+        // デーモンスレッドでサーバのディスパッチ処理を開始する．
+        HttpProtocolFactory factory  = new HttpProtocolFactory(
+            Integer.getInteger("HttpProtocolFactory.bodySize", 64),
+            Integer.getInteger("HttpProtocolFactory.maxHeaderSize", 8192),
+            TrafficShaper.disabled()
+        );
+        ServerSocket        servSock = new ServerSocket();
+        servSock.bind(new InetSocketAddress(this.servAddr, 0), this.numConnections);
+        Thread server = new Thread(
+            () -> dispatcher.startDispatching(servSock, factory, this.slog)
+        );
+        server.setDaemon(true);
+        server.start();
+        
+        // 全てのコネクションを先に確立しておき，確立の待ち時間を計測に含めない．
+        // バックログはコネクション数としたため，ディスパッチャが受け付ける前でも確立できる．
+        List<Socket> sockets = new ArrayList<Socket>();
+        for (int i = 0; i < this.numConnections; i++) {
+            sockets.add(new Socket(this.servAddr, servSock.getLocalPort()));
+        }
+        long               deadline_ns = System.nanoTime() + this.duration_ms * 1000000;
+        long               warmup_ns   = System.nanoTime() + WARMUP_MS * 1000000;
+        LongAdder          numRequests = new LongAdder();
+        LongAdder          numServed   = new LongAdder();
+        LogLinearHistogram batches     = new LogLinearHistogram();
+        
+        // コネクション毎にクライアントのスレッドを開始する．
+        List<Thread> threads = new ArrayList<Thread>();
+        for (Socket socket : sockets) {
+            Thread thread = new Thread(
+                () -> request(socket, warmup_ns, deadline_ns, numRequests, numServed, batches)
+            );
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!isReported) {
+            return;
+        }
+        // 計測から除いた時間を差し引いて，1秒あたりの要求の数を求める．
+        double measured_sec = (this.duration_ms - WARMUP_MS) / 1000.0;
+        double reqs_per_sec = numRequests.sum() / measured_sec;
+        
+        // 百分位数はバケットの上限値となるため，最大値を超えないようにする．
+        double max = batches.getMax() / 1000.0;
+        double p50 = Math.min(batches.getPercentile(0.50) / 1000.0, max);
+        double p99 = Math.min(batches.getPercentile(0.99) / 1000.0, max);
+        this.clog.printf(
+            "%-19s：%,10.0f req/s，バッチ p50 %,10.1fμs p99 %,11.1fμs max %,12.1fμs，"
+                + "応答を受信したコネクション %,d / %,d\n",
+            name, reqs_per_sec, p50, p99, max, numServed.sum(), this.numConnections
+        );
+        this.flog.printf(
+            "%s\t%d\t%d\t%.0f\t%.1f\t%.1f\t%.1f\t%d\n",
+            name, this.numConnections, this.pipelineDepth, reqs_per_sec, p50, p99, max,
+            numServed.sum()
+        );
+    }
+    
+    /**
+     * 確立したコネクションで，パイプライン化した要求の送信と応答の受信を期限まで繰り返し，
+     * 終えたらコネクションを閉じる．
+     * 計測開始後に送信し，期限までに全ての応答を受信したバッチについて，
+     * 要求の数とバッチの応答時間を記録する．
+     */
+    private void request(
+        Socket clntSock, long warmup_ns, long deadline_ns,
+        LongAdder numRequests, LongAdder numServed, LogLinearHistogram batches
+    )
+    {
+        // パイプライン化する要求を連結しておく．
+        byte[] batch = new byte[REQUEST.length * this.pipelineDepth];
+        for (int i = 0; i < this.pipelineDepth; i++) {
+            System.arraycopy(REQUEST, 0, batch, REQUEST.length * i, REQUEST.length);
+        }
+        byte[]  header   = new byte[HEADER_SIZE];
+        boolean isServed = false;
+        try (Socket socket = clntSock) {
+            socket.setTcpNoDelay(true);
+            InputStream  in  = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (System.nanoTime() < deadline_ns) {
+                long startTime_ns = System.nanoTime();
+                out.write(batch);
+                for (int i = 0; i < this.pipelineDepth; i++) {
+                    receiveResponse(in, header);
+                }
+                long endTime_ns = System.nanoTime();
+                if ((startTime_ns >= warmup_ns) && (endTime_ns < deadline_ns)) {
+                    numRequests.add(this.pipelineDepth);
+                    batches.record(endTime_ns - startTime_ns);
+                    isServed = true;
+                }
+            }
+        }
+        catch (IOException ex) {
+            this.clog.printf("例外発生：%s\n", ex.getMessage());
+        }
+        if (isServed) {
+            numServed.increment();
+        }
+    }
+    
+    /**
+     * 応答を1つ受信する．状態行とヘッダを空行まで受信し，
+     * Content-Length の値のバイト数の本体を読み飛ばす．
+     */
+    private static void receiveResponse(InputStream in, byte[] header)
+        throws IOException
+    {
+        // 空行(CRLF CRLF)まで受信する．
+        int length = 0;
+        while ((length < 4) || (header[length - 1] != '\n') || (header[length - 3] != '\n')) {
+            int b = in.read();
+            if (b == -1) {
+                throw new IOException("サーバがコネクションを切断しました．");
+            }
+            if (length == header.length) {
+                throw new IOException("応答のヘッダが大き過ぎます．");
+            }
+            header[length++] = (byte)b;
+        }
+        // 本体のサイズを求め，読み飛ばす．
+        long bodySize = 0;
+        int  index    = indexOf(header, length, CONTENT_LENGTH);
+        if (index >= 0) {
+            for (int i = index + CONTENT_LENGTH.length; header[i] != '\r'; i++) {
+                bodySize = bodySize * 10 + (header[i] - '0');
+            }
+        }
+        while (bodySize > 0) {
+            long skipped = in.skip(bodySize);
+            if ((skipped == 0) && (in.read() == -1)) {
+                throw new IOException("サーバが本体の途中でコネクションを切断しました．");
+            }
+            bodySize -= Math.max(1, skipped);
+        }
+    }
+    
+    /**
+     * バイト列の length の直前までで，target が最初に現れる位置を返す．
+     * 現れなければ -1 を返す．
+     */
+    private static int indexOf(byte[] bytes, int length, byte[] target)
+    {
+        for (int i = 0; i <= length - target.length; i++) {
+            int j = 0;
+            while ((j < target.length) && (bytes[i + j] == target[j])) {
+                j++;
+            }
+            if (j == target.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,768 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HttpProtocol のインスタンスを生成するためのファクトリ
+ * <p>
+ * 汎用の HTTP 負荷生成ツールでディスパッチャを計測できるよう，HTTP/1.1 の最小限の機能を
+ * ブロッキング入出力で実装する．任意のディスパッチャ(Dispatcher)で用いることができる．
+ * 要求のパスは区別せず，GET・HEAD には固定の本体を返し，本体を持つ要求(POST・PUT など)は
+ * UploadProtocol と同じく受信したデータを破棄し，受信したバイト数を本体として返す．
+ * 本体は Content-Length とチャンク形式(Transfer-Encoding: chunked)のどちらでも受信できる．
+ * <p>
+ * 下記のシステムプロパティで，応答の本体のサイズと要求ヘッダの最大サイズを指定できる．
+ * <ul>
+ * <li>HttpProtocolFactory.bodySize：GET に返す本体のサイズ(既定値は 64)
+ * <li>HttpProtocolFactory.maxHeaderSize：要求行とヘッダの最大サイズ(既定値は 8192)
+ * </ul>
+ * 送受信は TrafficShaper による帯域制限に通す．
+ */
+public class HttpProtocolFactory
+    implements
+        ProtocolFactory
+{
+    // インスタンス変数：
+    private final byte[]        body;           // GET に返す本体
+    private final int           maxHeaderSize;  // 要求行とヘッダの最大サイズ
+    private final TrafficShaper shaper;         // 帯域制限の設定
+    
+    // 統計情報：
+    private final LongAdder numRequests = new LongAdder();  // 処理した要求の数
+    private final LongAdder uploadBytes = new LongAdder();  // 受信した本体のバイト数
+    
+    /**
+     * システムプロパティの設定値で HttpProtocolFactory のインスタンスを生成する．
+     */
+    public HttpProtocolFactory()
+    {
+        this(
+            Integer.getInteger("HttpProtocolFactory.bodySize", 64),
+            Integer.getInteger("HttpProtocolFactory.maxHeaderSize", 8192),
+            TrafficShaper.getInstance()
+        );
+    }
+    
+    /**
+     * GET に返す本体のサイズと要求ヘッダの最大サイズ，帯域制限を指定して
+     * HttpProtocolFactory のインスタンスを生成する．
+     */
+    HttpProtocolFactory(int bodySize, int maxHeaderSize, TrafficShaper shaper)
+    {
+        // 本体は英小文字を繰り返し，改行で終える．
+        this.body = new byte[Math.max(0, bodySize)];
+        for (int i = 0; i < this.body.length; i++) {
+            this.body[i] = (byte)('a' + (i % 26));
+        }
+        if (this.body.length > 0) {
+            this.body[this.body.length - 1] = '\n';
+        }
+        this.maxHeaderSize = Math.max(256, maxHeaderSize);
+        this.shaper = shaper;
+    }
+    
+    /**
+     * HttpProtocol のインスタンスを生成し，Runnable インターフェースとして返す．
+     */
+    @Override
+    public Runnable createProtocol(Socket clntSock, Logger logger)
+    {
+        return new HttpProtocol(clntSock, logger, this, this.shaper);
+    }
+    
+    /**
+     * 処理した要求と，受信した本体のバイト数を記録する．
+     */
+    void record(long bodyBytes)
+    {
+        this.numRequests.increment();
+        this.uploadBytes.add(bodyBytes);
+    }
+    
+    /**
+     * GET に返す本体を返す．内容を変更しないこと．
+     */
+    byte[] getBody()
+    {
+        return this.body;
+    }
+    
+    /**
+     * 要求行とヘッダの最大サイズを返す．
+     */
+    int getMaxHeaderSize()
+    {
+        return this.maxHeaderSize;
+    }
+    
+    /**
+     * 処理した要求の数の累計を返す．
+     */
+    long getRequestCount()
+    {
+        return this.numRequests.sum();
+    }
+    
+    /**
+     * 受信した本体のバイト数の累計を返す．
+     */
+    long getUploadBytes()
+    {
+        return this.uploadBytes.sum();
+    }
+}
+
+/**
+ * HTTP/1.1 の要求を処理するサーバ側の機能の実装
+ * <p>
+ * コネクションを持続し(HTTP/1.0 では Connection: keep-alive の場合のみ)，
+ * 要求を順に処理する．パイプライン化された要求の応答は送信バッファに溜め，
+ * 受信済みの要求を処理し終えて次の受信を待つ前にまとめて送信する．
+ * <p>
+ * 要求行とヘッダは，コネクション毎にプールから借りた受信バッファの上で
+ * 位置だけを求めて解析し，要求毎に文字列などのオブジェクトを生成しない．
+ * ヘッダは Content-Length・Transfer-Encoding・Connection・Expect だけを解釈する．
+ * Connection は値全体が close か keep-alive の場合のみ解釈する．
+ * 不正な要求には 400 を(ヘッダが大き過ぎる場合は 431，chunked 以外の転送符号化には 501，
+ * HTTP/1.x 以外には 505 を)返してコネクションを閉じる．
+ * 持続したコネクションの待機時間は，ディスパッチャの ConnectionTimeouts で制限する．
+ */
+class HttpProtocol
+    implements
+        Runnable
+{
+    // クラス変数（定数）：
+    static private final int BUF_SIZE = 16384;  // 送受信バッファサイズ
+    static private final int MAX_DIGITS = 20;   // long の10進数の最大桁数
+    
+    static private final byte CR = '\r';
+    static private final byte LF = '\n';
+    
+    static private final byte[] CRLF       = ascii("\r\n");
+    static private final byte[] BLANK_LINE = ascii("\r\n\r\n");
+    
+    // 要求メソッド
+    static private final byte[] GET  = ascii("GET");
+    static private final byte[] HEAD = ascii("HEAD");
+    static private final byte[] POST = ascii("POST");
+    static private final byte[] PUT  = ascii("PUT");
+    
+    // 解釈するヘッダ名(小文字)と値(小文字)
+    static private final byte[] CONTENT_LENGTH    = ascii("content-length");
+    static private final byte[] TRANSFER_ENCODING = ascii("transfer-encoding");
+    static private final byte[] CONNECTION        = ascii("connection");
+    static private final byte[] EXPECT            = ascii("expect");
+    static private final byte[] CHUNKED           = ascii("chunked");
+    static private final byte[] CLOSE             = ascii("close");
+    static private final byte[] KEEP_ALIVE        = ascii("keep-alive");
+    static private final byte[] CONTINUE          = ascii("100-continue");
+    static private final byte[] HTTP_1_           = ascii("HTTP/1.");
+    static private final byte[] HTTP_             = ascii("HTTP/");
+    
+    // 応答の状態行とヘッダ
+    static private final byte[] STATUS_100 = ascii("HTTP/1.1 100 Continue\r\n\r\n");
+    static private final byte[] STATUS_200 = ascii("HTTP/1.1 200 OK\r\n");
+    static private final byte[] STATUS_400 = ascii("HTTP/1.1 400 Bad Request\r\n");
+    static private final byte[] STATUS_405 = ascii("HTTP/1.1 405 Method Not Allowed\r\n");
+    static private final byte[] STATUS_431 =
+        ascii("HTTP/1.1 431 Request Header Fields Too Large\r\n");
+    static private final byte[] STATUS_501 = ascii("HTTP/1.1 501 Not Implemented\r\n");
+    static private final byte[] STATUS_505 = ascii("HTTP/1.1 505 HTTP Version Not Supported\r\n");
+    
+    static private final byte[] CONTENT_TYPE_HEADER   = ascii("Content-Type: text/plain\r\n");
+    static private final byte[] CONTENT_LENGTH_HEADER = ascii("Content-Length: ");
+    static private final byte[] ALLOW_HEADER          = ascii("Allow: GET, HEAD, POST, PUT\r\n");
+    static private final byte[] CLOSE_HEADER          = ascii("Connection: close\r\n");
+    static private final byte[] KEEP_ALIVE_HEADER     = ascii("Connection: keep-alive\r\n");
+    
+    /**
+     * 文字列を US-ASCII のバイト列に変換する．
+     */
+    static private byte[] ascii(String text)
+    {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+    
+    // インスタンス変数：
+    private final Socket              clntSock; // クライアントと通信するためのソケット
+    private final Logger              logger;   // ログ出力用の Logger インスタンス
+    private final HttpProtocolFactory factory;  // 応答の本体と統計情報の記録先
+    private final TrafficShaper       shaper;   // 帯域制限の設定
+    private final ServerMetrics       metrics;  // 送受信したバイト数の記録先
+    
+    private InputStream  in;                // 入力ストリーム
+    private OutputStream out;               // 出力ストリーム
+    private byte[]       recvBuffer;        // 受信バッファ
+    private byte[]       sendBuffer;        // 送信バッファ
+    private int          start      = 0;    // 受信バッファの未処理のデータの開始位置
+    private int          end        = 0;    // 受信バッファの未処理のデータの終了位置
+    private int          sendLength = 0;    // 送信バッファに溜めた応答のバイト数
+    
+    // 解析中の要求：
+    private long    contentLength   = -1;       // Content-Length の値(無ければ -1)
+    private boolean isChunked       = false;    // チャンク形式の本体か否か
+    private boolean isClose         = false;    // Connection: close か否か
+    private boolean isKeepAlive     = false;    // Connection: keep-alive か否か
+    private boolean expectsContinue = false;    // Expect: 100-continue か否か
+    
+    /**
+     * HttpProtocol のインスタンスを生成する．
+     */
+    HttpProtocol(
+        Socket clntSock, Logger logger, HttpProtocolFactory factory, TrafficShaper shaper
+    )
+    {
+        this.clntSock = clntSock;
+        this.logger = logger;
+        this.factory = factory;
+        this.shaper = shaper;
+        this.metrics = ServerMetrics.getInstance();
+    }
+    
+    /**
+     * コネクションを持続しない要求か，クライアントが切断するまで要求を処理する．
+     */
+    @Override
+    public void run()
+    {
+        // 送受信バッファをプールから借りる．
+        // 受信バッファは，要求行とヘッダの最大サイズ以上とする．
+        int        recvSize = Math.max(BUF_SIZE, this.factory.getMaxHeaderSize());
+        ByteBuffer recv     = BufferPool.getHeapInstance().acquire(recvSize);
+        ByteBuffer send     = BufferPool.getHeapInstance().acquire(BUF_SIZE);
+        this.recvBuffer = recv.array();
+        this.sendBuffer = send.array();
+        
+        // このコネクションの帯域制限を開始する．
+        ConnectionShaper shaping = this.shaper.open(this.clntSock);
+        try {
+            // 応答をまとめて送信するため，Nagle アルゴリズムによる遅れは不要である．
+            this.clntSock.setTcpNoDelay(true);
+            this.in = shaping.wrap(this.clntSock.getInputStream());
+            this.out = shaping.wrap(this.clntSock.getOutputStream());
+            // IOException
+            
+            while (handleRequest()) {
+                ;
+            }
+            flush();
+        }
+        catch (IOException ex) {
+            this.logger.printf("例外発生：%s\n", ex.getMessage());
+        }
+        finally {
+            try {
+                // ソケットを閉じる．
+                this.clntSock.close();
+                // IOException
+            }
+            catch (IOException ex) {
+                this.logger.printf("例外発生：%s\n", ex.getMessage());
+            }
+            // 送受信バッファをプールへ返し，帯域制限を終える．
+            BufferPool.getHeapInstance().release(recv);
+            BufferPool.getHeapInstance().release(send);
+            shaping.close();
+        }
+    }
+    
+    /**
+     * 要求を1つ受信して処理し，応答を送信バッファに書き込む．
+     * コネクションを持続する場合は true を，閉じる場合は false を返す．
+     */
+    private boolean handleRequest()
+        throws IOException
+    {
+        // 要求の前の空行を読み飛ばし，要求の先頭を受信する．
+        // 要求の間でクライアントが切断した場合は，正常に終える．
+        while (true) {
+            while ((this.start < this.end) && isLineBreak(this.recvBuffer[this.start])) {
+                this.start++;
+            }
+            if (this.start < this.end) {
+                break;
+            }
+            if (!fill()) {
+                return false;
+            }
+        }
+        // ヘッダの終わりの空行まで受信する．
+        // 1回の受信で最大サイズを超えて受信した場合も，超えたものとする．
+        int headerEnd = receiveUntil(BLANK_LINE);
+        if ((headerEnd < 0) || (headerEnd - this.start > this.factory.getMaxHeaderSize())) {
+            return sendError(STATUS_431);
+        }
+        headerEnd += BLANK_LINE.length;
+        
+        // 要求行を メソッド SP 対象 SP バージョン に分ける．
+        int lineEnd = indexOf(CRLF, this.start, headerEnd);
+        int space1  = indexOf(' ', this.start, lineEnd);
+        int space2  = (space1 < 0) ? -1 : indexOf(' ', space1 + 1, lineEnd);
+        if ((space1 <= this.start) || (space2 <= space1 + 1)) {
+            return sendError(STATUS_400);
+        }
+        int methodStart = this.start;
+        int versionStart = space2 + 1;
+        if ((lineEnd - versionStart != HTTP_1_.length + 1) || !matches(HTTP_1_, versionStart)) {
+            return sendError(matches(HTTP_, versionStart) ? STATUS_505 : STATUS_400);
+        }
+        byte minor = this.recvBuffer[lineEnd - 1];
+        if ((minor != '0') && (minor != '1')) {
+            return sendError(STATUS_505);
+        }
+        boolean isHttp10 = (minor == '0');
+        
+        // ヘッダを解析する．
+        byte[] error = parseHeaders(lineEnd + CRLF.length, headerEnd - CRLF.length);
+        if (error != null) {
+            return sendError(error);
+        }
+        if (this.isChunked && (this.contentLength >= 0)) {
+            return sendError(STATUS_400);
+        }
+        boolean keepAlive = isHttp10 ? this.isKeepAlive : !this.isClose;
+        boolean isGet     = equals(GET, methodStart, space1);
+        boolean isHead    = equals(HEAD, methodStart, space1);
+        boolean isUpload  = equals(POST, methodStart, space1) || equals(PUT, methodStart, space1);
+        this.start = headerEnd;
+        
+        // 本体があれば，受信して破棄する．
+        // クライアントが 100-continue を待っている場合は，先に中間応答を送信する．
+        boolean hasBody = this.isChunked || (this.contentLength > 0);
+        if (hasBody && this.expectsContinue && !isHttp10) {
+            append(STATUS_100, 0, STATUS_100.length);
+            flush();
+        }
+        long bodyBytes = hasBody ? receiveBody() : 0;
+        if (bodyBytes < 0) {
+            return sendError(STATUS_400);
+        }
+        this.factory.record(bodyBytes);
+        
+        // 応答を送信バッファに書き込む．
+        if (isGet || isHead) {
+            byte[] body = this.factory.getBody();
+            appendHeaders(STATUS_200, body.length, isHttp10, keepAlive, null);
+            if (isGet) {
+                append(body, 0, body.length);
+            }
+        }
+        else if (isUpload) {
+            // 受信したバイト数を10進数で返す．
+            appendHeaders(STATUS_200, digitsOf(bodyBytes) + 1, isHttp10, keepAlive, null);
+            appendDecimal(bodyBytes);
+            append(CRLF, 1, 1);
+        }
+        else {
+            appendHeaders(STATUS_405, 0, isHttp10, keepAlive, ALLOW_HEADER);
+        }
+        return keepAlive;
+    }
+    
+    /**
+     * ヘッダの各行(start から end の直前の CRLF まで)を解析し，
+     * 解釈するヘッダの値を記録する．不正なヘッダがあればエラーの応答の状態行を，
+     * 無ければ null を返す．
+     */
+    private byte[] parseHeaders(int start, int end)
+    {
+        this.contentLength = -1;
+        this.isChunked = false;
+        this.isClose = false;
+        this.isKeepAlive = false;
+        this.expectsContinue = false;
+        
+        int lineStart = start;
+        while (lineStart < end) {
+            // 名前: 値 に分け，値の前後の空白を除く．
+            int lineEnd = indexOf(CRLF, lineStart, end + CRLF.length);
+            int colon   = indexOf(':', lineStart, lineEnd);
+            if (colon <= lineStart) {
+                return STATUS_400;
+            }
+            int valueStart = colon + 1;
+            int valueEnd   = lineEnd;
+            while ((valueStart < valueEnd) && isSpace(this.recvBuffer[valueStart])) {
+                valueStart++;
+            }
+            while ((valueEnd > valueStart) && isSpace(this.recvBuffer[valueEnd - 1])) {
+                valueEnd--;
+            }
+            if (equalsIgnoreCase(CONTENT_LENGTH, lineStart, colon)) {
+                if (this.contentLength >= 0) {
+                    return STATUS_400;
+                }
+                this.contentLength = parseDecimal(valueStart, valueEnd);
+                if (this.contentLength < 0) {
+                    return STATUS_400;
+                }
+            }
+            else if (equalsIgnoreCase(TRANSFER_ENCODING, lineStart, colon)) {
+                // chunked 以外の転送符号化には対応しない．
+                if (!equalsIgnoreCase(CHUNKED, valueStart, valueEnd)) {
+                    return STATUS_501;
+                }
+                this.isChunked = true;
+            }
+            else if (equalsIgnoreCase(CONNECTION, lineStart, colon)) {
+                this.isClose |= equalsIgnoreCase(CLOSE, valueStart, valueEnd);
+                this.isKeepAlive |= equalsIgnoreCase(KEEP_ALIVE, valueStart, valueEnd);
+            }
+            else if (equalsIgnoreCase(EXPECT, lineStart, colon)) {
+                this.expectsContinue = equalsIgnoreCase(CONTINUE, valueStart, valueEnd);
+            }
+            lineStart = lineEnd + CRLF.length;
+        }
+        return null;
+    }
+    
+    /**
+     * 本体を受信して破棄し，そのバイト数を返す．チャンク形式が不正な場合は -1 を返す．
+     */
+    private long receiveBody()
+        throws IOException
+    {
+        if (!this.isChunked) {
+            skip(this.contentLength);
+            return this.contentLength;
+        }
+        // チャンクサイズの行(拡張は無視する)，データ，CRLF を，サイズ 0 のチャンクまで繰り返す．
+        long totalBytes = 0;
+        while (true) {
+            int lineEnd = receiveUntil(CRLF);
+            if (lineEnd < 0) {
+                return -1;
+            }
+            long chunkSize = parseHex(this.start, lineEnd);
+            this.start = lineEnd + CRLF.length;
+            if (chunkSize < 0) {
+                return -1;
+            }
+            if (chunkSize == 0) {
+                break;
+            }
+            skip(chunkSize);
+            totalBytes += chunkSize;
+            if (receiveUntil(CRLF) != this.start) {
+                return -1;
+            }
+            this.start += CRLF.length;
+        }
+        // トレーラを空行まで読み飛ばす．
+        while (true) {
+            int lineEnd = receiveUntil(CRLF);
+            if (lineEnd < 0) {
+                return -1;
+            }
+            boolean isBlank = (lineEnd == this.start);
+            this.start = lineEnd + CRLF.length;
+            if (isBlank) {
+                return totalBytes;
+            }
+        }
+    }
+    
+    /**
+     * 受信済みのデータから指定したバイト数を読み飛ばす．足りなければ受信する．
+     */
+    private void skip(long length)
+        throws IOException
+    {
+        long remaining = length;
+        while (remaining > 0) {
+            if ((this.start == this.end) && !fill()) {
+                throw new IOException("クライアントが本体の途中でコネクションを切断しました．");
+            }
+            int skipped = (int)Math.min(remaining, this.end - this.start);
+            this.start += skipped;
+            remaining -= skipped;
+        }
+    }
+    
+    /**
+     * 未処理のデータに区切りのバイト列が現れるまで受信し，区切りの開始位置を返す．
+     * 区切りが現れないまま要求行とヘッダの最大サイズに達した場合は -1 を返す．
+     */
+    private int receiveUntil(byte[] delimiter)
+        throws IOException
+    {
+        int scanned = 0;    // 未処理のデータの先頭から探し終えたバイト数
+        while (true) {
+            int index = indexOf(delimiter, this.start + scanned, this.end);
+            if (index >= 0) {
+                return index;
+            }
+            // 区切りが受信の境界を跨ぐ場合に備え，末尾は次回も探す．
+            scanned = Math.max(0, this.end - this.start - (delimiter.length - 1));
+            if (this.end - this.start >= this.factory.getMaxHeaderSize()) {
+                return -1;
+            }
+            if (!fill()) {
+                throw new IOException("クライアントが要求の途中でコネクションを切断しました．");
+            }
+        }
+    }
+    
+    /**
+     * 溜めた応答を送信してから，未処理のデータを受信バッファの先頭へ詰め，
+     * 後ろの空きに受信する．クライアントが切断した場合は false を返す．
+     */
+    private boolean fill()
+        throws IOException
+    {
+        flush();
+        if (this.start > 0) {
+            this.end -= this.start;
+            System.arraycopy(this.recvBuffer, this.start, this.recvBuffer, 0, this.end);
+            this.start = 0;
+        }
+        int bytesRcvd = this.in.read(this.recvBuffer, this.end, this.recvBuffer.length - this.end);
+        // IOException
+        if (bytesRcvd == -1) {
+            return false;
+        }
+        this.end += bytesRcvd;
+        this.metrics.addBytesIn(bytesRcvd);
+        return true;
+    }
+    
+    /**
+     * 状態行とヘッダ(extra が null でなければ，その追加のヘッダを含む)を送信バッファに書き込む．
+     * HTTP/1.0 でコネクションを持続する場合と，持続しない場合は Connection ヘッダを加える．
+     */
+    private void appendHeaders(
+        byte[] status, long contentLength, boolean isHttp10, boolean keepAlive, byte[] extra
+    )
+        throws IOException
+    {
+        append(status, 0, status.length);
+        append(CONTENT_TYPE_HEADER, 0, CONTENT_TYPE_HEADER.length);
+        append(CONTENT_LENGTH_HEADER, 0, CONTENT_LENGTH_HEADER.length);
+        appendDecimal(contentLength);
+        append(CRLF, 0, CRLF.length);
+        if (extra != null) {
+            append(extra, 0, extra.length);
+        }
+        if (!keepAlive) {
+            append(CLOSE_HEADER, 0, CLOSE_HEADER.length);
+        }
+        else if (isHttp10) {
+            append(KEEP_ALIVE_HEADER, 0, KEEP_ALIVE_HEADER.length);
+        }
+        append(CRLF, 0, CRLF.length);
+    }
+    
+    /**
+     * 本体の無いエラーの応答を送信し，コネクションを閉じるため false を返す．
+     */
+    private boolean sendError(byte[] status)
+        throws IOException
+    {
+        appendHeaders(status, 0, false, false, null);
+        flush();
+        return false;
+    }
+    
+    /**
+     * 送信バッファにバイト列を書き込む．空きが足りなければ溜めた応答を先に送信し，
+     * 送信バッファより大きなバイト列は直接送信する．
+     */
+    private void append(byte[] src, int offset, int length)
+        throws IOException
+    {
+        if (length > this.sendBuffer.length - this.sendLength) {
+            flush();
+        }
+        if (length > this.sendBuffer.length) {
+            this.out.write(src, offset, length);
+            this.out.flush();
+            this.metrics.addBytesOut(length);
+            return;
+        }
+        System.arraycopy(src, offset, this.sendBuffer, this.sendLength, length);
+        this.sendLength += length;
+    }
+    
+    /**
+     * 0 以上の値を10進数で送信バッファに書き込む．
+     */
+    private void appendDecimal(long value)
+        throws IOException
+    {
+        if (MAX_DIGITS > this.sendBuffer.length - this.sendLength) {
+            flush();
+        }
+        int digits = digitsOf(value);
+        for (int i = this.sendLength + digits - 1; i >= this.sendLength; i--) {
+            this.sendBuffer[i] = (byte)('0' + (value % 10));
+            value /= 10;
+        }
+        this.sendLength += digits;
+    }
+    
+    /**
+     * 送信バッファに溜めた応答を送信する．
+     */
+    private void flush()
+        throws IOException
+    {
+        if (this.sendLength == 0) {
+            return;
+        }
+        this.out.write(this.sendBuffer, 0, this.sendLength);
+        this.out.flush();
+        // IOException
+        this.metrics.addBytesOut(this.sendLength);
+        this.sendLength = 0;
+    }
+    
+    /**
+     * 受信バッファの from から to の直前までで，バイト列が最初に現れる位置を返す．
+     * 現れなければ -1 を返す．
+     */
+    private int indexOf(byte[] target, int from, int to)
+    {
+        for (int i = from; i <= to - target.length; i++) {
+            if (matches(target, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * 受信バッファの from から to の直前までで，バイトが最初に現れる位置を返す．
+     * 現れなければ -1 を返す．
+     */
+    private int indexOf(char target, int from, int to)
+    {
+        for (int i = from; i < to; i++) {
+            if (this.recvBuffer[i] == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * 受信バッファの offset からのバイト列が，target で始まるか否かを返す．
+     */
+    private boolean matches(byte[] target, int offset)
+    {
+        if (offset + target.length > this.end) {
+            return false;
+        }
+        for (int i = 0; i < target.length; i++) {
+            if (this.recvBuffer[offset + i] != target[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * 受信バッファの from から to の直前までのバイト列が，target と等しいか否かを返す．
+     */
+    private boolean equals(byte[] target, int from, int to)
+    {
+        return (to - from == target.length) && matches(target, from);
+    }
+    
+    /**
+     * 受信バッファの from から to の直前までのバイト列が，英大文字を小文字として
+     * target(小文字)と等しいか否かを返す．
+     */
+    private boolean equalsIgnoreCase(byte[] target, int from, int to)
+    {
+        if (to - from != target.length) {
+            return false;
+        }
+        for (int i = 0; i < target.length; i++) {
+            byte b = this.recvBuffer[from + i];
+            if ((b >= 'A') && (b <= 'Z')) {
+                b += 'a' - 'A';
+            }
+            if (b != target[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * 受信バッファの from から to の直前までの10進数を値に変換する．
+     * 数字以外を含むか，long で表せない場合は -1 を返す．
+     */
+    private long parseDecimal(int from, int to)
+    {
+        if (from == to) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = this.recvBuffer[i] - '0';
+            if ((digit < 0) || (digit > 9) || (value > (Long.MAX_VALUE - digit) / 10)) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+    
+    /**
+     * 受信バッファの from から to の直前までのチャンクサイズの行を，
+     * チャンク拡張(; か空白以降)を除いて16進数として値に変換する．不正な場合は -1 を返す．
+     */
+    private long parseHex(int from, int to)
+    {
+        long value  = 0;
+        int  digits = 0;
+        for (int i = from; i < to; i++) {
+            byte b = this.recvBuffer[i];
+            if ((b == ';') || isSpace(b)) {
+                break;
+            }
+            int digit = Character.digit(b, 16);
+            if ((digit < 0) || (digits == 15)) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+            digits++;
+        }
+        return (digits > 0) ? value : -1;
+    }
+    
+    /**
+     * 0 以上の値の10進数の桁数を返す．
+     */
+    static private int digitsOf(long value)
+    {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+    
+    /**
+     * 改行文字か否かを返す．
+     */
+    static private boolean isLineBreak(byte b)
+    {
+        return (b == CR) || (b == LF);
+    }
+    
+    /**
+     * ヘッダの値の前後に置ける空白(SP か HTAB)か否かを返す．
+     */
+    static private boolean isSpace(byte b)
+    {
+        return (b == ' ') || (b == '\t');
+    }
+}
@@ -0,0 +1,70 @@
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 待ち時間などの所要時間を記録し，一定期間毎の回数・平均・最大値を求めるためのクラス
+ */
+class LatencyStatistics
+{
+    // インスタンス変数：
+    private final AtomicLong count      = new AtomicLong();    // 記録した回数
+    private final AtomicLong totalNanos = new AtomicLong();    // 所要時間の累計(ns)
+    private final AtomicLong maxNanos   = new AtomicLong();    // 所要時間の最大値(ns)
+    
+    /**
+     * 所要時間を1つ記録する．
+     */
+    void record(long elapsed_ns)
+    {
+        this.count.incrementAndGet();
+        this.totalNanos.addAndGet(elapsed_ns);
+        this.maxNanos.accumulateAndGet(elapsed_ns, Math::max);
+    }
+    
+    /**
+     * 前回の呼び出し以降の記録をまとめて返し，記録をリセットする．
+     */
+    Snapshot take()
+    {
+        return new Snapshot(
+            this.count.getAndSet(0), this.totalNanos.getAndSet(0), this.maxNanos.getAndSet(0)
+        );
+    }
+    
+    /**
+     * 一定期間の記録をまとめたクラス
+     */
+    static class Snapshot
+    {
+        // インスタンス変数：
+        final long count;       // 記録した回数
+        final long totalNanos;  // 所要時間の累計(ns)
+        final long maxNanos;    // 所要時間の最大値(ns)
+        
+        /**
+         * Snapshot のインスタンスを生成する．
+         */
+        Snapshot(long count, long totalNanos, long maxNanos)
+        {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+        
+        /**
+         * 所要時間の平均(ms)を返す．記録が無い場合は 0 を返す．
+         */
+        double averageMillis()
+        {
+            return (this.count > 0) ? (this.totalNanos / this.count) / 1000000.0 : 0.0;
+        }
+        
+        /**
+         * 所要時間の最大値(ms)を返す．
+         */
+        double maxMillis()
+        {
+            return this.maxNanos / 1000000.0;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * チャネルを包んだ ByteChannel (TlsChannel など)経由で送受信するプロトコル処理用の
+ * インスタンスも生成できる，ノンブロッキング入出力用のプロトコルファクトリのインターフェース
+ * <p>
+ * プロトコルは，送受信と閉じる処理を包んだチャネルで行い，
+ * アドレスの取得やセレクタへの登録には元のチャネルを用いる．
+ */
+public interface LayeredChannelProtocolFactory
+    extends
+        ChannelProtocolFactory
+{
+    /**
+     * チャネルをそのまま用いて送受信するプロトコル処理用のインスタンスを生成する．
+     */
+    @Override
+    public default ChannelProtocol createProtocol(SocketChannel clntChan, Logger logger)
+    {
+        return createProtocol(clntChan, clntChan, logger);
+    }
+    
+    /**
+     * transport 経由で送受信するプロトコル処理用のインスタンスを生成し，
+     * ChannelProtocol インターフェースとして返す．
+     */
+    public ChannelProtocol createProtocol(
+        SocketChannel clntChan, ByteChannel transport, Logger logger
+    );
+}
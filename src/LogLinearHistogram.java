@@ -0,0 +1,162 @@
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定数のバケットを持つ対数線形ヒストグラム
+ * <p>
+ * 値の範囲を 2のべき乗毎に区切り，さらに各区間を SUB_COUNT 個に等分したバケットで数える．
+ * 各バケットの相対誤差は 1/SUB_COUNT 以下に収まる．
+ * 各バケットには LongAdder を用いるため，複数のスレッドから同時に記録しても
+ * ロックによる競合は発生しない．
+ */
+class LogLinearHistogram
+{
+    // クラス変数（定数）：
+    static final int SUB_BITS    = 3;                               // 区間を等分する数のビット数
+    static final int SUB_COUNT   = 1 << SUB_BITS;                   // 区間を等分する数
+    static final int NUM_BUCKETS = (64 - SUB_BITS) * SUB_COUNT;     // バケット数
+    
+    // インスタンス変数：
+    private final LongAdder[] buckets;                      // バケット毎の記録数
+    private final LongAdder   count = new LongAdder();      // 記録数
+    private final LongAdder   sum   = new LongAdder();      // 記録した値の合計
+    private final AtomicLong  max   = new AtomicLong();     // 記録した値の最大値
+    
+    /**
+     * LogLinearHistogram のインスタンスを生成する．
+     */
+    LogLinearHistogram()
+    {
+        this.buckets = new LongAdder[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+    
+    /**
+     * 値を1つ記録する．負の値は 0 として記録する．
+     */
+    void record(long value)
+    {
+        if (value < 0) {
+            value = 0;
+        }
+        this.buckets[indexOf(value)].increment();
+        this.count.increment();
+        this.sum.add(value);
+        if (value > this.max.get()) {
+            this.max.accumulateAndGet(value, Math::max);
+        }
+    }
+    
+    /**
+     * 記録数を返す．
+     */
+    long getCount()
+    {
+        return this.count.sum();
+    }
+    
+    /**
+     * 記録した値の最大値を返す．
+     */
+    long getMax()
+    {
+        return this.max.get();
+    }
+    
+    /**
+     * 記録した値の平均を返す．記録が無い場合は 0 を返す．
+     */
+    double getMean()
+    {
+        long n = this.count.sum();
+        return (n > 0) ? (double)this.sum.sum() / n : 0.0;
+    }
+    
+    /**
+     * 指定したパーセンタイル(0.0〜1.0)の値を返す．
+     */
+    long getPercentile(double p)
+    {
+        return percentile(snapshot(), p);
+    }
+    
+    /**
+     * バケット毎の記録数をコピーして返す．
+     * 2つのスナップショットの差を取ると，その間に記録された値の分布が得られる．
+     */
+    long[] snapshot()
+    {
+        long[] counts = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = this.buckets[i].sum();
+        }
+        return counts;
+    }
+    
+    /**
+     * バケット毎の記録数から，指定したパーセンタイル(0.0〜1.0)の値を求める．
+     * 値は，該当するバケットの上限値とする．記録が無い場合は 0 を返す．
+     */
+    static long percentile(long[] counts, double p)
+    {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = Math.max(1, (long)Math.ceil(p * total));
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= threshold) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(counts.length - 1);
+    }
+    
+    /**
+     * 値を記録するバケットの番号を求める．
+     */
+    static int indexOf(long value)
+    {
+        // SUB_COUNT 未満の値は，値そのものをバケットの番号とする．
+        if (value < SUB_COUNT) {
+            return (int)value;
+        }
+        // 最上位ビットの位置で区間を決め，その下の SUB_BITS ビットで区間内の位置を決める．
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift    = exponent - SUB_BITS;
+        int sub      = (int)(value >>> shift) & (SUB_COUNT - 1);
+        return (shift + 1) * SUB_COUNT + sub;
+    }
+    
+    /**
+     * バケットに記録される値の上限を求める．
+     */
+    static long upperBoundOf(int index)
+    {
+        if (index >= NUM_BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return lowerBoundOf(index + 1) - 1;
+    }
+    
+    /**
+     * バケットに記録される値の下限を求める．
+     */
+    static long lowerBoundOf(int index)
+    {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_COUNT - 1;
+        int sub   = index % SUB_COUNT;
+        return (long)(SUB_COUNT + sub) << shift;
+    }
+}
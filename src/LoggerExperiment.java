@@ -0,0 +1,214 @@
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ログ出力が呼び出したスレッドを待たせる時間を，Logger の実装とスレッド数毎に比較する実験
+ * <p>
+ * ConsoleLogger，FileLogger と，FullPolicy 毎の AsyncLogger(ファイルへ出力)について，
+ * THREAD_COUNTS の各スレッド数で，各スレッドがコネクションの終了時のログに相当する1行を
+ * 指定された間隔で期限まで出力し，1回の呼び出しに要した時間を記録する．
+ * 出力先は一時ファイルとし，ConsoleLogger の場合は標準出力を自動フラッシュの一時ファイルへ
+ * 切り替える．最初の WARMUP_MS は計測から除く．
+ * <p>
+ * 各スレッドは出力の間に間隔だけ休むため，間隔が 0 の場合は出力先の処理能力を超える量の
+ * ログを出力し続けることになる．その場合，AsyncLogger の Drop・DropAndCount は
+ * リングバッファが満杯の間のログを破棄する．
+ */
+public class LoggerExperiment
+{
+    // クラス変数（定数）：
+    private static final long  WARMUP_MS     = 1000;                    // 計測から除く時間(ms)
+    private static final int[] THREAD_COUNTS = { 8, 64, 256, 1000 };    // 比較するスレッド数
+    
+    /**
+     * ログ出力の比較実験を実行するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 2) {
+            System.out.println("Parameters: <Seconds> <Interval us>");
+            return;
+        }
+        try {
+            // 1回の計測の時間と，各スレッドの出力の間隔を引数から取得する．
+            long duration_ms = Long.parseLong(args[0]) * 1000;
+            long interval_us = Long.parseLong(args[1]);
+            
+            // コンソールへのログ出力用のインスタンスを生成する．
+            ConsoleLogger clog = new ConsoleLogger();
+            
+            // ファイルへのログ出力用のインスタンスを，結果用に生成する．
+            long       now_ms = System.currentTimeMillis();
+            FileLogger flog   = new FileLogger(String.format("logger_%d.txt", now_ms));
+            // IOException
+            
+            // 実験用のインスタンスを生成し，実験を実行する．
+            LoggerExperiment experiment = new LoggerExperiment(
+                duration_ms, interval_us, clog, flog
+            );
+            experiment.execute();
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    // インスタンス変数：
+    private final long          duration_ms;    // 1回の計測の時間(ms)
+    private final long          interval_us;    // 各スレッドの出力の間隔(μs)
+    private final ConsoleLogger clog;           // コンソールへの出力用 Logger
+    private final FileLogger    flog;           // 結果のファイルへの出力用 Logger
+    
+    /**
+     * LoggerExperiment のインスタンスを生成する．
+     */
+    LoggerExperiment(long duration_ms, long interval_us, ConsoleLogger clog, FileLogger flog)
+    {
+        this.duration_ms = duration_ms;
+        this.interval_us = interval_us;
+        this.clog = clog;
+        this.flog = flog;
+    }
+    
+    /**
+     * スレッド数と Logger の実装の組毎に計測し，結果を出力する．
+     */
+    void execute()
+        throws Exception
+    {
+        this.clog.printf(
+            "計測時間：%d 秒，出力の間隔：%d μs\n", this.duration_ms / 1000, this.interval_us
+        );
+        this.flog.printf(
+            "logger\tthreads\tcalls_per_sec\tp50_us\tp99_us\tp999_us\tmax_us\tdropped\n"
+        );
+        // JIT コンパイルを先に済ませるため，最初の組を1度計測しておく．
+        measure("Console", THREAD_COUNTS[0], false);
+        for (int numThreads : THREAD_COUNTS) {
+            measure("Console", numThreads, true);
+            measure("File", numThreads, true);
+            for (AsyncLogger.FullPolicy policy : AsyncLogger.FullPolicy.values()) {
+                measure("Async-" + policy, numThreads, true);
+            }
+        }
+        this.flog.close();
+    }
+    
+    /**
+     * 一時ファイルへ出力する Logger を生成し，スレッドに期限までログを出力させて，
+     * 結果を出力する場合は出力する．
+     */
+    private void measure(String name, int numThreads, boolean isReported)
+        throws Exception
+    {
+        Path        file   = Files.createTempFile("logger_experiment_", ".txt");
+        PrintStream stdout = System.out;
+        Logger      logger = null;
+        AsyncLogger async  = null;
+        if (name.equals("Console")) {
+            System.setOut(
+                new PrintStream(new FileOutputStream(file.toFile()), true, StandardCharsets.UTF_8)
+            );
+            logger = new ConsoleLogger();
+        }
+        else if (name.equals("File")) {
+            logger = new FileLogger(file.toString());
+        }
+        else {
+            // 既定値の容量とフラッシュの間隔で，指定された振る舞いの AsyncLogger を生成する．
+            async = new AsyncLogger(
+                Files.newBufferedWriter(file),
+                Integer.getInteger("AsyncLogger.capacity", 8192),
+                AsyncLogger.FullPolicy.valueOf(name.substring("Async-".length())),
+                Long.getLong("AsyncLogger.flushIntervalMs", 100)
+            );
+            logger = async;
+        }
+        long               deadline_ns = System.nanoTime() + this.duration_ms * 1000000;
+        long               warmup_ns   = System.nanoTime() + WARMUP_MS * 1000000;
+        LogLinearHistogram calls       = new LogLinearHistogram();
+        
+        // ログを出力するスレッドを開始する．
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            Logger target = logger;
+            Thread thread = new Thread(() -> log(target, warmup_ns, deadline_ns, calls));
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // 出力先を閉じ，一時ファイルを削除する．
+        long dropped = 0;
+        if (name.equals("Console")) {
+            System.out.close();
+            System.setOut(stdout);
+        }
+        else if (async == null) {
+            ((FileLogger)logger).close();
+        }
+        else {
+            async.close();
+            dropped = async.getDroppedCount();
+        }
+        Files.delete(file);
+        if (!isReported) {
+            return;
+        }
+        // 計測から除いた時間を差し引いて，1秒あたりの呼び出しの数を求める．
+        double measured_sec  = (this.duration_ms - WARMUP_MS) / 1000.0;
+        double calls_per_sec = calls.getCount() / measured_sec;
+        
+        // 百分位数はバケットの上限値となるため，最大値を超えないようにする．
+        double max  = calls.getMax() / 1000.0;
+        double p50  = Math.min(calls.getPercentile(0.50) / 1000.0, max);
+        double p99  = Math.min(calls.getPercentile(0.99) / 1000.0, max);
+        double p999 = Math.min(calls.getPercentile(0.999) / 1000.0, max);
+        // Drop は破棄した数を数えないため，コンソールには数えていないことを示す．
+        this.clog.printf(
+            "%-19s %4d threads：%,11.0f 件/s，p50 %,9.1fμs p99 %,10.1fμs p99.9 %,10.1fμs"
+                + " max %,11.1fμs，破棄 %s\n",
+            name, numThreads, calls_per_sec, p50, p99, p999, max,
+            name.equals("Async-Drop") ? "-" : String.format("%,d", dropped)
+        );
+        this.flog.printf(
+            "%s\t%d\t%.0f\t%.1f\t%.1f\t%.1f\t%.1f\t%d\n",
+            name, numThreads, calls_per_sec, p50, p99, p999, max, dropped
+        );
+    }
+    
+    /**
+     * 期限まで，コネクションの終了時のログに相当する1行の出力と休止を繰り返し，
+     * 計測開始後の呼び出しに要した時間を記録する．
+     */
+    private void log(Logger logger, long warmup_ns, long deadline_ns, LogLinearHistogram calls)
+    {
+        String name     = Thread.currentThread().getName();
+        long   count    = 0;
+        long   sleep_ns = this.interval_us * 1000;
+        while (true) {
+            long startTime_ns = System.nanoTime();
+            if (startTime_ns >= deadline_ns) {
+                return;
+            }
+            logger.printf("処理終了（スレッド名：%s，%d 件目）\n", name, ++count);
+            if (startTime_ns >= warmup_ns) {
+                calls.record(System.nanoTime() - startTime_ns);
+            }
+            if (sleep_ns > 0) {
+                LockSupport.parkNanos(sleep_ns);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * ノンブロッキング入出力のプロトコル処理用のインスタンスを包み，
+ * 処理開始までの時間とコネクションの継続時間を ServerMetrics に記録するクラス
+ * <p>
+ * セレクタに登録する時点でインスタンスを生成し，キーに添付する．
+ * ディスパッチャは，キーが無効になった(チャネルが閉じられた)時点で handleClose() を呼び出す．
+ * 読み込み・書き込みの処理毎に，コネクションの時間を監視する ConnectionTimer へ記録する．
+ */
+class MeteredChannelProtocol
+    implements
+        ChannelProtocol
+{
+    // インスタンス変数：
+    private final ChannelProtocol protocol;         // プロトコル処理用のインスタンス
+    private final long            acceptTime_ns;    // コネクションを確立した時刻(ns)
+    private final ConnectionTimer timer;            // コネクションの時間の記録先
+    
+    private boolean isClosed = false;   // コネクションの終了を処理したか否か
+    
+    /**
+     * MeteredChannelProtocol のインスタンスを生成し，処理開始を記録する．
+     */
+    MeteredChannelProtocol(ChannelProtocol protocol, long acceptTime_ns, ConnectionTimer timer)
+    {
+        this.protocol = protocol;
+        this.acceptTime_ns = acceptTime_ns;
+        this.timer = timer;
+        ServerMetrics.getInstance().protocolStarted(acceptTime_ns);
+    }
+    
+    /**
+     * 包んでいるプロトコルに読み込みの処理を任せ，受信を記録する．
+     */
+    @Override
+    public void handleRead(SelectionKey key)
+        throws IOException
+    {
+        this.protocol.handleRead(key);
+        this.timer.recordChannelEvent(key, true);
+    }
+    
+    /**
+     * 包んでいるプロトコルに書き込みの処理を任せ，送信を記録する．
+     */
+    @Override
+    public void handleWrite(SelectionKey key)
+        throws IOException
+    {
+        this.protocol.handleWrite(key);
+        this.timer.recordChannelEvent(key, false);
+    }
+    
+    /**
+     * 時間の監視を終え，包んでいるプロトコルに資源を解放させ，コネクションの終了を記録する．
+     * 2回目以降の呼び出しでは何もしない．
+     */
+    @Override
+    public void handleClose()
+    {
+        if (!this.isClosed) {
+            this.isClosed = true;
+            this.timer.cancel();
+            this.protocol.handleClose();
+            ServerMetrics.getInstance().connectionClosed(this.acceptTime_ns);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+
+/**
+ * プロトコル処理用のインスタンスを包み，
+ * 処理開始までの時間とコネクションの継続時間を ServerMetrics に記録するクラス
+ * <p>
+ * コネクションを確立した直後にインスタンスを生成すること．
+ */
+class MeteredProtocol
+    implements
+        Runnable
+{
+    // インスタンス変数：
+    private final Runnable protocol;        // プロトコル処理用のインスタンス
+    private final long     acceptTime_ns;   // コネクションを確立した時刻(ns)
+    
+    /**
+     * MeteredProtocol のインスタンスを生成し，コネクションの確立を記録する．
+     */
+    MeteredProtocol(Runnable protocol)
+    {
+        this.protocol = protocol;
+        this.acceptTime_ns = ServerMetrics.getInstance().connectionAccepted();
+    }
+    
+    /**
+     * 処理開始を記録してプロトコルの処理を実行し，終了後にコネクションの終了を記録する．
+     */
+    @Override
+    public void run()
+    {
+        ServerMetrics metrics = ServerMetrics.getInstance();
+        metrics.protocolStarted(this.acceptTime_ns);
+        try {
+            this.protocol.run();
+        }
+        finally {
+            metrics.connectionClosed(this.acceptTime_ns);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * コネクション要求を受け付けるループと，
+ * 複数のセレクタのループ(ワーカ)を利用するディスパッチャ用のクラス
+ * <p>
+ * ワーカ数と割り当て方法は，下記のシステムプロパティで指定できる．
+ * <ul>
+ * <li>MultiSelectorDispatcher.numLoops：ワーカ数(既定値は利用可能なプロセッサ数)
+ * <li>MultiSelectorDispatcher.balancing：RoundRobin または LeastLoaded(既定値は RoundRobin)
+ * </ul>
+ * コネクション毎の無通信・受信待ち・送信待ちの時間の上限は，ConnectionTimeouts の
+ * システムプロパティで指定できる．
+ */
+class MultiSelectorDispatcher
+    implements
+        ChannelDispatcher
+{
+    // クラス変数（定数）：
+    static final long REPORT_INTERVAL_MS = 10000;   // 統計情報を出力する間隔(ms)
+    
+    /**
+     * ワーカへのコネクションの割り当て方法
+     */
+    enum Balancing
+    {
+        RoundRobin,     // 順番に割り当てる．
+        LeastLoaded     // 担当するコネクション数が最も少ないワーカへ割り当てる．
+    }
+    
+    // インスタンス変数：
+    private final int       numLoops;   // ワーカ数
+    private final Balancing balancing;  // ワーカへのコネクションの割り当て方法
+    
+    private final ConnectionTimeouts timeouts;  // コネクション毎の時間の上限
+    
+    private int nextIndex = 0;          // 次にコネクションを割り当てるワーカ(RoundRobin 用)
+    
+    /**
+     * システムプロパティの設定値で MultiSelectorDispatcher のインスタンスを生成する．
+     */
+    MultiSelectorDispatcher()
+    {
+        this(
+            Integer.getInteger(
+                "MultiSelectorDispatcher.numLoops",
+                Runtime.getRuntime().availableProcessors()
+            ),
+            Balancing.valueOf(
+                System.getProperty("MultiSelectorDispatcher.balancing", "RoundRobin")
+            ),
+            new ConnectionTimeouts()
+        );
+    }
+    
+    /**
+     * ワーカ数と割り当て方法，コネクション毎の時間の上限を指定して
+     * MultiSelectorDispatcher のインスタンスを生成する．
+     */
+    MultiSelectorDispatcher(int numLoops, Balancing balancing, ConnectionTimeouts timeouts)
+    {
+        this.numLoops = numLoops;
+        this.balancing = balancing;
+        this.timeouts = timeouts;
+    }
+    
+    /**
+     * ワーカを生成・開始し，コネクション要求の受け付けを開始する．
+     */
+    @Override
+    public void startDispatching(
+        ServerSocketChannel servChan, ChannelProtocolFactory factory, Logger logger
+    )
+    {
+        // このメソッドを呼び出しているスレッド名を取得する．
+        String threadName = Thread.currentThread().getName();
+        
+        try (Selector acceptSelector = Selector.open()) {
+            // ワーカ数分の SelectorLoop を生成し，それぞれのスレッドで開始する．
+            SelectorLoop[] loops = new SelectorLoop[this.numLoops];
+            for (int i = 0; i < this.numLoops; i++) {
+                loops[i] = new SelectorLoop(factory, this.timeouts, logger);
+                Thread thread = new Thread(loops[i], "SelectorLoop-" + i);
+                thread.start();
+            }
+            // コネクション要求を受け付けるチャネルをノンブロッキングモードにし，
+            // セレクタに登録する．
+            servChan.configureBlocking(false);
+            servChan.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            
+            // このメソッドを呼び出しているスレッド名をログに出力する．
+            logger.printf(
+                "処理開始（スレッド名：%s，ワーカ数：%d，割り当て方法：%s，%s）\n",
+                threadName, this.numLoops, this.balancing, this.timeouts
+            );
+            // コネクション要求を受け付け，ワーカへ割り当てる処理を繰り返す．
+            // 一定間隔毎に，ワーカ毎の統計情報をログに出力する．
+            long lastReportTime_ms = System.currentTimeMillis();
+            while (true) {
+                acceptSelector.select(REPORT_INTERVAL_MS);
+                
+                Iterator<SelectionKey> keyIter = acceptSelector.selectedKeys().iterator();
+                while (keyIter.hasNext()) {
+                    keyIter.next();
+                    keyIter.remove();
+                    acceptAll(servChan, loops, logger);
+                }
+                long now_ms = System.currentTimeMillis();
+                if (now_ms - lastReportTime_ms >= REPORT_INTERVAL_MS) {
+                    report(loops, logger);
+                    lastReportTime_ms = now_ms;
+                }
+            }
+        }
+        catch (IOException ex) {
+            logger.printf("例外発生（%s）：%s\n", threadName, ex.getMessage());
+        }
+    }
+    
+    /**
+     * 確立できるコネクションを全て確立し，ワーカへ割り当てる．
+     */
+    private void acceptAll(ServerSocketChannel servChan, SelectorLoop[] loops, Logger logger)
+    {
+        while (true) {
+            SocketChannel clntChan      = null;
+            long          acceptTime_ns = 0;
+            try {
+                // クライアントとのコネクションを確立する．
+                // 確立できるコネクションが無い場合は null が返る．
+                clntChan = servChan.accept();
+                if (clntChan == null) {
+                    return;
+                }
+                acceptTime_ns = ServerMetrics.getInstance().connectionAccepted();
+                
+                // ノンブロッキングモードにして，ワーカへ割り当てる．
+                clntChan.configureBlocking(false);
+                selectLoop(loops).register(clntChan, acceptTime_ns);
+            }
+            catch (IOException ex) {
+                logger.printf("例外発生：%s\n", ex.getMessage());
+                try {
+                    // 確立したコネクションを閉じる．
+                    if (clntChan != null) {
+                        clntChan.close();
+                        ServerMetrics.getInstance().connectionClosed(acceptTime_ns);
+                    }
+                }
+                catch (IOException ex2) {
+                    logger.printf("例外発生：%s\n", ex2.getMessage());
+                }
+                return;
+            }
+        }
+    }
+    
+    /**
+     * 割り当て方法に従い，コネクションを割り当てるワーカを選ぶ．
+     */
+    private SelectorLoop selectLoop(SelectorLoop[] loops)
+    {
+        if (this.balancing == Balancing.LeastLoaded) {
+            // 担当するコネクション数が最も少ないワーカを選ぶ．
+            SelectorLoop selected = loops[0];
+            for (SelectorLoop loop : loops) {
+                if (loop.getConnectionCount() < selected.getConnectionCount()) {
+                    selected = loop;
+                }
+            }
+            return selected;
+        }
+        // ワーカを順番に選ぶ．
+        SelectorLoop selected = loops[this.nextIndex];
+        this.nextIndex = (this.nextIndex + 1) % loops.length;
+        return selected;
+    }
+    
+    /**
+     * ワーカ毎の統計情報をログに出力する．
+     */
+    private void report(SelectorLoop[] loops, Logger logger)
+    {
+        ArrayList<String> logList = new ArrayList<String>();
+        logList.add("▽ワーカ毎の統計情報");
+        for (int i = 0; i < loops.length; i++) {
+            logList.add(String.format("・ワーカ %2d：%s", i, loops[i].takeStatistics()));
+        }
+        logger.printlist(logList);
+    }
+}
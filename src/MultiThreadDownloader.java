@@ -0,0 +1,219 @@
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ソケット数と同数のスレッドを利用し，ファイルの範囲を分割して受信する機能の実装
+ * <p>
+ * DownloadProtocol を用いるサーバからファイルを受信する．
+ * 保存先のファイルには受信した範囲のみを書き込む．
+ * 保存先のパスを指定しない場合，受信したデータは破棄する．
+ */
+class MultiThreadDownloader
+{
+    // インスタンス変数：
+    private final String servAddr;      // サーバのIPアドレス(またはホスト名)
+    private final int    servPort;      // サーバのポート番号
+    private final String fileId;        // 受信するファイルのID
+    private final long   offset;        // 受信する範囲の開始位置
+    private final long   length;        // 受信する範囲の長さ(負の場合はファイルの末尾まで)
+    private final int    bufferSize;    // 受信バッファサイズ
+    private final int    numSockets;    // ソケット数
+    private final Path   output;        // 保存先のパス(null の場合は保存しない)
+    
+    /**
+     * MultiThreadDownloader のインスタンスを生成する．
+     */
+    MultiThreadDownloader(
+        String servAddr, int servPort, String fileId, long offset, long length,
+        int bufferSize, int numSockets, Path output
+    )
+    {
+        // 下記のインスタンス変数を，引数で初期化する．
+        this.servAddr = servAddr;
+        this.servPort = servPort;
+        this.fileId = fileId;
+        this.offset = offset;
+        this.length = length;
+        this.bufferSize = bufferSize;
+        this.numSockets = numSockets;
+        this.output = output;
+    }
+    
+    /**
+     * 指定された範囲のデータを受信し，受信したデータサイズを返す．
+     */
+    long download()
+        throws IOException,
+            InterruptedException,
+            ExecutionException
+    {
+        // ファイルサイズを問い合わせ，受信する範囲をファイルサイズに収める．
+        long fileSize = request(this.offset, 0, null);
+        long count    = fileSize - this.offset;
+        if ((this.length >= 0) && (this.length < count)) {
+            count = this.length;
+        }
+        // ソケット毎の受信データサイズを求める．
+        // 余りは最後のソケットで受信する．
+        long sizeWithoutRemainder = count / this.numSockets;
+        long sizeWithRemainder    = sizeWithoutRemainder + count % this.numSockets;
+        
+        // 保存先のパスが指定されている場合は，保存先のファイルを開く．
+        FileChannel fileChan = null;
+        if (this.output != null) {
+            fileChan = FileChannel.open(
+                this.output, StandardOpenOption.CREATE, StandardOpenOption.WRITE
+            );
+        }
+        // ソケット数と同数のスレッドを利用するためのスレッドプールを生成する．
+        ExecutorService threadPool = Executors.newFixedThreadPool(this.numSockets);
+        
+        // 受信処理メソッドの完了を確認するための Future インスタンスのリストを生成する．
+        List<Future<Long>> futureList = new ArrayList<Future<Long>>();
+        try {
+            // ソケット数と同数のスレッドへ受信処理メソッドを渡す．
+            for (int i = 0; i < this.numSockets; i++) {
+                long        start       = this.offset + i * sizeWithoutRemainder;
+                long        sizePerSock = (i == this.numSockets - 1)
+                    ? sizeWithRemainder
+                    : sizeWithoutRemainder;
+                FileChannel dst         = fileChan;
+                futureList.add(
+                    threadPool.submit(() -> downloadPerSocket(start, sizePerSock, dst))
+                );
+            }
+            // Future インスタンスのリストを走査し，各スレッドにおける受信処理の完了を確認する．
+            long totalBytesRcvd = 0;
+            for (Future<Long> future : futureList) {
+                totalBytesRcvd += future.get();
+                // InterruptedException, ExecutionException
+            }
+            if (totalBytesRcvd != count) {
+                throw new IOException("受信したデータサイズが要求したサイズと一致しません．");
+            }
+            return totalBytesRcvd;
+        }
+        finally {
+            // スレッドプールを終了させ，保存先のファイルを閉じる．
+            shutdownAndAwaitTermination(threadPool);
+            if (fileChan != null) {
+                fileChan.close();
+            }
+        }
+    }
+    
+    /**
+     * ソケット毎の受信処理を実行する．このメソッドはスレッドプール内のスレッドから呼ばれる．
+     */
+    private long downloadPerSocket(long start, long sizePerSocket, FileChannel fileChan)
+        throws IOException
+    {
+        // サイズが 0 の場合は要求しない．
+        if (sizePerSocket == 0) {
+            return 0;
+        }
+        request(start, sizePerSocket, fileChan);
+        return sizePerSocket;
+    }
+    
+    /**
+     * 1つのソケットで範囲を要求し，応答のデータを受信する．
+     * 保存先のファイルが与えられている場合は，受信したデータを該当する位置へ書き込む．
+     * サーバが返したファイルサイズを返す．
+     */
+    private long request(long start, long count, FileChannel fileChan)
+        throws IOException
+    {
+        try (Socket socket = new Socket(this.servAddr, this.servPort)) {
+            DataInputStream  in  = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            
+            // 要求を送信する．
+            byte[] idBytes = this.fileId.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(idBytes.length);
+            out.write(idBytes);
+            out.writeLong(start);
+            out.writeLong(count);
+            out.flush();
+            
+            // 応答のヘッダを受信し，要求した範囲を受信できることを確認する．
+            long fileSize  = in.readLong();
+            long remainder = in.readLong();
+            if (fileSize < 0) {
+                throw new IOException("ファイルを受信できません：" + this.fileId);
+            }
+            if (remainder != count) {
+                throw new IOException("サーバが送信するデータサイズが要求と一致しません．");
+            }
+            // プールから借りたバッファでデータを受信する．
+            // 保存先のファイルには，受信する範囲の先頭から書き込む．
+            ByteBuffer buffer     = BufferPool.getHeapInstance().acquire(this.bufferSize);
+            byte[]     recvBuffer = buffer.array();
+            long       position   = start - this.offset;
+            try {
+                while (remainder > 0) {
+                    int readSize  = (int)Math.min(this.bufferSize, remainder);
+                    int bytesRcvd = in.read(recvBuffer, 0, readSize);
+                    if (bytesRcvd == -1) {
+                        throw new IOException("サーバがデータの途中でコネクションを切断しました．");
+                    }
+                    // 保存先のファイルへ書き込む．
+                    if (fileChan != null) {
+                        buffer.clear().limit(bytesRcvd);
+                        while (buffer.hasRemaining()) {
+                            fileChan.write(buffer, position + buffer.position());
+                        }
+                    }
+                    position += bytesRcvd;
+                    remainder -= bytesRcvd;
+                }
+            }
+            finally {
+                // バッファをプールへ返す．
+                BufferPool.getHeapInstance().release(buffer);
+            }
+            return fileSize;
+        }
+    }
+    
+    /**
+     * ExecutorService を2段階でシャットダウンする．
+     */
+    private void shutdownAndAwaitTermination(ExecutorService threadPool)
+    {
+        // 最初に shutdown メソッドを呼び出して着信タスクを拒否する．
+        threadPool.shutdown();
+        try {
+            // 実行中のタスクの終了を待つ．
+            if (!threadPool.awaitTermination(60, TimeUnit.SECONDS)) {
+                // 実行中のタスクの終了前に待ち時間が切れたので，実行中のタスクの停止を試みる．
+                threadPool.shutdownNow();
+                if (!threadPool.awaitTermination(60, TimeUnit.SECONDS)) {
+                    throw new RuntimeException(
+                        "ExecutorService を正常に終了できませんでした．"
+                    );
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            // 実行中のタスクすべての停止を試み，現在のスレッドの割り込みステータスを保持する．
+            threadPool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
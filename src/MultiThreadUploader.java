@@ -1,7 +1,11 @@
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -12,26 +16,74 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
 
 /**
  * ソケット数と同数のスレッドを利用して連続データを送信する機能の実装
+ * <p>
+ * チェックサムの付加を指定した場合は，送信したデータの CRC32C を逐次計算して
+ * トレーラとして送信し，サーバが返す検証結果と照合する．
+ * 圧縮レベルを指定した場合は，先頭 4バイトに続くデータを Deflater で逐次圧縮して送信する．
+ * 送信するデータの内容を指定しない場合は，乱数(圧縮できないデータ)を送信する．
+ * ソケット毎の送信データサイズが 4バイトのヘッダで表せない場合は，
+ * 64ビットのデータサイズを含む 12バイトのヘッダを送信する．
+ * 送信中の進捗は getSentBytes メソッドで他のスレッドから参照できる．
  */
 class MultiThreadUploader
 {
+    // クラス変数（定数）：
+    static final int UNCOMPRESSED = -2;     // 圧縮しないことを示す圧縮レベル
+    
     // インスタンス変数：
-    private final String servAddr;      // サーバのIPアドレス(またはホスト名)
-    private final int    servPort;		// サーバのポート番号
-    private final int    totalSize;		// 送信する総データサイズ
-    private final int    bufferSize;	// 送信バッファサイズ
-    private final int    numSockets;    // ソケット数
+    private final String  servAddr;     // サーバのIPアドレス(またはホスト名)
+    private final int     servPort;		// サーバのポート番号
+    private final long    totalSize;		// 送信する総データサイズ
+    private final int     bufferSize;	// 送信バッファサイズ
+    private final int     numSockets;   // ソケット数
+    private final boolean withChecksum; // チェックサムを付加するか否か
+    private final int     level;        // 圧縮レベル(UNCOMPRESSED の場合は圧縮しない)
+    private final byte[]  content;      // 送信するデータの内容(null の場合は乱数)
+    
+    // 統計情報：
+    private final LongAdder rawBytes      = new LongAdder();   // 送信したデータの圧縮前のバイト数
+    private final LongAdder wireBytes     = new LongAdder();   // 送信したデータのバイト数
+    private final LongAdder compressNanos = new LongAdder();   // 圧縮に要した CPU 時間(ns)
+    private final LongAdder sentBytes     = new LongAdder();   // 送信中のデータの圧縮前のバイト数
     
     /**
-     * MultiThreadUploader のインスタンスを生成する．
+     * チェックサムを付加しない MultiThreadUploader のインスタンスを生成する．
      */
     MultiThreadUploader(
-        String servAddr, int servPort, int totalSize, int bufferSize,
+        String servAddr, int servPort, long totalSize, int bufferSize,
         int numSockets
     )
+    {
+        this(servAddr, servPort, totalSize, bufferSize, numSockets, false);
+    }
+    
+    /**
+     * チェックサムを付加するか否かを指定して MultiThreadUploader のインスタンスを生成する．
+     */
+    MultiThreadUploader(
+        String servAddr, int servPort, long totalSize, int bufferSize,
+        int numSockets, boolean withChecksum
+    )
+    {
+        this(
+            servAddr, servPort, totalSize, bufferSize, numSockets, withChecksum, UNCOMPRESSED, null
+        );
+    }
+    
+    /**
+     * チェックサムの有無，圧縮レベル，送信するデータの内容を指定して
+     * MultiThreadUploader のインスタンスを生成する．
+     */
+    MultiThreadUploader(
+        String servAddr, int servPort, long totalSize, int bufferSize,
+        int numSockets, boolean withChecksum, int level, byte[] content
+    )
     {
         // 下記のインスタンス変数を，引数で初期化する．
         this.servAddr = servAddr;
@@ -39,6 +91,9 @@ class MultiThreadUploader
         this.totalSize = totalSize;
         this.bufferSize = bufferSize;
         this.numSockets = numSockets;
+        this.withChecksum = withChecksum;
+        this.level = level;
+        this.content = content;
     }
     
     /**
@@ -51,21 +106,21 @@ class MultiThreadUploader
         // ソケット毎の送信データサイズを求める．
         // 総送信データサイズをソケット数で割った余りがある場合を想定し，
         // その余りを含む送信データサイズも求めておく．
-        int sizeWithoutRemainder = this.totalSize / this.numSockets;
-        int sizeWithRemainder    = sizeWithoutRemainder + this.totalSize % this.numSockets;
+        long sizeWithoutRemainder = this.totalSize / this.numSockets;
+        long sizeWithRemainder    = sizeWithoutRemainder + this.totalSize % this.numSockets;
         
         // ソケット数と同数のスレッドを利用するためのスレッドプールを生成する．
         int             numThreads = this.numSockets;
         ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
         
         // 送信処理メソッドの完了を確認するための Future インスタンスのリストを生成する．
-        List<Future<Integer>> futureList = new ArrayList<Future<Integer>>();
+        List<Future<Long>> futureList = new ArrayList<Future<Long>>();
         
         // ソケット数と同数のスレッドへ送信処理メソッドを渡すためのループ
         for (int i = 0; i < this.numSockets; i++) {
             // スレッドプール内のスレッドで処理する送信データサイズを決める．
             // 最後のスレッドのみ，上記の余りを含むサイズの送信データを処理する．
-            int sizePerSocket;
+            long sizePerSocket;
             if (i == this.numSockets - 1) {
                 sizePerSocket = sizeWithRemainder;
             }
@@ -73,9 +128,9 @@ class MultiThreadUploader
                 sizePerSocket = sizeWithoutRemainder;
             }
             // スレッドプール内のスレッドへ送信処理メソッドを渡す．
-            Future<Integer> future = threadPool.submit(
+            Future<Long> future = threadPool.submit(
                 () -> uploadPerSocket(sizePerSocket),
-                Integer.valueOf(sizePerSocket)
+                Long.valueOf(sizePerSocket)
             );
             // スレッドプール内のスレッドで実効される送信処理メソッドの
             // 完了を確認するための Future インスタンスをリストへ追加する．
@@ -84,10 +139,10 @@ class MultiThreadUploader
         try {
             // Future インスタンスのリストを走査し，
             // 該当するスレッドにおける送信処理の完了を確認する．
-            for (Future<Integer> future : futureList) {
+            for (Future<Long> future : futureList) {
                 // 送信処理メソッド内で RuntimeException が発生していた場合，
                 // 下記 get メソッドは ExecutionException を投げる．
-                Integer size = future.get();
+                long size = future.get();
                 // InterruptedException, ExecutionException
                 
                 // 送信処理メソッドが結果として返す，
@@ -106,19 +161,48 @@ class MultiThreadUploader
     /**
      * ソケット毎の送信処理を実行する． このメソッドはスレッドプール内のスレッドから呼ばれる．
      */
-    private void uploadPerSocket(int sizePerSocket)
+    private void uploadPerSocket(long sizePerSocket)
         throws RuntimeException
     {
-        // 与えられているバッファサイズ +4バイト分の送信バッファを生成し，乱数で初期化する．
-        int    allocSize  = this.bufferSize + 4;
-        byte[] sendBuffer = new byte[allocSize];
-        Random rand       = new Random(System.currentTimeMillis());
-        rand.nextBytes(sendBuffer);
+        // ソケット毎の送信データサイズを表せるヘッダのサイズを求める．
+        int headerSize = UploadProtocolFactory.headerSizeFor(sizePerSocket);
+        
+        // 与えられているバッファサイズ +ヘッダのサイズ以上の送信バッファをプールから借り，
+        // 乱数(内容が指定されている場合はその内容の繰り返し)で初期化する．
+        int        allocSize  = this.bufferSize + headerSize;
+        ByteBuffer buffer     = BufferPool.getHeapInstance().acquire(allocSize);
+        byte[]     sendBuffer = buffer.array();
+        if (this.content == null) {
+            Random rand = new Random(System.currentTimeMillis());
+            rand.nextBytes(sendBuffer);
+        }
+        else {
+            for (int i = headerSize; i < sendBuffer.length; i++) {
+                sendBuffer[i] = this.content[(i - headerSize) % this.content.length];
+            }
+        }
+        // ソケット毎の送信データサイズを送信バッファの先頭のヘッダへ格納する．
+        // チェックサムを付加する場合は最上位ビットを，圧縮する場合は2番目のビットを立てる．
+        int flags = 0;
+        if (this.withChecksum) {
+            flags |= UploadProtocolFactory.CHECKSUM_FLAG;
+        }
+        if (this.level != UNCOMPRESSED) {
+            flags |= UploadProtocolFactory.COMPRESS_FLAG;
+        }
+        byte[] bytes = UploadProtocolFactory.encodeHeader(sizePerSocket, flags);
+        System.arraycopy(bytes, 0, sendBuffer, 0, headerSize);
         
-        // ソケット毎の送信データサイズを送信バッファの先頭 4バイトへ格納する．
-        byte[] bytes = ByteBuffer.allocate(4).putInt(sizePerSocket).array();
-        System.arraycopy(bytes, 0, sendBuffer, 0, 4);
+        // チェックサムを付加する場合は，送信したデータの CRC32C を逐次計算する．
+        CRC32C crc = this.withChecksum ? new CRC32C() : null;
         
+        // 圧縮する場合は，Deflater と圧縮したデータの格納用バッファを用意する．
+        Deflater   deflater   = null;
+        ByteBuffer wireBuffer = null;
+        if (this.level != UNCOMPRESSED) {
+            deflater = new Deflater(this.level);
+            wireBuffer = BufferPool.getHeapInstance().acquire(this.bufferSize);
+        }
         Socket socket = null;
         try {
             // ソケットを生成し，入出力ストリームを取得する．
@@ -127,23 +211,45 @@ class MultiThreadUploader
             OutputStream out = socket.getOutputStream();
             
             boolean isFirstData = true;		// 最初に送信するデータか否かを示すフラグ
-            int     remainder   = sizePerSocket;	// 送信すべきデータの残量
+            long    remainder   = sizePerSocket;	// 送信すべきデータの残量
             
             // ソケット毎の送信データを，バッファサイズ分のデータ毎にサーバへ送信する．
             for (;;) {
                 // 送信データ長を求める．
-                int sendLength = remainder > this.bufferSize ? this.bufferSize : remainder;
+                int sendLength = (int)Math.min(remainder, this.bufferSize);
                 
                 // サーバへデータを送信する．
                 if (isFirstData) {
                     // 最初に送信するデータは，
-                    // ソケット毎の送信データサイズが先頭 4バイトに格納されているデータ．
-                    out.write(sendBuffer, 0, sendLength);
+                    // ソケット毎の送信データサイズが先頭のヘッダに格納されているデータ．
+                    // 圧縮する場合も，先頭のヘッダはそのまま送信する．
+                    if (deflater == null) {
+                        out.write(sendBuffer, 0, sendLength);
+                    }
+                    else {
+                        out.write(sendBuffer, 0, headerSize);
+                        deflater.setInput(sendBuffer, headerSize, sendLength - headerSize);
+                        compress(out, deflater, wireBuffer.array(), false);
+                    }
                     isFirstData = false;
+                    if (crc != null) {
+                        crc.update(sendBuffer, headerSize, sendLength - headerSize);
+                    }
+                    this.sentBytes.add(sendLength - headerSize);
                 }
                 else {
-                    // 最初に送信するデータ以外は，全て乱数が格納されているデータ．
-                    out.write(sendBuffer, 4, sendLength);
+                    // 最初に送信するデータ以外は，全て乱数(または指定された内容)のデータ．
+                    if (deflater == null) {
+                        out.write(sendBuffer, headerSize, sendLength);
+                    }
+                    else {
+                        deflater.setInput(sendBuffer, headerSize, sendLength);
+                        compress(out, deflater, wireBuffer.array(), false);
+                    }
+                    if (crc != null) {
+                        crc.update(sendBuffer, headerSize, sendLength);
+                    }
+                    this.sentBytes.add(sendLength);
                 }
                 out.flush();
                 
@@ -153,6 +259,20 @@ class MultiThreadUploader
                     break;
                 }
             }
+            // 圧縮する場合は，圧縮されたストリームの終端まで送信する．
+            long dataSize = sizePerSocket - headerSize;
+            if (deflater != null) {
+                deflater.finish();
+                compress(out, deflater, wireBuffer.array(), true);
+                out.flush();
+            }
+            this.rawBytes.add(dataSize);
+            this.wireBytes.add((deflater != null) ? deflater.getBytesWritten() : dataSize);
+            
+            // チェックサムを付加する場合は，トレーラを送信して検証結果を照合する．
+            if (crc != null) {
+                verifyChecksum(in, out, dataSize, (int)crc.getValue());
+            }
             // サーバ側がコネクションを切断するまで待つ．
             byte[] recvBuffer = new byte[4];
             while (in.read(recvBuffer) != -1) {
@@ -164,6 +284,13 @@ class MultiThreadUploader
             throw new RuntimeException(ex);
         }
         finally {
+            // 送信バッファと圧縮したデータの格納用バッファをプールへ返す．
+            BufferPool.getHeapInstance().release(buffer);
+            BufferPool.getHeapInstance().release(wireBuffer);
+            if (deflater != null) {
+                deflater.end();
+            }
+            
             // ソケットを閉じる．
             try {
                 if (socket != null) {
@@ -176,6 +303,84 @@ class MultiThreadUploader
         }
     }
     
+    /**
+     * Deflater に与えたデータを圧縮して送信する．
+     * 終端の場合は圧縮されたストリームの終端まで，そうでない場合は与えたデータを
+     * 使い切るまで圧縮する．
+     * 他のスレッドと CPU を奪い合う場合も正しく計測できるよう，圧縮に要した時間は
+     * スレッドの CPU 時間で計測する．
+     */
+    private void compress(OutputStream out, Deflater deflater, byte[] wireBuffer, boolean isEnd)
+        throws IOException
+    {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        while (isEnd ? !deflater.finished() : !deflater.needsInput()) {
+            long startCpu_ns = threadBean.getCurrentThreadCpuTime();
+            int  length      = deflater.deflate(wireBuffer);
+            this.compressNanos.add(threadBean.getCurrentThreadCpuTime() - startCpu_ns);
+            if (length > 0) {
+                out.write(wireBuffer, 0, length);
+            }
+        }
+    }
+    
+    /**
+     * 送信したデータの圧縮前のバイト数の累計を返す．
+     */
+    long getRawBytes()
+    {
+        return this.rawBytes.sum();
+    }
+    
+    /**
+     * 送信中のものを含め，送信したデータの圧縮前のバイト数の累計を返す．
+     * 送信処理の実行中に，他のスレッドから進捗を調べるために用いる．
+     */
+    long getSentBytes()
+    {
+        return this.sentBytes.sum();
+    }
+    
+    /**
+     * 送信したデータのバイト数(圧縮する場合は圧縮後のバイト数)の累計を返す．
+     */
+    long getWireBytes()
+    {
+        return this.wireBytes.sum();
+    }
+    
+    /**
+     * 圧縮に要した CPU 時間の累計(ms)を返す．
+     */
+    double getCompressMillis()
+    {
+        return this.compressNanos.sum() / 1e6;
+    }
+    
+    /**
+     * チェックサムをトレーラとして送信し，サーバが返す検証したバイト数とチェックサムを
+     * 送信した値と照合する．一致しない場合は IOException を投げる．
+     */
+    private void verifyChecksum(InputStream in, OutputStream out, long dataSize, int checksum)
+        throws IOException
+    {
+        DataOutputStream trailer = new DataOutputStream(out);
+        trailer.writeInt(checksum);
+        trailer.flush();
+        
+        DataInputStream ack           = new DataInputStream(in);
+        long            verifiedBytes = ack.readLong();
+        int             verified      = ack.readInt();
+        if ((verifiedBytes != dataSize) || (verified != checksum)) {
+            throw new IOException(
+                String.format(
+                    "サーバの検証結果が一致しません（送信 %d バイト %08x，検証 %d バイト %08x）",
+                    dataSize, checksum, verifiedBytes, verified
+                )
+            );
+        }
+    }
+    
     /**
      * ExecutorService を2段階でシャットダウンする．
      */
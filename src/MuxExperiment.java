@@ -0,0 +1,329 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * N 個のソケットに1つずつストリームを流す場合と，1つのソケットに N 個のストリームを
+ * 多重化する場合とで，アップロードのスループットと短いエコーの処理速度を比べる実験
+ * <p>
+ * EchoProtocolFactory，UploadProtocolFactory，MuxProtocolFactory を用いるサーバを，
+ * ThreadPerConnectionDispatcher で同じプロセス内に起動する．ストリーム数を 1 から
+ * 指定された数まで倍にしながら，下記をそれぞれの方法で計測する．
+ * <ul>
+ * <li>アップロード：N 個のストリームで，指定されたサイズのデータを並行して
+ * TRY_COUNT 回アップロードする．
+ * <li>エコー：N 個のスレッドが，ストリームを開いて ECHO_SIZE バイトを往復させて閉じる処理を，
+ * 指定された回数ずつ繰り返す．
+ * </ul>
+ * ソケットの場合はストリーム毎に新しいコネクションを確立するため，3ウェイハンドシェイクと
+ * スロースタートの費用がストリーム毎に掛かる．多重化する場合は，1つのセッションを
+ * 計測の前に確立しておき，全てのストリームで使い回す．
+ */
+public class MuxExperiment
+{
+    // クラス変数（定数）：
+    private static final int MEGA_BYTE = 1024 * 1024;
+    
+    // 送信バッファサイズ，ストリーム毎の初期ウィンドウ，アップロードの試行回数
+    private static final int BUF_SIZE  = 64 * 1024;
+    private static final int WINDOW    = 256 * 1024;
+    private static final int TRY_COUNT = 3;
+    
+    // エコーで往復させるデータのサイズ
+    private static final int ECHO_SIZE = 1024;
+    
+    /**
+     * ストリームを開くためのインターフェース
+     */
+    private interface Opener
+    {
+        /**
+         * 指定されたプロトコルで通信するためのソケットを返す．
+         */
+        Socket open(String protocol)
+            throws IOException;
+    }
+    
+    /**
+     * 多重化の計測実験を実行するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 3) {
+            System.out.println("Parameters: <Max Streams> <Upload KB per Stream> <Echoes per Stream>");
+            return;
+        }
+        try {
+            // 最大のストリーム数，ストリーム毎のアップロードサイズ，エコーの回数を引数から取得する．
+            int  maxStreams = Integer.parseInt(args[0]);
+            long uploadKB   = Long.parseLong(args[1]);
+            int  numEchoes  = Integer.parseInt(args[2]);
+            
+            // サーバがセッション毎に同時に開けるストリーム数までとする．
+            int streamLimit = Integer.getInteger(
+                "MuxProtocolFactory.maxStreams", MuxProtocolFactory.MAX_STREAMS
+            );
+            if (maxStreams > streamLimit) {
+                System.out.println("最大のストリーム数は " + streamLimit + " 以下としてください．");
+                return;
+            }
+            // 上位 2ビットはフラグに用いるため，4バイトのヘッダで表せるサイズまでとする．
+            long sizePerStream = uploadKB * 1024 + UploadProtocolFactory.HEADER_SIZE;
+            if (sizePerStream > UploadProtocolFactory.MAX_INT_SIZE) {
+                System.out.println("ストリーム毎のアップロードサイズが大き過ぎます．");
+                return;
+            }
+            int uploadSize = (int)(uploadKB * 1024);
+            
+            // コンソールへのログ出力用のインスタンスを生成する．
+            ConsoleLogger clog = new ConsoleLogger();
+            
+            // ファイルへのログ出力用のインスタンスを，結果用とサーバ用に生成する．
+            long       now_ms = System.currentTimeMillis();
+            FileLogger flog   = new FileLogger(String.format("mux_%d.txt", now_ms));
+            FileLogger slog   = new FileLogger(String.format("mux_server_%d.txt", now_ms));
+            // IOException
+            
+            // 実験用のインスタンスを生成し，実験を実行する．
+            MuxExperiment experiment = new MuxExperiment(
+                maxStreams, uploadSize, numEchoes, clog, flog, slog
+            );
+            experiment.execute();
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    // インスタンス変数：
+    private final int           maxStreams; // 最大のストリーム数
+    private final int           uploadSize; // ストリーム毎のアップロードサイズ
+    private final int           numEchoes;  // ストリーム毎のエコーの回数
+    private final ConsoleLogger clog;       // コンソールへの出力用 Logger
+    private final FileLogger    flog;       // 結果のファイルへの出力用 Logger
+    private final FileLogger    slog;       // サーバのログのファイルへの出力用 Logger
+    private final byte[]        data;       // 送信するデータ
+    
+    /**
+     * MuxExperiment のインスタンスを生成する．
+     */
+    MuxExperiment(
+        int maxStreams, int uploadSize, int numEchoes,
+        ConsoleLogger clog, FileLogger flog, FileLogger slog
+    )
+    {
+        this.maxStreams = maxStreams;
+        this.uploadSize = uploadSize;
+        this.numEchoes = numEchoes;
+        this.clog = clog;
+        this.flog = flog;
+        this.slog = slog;
+        this.data = new byte[BUF_SIZE];
+        new Random(System.currentTimeMillis()).nextBytes(this.data);
+    }
+    
+    /**
+     * サーバを起動し，ストリーム数毎に2つの方法で計測して結果を出力する．
+     */
+    void execute()
+        throws Exception
+    {
+        // エコー，アップロード，多重化のサーバを起動する．
+        int echoPort   = startServer(new EchoProtocolFactory());
+        int uploadPort = startServer(new UploadProtocolFactory());
+        int muxPort    = startServer(new MuxProtocolFactory());
+        String servAddr = InetAddress.getLoopbackAddress().getHostAddress();
+        
+        // ストリーム毎に新しいコネクションを確立する方法
+        Opener sockets = protocol -> {
+            int    port   = protocol.equals("Echo") ? echoPort : uploadPort;
+            Socket socket = new Socket(servAddr, port);
+            socket.setTcpNoDelay(true);
+            return socket;
+        };
+        // 1つのセッションにストリームを多重化する方法
+        MuxSession session = MuxSession.connect(servAddr, muxPort, WINDOW);
+        Opener     mux     = protocol -> session.openSocket(protocol);
+        
+        // ウォームアップを行う．
+        measure("sockets", sockets, this.maxStreams, false);
+        measure("mux", mux, this.maxStreams, false);
+        this.flog.printf(
+            "mode\tstreams\tupload_MB_per_sec\techoes_per_sec\techo_mean_us\tconnections\n"
+        );
+        for (int numStreams = 1; numStreams <= this.maxStreams; numStreams *= 2) {
+            measure("sockets", sockets, numStreams, true);
+            measure("mux", mux, numStreams, true);
+        }
+        session.close();
+        this.flog.close();
+        this.slog.close();
+    }
+    
+    /**
+     * 指定されたプロトコルファクトリを用いるサーバを，ループバックアドレスの空いているポートで
+     * デーモンスレッドとして起動し，ポート番号を返す．
+     */
+    private int startServer(ProtocolFactory factory)
+        throws IOException
+    {
+        ServerSocket servSock = ServerSocketChannel.open().socket();
+        servSock.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread server = new Thread(
+            () -> new ThreadPerConnectionDispatcher().startDispatching(
+                servSock, factory, this.slog
+            )
+        );
+        server.setDaemon(true);
+        server.start();
+        return servSock.getLocalPort();
+    }
+    
+    /**
+     * 1つの方法とストリーム数について，アップロードとエコーを計測し，指定された場合は結果を出力する．
+     */
+    private void measure(String mode, Opener opener, int numStreams, boolean isReported)
+        throws Exception
+    {
+        ExecutorService threadPool = Executors.newFixedThreadPool(numStreams);
+        try {
+            // N 個のストリームで並行してアップロードする．
+            long startTime_ns = System.nanoTime();
+            for (int i = 0; i < TRY_COUNT; i++) {
+                runAll(threadPool, numStreams, () -> upload(opener));
+            }
+            long upload_ns = System.nanoTime() - startTime_ns;
+            
+            // N 個のスレッドで，短いエコーを繰り返す．
+            startTime_ns = System.nanoTime();
+            runAll(threadPool, numStreams, () -> {
+                for (int i = 0; i < this.numEchoes; i++) {
+                    echo(opener);
+                }
+                return null;
+            });
+            long echo_ns = System.nanoTime() - startTime_ns;
+            if (!isReported) {
+                return;
+            }
+            // 結果を出力する．
+            // 多重化する場合のコネクションは，計測前に確立した1つのみ．
+            long   connections = mode.equals("mux")
+                ? 1
+                : (long)numStreams * (TRY_COUNT + this.numEchoes);
+            double totalMB     = (double)this.uploadSize * numStreams * TRY_COUNT / MEGA_BYTE;
+            double uploadMBps  = totalMB / (upload_ns / 1e9);
+            long   echoes      = (long)numStreams * this.numEchoes;
+            double echoesPerS  = echoes / (echo_ns / 1e9);
+            double echoMean_us = (echo_ns / 1e3) * numStreams / echoes;
+            this.clog.printf(
+                "%-7s %3d streams：アップロード %,9.1f MB/s，エコー %,9.0f 回/s (平均 %,8.1fμs)，"
+                    + "コネクション %,d 個\n",
+                mode, numStreams, uploadMBps, echoesPerS, echoMean_us, connections
+            );
+            this.flog.printf(
+                "%s\t%d\t%.1f\t%.0f\t%.1f\t%d\n",
+                mode, numStreams, uploadMBps, echoesPerS, echoMean_us, connections
+            );
+        }
+        finally {
+            threadPool.shutdown();
+            threadPool.awaitTermination(60, TimeUnit.SECONDS);
+        }
+    }
+    
+    /**
+     * スレッドプール内の N 個のスレッドで同じ処理を実行し，全ての完了を待つ．
+     */
+    private void runAll(
+        ExecutorService threadPool, int numTasks, Callable<Void> task
+    )
+        throws Exception
+    {
+        List<Future<Void>> futureList = new ArrayList<Future<Void>>();
+        for (int i = 0; i < numTasks; i++) {
+            futureList.add(threadPool.submit(task));
+        }
+        for (Future<Void> future : futureList) {
+            future.get();
+            // InterruptedException, ExecutionException
+        }
+    }
+    
+    /**
+     * 1つのストリームで UploadProtocol の形式のデータを送信し，サーバが閉じるまで待つ．
+     */
+    private Void upload(Opener opener)
+        throws IOException
+    {
+        try (Socket socket = opener.open("Upload")) {
+            InputStream  in  = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            
+            // 先頭 4バイトには，先頭 4バイトを含むデータサイズを格納する．
+            long sizePerStream = (long)this.uploadSize + UploadProtocolFactory.HEADER_SIZE;
+            out.write(UploadProtocolFactory.encodeHeader(sizePerStream, 0));
+            int remainder = this.uploadSize;
+            while (remainder > 0) {
+                int length = Math.min(remainder, this.data.length);
+                out.write(this.data, 0, length);
+                remainder -= length;
+            }
+            out.flush();
+            
+            // サーバ側がストリームを閉じるまで待つ．
+            byte[] recvBuffer = new byte[4];
+            while (in.read(recvBuffer) != -1) {
+                ;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * 1つのストリームを開き，ECHO_SIZE バイトを往復させて閉じる．
+     * サーバがストリームを閉じるのを待ってから閉じるため，次に開くストリームが
+     * サーバの同時に開けるストリーム数に数えられることはない．
+     */
+    private void echo(Opener opener)
+        throws IOException
+    {
+        try (Socket socket = opener.open("Echo")) {
+            InputStream  in  = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            out.write(this.data, 0, ECHO_SIZE);
+            out.flush();
+            
+            byte[] recvBuffer = new byte[ECHO_SIZE];
+            int    totalRcvd  = 0;
+            while (totalRcvd < ECHO_SIZE) {
+                int bytesRcvd = in.read(recvBuffer, totalRcvd, ECHO_SIZE - totalRcvd);
+                if (bytesRcvd == -1) {
+                    throw new IOException("サーバがデータの途中でストリームを閉じました．");
+                }
+                totalRcvd += bytesRcvd;
+            }
+            // 送信を終え，サーバがストリームを閉じるまで待つ．
+            socket.shutdownOutput();
+            while (in.read(recvBuffer) != -1) {
+                ;
+            }
+        }
+    }
+}
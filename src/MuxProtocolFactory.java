@@ -0,0 +1,258 @@
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MuxProtocol のインスタンスを生成するためのファクトリ
+ * <p>
+ * 多重化したストリームで利用できるプロトコルは，システムプロパティ
+ * MuxProtocolFactory.protocols に，プロトコルファクトリクラス名の接頭辞を
+ * カンマ区切りで指定する(既定値は Echo,Upload)．
+ * ProtocolLauncher と同じく，各プロトコルファクトリは ProtocolRegistry で検索して生成する．
+ * <p>
+ * 1つのクライアントがストリームを開き続けてサーバのスレッドを使い尽くさないよう，
+ * セッション毎に同時に開けるストリーム数を制限し，各ストリームのプロトコルは
+ * 全てのセッションで共有する固定数のスレッドで実行する．スレッドが全て使用中の場合，
+ * 開かれたストリームは空くまで待たされる．各値は，下記のシステムプロパティで指定できる．
+ * <ul>
+ * <li>MuxProtocolFactory.maxStreams：セッション毎に同時に開けるストリーム数(既定値は 100)
+ * <li>MuxProtocolFactory.streamThreads：ストリームの処理に用いるスレッド数(既定値は 256)
+ * </ul>
+ */
+public class MuxProtocolFactory
+    implements
+        ProtocolFactory
+{
+    // クラス変数（定数）：
+    static final int MAX_STREAMS    = 100;  // セッション毎に同時に開けるストリーム数(既定値)
+    static final int STREAM_THREADS = 256;  // ストリームの処理に用いるスレッド数(既定値)
+    static final int KEEP_ALIVE_SEC = 60;   // 処理の無いスレッドを終了させるまでの時間(秒)
+    
+    // インスタンス変数：
+    private final Map<String, ProtocolFactory> factories;  // プロトコル名からファクトリへのマップ
+    private final int                          maxStreams; // セッション毎に同時に開けるストリーム数
+    private final ExecutorService              streamPool; // ストリームの処理に用いるスレッドプール
+    
+    // 統計情報：
+    private final LongAdder numSessions = new LongAdder();  // 開始したセッション数
+    private final LongAdder numStreams  = new LongAdder();  // 開いたストリーム数
+    
+    /**
+     * システムプロパティの設定値で MuxProtocolFactory のインスタンスを生成する．
+     */
+    public MuxProtocolFactory()
+    {
+        this(
+            createFactories(System.getProperty("MuxProtocolFactory.protocols", "Echo,Upload")),
+            Integer.getInteger("MuxProtocolFactory.maxStreams", MAX_STREAMS),
+            Integer.getInteger("MuxProtocolFactory.streamThreads", STREAM_THREADS)
+        );
+    }
+    
+    /**
+     * プロトコル名からファクトリへのマップ，セッション毎に同時に開けるストリーム数，
+     * ストリームの処理に用いるスレッド数を指定して MuxProtocolFactory のインスタンスを生成する．
+     */
+    MuxProtocolFactory(Map<String, ProtocolFactory> factories, int maxStreams, int streamThreads)
+    {
+        this.factories = factories;
+        this.maxStreams = Math.max(1, maxStreams);
+        this.streamPool = createStreamPool(Math.max(1, streamThreads));
+    }
+    
+    /**
+     * 固定数のスレッドを持ち，処理の無いスレッドは KEEP_ALIVE_SEC 後に終了させる
+     * スレッドプールを生成する．スレッドはサーバの終了を妨げないようデーモンスレッドとする．
+     */
+    private static ExecutorService createStreamPool(int numThreads)
+    {
+        AtomicInteger      threadIndex = new AtomicInteger();
+        ThreadPoolExecutor threadPool  = new ThreadPoolExecutor(
+            numThreads, numThreads, KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            runnable -> {
+                Thread thread = new Thread(
+                    runnable, "MuxStream-" + threadIndex.getAndIncrement()
+                );
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+        threadPool.allowCoreThreadTimeOut(true);
+        return threadPool;
+    }
+    
+    /**
+     * カンマ区切りのプロトコル名毎に，プロトコルファクトリを ProtocolRegistry で検索して生成する．
+     */
+    private static Map<String, ProtocolFactory> createFactories(String protocols)
+    {
+        Map<String, ProtocolFactory> factories = new HashMap<String, ProtocolFactory>();
+        for (String name : protocols.split(",")) {
+            String className = name.trim() + "ProtocolFactory";
+            try {
+                factories.put(name.trim(), ProtocolRegistry.load(ProtocolFactory.class, className));
+            }
+            catch (ClassNotFoundException | ServiceConfigurationError ex) {
+                throw new IllegalArgumentException(
+                    "プロトコルファクトリを生成できません：" + className, ex
+                );
+            }
+        }
+        return factories;
+    }
+    
+    /**
+     * MuxProtocol のインスタンスを生成し，Runnable インターフェースとして返す．
+     */
+    @Override
+    public Runnable createProtocol(Socket clntSock, Logger logger)
+    {
+        this.numSessions.increment();
+        return new MuxProtocol(clntSock, logger, this);
+    }
+    
+    /**
+     * プロトコル名に対応するファクトリを返す．利用できないプロトコルの場合は null を返す．
+     */
+    ProtocolFactory getFactory(String protocol)
+    {
+        return this.factories.get(protocol);
+    }
+    
+    /**
+     * セッション毎に同時に開けるストリーム数を返す．
+     */
+    int getMaxStreams()
+    {
+        return this.maxStreams;
+    }
+    
+    /**
+     * 開いたストリームを記録し，そのプロトコルの処理を共有のスレッドプールで開始する．
+     */
+    void startStream(Runnable protocol)
+    {
+        this.numStreams.increment();
+        this.streamPool.execute(protocol);
+    }
+    
+    /**
+     * 開始したセッション数の累計を返す．
+     */
+    long getSessionCount()
+    {
+        return this.numSessions.sum();
+    }
+    
+    /**
+     * 開いたストリーム数の累計を返す．
+     */
+    long getStreamCount()
+    {
+        return this.numStreams.sum();
+    }
+}
+
+/**
+ * 1つのコネクションで多重化されたストリームを振り分け，
+ * ストリーム毎に既存のプロトコルを動作させるサーバ側の機能の実装
+ * <p>
+ * このインスタンスを実行するスレッドがフレームを受信して振り分ける．
+ * クライアントがストリームを開く度に，指定されたプロトコルのインスタンスを
+ * ストリーム(MuxSocket)をソケットとして生成し，ファクトリが共有するスレッドプールで実行する．
+ * 利用できないプロトコルが指定された場合は，そのストリームを直ちに閉じる．
+ */
+class MuxProtocol
+    implements
+        Runnable
+{
+    // インスタンス変数：
+    private final Socket             clntSock;  // クライアントと通信するためのソケット
+    private final Logger             logger;    // ログ出力用の Logger インスタンス
+    private final MuxProtocolFactory factory;   // プロトコル名に対応するファクトリを持つファクトリ
+    
+    /**
+     * MuxProtocol のインスタンスを生成する．
+     */
+    public MuxProtocol(Socket clntSock, Logger logger, MuxProtocolFactory factory)
+    {
+        this.clntSock = clntSock;
+        this.logger = logger;
+        this.factory = factory;
+    }
+    
+    /**
+     * コネクションが切断されるまで，フレームを受信してストリームへ振り分ける．
+     */
+    @Override
+    public void run()
+    {
+        ArrayList<String> logList = new ArrayList<String>();
+        logList.add("▽スレッド：" + Thread.currentThread().getName());
+        logList.add(
+            "・クライアント："
+                + this.clntSock.getInetAddress().getHostAddress() + "，"
+                + this.clntSock.getPort()
+        );
+        MuxSession session = null;
+        try {
+            this.clntSock.setTcpNoDelay(true);
+            session = new MuxSession(
+                this.clntSock, this::startStream, this.factory.getMaxStreams()
+            );
+            session.readLoop();
+            // IOException
+        }
+        catch (IOException ex) {
+            logList.add("・例外発生：" + ex.getMessage());
+        }
+        finally {
+            try {
+                // ソケットを閉じる．
+                this.clntSock.close();
+            }
+            catch (IOException ex) {
+                logList.add("・例外発生：" + ex.getMessage());
+            }
+        }
+        if (session != null) {
+            logList.add("・ストリーム数：" + session.getStreamsOpened());
+            logList.add(
+                "・フレーム数：受信 " + session.getFramesReceived()
+                    + "，送信 " + session.getFramesSent()
+            );
+        }
+        this.logger.printlist(logList);
+    }
+    
+    /**
+     * 開かれたストリームで，指定されたプロトコルの処理を共有のスレッドプールで開始する．
+     * このメソッドはフレームを受信するスレッドから呼ばれる．
+     */
+    private void startStream(MuxSocket stream, String protocol)
+    {
+        ProtocolFactory factory = this.factory.getFactory(protocol);
+        if (factory == null) {
+            this.logger.printf("例外発生：利用できないプロトコルです：%s\n", protocol);
+            try {
+                stream.close();
+            }
+            catch (IOException ex) {
+                this.logger.printf("例外発生：%s\n", ex.getMessage());
+            }
+            return;
+        }
+        this.factory.startStream(factory.createProtocol(stream, this.logger));
+    }
+}
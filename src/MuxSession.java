@@ -0,0 +1,296 @@
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * 1つの TCP コネクション上で，複数の論理的なストリームを多重化するセッションの実装
+ * <p>
+ * 全てのフレームは，ストリームID(int)，種類(byte)，ペイロードのバイト数(int)から成る
+ * ヘッダと，ペイロードで構成する．フレームの種類は下記の通り．
+ * <ul>
+ * <li>SETTINGS：セッションの開始時にクライアントが送信する(ストリームID は 0)．
+ * ペイロードはストリーム毎の初期ウィンドウ(int)で，両方向で用いる．
+ * <li>OPEN：クライアントがストリームを開く．ペイロードはプロトコル名(UTF-8)．
+ * <li>DATA：ストリームのデータ．ペイロードは MAX_FRAME バイト以下とする．
+ * <li>WINDOW：受信側がデータを読み出した分だけ，送信側のウィンドウを広げる．
+ * ペイロードは増分(int)．
+ * <li>FIN：送信側がストリームへの送信を終えた(ハーフクローズ)．
+ * </ul>
+ * 送信側は，ストリーム毎のウィンドウを超えてデータを送信しない．
+ * そのため，受信用のスレッドは1つのストリームの読み出しが遅れても待たされることなく，
+ * 他のストリームのフレームを振り分け続けられる．
+ * <p>
+ * クライアントは connect で，サーバは OPEN を受け取った時に呼び出す処理と
+ * 同時に開けるストリーム数を指定してインスタンスを生成する．
+ * ストリームを開けるのはクライアントのみで，ストリームID は正の奇数とする．
+ * サーバは，不正なストリームID や開いているストリームと重複する ID の OPEN と，
+ * 同時に開けるストリーム数を超える OPEN を受け取ると，セッションを切断する．
+ * フレームの送信は，フレーム単位でセッションの排他制御を行う．
+ */
+class MuxSession
+{
+    // クラス変数（定数）：
+    static final byte SETTINGS = 0;     // フレームの種類：初期ウィンドウの通知
+    static final byte OPEN     = 1;     // フレームの種類：ストリームを開く
+    static final byte DATA     = 2;     // フレームの種類：データ
+    static final byte WINDOW   = 3;     // フレームの種類：ウィンドウの増分
+    static final byte FIN      = 4;     // フレームの種類：送信の終了
+    
+    static final int HEADER_SIZE = 9;           // フレームのヘッダのサイズ
+    static final int MAX_FRAME   = 64 * 1024;   // DATA フレームのペイロードの最大長
+    static final int MAX_NAME    = 256;         // プロトコル名の最大バイト数
+    
+    // インスタンス変数：
+    private final Socket                                socket;     // 多重化する TCP コネクション
+    private final DataInputStream                       in;         // フレームの受信用ストリーム
+    private final DataOutputStream                      out;        // フレームの送信用ストリーム
+    private final ConcurrentHashMap<Integer, MuxSocket> streams;    // 開いているストリーム
+    private final BiConsumer<MuxSocket, String>         acceptor;   // OPEN を受け取った時の処理
+    private final int                                   maxStreams; // 同時に開けるストリーム数
+    private final AtomicInteger                         nextId;     // 次に開くストリームのID
+    
+    private volatile int     window   = 0;      // ストリーム毎の初期ウィンドウ
+    private volatile boolean isClosed = false;  // セッションを閉じたか否か
+    
+    // 統計情報：
+    private final LongAdder framesSent     = new LongAdder();   // 送信したフレーム数
+    private final LongAdder framesReceived = new LongAdder();   // 受信したフレーム数
+    private final LongAdder streamsOpened  = new LongAdder();   // 開いたストリーム数
+    
+    /**
+     * MuxSession のインスタンスを生成する．
+     * サーバ側では，クライアントがストリームを開く度に，acceptor へストリームとプロトコル名を渡す．
+     * 開いているストリームが maxStreams に達した後の OPEN はエラーとする．
+     * クライアント側では acceptor を null とし，maxStreams は用いない．
+     */
+    MuxSession(Socket socket, BiConsumer<MuxSocket, String> acceptor, int maxStreams)
+        throws IOException
+    {
+        this.socket = socket;
+        this.in = new DataInputStream(socket.getInputStream());
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.streams = new ConcurrentHashMap<Integer, MuxSocket>();
+        this.acceptor = acceptor;
+        this.maxStreams = maxStreams;
+        this.nextId = new AtomicInteger(1);
+    }
+    
+    /**
+     * サーバへ接続して初期ウィンドウを通知し，受信用のデーモンスレッドを開始した
+     * クライアント側の MuxSession を返す．
+     */
+    static MuxSession connect(String servAddr, int servPort, int window)
+        throws IOException
+    {
+        Socket socket = new Socket(servAddr, servPort);
+        socket.setTcpNoDelay(true);
+        MuxSession session = new MuxSession(socket, null, Integer.MAX_VALUE);
+        session.window = window;
+        session.writeFrame(0, SETTINGS, ByteBuffer.allocate(4).putInt(window).array(), 0, 4);
+        
+        Thread reader = new Thread(() -> {
+            try {
+                session.readLoop();
+            }
+            catch (IOException ex) {
+                // セッションを閉じた場合を含め，各ストリームへは切断として通知済み．
+                ;
+            }
+        }, "MuxSession-" + socket.getLocalPort());
+        reader.setDaemon(true);
+        reader.start();
+        return session;
+    }
+    
+    /**
+     * 新しいストリームを開き，指定されたプロトコルで通信するためのソケットとして返す．
+     */
+    MuxSocket openSocket(String protocol)
+        throws IOException
+    {
+        byte[]    name   = protocol.getBytes(StandardCharsets.UTF_8);
+        int       id     = this.nextId.getAndAdd(2);
+        MuxSocket stream = new MuxSocket(this, id, this.window);
+        this.streams.put(id, stream);
+        this.streamsOpened.increment();
+        writeFrame(id, OPEN, name, 0, name.length);
+        return stream;
+    }
+    
+    /**
+     * コネクションが切断されるまでフレームを受信し，該当するストリームへ振り分ける．
+     * 終了時は，開いている全てのストリームへ切断を通知する．
+     */
+    void readLoop()
+        throws IOException
+    {
+        try {
+            for (;;) {
+                // ヘッダを受信する．フレームの境界でコネクションが切断された場合は終了する．
+                int id;
+                try {
+                    id = this.in.readInt();
+                }
+                catch (EOFException ex) {
+                    break;
+                }
+                byte type   = this.in.readByte();
+                int  length = this.in.readInt();
+                if ((length < 0) || (length > MAX_FRAME)) {
+                    throw new IOException("フレームの長さが不正です：" + length);
+                }
+                byte[] payload = new byte[length];
+                this.in.readFully(payload);
+                this.framesReceived.increment();
+                dispatch(id, type, payload);
+            }
+        }
+        finally {
+            this.isClosed = true;
+            for (MuxSocket stream : this.streams.values()) {
+                stream.sessionClosed();
+            }
+            this.streams.clear();
+        }
+    }
+    
+    /**
+     * 受信したフレームを，種類に応じて処理する．
+     * 既に閉じたストリームへのフレームは破棄する．
+     */
+    private void dispatch(int id, byte type, byte[] payload)
+        throws IOException
+    {
+        if (type == SETTINGS) {
+            this.window = ByteBuffer.wrap(payload).getInt();
+            if (this.window <= 0) {
+                throw new IOException("初期ウィンドウが不正です：" + this.window);
+            }
+            return;
+        }
+        if (type == OPEN) {
+            if ((this.acceptor == null) || (this.window == 0) || (payload.length > MAX_NAME)) {
+                throw new IOException("ストリームを開けません：" + id);
+            }
+            // クライアントが開くストリームの ID は正の奇数とする．
+            if ((id <= 0) || ((id & 1) == 0)) {
+                throw new IOException("ストリームID が不正です：" + id);
+            }
+            if (this.streams.size() >= this.maxStreams) {
+                throw new IOException(
+                    "同時に開けるストリーム数(" + this.maxStreams + ")を超えました：" + id
+                );
+            }
+            MuxSocket stream = new MuxSocket(this, id, this.window);
+            if (this.streams.putIfAbsent(id, stream) != null) {
+                throw new IOException("ストリームID が重複しています：" + id);
+            }
+            this.streamsOpened.increment();
+            this.acceptor.accept(stream, new String(payload, StandardCharsets.UTF_8));
+            return;
+        }
+        MuxSocket stream = this.streams.get(id);
+        if (stream == null) {
+            return;
+        }
+        switch (type) {
+        case DATA:
+            stream.receive(payload);
+            break;
+        case WINDOW:
+            stream.addCredit(ByteBuffer.wrap(payload).getInt());
+            break;
+        case FIN:
+            stream.receiveFin();
+            break;
+        default:
+            throw new IOException("フレームの種類が不正です：" + type);
+        }
+    }
+    
+    /**
+     * 1つのフレームを送信する．セッションを閉じている場合は IOException を投げる．
+     */
+    synchronized void writeFrame(int id, byte type, byte[] payload, int offset, int length)
+        throws IOException
+    {
+        if (this.isClosed) {
+            throw new IOException("セッションが切断されました．");
+        }
+        this.out.writeInt(id);
+        this.out.writeByte(type);
+        this.out.writeInt(length);
+        this.out.write(payload, offset, length);
+        this.out.flush();
+        this.framesSent.increment();
+    }
+    
+    /**
+     * ウィンドウの増分を送信する．
+     */
+    void writeWindow(int id, int increment)
+        throws IOException
+    {
+        writeFrame(id, WINDOW, ByteBuffer.allocate(4).putInt(increment).array(), 0, 4);
+    }
+    
+    /**
+     * 両方向の送信を終えたストリームを，開いているストリームから外す．
+     */
+    void remove(int id)
+    {
+        this.streams.remove(id);
+    }
+    
+    /**
+     * 多重化している TCP コネクションを返す．
+     */
+    Socket getSocket()
+    {
+        return this.socket;
+    }
+    
+    /**
+     * セッションを閉じる．開いているストリームへは，受信用のスレッドが切断を通知する．
+     */
+    void close()
+        throws IOException
+    {
+        this.isClosed = true;
+        this.socket.close();
+    }
+    
+    /**
+     * 送信したフレーム数の累計を返す．
+     */
+    long getFramesSent()
+    {
+        return this.framesSent.sum();
+    }
+    
+    /**
+     * 受信したフレーム数の累計を返す．
+     */
+    long getFramesReceived()
+    {
+        return this.framesReceived.sum();
+    }
+    
+    /**
+     * 開いたストリーム数の累計を返す．
+     */
+    long getStreamsOpened()
+    {
+        return this.streamsOpened.sum();
+    }
+}
@@ -0,0 +1,527 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+
+/**
+ * MuxSession 上の1つの論理的なストリームを，Socket として扱えるようにしたクラス
+ * <p>
+ * 入出力ストリームは，ストリームの DATA フレームの受信と送信に対応する．
+ * ソケットを扱う既存のプロトコル(EchoProtocol や UploadProtocol など)を，
+ * 変更せずに多重化したストリームの上で動作させるために用いる．
+ * <p>
+ * 受信側は，受信したデータを初期ウィンドウのバイト数までキューに保持し，
+ * 読み出したバイト数がウィンドウの半分に達する毎に WINDOW フレームで送信側へ通知する．
+ * 送信側は，通知されたバイト数(クレジット)の範囲でデータを送信し，
+ * クレジットが無くなれば通知を待つ．
+ * close は送信の終了(FIN)を通知し，以降に受信したデータは破棄して，そのバイト数を
+ * 送信側へ返す．両方向の送信が終わった時点で，ストリームをセッションから外す．
+ */
+class MuxSocket
+    extends
+        Socket
+{
+    // インスタンス変数：
+    private final MuxSession         session;   // ストリームを多重化しているセッション
+    private final int                streamId;  // ストリームID
+    private final int                window;    // 初期ウィンドウ
+    private final Object             lock;      // 状態の排他制御と待機に用いるオブジェクト
+    private final ArrayDeque<byte[]> received;  // 受信したデータのキュー
+    private final InputStream        in;        // 受信用の入力ストリーム
+    private final OutputStream       out;       // 送信用の出力ストリーム
+    
+    private int     readOffset      = 0;        // キューの先頭のデータの読み出し位置
+    private int     bufferedBytes   = 0;        // キューに保持しているバイト数
+    private int     unackedBytes    = 0;        // 読み出したが，まだ通知していないバイト数
+    private int     sendCredit;                 // 送信できるバイト数
+    private boolean isRemoteFin     = false;    // 相手が送信を終えたか否か
+    private boolean isOutputShut    = false;    // 送信を終えたか否か
+    private boolean isInputShut     = false;    // 受信を終えたか否か
+    private boolean isClosed        = false;    // 閉じたか否か
+    private boolean isSessionClosed = false;    // セッションが切断されたか否か
+    
+    /**
+     * MuxSocket のインスタンスを生成する．
+     */
+    MuxSocket(MuxSession session, int streamId, int window)
+    {
+        this.session = session;
+        this.streamId = streamId;
+        this.window = window;
+        this.sendCredit = window;
+        this.lock = new Object();
+        this.received = new ArrayDeque<byte[]>();
+        this.in = new MuxInputStream();
+        this.out = new MuxOutputStream();
+    }
+    
+    /**
+     * ストリームIDを返す．
+     */
+    int getStreamId()
+    {
+        return this.streamId;
+    }
+    
+    /**
+     * 受信したデータをキューへ追加する．受信用のスレッドから呼ばれる．
+     * 受信を終えている場合は破棄し，そのバイト数を送信側へ返す．
+     */
+    void receive(byte[] payload)
+        throws IOException
+    {
+        if (payload.length == 0) {
+            return;
+        }
+        synchronized (this.lock) {
+            if (!this.isInputShut && !this.isClosed) {
+                if (this.bufferedBytes + payload.length > this.window) {
+                    throw new IOException(
+                        "ストリームのウィンドウを超えて受信しました：" + this.streamId
+                    );
+                }
+                this.received.add(payload);
+                this.bufferedBytes += payload.length;
+                this.lock.notifyAll();
+                return;
+            }
+        }
+        this.session.writeWindow(this.streamId, payload.length);
+    }
+    
+    /**
+     * 送信できるバイト数を増やす．受信用のスレッドから呼ばれる．
+     */
+    void addCredit(int increment)
+    {
+        synchronized (this.lock) {
+            this.sendCredit += increment;
+            this.lock.notifyAll();
+        }
+    }
+    
+    /**
+     * 相手が送信を終えたことを記録する．受信用のスレッドから呼ばれる．
+     */
+    void receiveFin()
+    {
+        boolean isDone;
+        synchronized (this.lock) {
+            this.isRemoteFin = true;
+            isDone = this.isOutputShut;
+            this.lock.notifyAll();
+        }
+        if (isDone) {
+            this.session.remove(this.streamId);
+        }
+    }
+    
+    /**
+     * セッションが切断されたことを記録し，待機しているスレッドを起こす．
+     */
+    void sessionClosed()
+    {
+        synchronized (this.lock) {
+            this.isSessionClosed = true;
+            this.lock.notifyAll();
+        }
+    }
+    
+    /**
+     * 受信用の入力ストリームを返す．
+     */
+    @Override
+    public InputStream getInputStream()
+        throws IOException
+    {
+        if (isClosed()) {
+            throw new SocketException("Socket is closed");
+        }
+        return this.in;
+    }
+    
+    /**
+     * 送信用の出力ストリームを返す．
+     */
+    @Override
+    public OutputStream getOutputStream()
+        throws IOException
+    {
+        if (isClosed()) {
+            throw new SocketException("Socket is closed");
+        }
+        return this.out;
+    }
+    
+    /**
+     * 送信を終え，FIN を送信する．
+     */
+    @Override
+    public void shutdownOutput()
+        throws IOException
+    {
+        boolean isDone;
+        synchronized (this.lock) {
+            if (this.isOutputShut) {
+                return;
+            }
+            this.isOutputShut = true;
+            isDone = this.isRemoteFin;
+            this.lock.notifyAll();
+        }
+        // 相手が FIN を受け取ってすぐに次のストリームを開いても同時に開けるストリーム数を
+        // 超えないよう，FIN を送信する前にセッションから外す．
+        if (isDone) {
+            this.session.remove(this.streamId);
+        }
+        this.session.writeFrame(this.streamId, MuxSession.FIN, new byte[0], 0, 0);
+    }
+    
+    /**
+     * 受信を終える．キューに保持しているデータと以降に受信したデータは破棄し，
+     * そのバイト数を送信側へ返す．
+     */
+    @Override
+    public void shutdownInput()
+        throws IOException
+    {
+        int discarded;
+        synchronized (this.lock) {
+            if (this.isInputShut) {
+                return;
+            }
+            this.isInputShut = true;
+            discarded = this.bufferedBytes + this.unackedBytes;
+            this.received.clear();
+            this.bufferedBytes = 0;
+            this.unackedBytes = 0;
+            this.lock.notifyAll();
+        }
+        if ((discarded > 0) && !isSessionClosed()) {
+            this.session.writeWindow(this.streamId, discarded);
+        }
+    }
+    
+    /**
+     * ストリームを閉じる．送信を終えていなければ FIN を送信し，受信も終える．
+     * セッションが切断されている場合は，何も送信しない．
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        synchronized (this.lock) {
+            if (this.isClosed) {
+                return;
+            }
+            this.isClosed = true;
+            this.lock.notifyAll();
+        }
+        if (isSessionClosed()) {
+            return;
+        }
+        shutdownInput();
+        shutdownOutput();
+    }
+    
+    /**
+     * 閉じたか否かを返す．
+     */
+    @Override
+    public boolean isClosed()
+    {
+        synchronized (this.lock) {
+            return this.isClosed;
+        }
+    }
+    
+    /**
+     * 多重化したストリームは，開いた時点で接続済みとする．
+     */
+    @Override
+    public boolean isConnected()
+    {
+        return true;
+    }
+    
+    /**
+     * 送信を終えたか否かを返す．
+     */
+    @Override
+    public boolean isOutputShutdown()
+    {
+        synchronized (this.lock) {
+            return this.isOutputShut;
+        }
+    }
+    
+    /**
+     * 受信を終えたか否かを返す．
+     */
+    @Override
+    public boolean isInputShutdown()
+    {
+        synchronized (this.lock) {
+            return this.isInputShut;
+        }
+    }
+    
+    /**
+     * 多重化している TCP コネクションの相手のアドレスを返す．
+     */
+    @Override
+    public InetAddress getInetAddress()
+    {
+        return this.session.getSocket().getInetAddress();
+    }
+    
+    /**
+     * 多重化している TCP コネクションの相手のポート番号を返す．
+     */
+    @Override
+    public int getPort()
+    {
+        return this.session.getSocket().getPort();
+    }
+    
+    /**
+     * 多重化している TCP コネクションのローカルアドレスを返す．
+     */
+    @Override
+    public InetAddress getLocalAddress()
+    {
+        return this.session.getSocket().getLocalAddress();
+    }
+    
+    /**
+     * 多重化している TCP コネクションのローカルポート番号を返す．
+     */
+    @Override
+    public int getLocalPort()
+    {
+        return this.session.getSocket().getLocalPort();
+    }
+    
+    /**
+     * ストリームの ID と多重化している TCP コネクションを表す文字列を返す．
+     */
+    @Override
+    public String toString()
+    {
+        return "MuxSocket[stream=" + this.streamId + "," + this.session.getSocket() + "]";
+    }
+    
+    /**
+     * セッションが切断されたか否かを返す．
+     */
+    private boolean isSessionClosed()
+    {
+        synchronized (this.lock) {
+            return this.isSessionClosed;
+        }
+    }
+    
+    /**
+     * 受信したデータを読み出すための入力ストリーム
+     */
+    private class MuxInputStream
+        extends
+            InputStream
+    {
+        /**
+         * 1バイトを読み出す．
+         */
+        @Override
+        public int read()
+            throws IOException
+        {
+            byte[] b = new byte[1];
+            int    n = read(b, 0, 1);
+            return (n == -1) ? -1 : (b[0] & 0xff);
+        }
+        
+        /**
+         * 受信したデータがあればキューから読み出せるだけ読み出し，無ければ受信を待つ．
+         * 相手が送信を終えていれば -1 を返す．
+         */
+        @Override
+        public int read(byte[] b, int off, int len)
+            throws IOException
+        {
+            if (len == 0) {
+                return 0;
+            }
+            int bytesRead = 0;
+            int credit    = 0;
+            synchronized (MuxSocket.this.lock) {
+                while (isReadBlocked()) {
+                    waitLock();
+                }
+                if (MuxSocket.this.isClosed || MuxSocket.this.isInputShut) {
+                    throw new SocketException("Socket input is shutdown");
+                }
+                if (MuxSocket.this.received.isEmpty()) {
+                    if (MuxSocket.this.isRemoteFin) {
+                        return -1;
+                    }
+                    throw new IOException("セッションが切断されました．");
+                }
+                // キューの先頭から，読み出せるだけ複写する．
+                while ((bytesRead < len) && !MuxSocket.this.received.isEmpty()) {
+                    byte[] head  = MuxSocket.this.received.peek();
+                    int    start = MuxSocket.this.readOffset;
+                    int    count = Math.min(len - bytesRead, head.length - start);
+                    System.arraycopy(head, start, b, off + bytesRead, count);
+                    bytesRead += count;
+                    MuxSocket.this.readOffset += count;
+                    if (MuxSocket.this.readOffset == head.length) {
+                        MuxSocket.this.received.poll();
+                        MuxSocket.this.readOffset = 0;
+                    }
+                }
+                // 読み出したバイト数がウィンドウの半分に達したら，送信側へ通知する．
+                MuxSocket.this.bufferedBytes -= bytesRead;
+                MuxSocket.this.unackedBytes += bytesRead;
+                boolean isAckDue = MuxSocket.this.unackedBytes >= MuxSocket.this.window / 2;
+                if (isAckDue && !MuxSocket.this.isRemoteFin) {
+                    credit = MuxSocket.this.unackedBytes;
+                    MuxSocket.this.unackedBytes = 0;
+                }
+            }
+            if (credit > 0) {
+                MuxSocket.this.session.writeWindow(MuxSocket.this.streamId, credit);
+            }
+            return bytesRead;
+        }
+        
+        /**
+         * キューに保持しているバイト数を返す．
+         */
+        @Override
+        public int available()
+        {
+            synchronized (MuxSocket.this.lock) {
+                return MuxSocket.this.bufferedBytes;
+            }
+        }
+        
+        /**
+         * ソケットを閉じる．
+         */
+        @Override
+        public void close()
+            throws IOException
+        {
+            MuxSocket.this.close();
+        }
+        
+        /**
+         * 読み出せるデータも，読み出しを終える理由も無いか否かを返す．
+         */
+        private boolean isReadBlocked()
+        {
+            boolean isEnded = MuxSocket.this.isRemoteFin || MuxSocket.this.isSessionClosed
+                || MuxSocket.this.isClosed || MuxSocket.this.isInputShut;
+            return MuxSocket.this.received.isEmpty() && !isEnded;
+        }
+    }
+    
+    /**
+     * データを DATA フレームとして送信するための出力ストリーム
+     */
+    private class MuxOutputStream
+        extends
+            OutputStream
+    {
+        /**
+         * 1バイトを送信する．
+         */
+        @Override
+        public void write(int b)
+            throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+        
+        /**
+         * クレジットの範囲で，MAX_FRAME バイト以下のフレームに分けて送信する．
+         * クレジットが無くなれば，WINDOW フレームを受信するまで待つ．
+         */
+        @Override
+        public void write(byte[] b, int off, int len)
+            throws IOException
+        {
+            while (len > 0) {
+                int count;
+                synchronized (MuxSocket.this.lock) {
+                    while (isWriteBlocked()) {
+                        waitLock();
+                    }
+                    if (MuxSocket.this.isClosed || MuxSocket.this.isOutputShut) {
+                        throw new SocketException("Socket output is shutdown");
+                    }
+                    if (MuxSocket.this.isSessionClosed) {
+                        throw new IOException("セッションが切断されました．");
+                    }
+                    count = Math.min(len, MuxSocket.this.sendCredit);
+                    count = Math.min(count, MuxSession.MAX_FRAME);
+                    MuxSocket.this.sendCredit -= count;
+                }
+                MuxSocket.this.session.writeFrame(
+                    MuxSocket.this.streamId, MuxSession.DATA, b, off, count
+                );
+                off += count;
+                len -= count;
+            }
+        }
+        
+        /**
+         * フレームは送信する度にフラッシュするため，何もしない．
+         */
+        @Override
+        public void flush()
+        {
+            ;
+        }
+        
+        /**
+         * ソケットを閉じる．
+         */
+        @Override
+        public void close()
+            throws IOException
+        {
+            MuxSocket.this.close();
+        }
+        
+        /**
+         * クレジットが無く，送信を終える理由も無いか否かを返す．
+         */
+        private boolean isWriteBlocked()
+        {
+            boolean isEnded = MuxSocket.this.isSessionClosed || MuxSocket.this.isClosed
+                || MuxSocket.this.isOutputShut;
+            return (MuxSocket.this.sendCredit == 0) && !isEnded;
+        }
+    }
+    
+    /**
+     * 状態が変わるまで待機する．割り込まれた場合は InterruptedIOException を投げる．
+     */
+    private void waitLock()
+        throws InterruptedIOException
+    {
+        try {
+            this.lock.wait();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("ストリームの待機中に割り込まれました．");
+        }
+    }
+}
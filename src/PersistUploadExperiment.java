@@ -0,0 +1,157 @@
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * 書き込み方法と同期の契機の組み合わせ毎に，受信したデータをファイルへ保存する速度を調べる実験
+ * <p>
+ * 組み合わせ毎に PersistUploadProtocolFactory を用いるサーバを同じプロセス内で起動し，
+ * MultiThreadUploader でアップロードを TRY_COUNT 回繰り返す．
+ * クライアントが計測したスループットと，サーバ側で計測した書き込み速度を出力する．
+ * 保存先のディレクトリを計測したいディスク上に置くことで，ディスクの種類毎に比較できる．
+ */
+public class PersistUploadExperiment
+{
+    // クラス変数（定数）：
+    private static final int MEGA_BYTE = 1024 * 1024;
+    
+    // 送信バッファサイズと送信試行回数
+    private static final int BUF_SIZE  = 64 * 1024;
+    private static final int TRY_COUNT = 3;
+    
+    // Interval の場合に同期する間隔(MB)
+    private static final int SYNC_INTERVAL_MB = 16;
+    
+    /**
+     * 保存速度の計測実験を実行するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 3) {
+            System.out.println("Parameters: <Directory> <Total MB> <Sockets>");
+            return;
+        }
+        try {
+            // 保存先のディレクトリ，アップロードする総データサイズ，ソケット数を引数から取得する．
+            Path directory  = Paths.get(args[0]);
+            int  totalSize  = Integer.parseInt(args[1]) * MEGA_BYTE;
+            int  numSockets = Integer.parseInt(args[2]);
+            
+            // コンソールへのログ出力用のインスタンスを生成する．
+            ConsoleLogger clog = new ConsoleLogger();
+            
+            // ファイルへのログ出力用のインスタンスを，結果用とサーバ用に生成する．
+            long       now_ms = System.currentTimeMillis();
+            FileLogger flog   = new FileLogger(String.format("persist_%d.txt", now_ms));
+            FileLogger slog   = new FileLogger(String.format("persist_server_%d.txt", now_ms));
+            // IOException
+            
+            // 実験用のインスタンスを生成し，実験を実行する．
+            PersistUploadExperiment experiment = new PersistUploadExperiment(
+                directory, totalSize, numSockets, clog, flog, slog
+            );
+            experiment.execute();
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    // インスタンス変数：
+    private final Path          directory;  // 保存先のディレクトリ
+    private final int           totalSize;  // アップロードする総データサイズ
+    private final int           numSockets; // 同時に利用するソケット数
+    private final ConsoleLogger clog;       // コンソールへの出力用 Logger
+    private final FileLogger    flog;       // 結果のファイルへの出力用 Logger
+    private final FileLogger    slog;       // サーバのログのファイルへの出力用 Logger
+    
+    /**
+     * PersistUploadExperiment のインスタンスを生成する．
+     */
+    PersistUploadExperiment(
+        Path directory, int totalSize, int numSockets,
+        ConsoleLogger clog, FileLogger flog, FileLogger slog
+    )
+    {
+        this.directory = directory;
+        this.totalSize = totalSize;
+        this.numSockets = numSockets;
+        this.clog = clog;
+        this.flog = flog;
+        this.slog = slog;
+    }
+    
+    /**
+     * 書き込み方法と同期の契機の組み合わせ毎に保存速度を計測し，結果を出力する．
+     */
+    void execute()
+        throws Exception
+    {
+        this.flog.printf("strategy\tsync\tclient_MB_per_sec\tserver_MB_per_sec\tsync_ms\n");
+        for (PersistUploadProtocolFactory.Strategy strategy
+            : PersistUploadProtocolFactory.Strategy.values()) {
+            for (PersistUploadProtocolFactory.Sync sync
+                : PersistUploadProtocolFactory.Sync.values()) {
+                measure(strategy, sync);
+            }
+        }
+        this.flog.close();
+        this.slog.close();
+    }
+    
+    /**
+     * 1つの組み合わせについて，サーバを起動してアップロードを繰り返し，結果を出力する．
+     */
+    private void measure(
+        PersistUploadProtocolFactory.Strategy strategy, PersistUploadProtocolFactory.Sync sync
+    )
+        throws Exception
+    {
+        // 保存したファイルを残さない設定で，プロトコルファクトリを生成する．
+        PersistUploadProtocolFactory factory = new PersistUploadProtocolFactory(
+            this.directory, strategy, sync, SYNC_INTERVAL_MB, false
+        );
+        // ループバックアドレスの空いているポートで待ち受けるソケットを生成し，
+        // デーモンスレッドでサーバのディスパッチ処理を開始する．
+        ServerSocket servSock = ServerSocketChannel.open().socket();
+        servSock.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread server = new Thread(
+            () -> new ThreadPerConnectionDispatcher().startDispatching(
+                servSock, factory, this.slog
+            )
+        );
+        server.setDaemon(true);
+        server.start();
+        
+        // アップロードを TRY_COUNT 回繰り返し，経過時間の合計を求める．
+        long totalTime_ns = 0;
+        for (int i = 0; i < TRY_COUNT; i++) {
+            MultiThreadUploader uploader = new MultiThreadUploader(
+                servSock.getInetAddress().getHostAddress(), servSock.getLocalPort(),
+                this.totalSize, BUF_SIZE, this.numSockets
+            );
+            long startTime_ns = System.nanoTime();
+            uploader.upload();
+            // InterruptedException, ExecutionException
+            totalTime_ns += System.nanoTime() - startTime_ns;
+        }
+        // クライアントが計測したスループットと，サーバ側で計測した書き込み速度を出力する．
+        double clientMbps = ((double)this.totalSize * TRY_COUNT / MEGA_BYTE)
+            / (totalTime_ns / 1e9);
+        double serverMbps = factory.getThroughput();
+        double sync_ms    = factory.getSyncMillis() / TRY_COUNT;
+        this.clog.printf(
+            "%-12s %-8s：クライアント %8.1f MB/s，サーバ(コネクション当たり) %8.1f MB/s，同期 %8.1f ms/回\n",
+            strategy, sync, clientMbps, serverMbps, sync_ms
+        );
+        this.flog.printf(
+            "%s\t%s\t%.1f\t%.1f\t%.1f\n", strategy, sync, clientMbps, serverMbps, sync_ms
+        );
+    }
+}
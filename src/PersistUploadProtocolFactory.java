@@ -0,0 +1,509 @@
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PersistUploadProtocol のインスタンスを生成するためのファクトリ
+ * <p>
+ * 受信したデータの保存方法は，下記のシステムプロパティで指定できる．
+ * <ul>
+ * <li>PersistUploadProtocolFactory.directory：保存先のディレクトリ(既定値は upload)
+ * <li>PersistUploadProtocolFactory.strategy：TransferFrom，Mapped または Buffered
+ * (既定値は TransferFrom)
+ * <li>PersistUploadProtocolFactory.sync：None，OnClose または Interval(既定値は OnClose)
+ * <li>PersistUploadProtocolFactory.syncIntervalMB：Interval の場合に同期する間隔(MB)
+ * (既定値は 64)
+ * <li>PersistUploadProtocolFactory.keepFiles：保存したファイルを残すか否か(既定値は true)
+ * </ul>
+ */
+public class PersistUploadProtocolFactory
+    implements
+        ProtocolFactory
+{
+    // クラス変数（定数）：
+    static final int MEGA_BYTE = 1024 * 1024;
+    
+    /**
+     * ファイルへの書き込み方法
+     */
+    enum Strategy
+    {
+        TransferFrom,   // FileChannel.transferFrom でソケットのチャネルから直接書き込む．
+        Mapped,         // 事前に確保したファイルをメモリへマップし，そこへ受信する．
+        Buffered        // ヒープ上のバッファへ受信し，一杯になる毎に書き込む．
+    }
+    
+    /**
+     * ファイルの内容をディスクへ同期する契機
+     */
+    enum Sync
+    {
+        None,           // 同期しない(OS に任せる)．
+        OnClose,        // ファイルを閉じる前に同期する．
+        Interval        // syncIntervalMB 毎と，ファイルを閉じる前に同期する．
+    }
+    
+    // インスタンス変数：
+    private final Path     directory;       // 保存先のディレクトリ
+    private final Strategy strategy;        // ファイルへの書き込み方法
+    private final Sync     sync;            // ディスクへ同期する契機
+    private final long     syncInterval;    // Interval の場合に同期する間隔(バイト)
+    private final boolean  keepFiles;       // 保存したファイルを残すか否か
+    
+    private final LongAdder numFiles      = new LongAdder();    // 保存したファイル数
+    private final LongAdder bytesWritten  = new LongAdder();    // 書き込んだ総バイト数
+    private final LongAdder writeNanos    = new LongAdder();    // 受信と書き込みに要した時間(ns)
+    private final LongAdder syncNanos     = new LongAdder();    // 同期に要した時間(ns)
+    
+    /**
+     * システムプロパティの設定値で PersistUploadProtocolFactory のインスタンスを生成する．
+     */
+    public PersistUploadProtocolFactory()
+    {
+        this(
+            Paths.get(System.getProperty("PersistUploadProtocolFactory.directory", "upload")),
+            Strategy.valueOf(
+                System.getProperty("PersistUploadProtocolFactory.strategy", "TransferFrom")
+            ),
+            Sync.valueOf(System.getProperty("PersistUploadProtocolFactory.sync", "OnClose")),
+            Integer.getInteger("PersistUploadProtocolFactory.syncIntervalMB", 64),
+            Boolean.parseBoolean(
+                System.getProperty("PersistUploadProtocolFactory.keepFiles", "true")
+            )
+        );
+    }
+    
+    /**
+     * 保存先のディレクトリ，書き込み方法，同期の契機と間隔(MB)，
+     * ファイルを残すか否かを指定して PersistUploadProtocolFactory のインスタンスを生成する．
+     */
+    PersistUploadProtocolFactory(
+        Path directory, Strategy strategy, Sync sync, int syncIntervalMB, boolean keepFiles
+    )
+    {
+        this.directory = directory;
+        this.strategy = strategy;
+        this.sync = sync;
+        this.syncInterval = (long)syncIntervalMB * MEGA_BYTE;
+        this.keepFiles = keepFiles;
+    }
+    
+    /**
+     * PersistUploadProtocol のインスタンスを生成し，Runnable インターフェースとして返す．
+     */
+    @Override
+    public Runnable createProtocol(Socket clntSock, Logger logger)
+    {
+        return new PersistUploadProtocol(clntSock, logger, this);
+    }
+    
+    /**
+     * ファイルへの書き込み方法を返す．
+     */
+    Strategy getStrategy()
+    {
+        return this.strategy;
+    }
+    
+    /**
+     * ディスクへ同期する契機を返す．
+     */
+    Sync getSync()
+    {
+        return this.sync;
+    }
+    
+    /**
+     * Interval の場合に同期する間隔(バイト)を返す．
+     */
+    long getSyncInterval()
+    {
+        return this.syncInterval;
+    }
+    
+    /**
+     * 保存先のディレクトリ内に，新しいファイルを生成する．
+     */
+    Path createFile()
+        throws IOException
+    {
+        Files.createDirectories(this.directory);
+        return Files.createTempFile(this.directory, "upload_", ".dat");
+    }
+    
+    /**
+     * 1つのファイルの保存結果を集計する．保存したファイルを残さない設定の場合は削除する．
+     */
+    void record(Path file, long bytes, long write_ns, long sync_ns)
+        throws IOException
+    {
+        this.numFiles.increment();
+        this.bytesWritten.add(bytes);
+        this.writeNanos.add(write_ns);
+        this.syncNanos.add(sync_ns);
+        if (!this.keepFiles) {
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    /**
+     * これまでに保存したファイル数を返す．
+     */
+    long getFileCount()
+    {
+        return this.numFiles.sum();
+    }
+    
+    /**
+     * これまでに保存したデータの書き込み速度(MB/s)を返す．
+     * コネクション毎の受信と書き込み，同期に要した時間の合計を基準とする．
+     */
+    double getThroughput()
+    {
+        long total_ns = this.writeNanos.sum() + this.syncNanos.sum();
+        if (total_ns == 0) {
+            return 0.0;
+        }
+        return ((double)this.bytesWritten.sum() / MEGA_BYTE) / (total_ns / 1e9);
+    }
+    
+    /**
+     * これまでに同期に要した時間の合計(ms)を返す．
+     */
+    double getSyncMillis()
+    {
+        return this.syncNanos.sum() / 1e6;
+    }
+}
+
+/**
+ * 連続データを受信し，コネクション毎に1つのファイルへ保存するサーバ側の機能の実装
+ * <p>
+ * 受信するデータの形式は UploadProtocol と同じで，先頭のヘッダ(4バイトまたは 12バイト)の
+ * データサイズは保存しない．トレーラ(CHECKSUM_FLAG)と圧縮(COMPRESS_FLAG)には対応しないため，
+ * いずれかのフラグが立っているコネクションは，保存せずに閉じる．
+ * データサイズ分を受信する前にクライアントが切断した場合や，受信・書き込みで例外が発生した
+ * 場合は，途中まで書き込んだファイルを削除し，保存結果として集計しない．
+ * ファイルへの書き込みと同期を終えてからソケットを閉じるため，
+ * クライアントが計測するアップロード時間には保存に要する時間が含まれる．
+ */
+class PersistUploadProtocol
+    implements
+        Runnable
+{
+    // クラス変数（定数）：
+    static private final int  BUF_SIZE       = 64 * 1024;           // Buffered の場合のバッファサイズ
+    static private final long TRANSFER_CHUNK = 1024 * 1024;         // transferFrom 1回の最大転送量
+    static private final long MAP_WINDOW     = 64L * 1024 * 1024;   // 1回にマップする最大サイズ
+    
+    // インスタンス変数：
+    private final Socket                       clntSock;   // クライアントと通信するためのソケット
+    private final Logger                       logger;     // ログ出力用の Logger インスタンス
+    private final PersistUploadProtocolFactory factory;    // 保存方法の設定と集計結果を持つファクトリ
+    
+    private long syncNanos     = 0;     // 同期に要した時間(ns)
+    private long unsyncedBytes = 0;     // 前回の同期以降に書き込んだバイト数
+    
+    /**
+     * PersistUploadProtocol のインスタンスを生成する．
+     */
+    public PersistUploadProtocol(
+        Socket clntSock, Logger logger, PersistUploadProtocolFactory factory
+    )
+    {
+        this.clntSock = clntSock;
+        this.logger = logger;
+        this.factory = factory;
+    }
+    
+    /**
+     * クライアントが要求するサイズ分のデータを受信し，ファイルへ保存する．
+     */
+    @Override
+    public void run()
+    {
+        try {
+            // ソケットのチャネルを取得する．
+            // チャネルを持たないソケットの場合は，入力ストリームをチャネルとして扱う．
+            ReadableByteChannel src = this.clntSock.getChannel();
+            if (src == null) {
+                src = Channels.newChannel(this.clntSock.getInputStream());
+            }
+            // このソケットから受信する最初の 4バイトには，
+            // ソケット毎に受信すべきデータサイズが格納されているので，それを求める．
+            // 下位 30ビットが LONG_SIZE の場合は，続く 8バイトにデータサイズが格納されている．
+            ByteBuffer sizeBuffer = ByteBuffer.allocate(UploadProtocolFactory.LONG_HEADER_SIZE);
+            sizeBuffer.limit(UploadProtocolFactory.HEADER_SIZE);
+            readFully(src, sizeBuffer);
+            int header     = sizeBuffer.getInt(0);
+            int headerSize = UploadProtocolFactory.headerSizeOf(header);
+            sizeBuffer.limit(headerSize);
+            readFully(src, sizeBuffer);
+            sizeBuffer.flip();
+            ServerMetrics.getInstance().addBytesIn(headerSize);
+            
+            // トレーラと圧縮には対応しないため，上位 2ビットのフラグが立っていれば拒否する．
+            if ((header & ~UploadProtocolFactory.SIZE_MASK) != 0) {
+                throw new IOException(
+                    String.format("対応していないフラグが指定されました：0x%08x", header)
+                );
+            }
+            long dataSize = UploadProtocolFactory.decodeSize(sizeBuffer) - headerSize;
+            if (dataSize < 0) {
+                throw new IOException("ソケット毎に受信すべきデータサイズが不正です：" + dataSize);
+            }
+            
+            // 保存先のファイルを生成し，書き込み方法に従ってデータを保存する．
+            Path file = this.factory.createFile();
+            long startTime_ns = System.nanoTime();
+            long bytesWritten;
+            try (
+                FileChannel fileChan = FileChannel.open(
+                    file, StandardOpenOption.READ, StandardOpenOption.WRITE
+                )
+            ) {
+                switch (this.factory.getStrategy()) {
+                case TransferFrom:
+                    bytesWritten = transferFrom(src, fileChan, dataSize);
+                    break;
+                case Mapped:
+                    bytesWritten = writeMapped(src, fileChan, dataSize);
+                    break;
+                default:
+                    bytesWritten = writeBuffered(src, fileChan, dataSize);
+                    break;
+                }
+                // データサイズ分を受信する前にクライアントが切断した場合は，保存に失敗した．
+                if (bytesWritten < dataSize) {
+                    throw new IOException(
+                        String.format(
+                            "データの受信途中で切断されました：%,d / %,d バイト",
+                            bytesWritten, dataSize
+                        )
+                    );
+                }
+                // 同期の契機が OnClose の場合と，Interval で同期していないデータが残る場合は，
+                // ファイルを閉じる前に同期する．Mapped の場合は，writeMapped が
+                // 各領域をマップしたバッファで同期済みのため，ここでは同期しない．
+                boolean isSynced = (this.unsyncedBytes == 0) && !isOnClose();
+                boolean isMapped = this.factory.getStrategy()
+                    == PersistUploadProtocolFactory.Strategy.Mapped;
+                if (!isMapped && !isSynced) {
+                    force(fileChan, null);
+                }
+            }
+            catch (IOException ex) {
+                // 保存に失敗した場合は，途中まで書き込んだファイルを削除する．
+                Files.deleteIfExists(file);
+                throw ex;
+            }
+            long elapsed_ns = System.nanoTime() - startTime_ns;
+            this.factory.record(file, bytesWritten, elapsed_ns - this.syncNanos, this.syncNanos);
+            
+            // 保存結果をログに出力する．
+            this.logger.printf(
+                "保存完了（方式：%s，同期：%s）：%,d バイト，%.1f MB/s，同期 %.1f ms\n",
+                this.factory.getStrategy(), this.factory.getSync(), bytesWritten,
+                ((double)bytesWritten / PersistUploadProtocolFactory.MEGA_BYTE)
+                    / (elapsed_ns / 1e9),
+                this.syncNanos / 1e6
+            );
+        }
+        catch (IOException ex) {
+            this.logger.println("例外発生：" + ex.getMessage());
+        }
+        finally {
+            try {
+                // ソケットを閉じる．
+                this.clntSock.close();
+                // IOException
+            }
+            catch (IOException ex) {
+                this.logger.println("例外発生：" + ex.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * バッファのリミットまで受信する．
+     */
+    private void readFully(ReadableByteChannel src, ByteBuffer buffer)
+        throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            if (read(src, buffer) == -1) {
+                throw new IOException("ソケット毎に受信すべきデータサイズの取得に失敗しました．");
+            }
+        }
+    }
+    
+    /**
+     * ソケットのチャネルからバッファへ，TimedSocket.timedRead で受信待ちを記録しながら受信する．
+     */
+    private int read(ReadableByteChannel src, ByteBuffer buffer)
+        throws IOException
+    {
+        return (int)TimedSocket.timedRead(this.clntSock, () -> src.read(buffer));
+    }
+    
+    /**
+     * FileChannel.transferFrom により，ソケットのチャネルからファイルへ直接書き込む．
+     */
+    private long transferFrom(ReadableByteChannel src, FileChannel fileChan, long dataSize)
+        throws IOException
+    {
+        long position = 0;
+        while (position < dataSize) {
+            long count = Math.min(TRANSFER_CHUNK, dataSize - position);
+            long from  = position;
+            long bytes = TimedSocket.timedRead(
+                this.clntSock, () -> fileChan.transferFrom(src, from, count)
+            );
+            
+            // 転送できなかった場合は，クライアントがソケットを閉じたものとする．
+            if (bytes == 0) {
+                break;
+            }
+            position += bytes;
+            ServerMetrics.getInstance().addBytesIn(bytes);
+            syncIfNeeded(fileChan, null, bytes);
+        }
+        return position;
+    }
+    
+    /**
+     * 受信すべきサイズ分の領域をマップし，ソケットのチャネルからマップした領域へ直接受信する．
+     * マップは MAP_WINDOW 毎に行う．マップの度にファイルが拡張されないよう，
+     * 最初にファイルを受信すべきサイズまで拡張しておく．
+     */
+    private long writeMapped(ReadableByteChannel src, FileChannel fileChan, long dataSize)
+        throws IOException
+    {
+        // 最後の 1バイトを書き込み，ファイルを受信すべきサイズまで拡張する．
+        if (dataSize > 0) {
+            fileChan.write(ByteBuffer.allocate(1), dataSize - 1);
+        }
+        long position = 0;
+        while (position < dataSize) {
+            // 次の領域をマップする．
+            long             size   = Math.min(MAP_WINDOW, dataSize - position);
+            MappedByteBuffer mapped = fileChan.map(FileChannel.MapMode.READ_WRITE, position, size);
+            
+            // マップした領域が一杯になるまで受信する．
+            while (mapped.hasRemaining()) {
+                int bytes = read(src, mapped);
+                if (bytes == -1) {
+                    break;
+                }
+                ServerMetrics.getInstance().addBytesIn(bytes);
+                syncIfNeeded(fileChan, mapped, bytes);
+            }
+            position += mapped.position();
+            
+            // OnClose の場合と，Interval で同期していないデータが残る場合は，
+            // 次の領域へ移る前に(最後の領域はファイルを閉じる前に)この領域の内容を同期する．
+            // マップしたバッファを通した変更は FileChannel.force では同期が保証されないため，
+            // 各領域はそのバッファで同期する．
+            if (isOnClose() || (this.unsyncedBytes > 0)) {
+                force(fileChan, mapped);
+            }
+            // クライアントがソケットを閉じた場合は，受信した位置でファイルを切り詰める．
+            if (mapped.hasRemaining()) {
+                fileChan.truncate(position);
+                break;
+            }
+        }
+        return position;
+    }
+    
+    /**
+     * ヒープ上のバッファへ受信し，バッファが一杯になる毎にファイルへ書き込む．
+     */
+    private long writeBuffered(ReadableByteChannel src, FileChannel fileChan, long dataSize)
+        throws IOException
+    {
+        ByteBuffer buffer   = BufferPool.getHeapInstance().acquire(BUF_SIZE);
+        long       position = 0;
+        boolean    isEnd    = false;
+        try {
+            while (!isEnd && (position < dataSize)) {
+                // バッファが一杯になるか，受信すべきデータが無くなるまで受信する．
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), dataSize - position));
+                while (buffer.hasRemaining()) {
+                    int bytes = read(src, buffer);
+                    if (bytes == -1) {
+                        isEnd = true;
+                        break;
+                    }
+                    ServerMetrics.getInstance().addBytesIn(bytes);
+                }
+                // 受信したデータをファイルへ書き込む．
+                buffer.flip();
+                int length = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    fileChan.write(buffer);
+                }
+                position += length;
+                syncIfNeeded(fileChan, null, length);
+            }
+            return position;
+        }
+        finally {
+            // バッファをプールへ返す．
+            BufferPool.getHeapInstance().release(buffer);
+        }
+    }
+    
+    /**
+     * 同期の契機が Interval の場合に，前回の同期以降に書き込んだデータ量が
+     * 同期する間隔を超えていれば同期する．
+     */
+    private void syncIfNeeded(FileChannel fileChan, MappedByteBuffer mapped, long bytes)
+        throws IOException
+    {
+        if (this.factory.getSync() != PersistUploadProtocolFactory.Sync.Interval) {
+            return;
+        }
+        this.unsyncedBytes += bytes;
+        if (this.unsyncedBytes >= this.factory.getSyncInterval()) {
+            force(fileChan, mapped);
+        }
+    }
+    
+    /**
+     * 同期の契機が OnClose か否かを返す．
+     */
+    private boolean isOnClose()
+    {
+        return this.factory.getSync() == PersistUploadProtocolFactory.Sync.OnClose;
+    }
+    
+    /**
+     * ファイルの内容をディスクへ同期する．
+     * マップした領域へ書き込んでいる場合は，そのバッファ(mapped)で同期する．
+     */
+    private void force(FileChannel fileChan, MappedByteBuffer mapped)
+        throws IOException
+    {
+        long start_ns = System.nanoTime();
+        if (mapped != null) {
+            mapped.force();
+        }
+        else {
+            fileChan.force(false);
+        }
+        this.syncNanos += System.nanoTime() - start_ns;
+        this.unsyncedBytes = 0;
+    }
+}
@@ -1,69 +1,169 @@
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 各種プロトコル起動用のクラス
+ * <p>
+ * 引数で1つのリスナー(ポート番号・プロトコル・ディスパッチャの組)を指定するか，
+ * 設定ファイルで複数のリスナーを指定する．設定ファイルの各行には，
+ * <code>&lt;Port&gt; &lt;Protocol&gt; &lt;Dispatcher&gt; [Tls]</code> を空白区切りで記述する．
+ * 4つ目に Tls を指定したリスナーは，TlsContext の設定で送受信を TLS で暗号化する．
+ * TLS は，ブロッキング入出力のディスパッチャと，LayeredChannelProtocolFactory を実装した
+ * プロトコル(Echo・Upload)のノンブロッキング入出力のディスパッチャで利用できる．
+ * 空行と，'#' から行末まではコメントとして無視する．
+ * 全てのリスナーは同じ JVM 内で動作し，ServerMetrics の計測値は全リスナーの合計となる．
+ * ディスパッチャに DatagramSelector を指定したリスナーは，TCPではなく
+ * UDPのデータグラムを処理するため，TCPのリスナーと同じポート番号を指定できる．
+ * <p>
+ * プロトコルファクトリは ProtocolRegistry により ServiceLoader で検索する．
+ * ディスパッチャに SharedPool を指定したリスナーは，1つのスレッドプールを共有する．
+ * <p>
+ * 下記のシステムプロパティで，コネクション要求の受け付け方を指定できる．
+ * <ul>
+ * <li>ProtocolLauncher.backlog：TCPコネクション要求処理用のキューの長さ(既定値は 8)
+ * <li>ProtocolLauncher.acceptors：リスナー毎に，同じポート番号で待ち受けるソケット数
+ * (既定値は 1)．
+ * 2 以上の場合は，各ソケットに SO_REUSEPORT を設定し，
+ * ソケット毎にディスパッチャのインスタンスを生成する．
+ * カーネルがコネクション要求を各ソケットへ振り分ける．
+ * <li>ProtocolLauncher.sharedThreads：SharedPool のリスナーが共有するスレッド数(既定値は 64)
+ * </ul>
+ * Echo・Upload のプロトコルの帯域は，TrafficShaper のシステムプロパティで制限できる．
  */
 public class ProtocolLauncher
 {
     // クラス変数（定数）：
-    static private final int BACKLOG = 8;   // TCPコネクション要求処理用のキューの長さ
+    static private final int    BACKLOG        = 8;     // TCPコネクション要求のキュー長(既定値)
+    static private final int    SHARED_THREADS = 64;    // 共有するスレッド数(既定値)
+    static private final String SHARED_POOL    = "SharedPool";  // 共有するディスパッチャの名前
+    static private final String TLS            = "Tls";         // TLS を利用するリスナーの指定
     
     /**
-     * 引数で指定されたプロトコルとディスパッチャにより， サーバ側のプロトコル処理を開始する．
+     * 引数または設定ファイルで指定されたリスナー毎に，
+     * プロトコルとディスパッチャにより，サーバ側のプロトコル処理を開始する．
      */
     public static void main(String[] args)
     {
-        // 引数の数を確認する．
-        if (args.length != 3) {
-            System.err.println("Parameter(s): <Port> <Protocol> <Dispatcher>");
+        // 引数の数を確認し，リスナーのリストを取得する．
+        // 各リスナーは (a) サーバのポート番号，(b) 利用するプロトコルファクトリクラス名の接頭辞，
+        // (c) 利用するディスパッチャクラス名の接頭辞，(d) TLS を利用する場合は Tls の組とする．
+        List<String[]> listeners;
+        if ((args.length == 3) || ((args.length == 4) && args[3].equals(TLS))) {
+            listeners = new ArrayList<String[]>();
+            listeners.add(args);
+        }
+        else if (args.length == 1) {
+            try {
+                listeners = readListeners(args[0]);
+            }
+            catch (IOException ex) {
+                System.err.println("設定ファイルを読み込めません：" + ex.getMessage());
+                return;
+            }
+            catch (IllegalArgumentException ex) {
+                System.err.println("設定ファイルの形式が不正です：" + ex.getMessage());
+                return;
+            }
+        }
+        else {
+            System.err.println(
+                "Parameter(s): <Port> <Protocol> <Dispatcher> [Tls] | <Config File>"
+            );
             return;
         }
-        // 引数から下記(a)〜(c)を取得する．
-        // (a) サーバのポート番号
-        // (b) 利用するプロトコルファクトリクラス名の接頭辞
-        // (c) 利用するディスパッチャクラス名の接頭辞
-        int    servPort       = Integer.parseInt(args[0]);
-        String factoryName    = args[1] + "ProtocolFactory";
-        String dispatcherName = args[2] + "Dispatcher";
+        // システムプロパティから，キューの長さ，待ち受けるソケット数，
+        // 共有するスレッド数を取得する．
+        int     backlog       = Integer.getInteger("ProtocolLauncher.backlog", BACKLOG);
+        int     numAcceptors  = Integer.getInteger("ProtocolLauncher.acceptors", 1);
+        int     sharedThreads = Integer.getInteger(
+            "ProtocolLauncher.sharedThreads", SHARED_THREADS
+        );
+        boolean reusePort     = (numAcceptors > 1);
         
         try {
-            // TCPのコネクション要求を処理するためのソケットを生成する．
-            ServerSocket servSock = new ServerSocket(servPort, BACKLOG);
-            // 例外：IOException
-            
-            // プロトコルファクトリのインスタンスを取得する．
-            // 発生する可能性のある例外は以下の通り...(A)
-            // forName():
-            //      ClassNotFoundException
-            // getDeclaredConstructor():
-            //      NoSuchMethodException
-            // newInstance():
-            //      InstantiationException, IllegalAccessException, InvocationTargetException
-            ProtocolFactory factory = (ProtocolFactory)Class
-                .forName(factoryName)
-                .getDeclaredConstructor()
-                .newInstance();
-            
-            // ディスパッチャのインスタンスを取得する．
-            // 発生する可能性のある例外は，上記(A)と同じ．
-            Dispatcher dispatcher = (Dispatcher)Class
-                .forName(dispatcherName)
-                .getDeclaredConstructor()
-                .newInstance();
-            
             // コンソール出力用の Logger を生成する．
             Logger logger = new ConsoleLogger();
             
-            // ディスパッチャ内でプロトコルファクトリを利用し，
-            // サーバ側のプロトコル処理を開始する．
-            dispatcher.startDispatching(servSock, factory, logger);
+            // 計測値の公開と，要約の定期的な出力を開始する．
+            ServerMetrics.getInstance().start(logger);
+            
+            // 帯域制限の設定を出力する．
+            logger.printf("%s\n", TrafficShaper.getInstance());
+            
+            // SharedPool のリスナーがある場合は，共有するスレッドプールを生成する．
+            // TLS を利用するリスナーがある場合は，全リスナーで共有する TLS の設定を読み込む．
+            ExecutorService sharedPool = null;
+            TlsContext      tlsContext = null;
+            for (String[] listener : listeners) {
+                if (listener[2].equals(SHARED_POOL) && (sharedPool == null)) {
+                    sharedPool = createSharedPool(sharedThreads);
+                    logger.printf("共有スレッドプール：スレッド数 %d\n", sharedThreads);
+                }
+                if ((listener.length == 4) && (tlsContext == null)) {
+                    tlsContext = new TlsContext();
+                    logger.printf("%s\n", tlsContext);
+                }
+            }
+            // リスナー毎に，待ち受けるソケット数分，ソケットの生成とディスパッチャの準備を行う．
+            List<Runnable> acceptors = new ArrayList<Runnable>();
+            for (String[] listener : listeners) {
+                int        servPort       = Integer.parseInt(listener[0]);
+                String     protocolName   = listener[1];
+                String     dispatcherName = listener[2] + "Dispatcher";
+                TlsContext tls            = (listener.length == 4) ? tlsContext : null;
+                for (int i = 0; i < numAcceptors; i++) {
+                    acceptors.add(
+                        prepareAcceptor(
+                            servPort, backlog, reusePort, protocolName, dispatcherName,
+                            sharedPool, tls, logger
+                        )
+                    );
+                }
+                logger.printf(
+                    "リスナー：ポート %d，%s，%s%s\n",
+                    servPort, protocolName, dispatcherName, (tls != null) ? "，TLS" : ""
+                );
+            }
+            // 最後の1つ以外は，新たに生成したスレッドでディスパッチ処理を開始する．
+            for (int i = 0; i < acceptors.size() - 1; i++) {
+                Thread thread = new Thread(acceptors.get(i), "Acceptor-" + i);
+                thread.start();
+            }
+            // 最後の1つは，main スレッドでディスパッチ処理を開始する．
+            acceptors.get(acceptors.size() - 1).run();
         }
         catch (IOException ex) {
             System.err.println("ServerSocket の生成に失敗しました：" + ex.getMessage());
         }
+        catch (GeneralSecurityException ex) {
+            System.err.println("TLS の設定に失敗しました：" + ex.getMessage());
+        }
+        catch (UnsupportedOperationException ex) {
+            System.err.println("SO_REUSEPORT を利用できません：" + ex.getMessage());
+        }
+        catch (NumberFormatException ex) {
+            System.err.println("ポート番号が不正です：" + ex.getMessage());
+        }
+        catch (IllegalArgumentException ex) {
+            System.err.println("リスナーの指定が不正です：" + ex.getMessage());
+        }
         catch (
             ClassNotFoundException
             | NoSuchMethodException
@@ -71,5 +171,219 @@ public class ProtocolLauncher
         ) {
             System.err.println("インスタンスの生成に失敗しました：" + ex.getMessage());
         }
+        catch (ServiceConfigurationError ex) {
+            System.err.println("プロトコルファクトリの生成に失敗しました：" + ex.getMessage());
+        }
+    }
+    
+    /**
+     * 設定ファイルを読み込み，リスナー毎のポート番号・プロトコル・ディスパッチャ(・Tls)の組を返す．
+     * 形式が不正な場合は IllegalArgumentException を投げる．
+     */
+    private static List<String[]> readListeners(String fileName)
+        throws IOException
+    {
+        List<String[]> listeners = new ArrayList<String[]>();
+        List<String>   lines     = Files.readAllLines(Paths.get(fileName));
+        for (int i = 0; i < lines.size(); i++) {
+            // '#' から行末まではコメントとして除き，空行は読み飛ばす．
+            String line    = lines.get(i);
+            int    comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            boolean  isTls  = (fields.length == 4) && fields[3].equals(TLS);
+            if ((fields.length != 3) && !isTls) {
+                throw new IllegalArgumentException((i + 1) + "行目：" + line);
+            }
+            listeners.add(fields);
+        }
+        if (listeners.isEmpty()) {
+            throw new IllegalArgumentException("リスナーが指定されていません");
+        }
+        return listeners;
+    }
+    
+    /**
+     * SharedPool のリスナーが共有する，固定数のスレッドを持つスレッドプールを生成する．
+     */
+    private static ExecutorService createSharedPool(int numThreads)
+    {
+        AtomicInteger threadIndex = new AtomicInteger();
+        return Executors.newFixedThreadPool(
+            numThreads,
+            runnable -> new Thread(runnable, "SharedWorker-" + threadIndex.getAndIncrement())
+        );
+    }
+    
+    /**
+     * コネクション要求を処理するためのソケット(またはチャネル)を生成し，
+     * ディスパッチャとプロトコルファクトリのインスタンスを取得する．
+     * TLS の設定が null でなければ，プロトコルファクトリを TLS 用のファクトリで包む．
+     * 戻り値の Runnable を実行すると，ディスパッチ処理を開始する．
+     */
+    private static Runnable prepareAcceptor(
+        int servPort, int backlog, boolean reusePort, String protocolName,
+        String dispatcherName, ExecutorService sharedPool, TlsContext tls, Logger logger
+    )
+        throws IOException,
+            ClassNotFoundException,
+            NoSuchMethodException,
+            InstantiationException,
+            IllegalAccessException,
+            InvocationTargetException
+    {
+        // ディスパッチャのインスタンスを取得する．
+        // SharedPool の場合は，共有するスレッドプールを渡して生成する．
+        Object dispatcher;
+        if (dispatcherName.equals(SHARED_POOL + "Dispatcher")) {
+            dispatcher = new SharedPoolDispatcher(sharedPool);
+        }
+        else {
+            dispatcher = createInstance(dispatcherName);
+        }
+        
+        // 待ち受けるアドレス
+        InetSocketAddress servAddr = new InetSocketAddress(servPort);
+        
+        // 非同期チャネルとデータグラムのディスパッチャは TLS に対応していない．
+        boolean isTlsUnsupported = (dispatcher instanceof AsyncDispatcher)
+            || (dispatcher instanceof DatagramDispatcher);
+        if ((tls != null) && isTlsUnsupported) {
+            throw new IllegalArgumentException(dispatcherName + " は TLS に対応していません");
+        }
+        
+        if (dispatcher instanceof ChannelDispatcher) {
+            // チャネルを利用するディスパッチャの場合：
+            // TCPのコネクション要求を処理するためのチャネルを生成する．
+            ServerSocketChannel servChan = ServerSocketChannel.open();
+            if (reusePort) {
+                servChan.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            servChan.bind(servAddr, backlog);
+            // 例外：IOException, UnsupportedOperationException
+            
+            // ノンブロッキング入出力用のプロトコルファクトリのインスタンスを取得する．
+            // TLS を利用する場合は，TlsChannel 経由で送受信するプロトコルを生成させる．
+            ChannelProtocolFactory factory = withTls(
+                ProtocolRegistry.load(
+                    ChannelProtocolFactory.class, protocolName + "ChannelProtocolFactory"
+                ),
+                protocolName, tls
+            );
+            // ディスパッチャ内でプロトコルファクトリを利用し，
+            // サーバ側のプロトコル処理を開始する．
+            return () -> ((ChannelDispatcher)dispatcher).startDispatching(
+                servChan, factory, logger
+            );
+        }
+        else if (dispatcher instanceof AsyncDispatcher) {
+            // 非同期チャネルを利用するディスパッチャの場合：
+            // ディスパッチャが用意するグループで，
+            // TCPのコネクション要求を処理するための非同期チャネルを生成する．
+            AsyncDispatcher                 asyncDispatcher = (AsyncDispatcher)dispatcher;
+            AsynchronousChannelGroup        group           = asyncDispatcher.createChannelGroup();
+            AsynchronousServerSocketChannel servChan        = AsynchronousServerSocketChannel
+                .open(group);
+            if (reusePort) {
+                servChan.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            servChan.bind(servAddr, backlog);
+            // 例外：IOException, UnsupportedOperationException
+            
+            // 非同期チャネル用のプロトコルファクトリのインスタンスを取得する．
+            AsyncProtocolFactory factory = ProtocolRegistry.load(
+                AsyncProtocolFactory.class, protocolName + "AsyncProtocolFactory"
+            );
+            // ディスパッチャ内でプロトコルファクトリを利用し，
+            // サーバ側のプロトコル処理を開始する．
+            return () -> asyncDispatcher.startDispatching(servChan, factory, logger);
+        }
+        else if (dispatcher instanceof DatagramDispatcher) {
+            // データグラムチャネルを利用するディスパッチャの場合：
+            // UDPのデータグラムを送受信するためのチャネルを生成する．
+            DatagramChannel chan = DatagramChannel.open();
+            if (reusePort) {
+                chan.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            chan.bind(servAddr);
+            // 例外：IOException, UnsupportedOperationException
+            
+            // データグラム用のプロトコルファクトリのインスタンスを取得する．
+            DatagramProtocolFactory factory = ProtocolRegistry.load(
+                DatagramProtocolFactory.class, protocolName + "DatagramProtocolFactory"
+            );
+            // ディスパッチャ内でプロトコルファクトリを利用し，
+            // サーバ側のプロトコル処理を開始する．
+            return () -> ((DatagramDispatcher)dispatcher).startDispatching(
+                chan, factory, logger
+            );
+        }
+        else {
+            // TCPのコネクション要求を処理するためのソケットを生成する．
+            // 確立したソケットからチャネルを取得できるように，チャネル経由で生成する．
+            ServerSocket servSock = ServerSocketChannel.open().socket();
+            if (reusePort) {
+                servSock.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            servSock.bind(servAddr, backlog);
+            // 例外：IOException, UnsupportedOperationException
+            
+            // プロトコルファクトリのインスタンスを取得する．
+            // TLS を利用する場合は，SSLSocket で包んだソケットをプロトコルに渡す．
+            ProtocolFactory loaded  = ProtocolRegistry.load(
+                ProtocolFactory.class, protocolName + "ProtocolFactory"
+            );
+            ProtocolFactory factory = (tls != null) ? new TlsProtocolFactory(loaded, tls) : loaded;
+            // ディスパッチャ内でプロトコルファクトリを利用し，
+            // サーバ側のプロトコル処理を開始する．
+            return () -> ((Dispatcher)dispatcher).startDispatching(servSock, factory, logger);
+        }
+    }
+    
+    /**
+     * TLS の設定が null でなければ，ノンブロッキング入出力用のプロトコルファクトリを
+     * TlsChannelProtocolFactory で包んで返す．
+     * TlsChannel 経由で送受信できないファクトリの場合は IllegalArgumentException を投げる．
+     */
+    private static ChannelProtocolFactory withTls(
+        ChannelProtocolFactory factory, String protocolName, TlsContext tls
+    )
+    {
+        if (tls == null) {
+            return factory;
+        }
+        if (!(factory instanceof LayeredChannelProtocolFactory)) {
+            throw new IllegalArgumentException(protocolName + " は TLS に対応していません");
+        }
+        return new TlsChannelProtocolFactory((LayeredChannelProtocolFactory)factory, tls);
+    }
+    
+    /**
+     * 与えられたクラス名のインスタンスを，引数無しのコンストラクタで生成する．
+     */
+    private static Object createInstance(String className)
+        throws ClassNotFoundException,
+            NoSuchMethodException,
+            InstantiationException,
+            IllegalAccessException,
+            InvocationTargetException
+    {
+        // 発生する可能性のある例外は以下の通り．
+        // forName():
+        //      ClassNotFoundException
+        // getDeclaredConstructor():
+        //      NoSuchMethodException
+        // newInstance():
+        //      InstantiationException, IllegalAccessException, InvocationTargetException
+        return Class
+            .forName(className)
+            .getDeclaredConstructor()
+            .newInstance();
     }
 }
@@ -0,0 +1,40 @@
+
+import java.util.ServiceLoader;
+
+/**
+ * プロトコルファクトリを ServiceLoader で検索するためのクラス
+ * <p>
+ * 利用できるプロトコルファクトリは，クラスパス上の下記のファイルに1行に1つずつクラス名を記述する．
+ * <ul>
+ * <li>META-INF/services/ProtocolFactory：ブロッキング入出力用
+ * <li>META-INF/services/ChannelProtocolFactory：ノンブロッキング入出力用
+ * <li>META-INF/services/AsyncProtocolFactory：非同期チャネル用
+ * <li>META-INF/services/DatagramProtocolFactory：データグラム用
+ * </ul>
+ * 各ファクトリクラスは public で，public な引数無しのコンストラクタを持つこと．
+ * 検索ではクラスのみを読み込み，インスタンスは指定されたクラスについてのみ生成する．
+ */
+class ProtocolRegistry
+{
+    /**
+     * 指定されたインターフェースを実装するプロトコルファクトリのうち，
+     * クラス名が一致するもののインスタンスを生成して返す．
+     * 登録されていない場合は ClassNotFoundException を投げる．
+     * インスタンスを生成できない場合は ServiceConfigurationError が投げられる．
+     */
+    static <T> T load(Class<T> service, String className)
+        throws ClassNotFoundException
+    {
+        return ServiceLoader
+            .load(service)
+            .stream()
+            .filter(provider -> provider.type().getName().equals(className))
+            .findFirst()
+            .orElseThrow(
+                () -> new ClassNotFoundException(
+                    className + " は " + service.getName() + " として登録されていません"
+                )
+            )
+            .get();
+    }
+}
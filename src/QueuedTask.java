@@ -0,0 +1,63 @@
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * キューでの待ち時間を計測するため，プロトコル処理用のインスタンスを包むクラス
+ * <p>
+ * コネクションを確立した時点でインスタンスを生成し，
+ * スレッドプール内のスレッドで処理が開始されるまでの時間を記録する．
+ * 処理開始までの時間とコネクションの継続時間は ServerMetrics にも記録する．
+ */
+class QueuedTask
+    implements
+        Runnable
+{
+    // インスタンス変数：
+    private final Socket            clntSock;       // クライアントと通信するためのソケット
+    private final Runnable          protocol;       // プロトコル処理用のインスタンス
+    private final LatencyStatistics waitStats;      // 待ち時間の記録先
+    private final long              enqueueTime_ns; // キューへ入れた時刻(ns)
+    
+    /**
+     * QueuedTask のインスタンスを生成し，コネクションの確立を記録する．
+     */
+    QueuedTask(Socket clntSock, Runnable protocol, LatencyStatistics waitStats)
+    {
+        this.clntSock = clntSock;
+        this.protocol = protocol;
+        this.waitStats = waitStats;
+        this.enqueueTime_ns = ServerMetrics.getInstance().connectionAccepted();
+    }
+    
+    /**
+     * キューでの待ち時間を記録し，プロトコルの処理を実行する．
+     */
+    @Override
+    public void run()
+    {
+        ServerMetrics metrics = ServerMetrics.getInstance();
+        this.waitStats.record(System.nanoTime() - this.enqueueTime_ns);
+        metrics.protocolStarted(this.enqueueTime_ns);
+        try {
+            this.protocol.run();
+        }
+        finally {
+            metrics.connectionClosed(this.enqueueTime_ns);
+        }
+    }
+    
+    /**
+     * 処理せずにコネクションを閉じる．
+     */
+    void close(Logger logger)
+    {
+        try {
+            this.clntSock.close();
+        }
+        catch (IOException ex) {
+            logger.printf("例外発生：%s\n", ex.getMessage());
+        }
+        ServerMetrics.getInstance().connectionClosed(this.enqueueTime_ns);
+    }
+}
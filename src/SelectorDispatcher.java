@@ -0,0 +1,201 @@
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * 1つのセレクタで全てのコネクションを多重化するディスパッチャ用のクラス
+ * <p>
+ * コネクション毎の無通信・受信待ち・送信待ちの時間の上限は，ConnectionTimeouts の
+ * システムプロパティで指定できる．タイミングホイールはセレクタのスレッドで進めるため，
+ * 上限を超えたコネクションの切断もこのスレッドで行う．
+ */
+class SelectorDispatcher
+    implements
+        ChannelDispatcher
+{
+    // インスタンス変数：
+    private final ConnectionTimeouts timeouts;  // コネクション毎の時間の上限
+    
+    /**
+     * システムプロパティの設定値で SelectorDispatcher のインスタンスを生成する．
+     */
+    SelectorDispatcher()
+    {
+        this(new ConnectionTimeouts());
+    }
+    
+    /**
+     * コネクション毎の時間の上限を指定して SelectorDispatcher のインスタンスを生成する．
+     */
+    SelectorDispatcher(ConnectionTimeouts timeouts)
+    {
+        this.timeouts = timeouts;
+    }
+    
+    /**
+     * セレクタによるディスパッチ処理を開始する．
+     */
+    @Override
+    public void startDispatching(
+        ServerSocketChannel servChan, ChannelProtocolFactory factory, Logger logger
+    )
+    {
+        // このメソッドを呼び出しているスレッド名を取得する．
+        String threadName = Thread.currentThread().getName();
+        
+        try (Selector selector = Selector.open()) {
+            // コネクション要求を受け付けるチャネルをノンブロッキングモードにし，
+            // セレクタに登録する．
+            servChan.configureBlocking(false);
+            servChan.register(selector, SelectionKey.OP_ACCEPT);
+            
+            // コネクション毎の時間を監視するタイミングホイールを生成する．
+            // 監視する場合は，1ティック毎に select() から戻るようにする．
+            HashedTimingWheel wheel      = this.timeouts.createWheel();
+            long              timeout_ms = (wheel != null) ? this.timeouts.getTick_ms() : 0;
+            
+            // このメソッドを呼び出しているスレッド名をログに出力する．
+            logger.printf("処理開始（スレッド名：%s，%s）\n", threadName, this.timeouts);
+            
+            // 入出力が可能になったチャネルを繰り返し処理する．
+            while (true) {
+                // いずれかのチャネルが入出力可能になるか，1ティックが経過するまで待つ．
+                selector.select(timeout_ms);
+                
+                // 入出力可能になったチャネルのキーを走査する．
+                Iterator<SelectionKey> keyIter = selector.selectedKeys().iterator();
+                while (keyIter.hasNext()) {
+                    SelectionKey key = keyIter.next();
+                    keyIter.remove();
+                    handleKey(key, selector, wheel, factory, logger);
+                }
+                // 経過したティックについて，上限を超えたコネクションを切断する．
+                if (wheel != null) {
+                    wheel.advance(System.nanoTime());
+                }
+            }
+        }
+        catch (IOException ex) {
+            logger.printf("例外発生（%s）：%s\n", threadName, ex.getMessage());
+        }
+    }
+    
+    /**
+     * 入出力可能になったチャネルのキーを1つ処理する．
+     */
+    private void handleKey(
+        SelectionKey key, Selector selector, HashedTimingWheel wheel,
+        ChannelProtocolFactory factory, Logger logger
+    )
+    {
+        // コネクション要求を受け付ける．
+        if (key.isAcceptable()) {
+            handleAccept(key, selector, wheel, factory, logger);
+            return;
+        }
+        try {
+            // キーに添付されているプロトコル処理用のインスタンスを取得し，
+            // 読み込み・書き込みの処理を任せる．
+            ChannelProtocol protocol = (ChannelProtocol)key.attachment();
+            if (key.isReadable()) {
+                protocol.handleRead(key);
+            }
+            if (key.isValid() && key.isWritable()) {
+                protocol.handleWrite(key);
+            }
+        }
+        catch (IOException | CancelledKeyException ex) {
+            logger.printf("例外発生：%s\n", ex.getMessage());
+            try {
+                // 例外が発生したチャネルを閉じる．
+                key.channel().close();
+            }
+            catch (IOException ex2) {
+                logger.printf("例外発生：%s\n", ex2.getMessage());
+            }
+        }
+        // チャネルが閉じられていれば，プロトコルに資源を解放させ，コネクションの終了を記録する．
+        if (!key.isValid()) {
+            ((ChannelProtocol)key.attachment()).handleClose();
+        }
+    }
+    
+    /**
+     * クライアントとのコネクションを確立し，
+     * プロトコル処理用のインスタンスを添付してセレクタに登録する．
+     * 時間を監視する場合は，タイミングホイールでの監視を開始する．
+     */
+    private void handleAccept(
+        SelectionKey key, Selector selector, HashedTimingWheel wheel,
+        ChannelProtocolFactory factory, Logger logger
+    )
+    {
+        SocketChannel   clntChan      = null;
+        long            acceptTime_ns = 0;
+        ChannelProtocol protocol      = null;
+        try {
+            // クライアントとのコネクションを確立する．
+            // 確立できるコネクションが無い場合は null が返る．
+            clntChan = ((ServerSocketChannel)key.channel()).accept();
+            if (clntChan == null) {
+                return;
+            }
+            acceptTime_ns = ServerMetrics.getInstance().connectionAccepted();
+            
+            // ノンブロッキングモードにして，プロトコル処理用のインスタンスを生成し，
+            // 処理開始までの時間と継続時間を計測するためのインスタンスで包む．
+            clntChan.configureBlocking(false);
+            ConnectionTimer timer = this.timeouts.newTimer();
+            protocol = new MeteredChannelProtocol(
+                factory.createProtocol(clntChan, logger), acceptTime_ns, timer
+            );
+            
+            // 読み込み可能状態を監視するようセレクタに登録し，
+            // プロトコル処理用のインスタンスをキーに添付する．
+            SelectionKey clntKey = clntChan.register(selector, SelectionKey.OP_READ, protocol);
+            if (wheel != null) {
+                timer.start(wheel, () -> reap(clntKey, logger));
+            }
+        }
+        catch (IOException ex) {
+            logger.printf("例外発生：%s\n", ex.getMessage());
+            try {
+                // 確立したコネクションを閉じる．
+                if (clntChan != null) {
+                    clntChan.close();
+                }
+            }
+            catch (IOException ex2) {
+                logger.printf("例外発生：%s\n", ex2.getMessage());
+            }
+            // プロトコル処理用のインスタンスを生成済みであれば，資源を解放させ，
+            // コネクションの終了を記録させる．
+            if (protocol != null) {
+                protocol.handleClose();
+            }
+            else if (clntChan != null) {
+                ServerMetrics.getInstance().connectionClosed(acceptTime_ns);
+            }
+        }
+    }
+    
+    /**
+     * 時間の上限を超えたコネクションのチャネルを閉じ，
+     * プロトコルに資源を解放させ，コネクションの終了を記録する．
+     */
+    private void reap(SelectionKey key, Logger logger)
+    {
+        try {
+            key.channel().close();
+        }
+        catch (IOException ex) {
+            logger.printf("例外発生：%s\n", ex.getMessage());
+        }
+        ((ChannelProtocol)key.attachment()).handleClose();
+    }
+}
@@ -0,0 +1,266 @@
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 1つのセレクタで，割り当てられたコネクションの入出力を繰り返し処理するクラス
+ * <p>
+ * コネクション毎の時間を監視する場合は，ループ毎にタイミングホイールを持ち，
+ * 1ティック毎にこのループのスレッドで進める．
+ */
+class SelectorLoop
+    implements
+        Runnable
+{
+    // インスタンス変数：
+    private final Selector               selector;      // このループが利用するセレクタ
+    private final ChannelProtocolFactory factory;       // プロトコルファクトリ
+    private final ConnectionTimeouts     timeouts;      // コネクション毎の時間の上限
+    private final HashedTimingWheel      wheel;         // 時間を監視するタイミングホイール
+    private final Logger                 logger;        // ログ出力用の Logger インスタンス
+    private final Queue<Pending>         pendingQueue;  // セレクタへの登録待ちのチャネル
+    
+    // 統計情報：
+    private final AtomicInteger numConnections = new AtomicInteger();  // 担当するコネクション数
+    private final AtomicLong    numIterations  = new AtomicLong();     // ループの反復回数
+    private final AtomicLong    totalIterNanos = new AtomicLong();     // 反復1回の処理時間の累計
+    private final AtomicLong    maxIterNanos   = new AtomicLong();     // 反復1回の処理時間の最大値
+    
+    /**
+     * SelectorLoop のインスタンスを生成する．
+     */
+    SelectorLoop(ChannelProtocolFactory factory, ConnectionTimeouts timeouts, Logger logger)
+        throws IOException
+    {
+        this.selector = Selector.open();
+        this.factory = factory;
+        this.timeouts = timeouts;
+        this.wheel = timeouts.createWheel();
+        this.logger = logger;
+        this.pendingQueue = new ConcurrentLinkedQueue<Pending>();
+    }
+    
+    /**
+     * コネクションをこのループに割り当てる．
+     * このメソッドは，ループを実行しているスレッド以外から呼ばれる．
+     */
+    void register(SocketChannel clntChan, long acceptTime_ns)
+    {
+        // セレクタへの登録はループを実行しているスレッドで行うため，
+        // 登録待ちのキューへ追加し，select() で待機中のセレクタを起こす．
+        this.numConnections.incrementAndGet();
+        this.pendingQueue.add(new Pending(clntChan, acceptTime_ns));
+        this.selector.wakeup();
+    }
+    
+    /**
+     * このループが担当しているコネクション数を返す．
+     */
+    int getConnectionCount()
+    {
+        return this.numConnections.get();
+    }
+    
+    /**
+     * 前回の呼び出し以降の反復回数・平均処理時間・最大処理時間を文字列として返し，
+     * 統計情報をリセットする．
+     */
+    String takeStatistics()
+    {
+        long iterations = this.numIterations.getAndSet(0);
+        long totalNanos = this.totalIterNanos.getAndSet(0);
+        long maxNanos   = this.maxIterNanos.getAndSet(0);
+        double average_us = (iterations > 0) ? (totalNanos / iterations) / 1000.0 : 0.0;
+        
+        return String.format(
+            "接続数 %,6d，反復回数 %,9d，平均 %,9.1fμs，最大 %,9.1fμs",
+            this.numConnections.get(), iterations, average_us, maxNanos / 1000.0
+        );
+    }
+    
+    /**
+     * セレクタで入出力が可能になったチャネルを繰り返し処理する．
+     */
+    @Override
+    public void run()
+    {
+        // このメソッドを呼び出しているスレッド名を取得する．
+        String threadName = Thread.currentThread().getName();
+        
+        // このメソッドを呼び出しているスレッド名をログに出力する．
+        this.logger.printf("処理開始（スレッド名：%s）\n", threadName);
+        
+        // 時間を監視する場合は，1ティック毎に select() から戻るようにする．
+        long timeout_ms = (this.wheel != null) ? this.timeouts.getTick_ms() : 0;
+        
+        try {
+            while (true) {
+                // いずれかのチャネルが入出力可能になるか，新たなコネクションが
+                // 割り当てられるか，1ティックが経過するまで待つ．
+                this.selector.select(timeout_ms);
+                long startTime_ns = System.nanoTime();
+                
+                // 割り当てられたコネクションをセレクタに登録する．
+                registerPendingChannels();
+                
+                // 入出力可能になったチャネルのキーを走査する．
+                Iterator<SelectionKey> keyIter = this.selector.selectedKeys().iterator();
+                while (keyIter.hasNext()) {
+                    SelectionKey key = keyIter.next();
+                    keyIter.remove();
+                    handleKey(key);
+                }
+                // 経過したティックについて，上限を超えたコネクションを切断する．
+                if (this.wheel != null) {
+                    this.wheel.advance(System.nanoTime());
+                }
+                // 反復1回の処理時間を記録する．
+                recordIteration(System.nanoTime() - startTime_ns);
+            }
+        }
+        catch (IOException ex) {
+            this.logger.printf("例外発生（%s）：%s\n", threadName, ex.getMessage());
+        }
+    }
+    
+    /**
+     * 登録待ちのチャネルをセレクタに登録する．
+     */
+    private void registerPendingChannels()
+    {
+        Pending pending;
+        while ((pending = this.pendingQueue.poll()) != null) {
+            ChannelProtocol protocol = null;
+            try {
+                // プロトコル処理用のインスタンスを生成し，
+                // 処理開始までの時間と継続時間を計測するためのインスタンスで包む．
+                ConnectionTimer timer = this.timeouts.newTimer();
+                protocol = new MeteredChannelProtocol(
+                    this.factory.createProtocol(pending.clntChan, this.logger),
+                    pending.acceptTime_ns, timer
+                );
+                // 読み込み可能状態を監視するようセレクタに登録し，
+                // 時間を監視する場合は，タイミングホイールでの監視を開始する．
+                SelectionKey key = pending.clntChan.register(
+                    this.selector, SelectionKey.OP_READ, protocol
+                );
+                if (this.wheel != null) {
+                    timer.start(this.wheel, () -> reap(key));
+                }
+            }
+            catch (IOException ex) {
+                this.logger.printf("例外発生：%s\n", ex.getMessage());
+                closeChannel(pending, protocol);
+            }
+        }
+    }
+    
+    /**
+     * 入出力可能になったチャネルのキーを1つ処理する．
+     */
+    private void handleKey(SelectionKey key)
+    {
+        try {
+            // キーに添付されているプロトコル処理用のインスタンスを取得し，
+            // 読み込み・書き込みの処理を任せる．
+            ChannelProtocol protocol = (ChannelProtocol)key.attachment();
+            if (key.isReadable()) {
+                protocol.handleRead(key);
+            }
+            if (key.isValid() && key.isWritable()) {
+                protocol.handleWrite(key);
+            }
+        }
+        catch (IOException | CancelledKeyException ex) {
+            this.logger.printf("例外発生：%s\n", ex.getMessage());
+            try {
+                // 例外が発生したチャネルを閉じる．
+                key.channel().close();
+            }
+            catch (IOException ex2) {
+                this.logger.printf("例外発生：%s\n", ex2.getMessage());
+            }
+        }
+        // チャネルが閉じられていれば，担当するコネクション数を減らし，
+        // プロトコルに資源を解放させ，コネクションの終了を記録する．
+        if (!key.isValid()) {
+            this.numConnections.decrementAndGet();
+            ((ChannelProtocol)key.attachment()).handleClose();
+        }
+    }
+    
+    /**
+     * 時間の上限を超えたコネクションのチャネルを閉じ，担当するコネクション数を減らし，
+     * プロトコルに資源を解放させ，コネクションの終了を記録する．
+     */
+    private void reap(SelectionKey key)
+    {
+        try {
+            key.channel().close();
+        }
+        catch (IOException ex) {
+            this.logger.printf("例外発生：%s\n", ex.getMessage());
+        }
+        this.numConnections.decrementAndGet();
+        ((ChannelProtocol)key.attachment()).handleClose();
+    }
+    
+    /**
+     * セレクタへの登録に失敗したチャネルを閉じる．
+     * プロトコル処理用のインスタンスを生成済みであれば，資源を解放させ，
+     * コネクションの終了を記録させる．
+     */
+    private void closeChannel(Pending pending, ChannelProtocol protocol)
+    {
+        this.numConnections.decrementAndGet();
+        try {
+            pending.clntChan.close();
+        }
+        catch (IOException ex) {
+            this.logger.printf("例外発生：%s\n", ex.getMessage());
+        }
+        if (protocol != null) {
+            protocol.handleClose();
+        }
+        else {
+            ServerMetrics.getInstance().connectionClosed(pending.acceptTime_ns);
+        }
+    }
+    
+    /**
+     * 反復1回の処理時間を統計情報に加える．
+     */
+    private void recordIteration(long elapsed_ns)
+    {
+        this.numIterations.incrementAndGet();
+        this.totalIterNanos.addAndGet(elapsed_ns);
+        this.maxIterNanos.accumulateAndGet(elapsed_ns, Math::max);
+    }
+    
+    /**
+     * セレクタへの登録待ちのチャネルと，そのコネクションを確立した時刻
+     */
+    private static class Pending
+    {
+        // インスタンス変数：
+        final SocketChannel clntChan;       // クライアントと通信するためのチャネル
+        final long          acceptTime_ns;  // コネクションを確立した時刻(ns)
+        
+        /**
+         * Pending のインスタンスを生成する．
+         */
+        Pending(SocketChannel clntChan, long acceptTime_ns)
+        {
+            this.clntChan = clntChan;
+            this.acceptTime_ns = acceptTime_ns;
+        }
+    }
+}
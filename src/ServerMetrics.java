@@ -0,0 +1,366 @@
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * 全てのディスパッチャとプロトコルが計測値を記録する，プロセス内で唯一のレジストリ
+ * <p>
+ * コネクション数・バイト数(タイムアウトで切断したコネクション数を含む)は LongAdder で，
+ * 所要時間は LogLinearHistogram で記録するため，記録処理が新たな競合の原因とはならない．計測値は JMX
+ * (ObjectName "PracticalComputerEngineering:type=ServerMetrics")で，
+ * BufferPool の計数値とあわせて公開し，
+ * 一定間隔毎に直近の区間の要約をログに出力する．
+ * 出力間隔はシステムプロパティ ServerMetrics.intervalMs で指定できる
+ * (既定値は 10000．0 以下の場合は出力しない)．
+ */
+public class ServerMetrics
+    implements
+        ServerMetricsMBean
+{
+    // クラス変数：
+    private static final ServerMetrics INSTANCE = new ServerMetrics();  // 唯一のインスタンス
+    
+    /**
+     * 唯一のインスタンスを返す．
+     */
+    public static ServerMetrics getInstance()
+    {
+        return INSTANCE;
+    }
+    
+    // インスタンス変数：
+    private final LongAdder accepted = new LongAdder();    // 確立したコネクション数
+    private final LongAdder closed   = new LongAdder();    // 終了したコネクション数
+    private final LongAdder bytesIn  = new LongAdder();    // 受信したバイト数
+    private final LongAdder bytesOut = new LongAdder();    // 送信したバイト数
+    
+    private final LongAdder checksumFailures = new LongAdder(); // チェックサムが一致しなかった回数
+    
+    private final LongAdder idleTimeouts  = new LongAdder();   // 無通信で切断したコネクション数
+    private final LongAdder readTimeouts  = new LongAdder();   // 受信待ちで切断したコネクション数
+    private final LongAdder writeTimeouts = new LongAdder();   // 送信待ちで切断したコネクション数
+    
+    private final LogLinearHistogram acceptToStart = new LogLinearHistogram(); // 処理開始までの時間(ns)
+    private final LogLinearHistogram duration      = new LogLinearHistogram(); // 継続時間(ns)
+    
+    private boolean started = false;    // 公開・出力を開始したか否か
+    
+    /**
+     * ServerMetrics のインスタンスを生成する．
+     */
+    private ServerMetrics()
+    {
+        ;
+    }
+    
+    /**
+     * JMX での公開と，要約の定期的な出力を開始する．
+     * 2回目以降の呼び出しでは何もしない．
+     */
+    public synchronized void start(Logger logger)
+    {
+        if (this.started) {
+            return;
+        }
+        this.started = true;
+        
+        // JMX で公開する．
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                this, new ObjectName("PracticalComputerEngineering:type=ServerMetrics")
+            );
+        }
+        catch (JMException ex) {
+            logger.printf("例外発生：%s\n", ex.getMessage());
+        }
+        // 要約を定期的に出力するためのスレッドを開始する．
+        long interval_ms = Long.getLong("ServerMetrics.intervalMs", 10000);
+        if (interval_ms <= 0) {
+            return;
+        }
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+                Thread thread = new Thread(runnable, "ServerMetrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+        Summary summary = new Summary(logger, interval_ms);
+        reporter.scheduleAtFixedRate(summary, interval_ms, interval_ms, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * コネクションの確立を記録し，その時刻(ns)を返す．
+     */
+    public long connectionAccepted()
+    {
+        this.accepted.increment();
+        return System.nanoTime();
+    }
+    
+    /**
+     * プロトコルの処理開始を記録する．
+     */
+    public void protocolStarted(long acceptTime_ns)
+    {
+        this.acceptToStart.record(System.nanoTime() - acceptTime_ns);
+    }
+    
+    /**
+     * コネクションの終了を記録する．
+     */
+    public void connectionClosed(long acceptTime_ns)
+    {
+        this.closed.increment();
+        this.duration.record(System.nanoTime() - acceptTime_ns);
+    }
+    
+    /**
+     * 受信したバイト数を記録する．
+     */
+    public void addBytesIn(long bytes)
+    {
+        if (bytes > 0) {
+            this.bytesIn.add(bytes);
+        }
+    }
+    
+    /**
+     * 送信したバイト数を記録する．
+     */
+    public void addBytesOut(long bytes)
+    {
+        if (bytes > 0) {
+            this.bytesOut.add(bytes);
+        }
+    }
+    
+    /**
+     * 受信したデータのチェックサムが一致しなかったことを記録する．
+     */
+    public void addChecksumFailure()
+    {
+        this.checksumFailures.increment();
+    }
+    
+    /**
+     * 時間の上限を超えたためにコネクションを切断したことを，種類毎に記録する．
+     */
+    public void connectionReaped(ConnectionTimer.Kind kind)
+    {
+        switch (kind) {
+        case Read:
+            this.readTimeouts.increment();
+            break;
+        case Write:
+            this.writeTimeouts.increment();
+            break;
+        case Idle:
+        default:
+            this.idleTimeouts.increment();
+            break;
+        }
+    }
+    
+    // 以下，ServerMetricsMBean の実装：
+    
+    @Override
+    public long getAcceptedConnections()
+    {
+        return this.accepted.sum();
+    }
+    
+    @Override
+    public long getClosedConnections()
+    {
+        return this.closed.sum();
+    }
+    
+    @Override
+    public long getActiveConnections()
+    {
+        return this.accepted.sum() - this.closed.sum();
+    }
+    
+    @Override
+    public long getBytesIn()
+    {
+        return this.bytesIn.sum();
+    }
+    
+    @Override
+    public long getBytesOut()
+    {
+        return this.bytesOut.sum();
+    }
+    
+    @Override
+    public long getChecksumFailures()
+    {
+        return this.checksumFailures.sum();
+    }
+    
+    @Override
+    public long getReapedConnections()
+    {
+        return this.idleTimeouts.sum() + this.readTimeouts.sum() + this.writeTimeouts.sum();
+    }
+    
+    @Override
+    public long getIdleTimeouts()
+    {
+        return this.idleTimeouts.sum();
+    }
+    
+    @Override
+    public long getReadTimeouts()
+    {
+        return this.readTimeouts.sum();
+    }
+    
+    @Override
+    public long getWriteTimeouts()
+    {
+        return this.writeTimeouts.sum();
+    }
+    
+    @Override
+    public double getAcceptToStartP50Micros()
+    {
+        return this.acceptToStart.getPercentile(0.50) / 1000.0;
+    }
+    
+    @Override
+    public double getAcceptToStartP99Micros()
+    {
+        return this.acceptToStart.getPercentile(0.99) / 1000.0;
+    }
+    
+    @Override
+    public double getConnectionDurationP50Millis()
+    {
+        return this.duration.getPercentile(0.50) / 1000000.0;
+    }
+    
+    @Override
+    public double getConnectionDurationP99Millis()
+    {
+        return this.duration.getPercentile(0.99) / 1000000.0;
+    }
+    
+    @Override
+    public long getBufferPoolHits()
+    {
+        return BufferPool.getHeapInstance().getHits() + BufferPool.getDirectInstance().getHits();
+    }
+    
+    @Override
+    public long getBufferPoolMisses()
+    {
+        return BufferPool.getHeapInstance().getMisses() + BufferPool.getDirectInstance().getMisses();
+    }
+    
+    @Override
+    public long getBufferPoolOutstanding()
+    {
+        return BufferPool.getHeapInstance().getOutstanding()
+            + BufferPool.getDirectInstance().getOutstanding();
+    }
+    
+    /**
+     * 直近の区間の計測値の要約をログに出力するクラス
+     */
+    private class Summary
+        implements
+            Runnable
+    {
+        // インスタンス変数：
+        private final Logger logger;        // ログ出力用の Logger インスタンス
+        private final double interval_sec;  // 出力間隔(秒)
+        
+        // 前回出力した時点の累計値：
+        private long   lastAccepted = 0;
+        private long   lastBytesIn  = 0;
+        private long   lastBytesOut = 0;
+        private long   lastHits     = 0;
+        private long   lastMisses   = 0;
+        private long   lastReaped   = 0;
+        private long[] lastAcceptToStart = new long[LogLinearHistogram.NUM_BUCKETS];
+        private long[] lastDuration      = new long[LogLinearHistogram.NUM_BUCKETS];
+        
+        /**
+         * Summary のインスタンスを生成する．
+         */
+        Summary(Logger logger, long interval_ms)
+        {
+            this.logger = logger;
+            this.interval_sec = interval_ms / 1000.0;
+        }
+        
+        /**
+         * 前回出力した時点からの差分を求め，要約を1行で出力する．
+         */
+        @Override
+        public void run()
+        {
+            long   acceptedNow      = accepted.sum();
+            long   bytesInNow       = bytesIn.sum();
+            long   bytesOutNow      = bytesOut.sum();
+            long   hitsNow          = getBufferPoolHits();
+            long   missesNow        = getBufferPoolMisses();
+            long[] acceptToStartNow = acceptToStart.snapshot();
+            long[] durationNow      = duration.snapshot();
+            long   reapedNow        = getReapedConnections();
+            
+            long[] acceptToStartDelta = subtract(acceptToStartNow, this.lastAcceptToStart);
+            long[] durationDelta      = subtract(durationNow, this.lastDuration);
+            
+            // バッファプールのヒット率を求める．
+            long   acquires = (hitsNow - this.lastHits) + (missesNow - this.lastMisses);
+            double hitRatio = (acquires > 0) ? 100.0 * (hitsNow - this.lastHits) / acquires : 0.0;
+            
+            this.logger.printf(
+                "計測値：受付 %.1f/s，処理中 %d，開始待ち p50 %.3fms p99 %.3fms，"
+                    + "継続時間 p50 %.1fms p99 %.1fms，受信 %.2fMB/s，送信 %.2fMB/s，"
+                    + "バッファ ヒット率 %.1f%% 貸出中 %d，タイムアウト切断 %d\n",
+                (acceptedNow - this.lastAccepted) / this.interval_sec,
+                getActiveConnections(),
+                LogLinearHistogram.percentile(acceptToStartDelta, 0.50) / 1000000.0,
+                LogLinearHistogram.percentile(acceptToStartDelta, 0.99) / 1000000.0,
+                LogLinearHistogram.percentile(durationDelta, 0.50) / 1000000.0,
+                LogLinearHistogram.percentile(durationDelta, 0.99) / 1000000.0,
+                (bytesInNow - this.lastBytesIn) / this.interval_sec / (1024 * 1024),
+                (bytesOutNow - this.lastBytesOut) / this.interval_sec / (1024 * 1024),
+                hitRatio,
+                getBufferPoolOutstanding(),
+                reapedNow - this.lastReaped
+            );
+            this.lastAccepted = acceptedNow;
+            this.lastBytesIn = bytesInNow;
+            this.lastBytesOut = bytesOutNow;
+            this.lastHits = hitsNow;
+            this.lastMisses = missesNow;
+            this.lastReaped = reapedNow;
+            this.lastAcceptToStart = acceptToStartNow;
+            this.lastDuration = durationNow;
+        }
+        
+        /**
+         * バケット毎の記録数の差を求める．
+         */
+        private long[] subtract(long[] now, long[] last)
+        {
+            long[] delta = new long[now.length];
+            for (int i = 0; i < now.length; i++) {
+                delta[i] = now[i] - last[i];
+            }
+            return delta;
+        }
+    }
+}
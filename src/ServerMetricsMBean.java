@@ -0,0 +1,91 @@
+
+/**
+ * サーバ側の計測値を JMX で公開するためのインターフェース
+ */
+public interface ServerMetricsMBean
+{
+    /**
+     * 確立したコネクション数の累計を返す．
+     */
+    public long getAcceptedConnections();
+    
+    /**
+     * 終了したコネクション数の累計を返す．
+     */
+    public long getClosedConnections();
+    
+    /**
+     * 処理中のコネクション数を返す．
+     */
+    public long getActiveConnections();
+    
+    /**
+     * 受信したバイト数の累計を返す．
+     */
+    public long getBytesIn();
+    
+    /**
+     * 送信したバイト数の累計を返す．
+     */
+    public long getBytesOut();
+    
+    /**
+     * 受信したデータのチェックサムが一致しなかった回数の累計を返す．
+     */
+    public long getChecksumFailures();
+    
+    /**
+     * 時間の上限を超えたために切断したコネクション数の累計を返す．
+     */
+    public long getReapedConnections();
+    
+    /**
+     * 無通信の時間の上限を超えたために切断したコネクション数の累計を返す．
+     */
+    public long getIdleTimeouts();
+    
+    /**
+     * 受信待ちの時間の上限を超えたために切断したコネクション数の累計を返す．
+     */
+    public long getReadTimeouts();
+    
+    /**
+     * 送信待ちの時間の上限を超えたために切断したコネクション数の累計を返す．
+     */
+    public long getWriteTimeouts();
+    
+    /**
+     * コネクションの確立から処理開始までの時間の中央値(μs)を返す．
+     */
+    public double getAcceptToStartP50Micros();
+    
+    /**
+     * コネクションの確立から処理開始までの時間の 99パーセンタイル値(μs)を返す．
+     */
+    public double getAcceptToStartP99Micros();
+    
+    /**
+     * コネクションの継続時間の中央値(ms)を返す．
+     */
+    public double getConnectionDurationP50Millis();
+    
+    /**
+     * コネクションの継続時間の 99パーセンタイル値(ms)を返す．
+     */
+    public double getConnectionDurationP99Millis();
+    
+    /**
+     * バッファプール(ヒープとダイレクトの合計)から借りられた回数の累計を返す．
+     */
+    public long getBufferPoolHits();
+    
+    /**
+     * バッファプールが新たにバッファを確保した回数の累計を返す．
+     */
+    public long getBufferPoolMisses();
+    
+    /**
+     * バッファプールから貸し出し中のバッファ数を返す．
+     */
+    public long getBufferPoolOutstanding();
+}
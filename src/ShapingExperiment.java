@@ -0,0 +1,305 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 大量のアップロードと並行してエコーの往復時間を計測し，IPアドレス毎の帯域制限の有無で比較する実験
+ * <p>
+ * 同じプロセス内で，ループバックアドレスの空いているポートに Upload と Echo のサーバを起動する．
+ * ノンブロッキング入出力(SelectorDispatcher と UploadChannel・EchoChannel)と
+ * ブロッキング入出力(VirtualThreadDispatcher と Upload・Echo)のそれぞれについて，
+ * 制限無しと，TrafficShaper で IPアドレス毎のレートを制限した場合を計測する．
+ * <p>
+ * クライアントは送信元の IPアドレスを変えて，下記を同時に実行する．
+ * <ul>
+ * <li>テナント A(HEAVY_ADDRESS)：HEAVY_SOCKETS 個のコネクションで間隔を空けずにアップロード
+ * <li>テナント B(LIGHT_ADDRESS)：1つのコネクションで間隔を空けずにアップロード
+ * <li>エコー(ECHO_ADDRESS)：ECHO_INTERVAL_US 毎に ECHO_SIZE バイトを送信し，往復時間を計測
+ * </ul>
+ * スループットは，送信バッファが埋まるまでの最初の WARMUP_MS を除いて，
+ * クライアントが送信したバイト数から求める．
+ */
+public class ShapingExperiment
+{
+    // クラス変数（定数）：
+    private static final int MEGA_BYTE = 1024 * 1024;
+    
+    // テナント毎の送信元の IPアドレスと，テナント A のコネクション数
+    private static final String HEAVY_ADDRESS = "127.0.0.2";
+    private static final String LIGHT_ADDRESS = "127.0.0.3";
+    private static final String ECHO_ADDRESS  = "127.0.0.4";
+    private static final int    HEAVY_SOCKETS = 4;
+    
+    // アップロードの送信バッファサイズと，エコーのメッセージサイズ・送信間隔(μs)
+    private static final int UPLOAD_BUF_SIZE  = 64 * 1024;
+    private static final int ECHO_SIZE        = 64;
+    private static final int ECHO_INTERVAL_US = 1000;
+    
+    // スループットの計測から除く，最初の時間(ms)
+    private static final long WARMUP_MS = 1000;
+    
+    /**
+     * 帯域制限の比較実験を実行するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 2) {
+            System.out.println("Parameters: <Client Rate (MB/s)> <Seconds>");
+            return;
+        }
+        try {
+            // IPアドレス毎のレートと，1回の計測の時間を引数から取得する．
+            long clientRate  = Long.parseLong(args[0]) * MEGA_BYTE;
+            long duration_ms = Long.parseLong(args[1]) * 1000;
+            
+            // コンソールへのログ出力用のインスタンスを生成する．
+            ConsoleLogger clog = new ConsoleLogger();
+            
+            // ファイルへのログ出力用のインスタンスを，結果用とサーバ用に生成する．
+            long       now_ms = System.currentTimeMillis();
+            FileLogger flog   = new FileLogger(String.format("shaping_%d.txt", now_ms));
+            FileLogger slog   = new FileLogger(String.format("shaping_server_%d.txt", now_ms));
+            // IOException
+            
+            // 実験用のインスタンスを生成し，実験を実行する．
+            ShapingExperiment experiment = new ShapingExperiment(
+                clientRate, duration_ms, clog, flog, slog
+            );
+            experiment.execute();
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    // インスタンス変数：
+    private final long          clientRate;     // IPアドレス毎のレート(バイト/秒)
+    private final long          duration_ms;    // 1回の計測の時間(ms)
+    private final ConsoleLogger clog;           // コンソールへの出力用 Logger
+    private final FileLogger    flog;           // 結果のファイルへの出力用 Logger
+    private final FileLogger    slog;           // サーバのログのファイルへの出力用 Logger
+    private final InetAddress   servAddr;       // サーバのアドレス(ループバックアドレス)
+    
+    /**
+     * ShapingExperiment のインスタンスを生成する．
+     */
+    ShapingExperiment(
+        long clientRate, long duration_ms, ConsoleLogger clog, FileLogger flog, FileLogger slog
+    )
+    {
+        this.clientRate = clientRate;
+        this.duration_ms = duration_ms;
+        this.clog = clog;
+        this.flog = flog;
+        this.slog = slog;
+        this.servAddr = InetAddress.getLoopbackAddress();
+    }
+    
+    /**
+     * 入出力の方法と帯域制限の有無の組毎に，サーバを起動して計測し，結果を出力する．
+     */
+    void execute()
+        throws Exception
+    {
+        this.clog.printf(
+            "IPアドレス毎のレート：%d MB/s，計測時間：%d 秒\n",
+            this.clientRate / MEGA_BYTE, this.duration_ms / 1000
+        );
+        this.flog.printf(
+            "dispatcher\tshaping\theavy_MB_per_sec\tlight_MB_per_sec\techo_p50_us\techo_p99_us"
+                + "\tdelays\n"
+        );
+        for (boolean isShaped : new boolean[] { false, true }) {
+            TrafficShaper shaper = isShaped
+                ? new TrafficShaper(0, this.clientRate, 64 * 1024)
+                : TrafficShaper.disabled();
+            int uploadPort = startChannelServer(new UploadChannelProtocolFactory(shaper));
+            int echoPort   = startChannelServer(new EchoChannelProtocolFactory(shaper));
+            measure("Selector", shaper, uploadPort, echoPort);
+        }
+        for (boolean isShaped : new boolean[] { false, true }) {
+            TrafficShaper shaper = isShaped
+                ? new TrafficShaper(0, this.clientRate, 64 * 1024)
+                : TrafficShaper.disabled();
+            int uploadPort = startServer(new UploadProtocolFactory(shaper));
+            int echoPort   = startServer(new EchoProtocolFactory(shaper));
+            measure("VirtualThread", shaper, uploadPort, echoPort);
+        }
+        this.flog.close();
+        this.slog.close();
+    }
+    
+    /**
+     * SelectorDispatcher によるサーバを，ループバックアドレスの
+     * 空いているポートでデーモンスレッドとして起動し，ポート番号を返す．
+     */
+    private int startChannelServer(ChannelProtocolFactory factory)
+        throws IOException
+    {
+        ServerSocketChannel servChan = ServerSocketChannel.open();
+        servChan.bind(new InetSocketAddress(this.servAddr, 0));
+        Thread server = new Thread(
+            () -> new SelectorDispatcher(ConnectionTimeouts.disabled()).startDispatching(
+                servChan, factory, this.slog
+            )
+        );
+        server.setDaemon(true);
+        server.start();
+        return servChan.socket().getLocalPort();
+    }
+    
+    /**
+     * VirtualThreadDispatcher によるサーバを，ループバックアドレスの
+     * 空いているポートでデーモンスレッドとして起動し，ポート番号を返す．
+     */
+    private int startServer(ProtocolFactory factory)
+        throws IOException
+    {
+        ServerSocket servSock = new ServerSocket();
+        servSock.bind(new InetSocketAddress(this.servAddr, 0));
+        Thread server = new Thread(
+            () -> new VirtualThreadDispatcher(ConnectionTimeouts.disabled()).startDispatching(
+                servSock, factory, this.slog
+            )
+        );
+        server.setDaemon(true);
+        server.start();
+        return servSock.getLocalPort();
+    }
+    
+    /**
+     * テナント A・B のアップロードとエコーを同時に実行し，結果を出力する．
+     */
+    private void measure(String dispatcher, TrafficShaper shaper, int uploadPort, int echoPort)
+        throws Exception
+    {
+        long               deadline_ns = System.nanoTime() + this.duration_ms * 1000000;
+        long               warmup_ns   = System.nanoTime() + WARMUP_MS * 1000000;
+        LongAdder          heavyBytes  = new LongAdder();
+        LongAdder          lightBytes  = new LongAdder();
+        LogLinearHistogram rtts        = new LogLinearHistogram();
+        
+        // テナント毎のアップロードとエコーのスレッドを開始する．
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < HEAVY_SOCKETS; i++) {
+            threads.add(
+                start(() -> upload(HEAVY_ADDRESS, uploadPort, warmup_ns, deadline_ns, heavyBytes))
+            );
+        }
+        threads.add(
+            start(() -> upload(LIGHT_ADDRESS, uploadPort, warmup_ns, deadline_ns, lightBytes))
+        );
+        threads.add(start(() -> echo(echoPort, deadline_ns, rtts)));
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // 計測から除いた時間を差し引いて，スループットを求める．
+        double measured_sec = (this.duration_ms - WARMUP_MS) / 1000.0;
+        double heavy_mbps   = heavyBytes.sum() / (double)MEGA_BYTE / measured_sec;
+        double light_mbps   = lightBytes.sum() / (double)MEGA_BYTE / measured_sec;
+        
+        // 百分位数はバケットの上限値となるため，最大値を超えないようにする．
+        double max = rtts.getMax() / 1000.0;
+        double p50 = Math.min(rtts.getPercentile(0.50) / 1000.0, max);
+        double p99 = Math.min(rtts.getPercentile(0.99) / 1000.0, max);
+        this.clog.printf(
+            "%-13s %s：A %8.1f MB/s，B %8.1f MB/s，エコー p50 %,8.1fμs p99 %,9.1fμs，"
+                + "待機 %,d 回\n",
+            dispatcher, shaper.isEnabled() ? "制限有" : "制限無",
+            heavy_mbps, light_mbps, p50, p99, shaper.getDelayCount()
+        );
+        this.flog.printf(
+            "%s\t%b\t%.1f\t%.1f\t%.1f\t%.1f\t%d\n",
+            dispatcher, shaper.isEnabled(), heavy_mbps, light_mbps, p50, p99,
+            shaper.getDelayCount()
+        );
+    }
+    
+    /**
+     * 処理をデーモンスレッドで開始する．
+     */
+    private Thread start(Runnable task)
+    {
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+    
+    /**
+     * 送信元の IPアドレスを指定してアップロードを期限まで続け，
+     * 計測開始後に送信したバイト数を加える．
+     * 64ビットのデータサイズのヘッダで十分に大きなサイズを通知し，期限に達したら切断する．
+     */
+    private void upload(
+        String source, int port, long warmup_ns, long deadline_ns, LongAdder sentBytes
+    )
+    {
+        byte[] data = new byte[UPLOAD_BUF_SIZE];
+        try (Socket socket = new Socket()) {
+            socket.bind(new InetSocketAddress(source, 0));
+            socket.connect(new InetSocketAddress(this.servAddr, port));
+            OutputStream out = socket.getOutputStream();
+            out.write(UploadProtocolFactory.encodeHeader(Long.MAX_VALUE / 2, 0));
+            while (System.nanoTime() < deadline_ns) {
+                out.write(data);
+                if (System.nanoTime() >= warmup_ns) {
+                    sentBytes.add(data.length);
+                }
+            }
+        }
+        catch (IOException ex) {
+            this.clog.printf("例外発生：%s\n", ex.getMessage());
+        }
+    }
+    
+    /**
+     * 送信間隔毎にメッセージを送信してはエコーを受信し終えるまで待つことを期限まで繰り返し，
+     * 往復時間を記録する．
+     */
+    private void echo(int port, long deadline_ns, LogLinearHistogram rtts)
+    {
+        byte[] message    = new byte[ECHO_SIZE];
+        byte[] recvBuffer = new byte[ECHO_SIZE];
+        try (Socket socket = new Socket()) {
+            socket.bind(new InetSocketAddress(ECHO_ADDRESS, 0));
+            socket.connect(new InetSocketAddress(this.servAddr, port));
+            socket.setTcpNoDelay(true);
+            InputStream  in          = socket.getInputStream();
+            OutputStream out         = socket.getOutputStream();
+            long         interval_ns = ECHO_INTERVAL_US * 1000L;
+            long         due_ns      = System.nanoTime();
+            while (due_ns < deadline_ns) {
+                LockSupport.parkNanos(due_ns - System.nanoTime());
+                due_ns += interval_ns;
+                
+                long sendTime_ns = System.nanoTime();
+                out.write(message);
+                int totalBytesRcvd = 0;
+                while (totalBytesRcvd < ECHO_SIZE) {
+                    int bytesRcvd = in.read(recvBuffer, totalBytesRcvd, ECHO_SIZE - totalBytesRcvd);
+                    if (bytesRcvd == -1) {
+                        throw new IOException("サーバがコネクションを切断しました．");
+                    }
+                    totalBytesRcvd += bytesRcvd;
+                }
+                rtts.record(System.nanoTime() - sendTime_ns);
+            }
+        }
+        catch (IOException ex) {
+            this.clog.printf("例外発生：%s\n", ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1つのスレッドでコネクション要求を受け付け，
+ * 他のリスナーと共有するスレッドプールでプロトコルを処理するディスパッチャ用のクラス
+ * <p>
+ * ProtocolLauncher の設定ファイルで複数のリスナーにこのディスパッチャを指定すると，
+ * 全てのリスナーが1つのスレッドプールを利用する．スレッドプールは ProtocolLauncher が生成し，
+ * スレッド数は ProtocolLauncher.sharedThreads で指定する．
+ * このリスナーのコネクションがスレッドプールで処理を開始するまでの待ち時間は，
+ * 一定間隔毎にリスナー毎の統計情報としてログに出力する．
+ * コネクション毎の無通信・受信待ち・送信待ちの時間の上限は，ConnectionTimeouts の
+ * システムプロパティで指定できる．
+ */
+class SharedPoolDispatcher
+    implements
+        Dispatcher
+{
+    // クラス変数（定数）：
+    static final long REPORT_INTERVAL_MS = 10000;   // 統計情報を出力する間隔(ms)
+    
+    // インスタンス変数：
+    private final ExecutorService    pool;      // 共有するスレッドプール
+    private final ConnectionTimeouts timeouts;  // コネクション毎の時間の上限
+    
+    // 統計情報：
+    private final LatencyStatistics waitStats = new LatencyStatistics();    // 待ち時間の記録
+    
+    /**
+     * 共有するスレッドプールを指定し，時間の上限はシステムプロパティの設定値で
+     * SharedPoolDispatcher のインスタンスを生成する．
+     */
+    SharedPoolDispatcher(ExecutorService pool)
+    {
+        this(pool, new ConnectionTimeouts());
+    }
+    
+    /**
+     * 共有するスレッドプールとコネクション毎の時間の上限を指定して
+     * SharedPoolDispatcher のインスタンスを生成する．
+     */
+    SharedPoolDispatcher(ExecutorService pool, ConnectionTimeouts timeouts)
+    {
+        this.pool = pool;
+        this.timeouts = timeouts;
+    }
+    
+    /**
+     * 共有するスレッドプールによるディスパッチ処理を開始する．
+     */
+    @Override
+    public void startDispatching(
+        ServerSocket servSock, ProtocolFactory factory, Logger logger
+    )
+    {
+        // このメソッドを呼び出しているスレッド名をログに出力する．
+        logger.printf(
+            "処理開始（スレッド名：%s，ポート：%d，共有スレッドプール）\n",
+            Thread.currentThread().getName(), servSock.getLocalPort()
+        );
+        // 一定間隔毎に統計情報をログに出力するためのスレッドを開始する．
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(
+            () -> report(servSock.getLocalPort(), logger),
+            REPORT_INTERVAL_MS, REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS
+        );
+        // コネクション毎の時間を監視するタイミングホイールを開始する．
+        HashedTimingWheel wheel = this.timeouts.startWheel(logger);
+        logger.printf("%s\n", this.timeouts);
+        
+        // クライアントとのコネクションを確立し，共有するスレッドプールへ渡す処理を繰り返す．
+        while (true) {
+            try {
+                // クライアントとのコネクションの確立を待ち，
+                // 入出力を監視するソケットで包む．
+                Socket clntSock = this.timeouts.wrap(servSock.accept(), wheel, logger);
+                
+                // プロトコル処理用のインスタンスを生成し，
+                // 待ち時間を計測するためのタスクに包んでスレッドプールへ渡す．
+                Runnable   protocol = factory.createProtocol(clntSock, logger);
+                QueuedTask task     = new QueuedTask(clntSock, protocol, this.waitStats);
+                try {
+                    this.pool.execute(task);
+                }
+                catch (RejectedExecutionException ex) {
+                    // スレッドプールが終了しているので，コネクションを閉じる．
+                    task.close(logger);
+                }
+            }
+            catch (IOException ex) {
+                logger.printf("例外発生：%s\n", ex.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * このリスナーの統計情報をログに出力し，待ち時間の統計をリセットする．
+     */
+    private void report(int port, Logger logger)
+    {
+        LatencyStatistics.Snapshot waits = this.waitStats.take();
+        
+        logger.printf(
+            "統計（ポート：%d）：開始数 %d，待ち時間 平均 %.3fms 最大 %.3fms\n",
+            port, waits.count, waits.averageMillis(), waits.maxMillis()
+        );
+    }
+}
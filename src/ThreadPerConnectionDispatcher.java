@@ -5,11 +5,33 @@ import java.net.Socket;
 
 /**
  * コネクション毎に新しいスレッド利用するディスパッチャ用のクラス
+ * <p>
+ * コネクション毎の無通信・受信待ち・送信待ちの時間の上限は，ConnectionTimeouts の
+ * システムプロパティで指定できる．
  */
 class ThreadPerConnectionDispatcher
     implements
         Dispatcher
 {
+    // インスタンス変数：
+    private final ConnectionTimeouts timeouts;  // コネクション毎の時間の上限
+    
+    /**
+     * システムプロパティの設定値で ThreadPerConnectionDispatcher のインスタンスを生成する．
+     */
+    ThreadPerConnectionDispatcher()
+    {
+        this(new ConnectionTimeouts());
+    }
+    
+    /**
+     * コネクション毎の時間の上限を指定して ThreadPerConnectionDispatcher のインスタンスを生成する．
+     */
+    ThreadPerConnectionDispatcher(ConnectionTimeouts timeouts)
+    {
+        this.timeouts = timeouts;
+    }
+    
     /**
      * コネクション毎に新しいスレッドを割り当てる方法を用いて
      * ディスパッチ処理を開始する．
@@ -19,15 +41,23 @@ class ThreadPerConnectionDispatcher
         ServerSocket servSock, ProtocolFactory factory, Logger logger
     )
     {
+        // コネクション毎の時間を監視するタイミングホイールを開始する．
+        HashedTimingWheel wheel = this.timeouts.startWheel(logger);
+        logger.printf("%s\n", this.timeouts);
+        
         // クライアントとのコネクション毎にスレッドを生成し，
         // プロトコルの処理を開始する．
         while (true) {
             try {
-                // クライアントとのコネクションの確立を待つ．
-                Socket clntSock = servSock.accept();
+                // クライアントとのコネクションの確立を待ち，
+                // 入出力を監視するソケットで包む．
+                Socket clntSock = this.timeouts.wrap(servSock.accept(), wheel, logger);
                 
-                // プロトコル処理用のインスタンスを生成する．
-                Runnable protocol = factory.createProtocol(clntSock, logger);
+                // プロトコル処理用のインスタンスを生成し，
+                // 処理開始までの時間と継続時間を計測するためのインスタンスで包む．
+                Runnable protocol = new MeteredProtocol(
+                    factory.createProtocol(clntSock, logger)
+                );
                 
                 // 生成したインスタンスの run() メソッドを呼び出す
                 // スレッドを生成し，プロトコルの処理を開始する．
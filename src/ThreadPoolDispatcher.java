@@ -2,76 +2,191 @@
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * スレッドプールを利用するディスパッチャ用のクラス
+ * <p>
+ * 1つのスレッドでコネクション要求を受け付け，スレッドプールでプロトコルを処理する．
+ * スレッド数は負荷に応じて自動的に増減する．一定間隔毎に下記の値を計測し，
+ * 指数移動平均で平滑化した上で，スレッド数を決める．
+ * <ul>
+ * <li>キュー長が目標値を超えるか，コネクションの確立から処理開始までの
+ * 待ち時間が目標値を超えて待機中のスレッドが無い場合は，スレッド数を増やす．
+ * <li>待ち時間が目標値の半分以下でキューが空であり，
+ * 待機中のスレッドが残り続けている場合は，スレッド数を減らす．
+ * </ul>
+ * スレッド数を変更した場合は，その判断の根拠をログに出力する．
+ * 各値は，下記のシステムプロパティで指定できる．
+ * <ul>
+ * <li>ThreadPoolDispatcher.minThreads：最小スレッド数(既定値は 8)
+ * <li>ThreadPoolDispatcher.maxThreads：最大スレッド数(既定値は 256)
+ * <li>ThreadPoolDispatcher.targetLatencyMs：待ち時間の目標値(ms)(既定値は 10)
+ * <li>ThreadPoolDispatcher.targetQueueDepth：キュー長の目標値(既定値は 4)
+ * <li>ThreadPoolDispatcher.window：平滑化に用いる計測回数(既定値は 8)
+ * </ul>
+ * コネクション毎の無通信・受信待ち・送信待ちの時間の上限は，ConnectionTimeouts の
+ * システムプロパティで指定できる．上限を超えたコネクションは閉じられ，
+ * 受信・送信で待たされていたスレッドは解放される．
  */
 class ThreadPoolDispatcher
     implements
         Dispatcher
 {
     // クラス変数（定数）：
-    static final int NUM_THREADS = 8;   // スレッドプール内のスレッド数
+    static final long SAMPLE_INTERVAL_MS = 500;     // 計測の間隔(ms)
+    static final long KEEP_ALIVE_SEC     = 30;      // 減らす対象となったスレッドの待機時間(秒)
+    
+    // インスタンス変数：
+    private final int    minThreads;        // 最小スレッド数
+    private final int    maxThreads;        // 最大スレッド数
+    private final double targetLatency_ms;  // 待ち時間の目標値(ms)
+    private final double targetQueueDepth;  // キュー長の目標値
+    private final int    window;            // 平滑化に用いる計測回数
+    
+    private final ConnectionTimeouts timeouts;  // コネクション毎の時間の上限
+    private final LatencyStatistics  waitStats = new LatencyStatistics();    // 待ち時間の記録
+    
+    // スレッド数の決定に用いる値(計測用のスレッドのみが参照・更新する)：
+    private double smoothedLatency_ms = 0.0;    // 平滑化した待ち時間(ms)
+    private double smoothedQueueDepth = 0.0;    // 平滑化したキュー長
+    private double smoothedIdle       = 0.0;    // 平滑化した待機中のスレッド数
+    private int    cooldown           = 0;      // 次の判断までに待つ計測回数
     
     /**
-     * スレッドプールによるディスパッチ処理を開始する．
+     * システムプロパティの設定値で ThreadPoolDispatcher のインスタンスを生成する．
      */
-    @Override
-    public void startDispatching(
-        ServerSocket servSock, ProtocolFactory factory, Logger logger
+    ThreadPoolDispatcher()
+    {
+        this(
+            Integer.getInteger("ThreadPoolDispatcher.minThreads", 8),
+            Integer.getInteger("ThreadPoolDispatcher.maxThreads", 256),
+            Integer.getInteger("ThreadPoolDispatcher.targetLatencyMs", 10),
+            Integer.getInteger("ThreadPoolDispatcher.targetQueueDepth", 4),
+            Integer.getInteger("ThreadPoolDispatcher.window", 8),
+            new ConnectionTimeouts()
+        );
+    }
+    
+    /**
+     * スレッド数の範囲と目標値，コネクション毎の時間の上限を指定して
+     * ThreadPoolDispatcher のインスタンスを生成する．
+     */
+    ThreadPoolDispatcher(
+        int minThreads, int maxThreads, double targetLatency_ms, double targetQueueDepth,
+        int window, ConnectionTimeouts timeouts
     )
     {
-        // (NUM_THREADS - 1) 個のスレッドを生成・開始する．
-        for (int i = 0; i < (NUM_THREADS - 1); i++) {
-            // dispatchLoop() メソッドを呼び出すためのスレッドを生成する．
-            // ※Thread のコンストラクタにはラムダ式を利用している．
-            // このラムダ式は，次の Runnable インスタンスと同じ：
-            //
-            //  new Runnable() {
-            //      public void run() {
-            //          dispatchLoop(servSock, factory, logger);
-            //      }
-            //  }
-            Thread thread = new Thread(
-                () -> dispatchLoop(servSock, factory, logger)
-            );
-            // dispatchLoop() メソッドを呼び出すためのスレッドを開始する．
-            thread.start();
-        }
-        // main スレッド(この処理を実行しているスレッド)を
-        // NUM_THREADS 番目のスレッドとして，
-        // dispatchLoop() メソッドを呼び出す．
-        dispatchLoop(servSock, factory, logger);
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.targetLatency_ms = targetLatency_ms;
+        this.targetQueueDepth = targetQueueDepth;
+        this.window = window;
+        this.timeouts = timeouts;
     }
     
     /**
-     * クライアントからの要求を繰り返し処理する．
+     * スレッドプールによるディスパッチ処理を開始する．
      */
-    private void dispatchLoop(
+    @Override
+    public void startDispatching(
         ServerSocket servSock, ProtocolFactory factory, Logger logger
     )
     {
-        // このメソッドを呼び出しているスレッド名を取得する．
-        String threadName = Thread.currentThread().getName();
+        // 最小スレッド数のスレッドプールを生成する．
+        // キューに上限は設けず，スレッド数は setCorePoolSize() で増減させる．
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
+            this.minThreads, this.maxThreads,
+            KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>()
+        );
+        threadPool.prestartAllCoreThreads();
         
+        // 一定間隔毎に計測し，スレッド数を決めるためのスレッドを開始する．
+        ScheduledExecutorService controller = Executors.newSingleThreadScheduledExecutor();
+        controller.scheduleAtFixedRate(
+            () -> resize(threadPool, logger),
+            SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS
+        );
         // このメソッドを呼び出しているスレッド名をログに出力する．
-        logger.printf("処理開始（スレッド名：%s）\n", threadName);
+        logger.printf(
+            "処理開始（スレッド名：%s，スレッド数：%d〜%d）\n",
+            Thread.currentThread().getName(), this.minThreads, this.maxThreads
+        );
+        // コネクション毎の時間を監視するタイミングホイールを開始する．
+        HashedTimingWheel wheel = this.timeouts.startWheel(logger);
+        logger.printf("%s\n", this.timeouts);
         
-        // クライアントからの要求を繰り返し処理する．
+        // クライアントとのコネクションを確立し，スレッドプールへ渡す処理を繰り返す．
         while (true) {
             try {
-                // クライアントとのコネクションの確立を待つ．
-                Socket clntSock = servSock.accept();
+                // クライアントとのコネクションの確立を待ち，
+                // 入出力を監視するソケットで包む．
+                Socket clntSock = this.timeouts.wrap(servSock.accept(), wheel, logger);
                 
-                // プロトコル処理用のインスタンスを生成する．
+                // プロトコル処理用のインスタンスを生成し，
+                // 待ち時間を計測するためのタスクに包んでスレッドプールへ渡す．
                 Runnable protocol = factory.createProtocol(clntSock, logger);
-                
-                // プロトコルの処理をこのスレッドで実行する．
-                protocol.run();
+                threadPool.execute(new QueuedTask(clntSock, protocol, this.waitStats));
             }
             catch (IOException ex) {
-                logger.printf("例外発生（%s）：%s\n", threadName, ex.getMessage());
+                logger.printf("例外発生：%s\n", ex.getMessage());
             }
         }
     }
+    
+    /**
+     * 待ち時間・キュー長・待機中のスレッド数を計測し，必要に応じてスレッド数を変更する．
+     */
+    private void resize(ThreadPoolExecutor threadPool, Logger logger)
+    {
+        // 今回の計測値を求める．
+        LatencyStatistics.Snapshot waits = this.waitStats.take();
+        int current    = threadPool.getCorePoolSize();
+        int queueDepth = threadPool.getQueue().size();
+        int idle       = Math.max(0, threadPool.getPoolSize() - threadPool.getActiveCount());
+        
+        // 指数移動平均で平滑化する．
+        double alpha = 2.0 / (this.window + 1);
+        this.smoothedLatency_ms += alpha * (waits.averageMillis() - this.smoothedLatency_ms);
+        this.smoothedQueueDepth += alpha * (queueDepth - this.smoothedQueueDepth);
+        this.smoothedIdle += alpha * (idle - this.smoothedIdle);
+        
+        // 直前にスレッド数を変更した場合は，その効果が平滑化した値に現れるまで待つ．
+        if (this.cooldown > 0) {
+            this.cooldown--;
+            return;
+        }
+        // スレッド数を決める．
+        int next = current;
+        if ((this.smoothedQueueDepth > this.targetQueueDepth)
+            || ((this.smoothedLatency_ms > this.targetLatency_ms) && (idle == 0))) {
+            // キュー長が目標値を超えているか，待ち時間が目標値を超えていて
+            // 待機中のスレッドが無いので，スレッド数を増やす．
+            // 増やす数は，現在のスレッド数の半分とキュー長のうち大きい方とする．
+            int step = Math.max(1, Math.max(current / 2, queueDepth));
+            next = Math.min(this.maxThreads, current + step);
+        }
+        else if ((this.smoothedLatency_ms <= this.targetLatency_ms / 2)
+            && (queueDepth == 0)
+            && (this.smoothedIdle >= 1.0)) {
+            // 待機中のスレッドが残り続けているので，その半分だけ減らす．
+            next = Math.max(this.minThreads, current - Math.max(1, (int)(this.smoothedIdle / 2)));
+        }
+        if (next == current) {
+            return;
+        }
+        // スレッド数を変更し，その判断の根拠をログに出力する．
+        // 減らす場合，余ったスレッドは待機状態になった後に終了する．
+        threadPool.setCorePoolSize(next);
+        this.cooldown = this.window / 2;
+        logger.printf(
+            "スレッド数変更：%d → %d（待ち時間 %.3fms，キュー長 %.1f，待機中 %.1f）\n",
+            current, next, this.smoothedLatency_ms, this.smoothedQueueDepth, this.smoothedIdle
+        );
+    }
 }
@@ -0,0 +1,346 @@
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 非同期チャネルを包み，受信・送信の開始から完了までを ConnectionTimer に記録するクラス
+ * <p>
+ * 上限を超えるとタイミングホイールのスレッドが包んでいるチャネルを閉じるため，
+ * 完了していない受信・送信のハンドラの failed が，上限を超えた時間の種類を示す
+ * SocketTimeoutException で呼び出される．監視はチャネルを閉じた時点で終える．
+ */
+class TimedAsyncChannel
+    extends
+        AsynchronousSocketChannel
+{
+    // インスタンス変数：
+    private final AsynchronousSocketChannel channel;    // 包んでいるチャネル
+    private final ConnectionTimer           timer;      // 受信待ち・送信待ちの記録先
+    
+    /**
+     * TimedAsyncChannel のインスタンスを生成する．
+     */
+    TimedAsyncChannel(AsynchronousSocketChannel channel, ConnectionTimer timer)
+    {
+        super(channel.provider());
+        this.channel = channel;
+        this.timer = timer;
+    }
+    
+    /**
+     * 受信を記録しながら，包んでいるチャネルで受信を開始する．
+     */
+    @Override
+    public <A> void read(
+        ByteBuffer dst, long timeout, TimeUnit unit, A attachment,
+        CompletionHandler<Integer, ? super A> handler
+    )
+    {
+        this.timer.beginRead();
+        this.channel.read(
+            dst, timeout, unit, attachment, new TimedHandler<Integer, A>(handler, true)
+        );
+    }
+    
+    /**
+     * 受信を記録しながら，包んでいるチャネルで複数のバッファへの受信を開始する．
+     */
+    @Override
+    public <A> void read(
+        ByteBuffer[] dsts, int offset, int length, long timeout, TimeUnit unit, A attachment,
+        CompletionHandler<Long, ? super A> handler
+    )
+    {
+        this.timer.beginRead();
+        this.channel.read(
+            dsts, offset, length, timeout, unit, attachment,
+            new TimedHandler<Long, A>(handler, true)
+        );
+    }
+    
+    /**
+     * 受信を記録しながら受信を開始し，その結果を表す Future を返す．
+     */
+    @Override
+    public Future<Integer> read(ByteBuffer dst)
+    {
+        CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+        read(dst, 0L, TimeUnit.MILLISECONDS, null, new FutureHandler<Integer>(future));
+        return future;
+    }
+    
+    /**
+     * 送信を記録しながら，包んでいるチャネルで送信を開始する．
+     */
+    @Override
+    public <A> void write(
+        ByteBuffer src, long timeout, TimeUnit unit, A attachment,
+        CompletionHandler<Integer, ? super A> handler
+    )
+    {
+        this.timer.beginWrite();
+        this.channel.write(
+            src, timeout, unit, attachment, new TimedHandler<Integer, A>(handler, false)
+        );
+    }
+    
+    /**
+     * 送信を記録しながら，包んでいるチャネルで複数のバッファからの送信を開始する．
+     */
+    @Override
+    public <A> void write(
+        ByteBuffer[] srcs, int offset, int length, long timeout, TimeUnit unit, A attachment,
+        CompletionHandler<Long, ? super A> handler
+    )
+    {
+        this.timer.beginWrite();
+        this.channel.write(
+            srcs, offset, length, timeout, unit, attachment,
+            new TimedHandler<Long, A>(handler, false)
+        );
+    }
+    
+    /**
+     * 送信を記録しながら送信を開始し，その結果を表す Future を返す．
+     */
+    @Override
+    public Future<Integer> write(ByteBuffer src)
+    {
+        CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+        write(src, 0L, TimeUnit.MILLISECONDS, null, new FutureHandler<Integer>(future));
+        return future;
+    }
+    
+    /**
+     * 包んでいるチャネルで接続を開始する．
+     */
+    @Override
+    public <A> void connect(
+        SocketAddress remote, A attachment, CompletionHandler<Void, ? super A> handler
+    )
+    {
+        this.channel.connect(remote, attachment, handler);
+    }
+    
+    /**
+     * 包んでいるチャネルで接続を開始し，その結果を表す Future を返す．
+     */
+    @Override
+    public Future<Void> connect(SocketAddress remote)
+    {
+        return this.channel.connect(remote);
+    }
+    
+    /**
+     * 包んでいるチャネルをバインドする．
+     */
+    @Override
+    public AsynchronousSocketChannel bind(SocketAddress local)
+        throws IOException
+    {
+        this.channel.bind(local);
+        return this;
+    }
+    
+    /**
+     * 包んでいるチャネルのソケットオプションを設定する．
+     */
+    @Override
+    public <T> AsynchronousSocketChannel setOption(SocketOption<T> name, T value)
+        throws IOException
+    {
+        this.channel.setOption(name, value);
+        return this;
+    }
+    
+    /**
+     * 包んでいるチャネルのソケットオプションを返す．
+     */
+    @Override
+    public <T> T getOption(SocketOption<T> name)
+        throws IOException
+    {
+        return this.channel.getOption(name);
+    }
+    
+    /**
+     * 包んでいるチャネルが対応するソケットオプションを返す．
+     */
+    @Override
+    public Set<SocketOption<?>> supportedOptions()
+    {
+        return this.channel.supportedOptions();
+    }
+    
+    /**
+     * 包んでいるチャネルの受信を終える．
+     */
+    @Override
+    public AsynchronousSocketChannel shutdownInput()
+        throws IOException
+    {
+        this.channel.shutdownInput();
+        return this;
+    }
+    
+    /**
+     * 包んでいるチャネルの送信を終える．
+     */
+    @Override
+    public AsynchronousSocketChannel shutdownOutput()
+        throws IOException
+    {
+        this.channel.shutdownOutput();
+        return this;
+    }
+    
+    /**
+     * 相手のソケットアドレスを返す．
+     */
+    @Override
+    public SocketAddress getRemoteAddress()
+        throws IOException
+    {
+        return this.channel.getRemoteAddress();
+    }
+    
+    /**
+     * ローカルのソケットアドレスを返す．
+     */
+    @Override
+    public SocketAddress getLocalAddress()
+        throws IOException
+    {
+        return this.channel.getLocalAddress();
+    }
+    
+    /**
+     * 包んでいるチャネルが開いているか否かを返す．
+     */
+    @Override
+    public boolean isOpen()
+    {
+        return this.channel.isOpen();
+    }
+    
+    /**
+     * 監視を終え，包んでいるチャネルを閉じる．
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        this.timer.cancel();
+        this.channel.close();
+    }
+    
+    /**
+     * 包んでいるチャネルを表す文字列を返す．
+     */
+    @Override
+    public String toString()
+    {
+        return "TimedAsyncChannel[" + this.channel + "]";
+    }
+    
+    /**
+     * 受信・送信の完了を記録してから，元のハンドラを呼び出すハンドラ
+     */
+    private class TimedHandler<V extends Number, A>
+        implements
+            CompletionHandler<V, A>
+    {
+        // インスタンス変数：
+        private final CompletionHandler<V, ? super A> handler;  // 元のハンドラ
+        private final boolean                         isRead;   // 受信か否か
+        
+        /**
+         * TimedHandler のインスタンスを生成する．
+         */
+        TimedHandler(CompletionHandler<V, ? super A> handler, boolean isRead)
+        {
+            this.handler = handler;
+            this.isRead = isRead;
+        }
+        
+        /**
+         * 完了を記録し，元のハンドラに結果を渡す．
+         */
+        @Override
+        public void completed(V result, A attachment)
+        {
+            record(result.longValue());
+            this.handler.completed(result, attachment);
+        }
+        
+        /**
+         * 完了を記録し，上限を超えて切断した場合は例外を置き換えて元のハンドラに渡す．
+         */
+        @Override
+        public void failed(Throwable exc, A attachment)
+        {
+            record(0);
+            SocketTimeoutException timeout = timer.timeoutException();
+            this.handler.failed((timeout == null) ? exc : timeout, attachment);
+        }
+        
+        /**
+         * 受信・送信の完了を記録する．
+         */
+        private void record(long bytes)
+        {
+            if (this.isRead) {
+                timer.endRead(bytes);
+            }
+            else {
+                timer.endWrite();
+            }
+        }
+    }
+    
+    /**
+     * 結果を CompletableFuture に渡すハンドラ
+     */
+    private static class FutureHandler<V>
+        implements
+            CompletionHandler<V, Void>
+    {
+        // インスタンス変数：
+        private final CompletableFuture<V> future;  // 結果の渡し先
+        
+        /**
+         * FutureHandler のインスタンスを生成する．
+         */
+        FutureHandler(CompletableFuture<V> future)
+        {
+            this.future = future;
+        }
+        
+        /**
+         * 結果を渡す．
+         */
+        @Override
+        public void completed(V result, Void attachment)
+        {
+            this.future.complete(result);
+        }
+        
+        /**
+         * 例外を渡す．
+         */
+        @Override
+        public void failed(Throwable exc, Void attachment)
+        {
+            this.future.completeExceptionally(exc);
+        }
+    }
+}
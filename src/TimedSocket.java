@@ -0,0 +1,516 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * ソケットを包み，入出力ストリームでの受信待ち・送信待ちを ConnectionTimer に記録するクラス
+ * <p>
+ * ブロッキング入出力のプロトコルは，受信・送信で待たされている間スレッドを占有する．
+ * 上限を超えるとタイミングホイールのスレッドが包んでいるソケットを閉じるため，
+ * 待たされているスレッドは，上限を超えた時間の種類を示す SocketTimeoutException で解放される．
+ * <p>
+ * 送信は WRITE_SLICE バイト毎に分けて記録し，送信が少しずつでも進んでいれば上限を超えない．
+ * 受信待ちの上限は，データを受信してから応答を送信するまで(メッセージの受信途中)だけ適用する．
+ * getChannel は包んでいるソケットのチャネルを返す．チャネルでの入出力は記録されないため，
+ * チャネルを用いるプロトコル(DownloadProtocol など)は，各呼び出しを timedRead・timedWrite で
+ * 包んで記録する．監視はソケットを閉じた時点で終える．
+ */
+class TimedSocket
+    extends
+        Socket
+{
+    // クラス変数（定数）：
+    static final int WRITE_SLICE = 64 * 1024;   // 送信を記録する単位のバイト数
+    
+    /**
+     * timedRead・timedWrite で記録するチャネルでの入出力
+     */
+    interface ChannelIO
+    {
+        /**
+         * 入出力を行い，受信・送信したバイト数を返す．
+         */
+        long run()
+            throws IOException;
+    }
+    
+    /**
+     * チャネルでの受信を，ソケットが TimedSocket の場合は受信待ちとして記録しながら行う．
+     */
+    static long timedRead(Socket socket, ChannelIO io)
+        throws IOException
+    {
+        if (!(socket instanceof TimedSocket)) {
+            return io.run();
+        }
+        TimedSocket timed     = (TimedSocket)socket;
+        long        bytesRead = -1;
+        timed.timer.beginRead();
+        try {
+            bytesRead = io.run();
+            return bytesRead;
+        }
+        catch (IOException ex) {
+            throw timed.translate(ex);
+        }
+        finally {
+            timed.timer.endRead(bytesRead);
+        }
+    }
+    
+    /**
+     * チャネルでの送信を，ソケットが TimedSocket の場合は送信待ちとして記録しながら行う．
+     * 送信が進んでいる間に上限を超えないよう，1回の送信量を制限すること．
+     */
+    static long timedWrite(Socket socket, ChannelIO io)
+        throws IOException
+    {
+        if (!(socket instanceof TimedSocket)) {
+            return io.run();
+        }
+        TimedSocket timed = (TimedSocket)socket;
+        timed.timer.beginWrite();
+        try {
+            return io.run();
+        }
+        catch (IOException ex) {
+            throw timed.translate(ex);
+        }
+        finally {
+            timed.timer.endWrite();
+        }
+    }
+    
+    // インスタンス変数：
+    private final Socket          socket;   // 包んでいるソケット
+    private final ConnectionTimer timer;    // 受信待ち・送信待ちの記録先
+    private final InputStream     in;       // 受信用の入力ストリーム
+    private final OutputStream    out;      // 送信用の出力ストリーム
+    
+    /**
+     * TimedSocket のインスタンスを生成する．
+     */
+    TimedSocket(Socket socket, ConnectionTimer timer)
+        throws IOException
+    {
+        this.socket = socket;
+        this.timer = timer;
+        this.in = new TimedInputStream(socket.getInputStream());
+        this.out = new TimedOutputStream(socket.getOutputStream());
+    }
+    
+    /**
+     * 受信待ちを記録する入力ストリームを返す．
+     */
+    @Override
+    public InputStream getInputStream()
+        throws IOException
+    {
+        if (isClosed()) {
+            throw new SocketException("Socket is closed");
+        }
+        return this.in;
+    }
+    
+    /**
+     * 送信待ちを記録する出力ストリームを返す．
+     */
+    @Override
+    public OutputStream getOutputStream()
+        throws IOException
+    {
+        if (isClosed()) {
+            throw new SocketException("Socket is closed");
+        }
+        return this.out;
+    }
+    
+    /**
+     * 包んでいるソケットのチャネル(無ければ null)を返す．
+     * チャネルでの入出力は記録されないため，timedRead・timedWrite で包んで行うこと．
+     */
+    @Override
+    public SocketChannel getChannel()
+    {
+        return this.socket.getChannel();
+    }
+    
+    /**
+     * 監視を終え，包んでいるソケットを閉じる．
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        this.timer.cancel();
+        this.socket.close();
+    }
+    
+    /**
+     * 包んでいるソケットを閉じたか否かを返す．
+     */
+    @Override
+    public boolean isClosed()
+    {
+        return this.socket.isClosed();
+    }
+    
+    /**
+     * 包んでいるソケットが接続済みか否かを返す．
+     */
+    @Override
+    public boolean isConnected()
+    {
+        return this.socket.isConnected();
+    }
+    
+    /**
+     * 包んでいるソケットの送信を終える．
+     */
+    @Override
+    public void shutdownOutput()
+        throws IOException
+    {
+        this.socket.shutdownOutput();
+    }
+    
+    /**
+     * 包んでいるソケットの受信を終える．
+     */
+    @Override
+    public void shutdownInput()
+        throws IOException
+    {
+        this.socket.shutdownInput();
+    }
+    
+    /**
+     * 包んでいるソケットの送信を終えたか否かを返す．
+     */
+    @Override
+    public boolean isOutputShutdown()
+    {
+        return this.socket.isOutputShutdown();
+    }
+    
+    /**
+     * 包んでいるソケットの受信を終えたか否かを返す．
+     */
+    @Override
+    public boolean isInputShutdown()
+    {
+        return this.socket.isInputShutdown();
+    }
+    
+    /**
+     * 相手のアドレスを返す．
+     */
+    @Override
+    public InetAddress getInetAddress()
+    {
+        return this.socket.getInetAddress();
+    }
+    
+    /**
+     * 相手のポート番号を返す．
+     */
+    @Override
+    public int getPort()
+    {
+        return this.socket.getPort();
+    }
+    
+    /**
+     * 相手のソケットアドレスを返す．
+     */
+    @Override
+    public SocketAddress getRemoteSocketAddress()
+    {
+        return this.socket.getRemoteSocketAddress();
+    }
+    
+    /**
+     * ローカルアドレスを返す．
+     */
+    @Override
+    public InetAddress getLocalAddress()
+    {
+        return this.socket.getLocalAddress();
+    }
+    
+    /**
+     * ローカルポート番号を返す．
+     */
+    @Override
+    public int getLocalPort()
+    {
+        return this.socket.getLocalPort();
+    }
+    
+    /**
+     * ローカルのソケットアドレスを返す．
+     */
+    @Override
+    public SocketAddress getLocalSocketAddress()
+    {
+        return this.socket.getLocalSocketAddress();
+    }
+    
+    /**
+     * 包んでいるソケットの TCP_NODELAY を設定する．
+     */
+    @Override
+    public void setTcpNoDelay(boolean on)
+        throws SocketException
+    {
+        this.socket.setTcpNoDelay(on);
+    }
+    
+    /**
+     * 包んでいるソケットの TCP_NODELAY を返す．
+     */
+    @Override
+    public boolean getTcpNoDelay()
+        throws SocketException
+    {
+        return this.socket.getTcpNoDelay();
+    }
+    
+    /**
+     * 包んでいるソケットの SO_TIMEOUT を設定する．
+     */
+    @Override
+    public void setSoTimeout(int timeout)
+        throws SocketException
+    {
+        this.socket.setSoTimeout(timeout);
+    }
+    
+    /**
+     * 包んでいるソケットの SO_TIMEOUT を返す．
+     */
+    @Override
+    public int getSoTimeout()
+        throws SocketException
+    {
+        return this.socket.getSoTimeout();
+    }
+    
+    /**
+     * 包んでいるソケットの送信バッファサイズを設定する．
+     */
+    @Override
+    public void setSendBufferSize(int size)
+        throws SocketException
+    {
+        this.socket.setSendBufferSize(size);
+    }
+    
+    /**
+     * 包んでいるソケットの送信バッファサイズを返す．
+     */
+    @Override
+    public int getSendBufferSize()
+        throws SocketException
+    {
+        return this.socket.getSendBufferSize();
+    }
+    
+    /**
+     * 包んでいるソケットの受信バッファサイズを設定する．
+     */
+    @Override
+    public void setReceiveBufferSize(int size)
+        throws SocketException
+    {
+        this.socket.setReceiveBufferSize(size);
+    }
+    
+    /**
+     * 包んでいるソケットの受信バッファサイズを返す．
+     */
+    @Override
+    public int getReceiveBufferSize()
+        throws SocketException
+    {
+        return this.socket.getReceiveBufferSize();
+    }
+    
+    /**
+     * 上限を超えて切断された場合は，入出力で発生した例外を SocketTimeoutException に置き換える．
+     */
+    private IOException translate(IOException ex)
+    {
+        SocketTimeoutException timeout = this.timer.timeoutException();
+        return (timeout == null) ? ex : timeout;
+    }
+    
+    /**
+     * 包んでいるソケットを表す文字列を返す．
+     */
+    @Override
+    public String toString()
+    {
+        return "TimedSocket[" + this.socket + "]";
+    }
+    
+    /**
+     * 受信待ちを記録する入力ストリーム
+     */
+    private class TimedInputStream
+        extends
+            InputStream
+    {
+        // インスタンス変数：
+        private final InputStream in;   // 包んでいるソケットの入力ストリーム
+        
+        /**
+         * TimedInputStream のインスタンスを生成する．
+         */
+        TimedInputStream(InputStream in)
+        {
+            this.in = in;
+        }
+        
+        /**
+         * 1バイトを受信する．
+         */
+        @Override
+        public int read()
+            throws IOException
+        {
+            int data = -1;
+            timer.beginRead();
+            try {
+                data = this.in.read();
+                return data;
+            }
+            catch (IOException ex) {
+                throw translate(ex);
+            }
+            finally {
+                timer.endRead((data == -1) ? 0 : 1);
+            }
+        }
+        
+        /**
+         * 最大 len バイトを受信する．
+         */
+        @Override
+        public int read(byte[] b, int off, int len)
+            throws IOException
+        {
+            int bytesRead = -1;
+            timer.beginRead();
+            try {
+                bytesRead = this.in.read(b, off, len);
+                return bytesRead;
+            }
+            catch (IOException ex) {
+                throw translate(ex);
+            }
+            finally {
+                timer.endRead(bytesRead);
+            }
+        }
+        
+        /**
+         * 待たずに受信できるバイト数を返す．
+         */
+        @Override
+        public int available()
+            throws IOException
+        {
+            return this.in.available();
+        }
+        
+        /**
+         * ソケットを閉じる．
+         */
+        @Override
+        public void close()
+            throws IOException
+        {
+            TimedSocket.this.close();
+        }
+    }
+    
+    /**
+     * 送信待ちを記録する出力ストリーム
+     */
+    private class TimedOutputStream
+        extends
+            OutputStream
+    {
+        // インスタンス変数：
+        private final OutputStream out; // 包んでいるソケットの出力ストリーム
+        
+        /**
+         * TimedOutputStream のインスタンスを生成する．
+         */
+        TimedOutputStream(OutputStream out)
+        {
+            this.out = out;
+        }
+        
+        /**
+         * 1バイトを送信する．
+         */
+        @Override
+        public void write(int b)
+            throws IOException
+        {
+            timer.beginWrite();
+            try {
+                this.out.write(b);
+            }
+            catch (IOException ex) {
+                throw translate(ex);
+            }
+            finally {
+                timer.endWrite();
+            }
+        }
+        
+        /**
+         * len バイトを，WRITE_SLICE バイト毎に記録しながら送信する．
+         */
+        @Override
+        public void write(byte[] b, int off, int len)
+            throws IOException
+        {
+            while (len > 0) {
+                int length = Math.min(len, WRITE_SLICE);
+                timer.beginWrite();
+                try {
+                    this.out.write(b, off, length);
+                }
+                catch (IOException ex) {
+                    throw translate(ex);
+                }
+                finally {
+                    timer.endWrite();
+                }
+                off += length;
+                len -= length;
+            }
+        }
+        
+        /**
+         * ソケットを閉じる．
+         */
+        @Override
+        public void close()
+            throws IOException
+        {
+            TimedSocket.this.close();
+        }
+    }
+}
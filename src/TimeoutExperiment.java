@@ -0,0 +1,387 @@
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 止まったクライアントのコネクションが，タイムアウトにより切断されるまでの時間と，
+ * タイミングホイールによる時間の監視の費用を調べる実験
+ * <p>
+ * EchoProtocolFactory を用いる ThreadPerConnectionDispatcher，
+ * EchoChannelProtocolFactory を用いる SelectorDispatcher と，
+ * EchoAsyncProtocolFactory を用いる AsyncChannelDispatcher を，同じプロセス内で
+ * 時間を監視しない設定と監視する設定で起動する．それぞれに対して，下記の止まった
+ * クライアントのコネクションを指定された数だけ確立し，サーバ側の処理中のコネクション数が
+ * 元に戻るまでの時間(最大 OBSERVE_MS)と，切断の種類毎の数を ServerMetrics から求める．
+ * <ul>
+ * <li>無通信：接続するだけで何も送信しない．メッセージの受信途中ではないため，
+ *     受信待ちではなく無通信の上限で切断される．
+ * <li>送信待ち：エコーのデータを送信し続けるが，受信しない(クライアント数は MAX_WRITERS まで)．
+ * </ul>
+ * 監視しない設定では，観察を終えてクライアント側から閉じるまで，サーバ側の
+ * コネクション(ブロッキング入出力ではスレッドも)が残り続ける．
+ * <p>
+ * 最後に，指定された数のエントリを登録したタイミングホイールについて，入出力1回分の記録と
+ * 1ティックの処理に掛かる時間を計測する．比較のため，ScheduledThreadPoolExecutor に
+ * コネクション毎のタスクを登録し，入出力の度に取り消して登録し直す場合の時間も計測する．
+ */
+public class TimeoutExperiment
+{
+    // クラス変数（定数）：
+    // 無通信・受信待ち・送信待ちの時間の上限，ティックの長さ，観察する時間の上限
+    private static final long TIMEOUT_MS = 1000;
+    private static final long TICK_MS    = 50;
+    private static final long OBSERVE_MS = 5000;
+    
+    // 送信待ちのクライアント数の上限と，送信するデータのサイズ
+    private static final int MAX_WRITERS = 8;
+    private static final int BUF_SIZE    = 64 * 1024;
+    
+    // タイミングホイールの計測で，各エントリを記録する回数とホイールを進めるティック数
+    private static final int TOUCH_ROUNDS  = 10;
+    private static final int ADVANCE_TICKS = 1024;
+    
+    /**
+     * タイムアウトの計測実験を実行するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 2) {
+            System.out.println("Parameters: <Stalled Connections> <Wheel Entries>");
+            return;
+        }
+        try {
+            // 止まったクライアントのコネクション数と，タイミングホイールのエントリ数を
+            // 引数から取得する．
+            int numStalled = Integer.parseInt(args[0]);
+            int numEntries = Integer.parseInt(args[1]);
+            
+            // コンソールへのログ出力用のインスタンスを生成する．
+            ConsoleLogger clog = new ConsoleLogger();
+            
+            // ファイルへのログ出力用のインスタンスを，結果用とサーバ用に生成する．
+            long       now_ms = System.currentTimeMillis();
+            FileLogger flog   = new FileLogger(String.format("timeout_%d.txt", now_ms));
+            FileLogger slog   = new FileLogger(String.format("timeout_server_%d.txt", now_ms));
+            // IOException
+            
+            // 実験用のインスタンスを生成し，実験を実行する．
+            TimeoutExperiment experiment = new TimeoutExperiment(
+                numStalled, numEntries, clog, flog, slog
+            );
+            experiment.execute();
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    // インスタンス変数：
+    private final int           numStalled; // 止まったクライアントのコネクション数
+    private final int           numEntries; // タイミングホイールのエントリ数
+    private final ConsoleLogger clog;       // コンソールへの出力用 Logger
+    private final FileLogger    flog;       // 結果のファイルへの出力用 Logger
+    private final FileLogger    slog;       // サーバのログのファイルへの出力用 Logger
+    
+    /**
+     * TimeoutExperiment のインスタンスを生成する．
+     */
+    TimeoutExperiment(
+        int numStalled, int numEntries, ConsoleLogger clog, FileLogger flog, FileLogger slog
+    )
+    {
+        this.numStalled = numStalled;
+        this.numEntries = numEntries;
+        this.clog = clog;
+        this.flog = flog;
+        this.slog = slog;
+    }
+    
+    /**
+     * ディスパッチャ・設定・クライアントの種類毎に切断までの時間を計測し，
+     * 続いてタイミングホイールの費用を計測して結果を出力する．
+     */
+    void execute()
+        throws Exception
+    {
+        ConnectionTimeouts disabled = ConnectionTimeouts.disabled();
+        ConnectionTimeouts enabled  = new ConnectionTimeouts(
+            TIMEOUT_MS, TIMEOUT_MS, TIMEOUT_MS, TICK_MS, 512
+        );
+        
+        this.flog.printf(
+            "dispatcher\ttimeouts\tstall\tconnections\tdrain_ms\tidle\tread\twrite\n"
+        );
+        for (ConnectionTimeouts timeouts : new ConnectionTimeouts[] { disabled, enabled }) {
+            int blockingPort = startBlockingServer(timeouts);
+            int channelPort  = startChannelServer(timeouts);
+            int asyncPort    = startAsyncServer(timeouts);
+            for (boolean isWriter : new boolean[] { false, true }) {
+                observe("ThreadPerConnection", timeouts, blockingPort, isWriter);
+                observe("Selector", timeouts, channelPort, isWriter);
+                observe("AsyncChannel", timeouts, asyncPort, isWriter);
+            }
+        }
+        measureWheel();
+        this.flog.close();
+        this.slog.close();
+    }
+    
+    /**
+     * ThreadPerConnectionDispatcher によるエコーサーバを，ループバックアドレスの
+     * 空いているポートでデーモンスレッドとして起動し，ポート番号を返す．
+     */
+    private int startBlockingServer(ConnectionTimeouts timeouts)
+        throws IOException
+    {
+        ServerSocket servSock = ServerSocketChannel.open().socket();
+        servSock.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread server = new Thread(
+            () -> new ThreadPerConnectionDispatcher(timeouts).startDispatching(
+                servSock, new EchoProtocolFactory(), this.slog
+            )
+        );
+        server.setDaemon(true);
+        server.start();
+        return servSock.getLocalPort();
+    }
+    
+    /**
+     * SelectorDispatcher によるエコーサーバを，ループバックアドレスの
+     * 空いているポートでデーモンスレッドとして起動し，ポート番号を返す．
+     */
+    private int startChannelServer(ConnectionTimeouts timeouts)
+        throws IOException
+    {
+        ServerSocketChannel servChan = ServerSocketChannel.open();
+        servChan.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread server = new Thread(
+            () -> new SelectorDispatcher(timeouts).startDispatching(
+                servChan, new EchoChannelProtocolFactory(), this.slog
+            )
+        );
+        server.setDaemon(true);
+        server.start();
+        return servChan.socket().getLocalPort();
+    }
+    
+    /**
+     * AsyncChannelDispatcher によるエコーサーバを，ループバックアドレスの
+     * 空いているポートでデーモンスレッドとして起動し，ポート番号を返す．
+     */
+    private int startAsyncServer(ConnectionTimeouts timeouts)
+        throws IOException
+    {
+        // 実験の終了を妨げないよう，グループのスレッドはデーモンスレッドとする．
+        AsyncChannelDispatcher   dispatcher = new AsyncChannelDispatcher(2, timeouts);
+        AsynchronousChannelGroup group      = AsynchronousChannelGroup.withFixedThreadPool(
+            2, task -> {
+                Thread thread = new Thread(task);
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+        AsynchronousServerSocketChannel servChan = AsynchronousServerSocketChannel.open(group);
+        servChan.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread server = new Thread(
+            () -> dispatcher.startDispatching(servChan, new EchoAsyncProtocolFactory(), this.slog)
+        );
+        server.setDaemon(true);
+        server.start();
+        return ((InetSocketAddress)servChan.getLocalAddress()).getPort();
+    }
+    
+    /**
+     * 止まったクライアントのコネクションを確立し，サーバ側の処理中のコネクション数が
+     * 元に戻るまでの時間と，切断の種類毎の数を出力する．観察を終えたらクライアントを閉じる．
+     */
+    private void observe(
+        String dispatcher, ConnectionTimeouts timeouts, int port, boolean isWriter
+    )
+        throws Exception
+    {
+        ServerMetrics metrics      = ServerMetrics.getInstance();
+        long          baseAccepted = metrics.getAcceptedConnections();
+        long          baseActive   = metrics.getActiveConnections();
+        long          baseIdle     = metrics.getIdleTimeouts();
+        long          baseRead     = metrics.getReadTimeouts();
+        long          baseWrite    = metrics.getWriteTimeouts();
+        int           numClients   = isWriter
+            ? Math.min(this.numStalled, MAX_WRITERS)
+            : this.numStalled;
+        List<Socket>  sockets      = new ArrayList<Socket>();
+        List<Thread>  writers      = new ArrayList<Thread>();
+        String        servAddr     = InetAddress.getLoopbackAddress().getHostAddress();
+        
+        try {
+            // 止まったクライアントのコネクションを確立する．
+            // 送信待ちの場合は，受信せずに送信し続けるスレッドを開始する．
+            // 受け付けのキューが溢れないよう，サーバ側で処理中になるのを待ってから次へ進む．
+            for (int i = 0; i < numClients; i++) {
+                Socket socket = new Socket(servAddr, port);
+                sockets.add(socket);
+                if (isWriter) {
+                    Thread writer = new Thread(() -> writeForever(socket));
+                    writer.setDaemon(true);
+                    writer.start();
+                    writers.add(writer);
+                }
+                long expected = baseAccepted + i + 1;
+                long wait_ns  = System.nanoTime() + OBSERVE_MS * 1000000;
+                waitUntil(() -> metrics.getAcceptedConnections() >= expected, wait_ns);
+            }
+            // 最後のコネクションを確立してから，処理中のコネクション数が元に戻るまでの
+            // 時間を計測する．
+            long startTime_ns = System.nanoTime();
+            long limit_ns     = startTime_ns + OBSERVE_MS * 1000000;
+            
+            boolean isDrained = waitUntil(
+                () -> metrics.getActiveConnections() <= baseActive, limit_ns
+            );
+            long    drain_ns  = System.nanoTime() - startTime_ns;
+            String  drain     = isDrained
+                ? String.format("%d", drain_ns / 1000000)
+                : String.format(">%d", OBSERVE_MS);
+            
+            // 結果を出力する．
+            long   idle  = metrics.getIdleTimeouts() - baseIdle;
+            long   read  = metrics.getReadTimeouts() - baseRead;
+            long   write = metrics.getWriteTimeouts() - baseWrite;
+            String label = timeouts.isEnabled() ? "enabled" : "disabled";
+            String stall = isWriter ? "write" : "idle";
+            this.clog.printf(
+                "%-19s %-8s %-5s 接続 %,6d：切断まで %6s ms，"
+                    + "タイムアウト 無通信 %d，受信 %d，送信 %d\n",
+                dispatcher, label, stall, numClients, drain, idle, read, write
+            );
+            this.flog.printf(
+                "%s\t%s\t%s\t%d\t%s\t%d\t%d\t%d\n",
+                dispatcher, label, stall, numClients, drain, idle, read, write
+            );
+        }
+        finally {
+            // クライアントを閉じ，サーバ側のコネクションが全て終了するまで待つ．
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            while (metrics.getActiveConnections() > baseActive) {
+                Thread.sleep(5);
+            }
+        }
+    }
+    
+    /**
+     * 条件が成り立つか，指定された時刻(ns)になるまで待つ．条件が成り立ったか否かを返す．
+     */
+    private boolean waitUntil(BooleanSupplier condition, long limit_ns)
+        throws InterruptedException
+    {
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - limit_ns >= 0) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+    
+    /**
+     * ソケットが閉じられるまで，受信せずにデータを送信し続ける．
+     */
+    private void writeForever(Socket socket)
+    {
+        byte[] data = new byte[BUF_SIZE];
+        try {
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                out.write(data);
+            }
+        }
+        catch (IOException ex) {
+            // サーバまたはこのクライアントがソケットを閉じた．
+            ;
+        }
+    }
+    
+    /**
+     * タイミングホイールと ScheduledThreadPoolExecutor について，
+     * 入出力1回分の記録と，1ティックの処理に掛かる時間を計測する．
+     */
+    private void measureWheel()
+        throws Exception
+    {
+        // 指定された数のエントリを登録する．
+        // 期限は計測中に切れないよう，ホイールの周回より長くする．
+        HashedTimingWheel wheel  = new HashedTimingWheel(TICK_MS, 512);
+        ConnectionTimer[] timers = new ConnectionTimer[this.numEntries];
+        for (int i = 0; i < this.numEntries; i++) {
+            timers[i] = new ConnectionTimer(0, 3600000, 3600000);
+            timers[i].start(wheel, () -> {});
+        }
+        wheel.advance(System.nanoTime());
+        
+        // 全てのエントリについて，受信の開始と終了を繰り返し記録する．
+        long startTime_ns = System.nanoTime();
+        for (int round = 0; round < TOUCH_ROUNDS; round++) {
+            for (ConnectionTimer timer : timers) {
+                timer.beginRead();
+                timer.endRead(1);
+            }
+        }
+        long   touches       = (long)TOUCH_ROUNDS * this.numEntries;
+        double wheelTouch_ns = (double)(System.nanoTime() - startTime_ns) / touches;
+        
+        // ホイールを ADVANCE_TICKS ティック進める．
+        long base_ns = System.nanoTime();
+        startTime_ns = System.nanoTime();
+        for (int tick = 1; tick <= ADVANCE_TICKS; tick++) {
+            wheel.advance(base_ns + tick * TICK_MS * 1000000);
+        }
+        double wheelTick_us = (System.nanoTime() - startTime_ns) / 1e3 / ADVANCE_TICKS;
+        
+        // コネクション毎のタスクを登録し，入出力の度に取り消して登録し直す．
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+        List<ScheduledFuture<?>> futures = new ArrayList<ScheduledFuture<?>>();
+        for (int i = 0; i < this.numEntries; i++) {
+            futures.add(scheduler.schedule(() -> {}, 3600, TimeUnit.SECONDS));
+        }
+        startTime_ns = System.nanoTime();
+        for (int round = 0; round < TOUCH_ROUNDS; round++) {
+            for (int i = 0; i < this.numEntries; i++) {
+                futures.get(i).cancel(false);
+                futures.set(i, scheduler.schedule(() -> {}, 3600, TimeUnit.SECONDS));
+            }
+        }
+        double schedTouch_ns = (double)(System.nanoTime() - startTime_ns) / touches;
+        scheduler.shutdownNow();
+        
+        // 結果を出力する．
+        this.clog.printf(
+            "エントリ %,d：ホイール 記録 %.1f ns/回，1ティック %.1f μs，"
+                + "ScheduledThreadPoolExecutor 再登録 %.1f ns/回\n",
+            this.numEntries, wheelTouch_ns, wheelTick_us, schedTouch_ns
+        );
+        this.flog.printf("entries\twheel_touch_ns\twheel_tick_us\tscheduler_touch_ns\n");
+        this.flog.printf(
+            "%d\t%.1f\t%.1f\t%.1f\n", this.numEntries, wheelTouch_ns, wheelTick_us, schedTouch_ns
+        );
+    }
+}
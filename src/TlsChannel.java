@@ -0,0 +1,349 @@
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * ノンブロッキングモードのチャネルを SSLEngine で包み，平文を読み書きできるようにするクラス
+ * <p>
+ * read・write は，SocketChannel と同じく待たずに戻り，進められなければ 0 を返す．
+ * ハンドシェイクは read・write の中で進める．完了するまでは平文を扱わず 0 を返すため，
+ * プロトコルはハンドシェイクを意識せずに通常の受信・送信と同じく処理できる．
+ * SSLEngine が委譲するタスク(証明書の検証など)は，呼び出したスレッドでそのまま実行する．
+ * <p>
+ * 暗号化したデータをチャネルへ送信し切れなかった場合は，内部のバッファに残して
+ * write はそのバイト数を送信したものとして返す．残したデータは flush で送信する．
+ * 受信したレコードは1つずつ復号し，渡されたバッファに入り切らなかった平文も内部のバッファに残す．
+ * 残したデータの有無は hasPendingOutput・hasBufferedInput で確かめられる．
+ * 送受信用のバッファは BufferPool から借り，release で返す．
+ */
+class TlsChannel
+    implements
+        ByteChannel
+{
+    // クラス変数（定数）：
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0); // ハンドシェイク用の空の平文
+    
+    // インスタンス変数：
+    private final SocketChannel chan;           // 包んでいるチャネル
+    private final SSLEngine     engine;         // 暗号化・復号を行う SSLEngine
+    private final TlsContext    context;        // ハンドシェイクの記録先
+    
+    private ByteBuffer netIn;                   // 受信した暗号化データ(書き込み用の状態)
+    private ByteBuffer netOut;                  // 送信する暗号化データ(書き込み用の状態)
+    private ByteBuffer appIn;                   // 復号した平文(書き込み用の状態)
+    private boolean    isHandshaking  = true;   // 最初のハンドシェイクが完了していないか否か
+    private boolean    isEndOfStream  = false;  // 相手が送信を終えたか否か
+    private long       totalBytesRead = 0;      // read で渡した平文の総バイト数
+    
+    /**
+     * TlsChannel のインスタンスを生成する．
+     */
+    TlsChannel(SocketChannel chan, SSLEngine engine, TlsContext context)
+    {
+        this.chan = chan;
+        this.engine = engine;
+        this.context = context;
+        
+        int packetSize = engine.getSession().getPacketBufferSize();
+        int appSize    = engine.getSession().getApplicationBufferSize();
+        this.netIn = BufferPool.getHeapInstance().acquire(packetSize);
+        this.netOut = BufferPool.getHeapInstance().acquire(packetSize);
+        this.appIn = BufferPool.getHeapInstance().acquire(appSize);
+    }
+    
+    /**
+     * 復号した平文を最大 dst の残りのバイト数だけ読み込み，そのバイト数を返す．
+     * 読み込める平文が無い場合は 0 を，相手が送信を終えた場合は -1 を返す．
+     */
+    @Override
+    public int read(ByteBuffer dst)
+        throws IOException
+    {
+        // 前回の残りが無ければ，平文が得られるまでレコードを復号する．
+        // ハンドシェイクのメッセージ(鍵の更新など)を受信した場合は，その処理も進める．
+        while (this.appIn.position() == 0) {
+            if (!handshake()) {
+                return 0;
+            }
+            if (!unwrap()) {
+                break;
+            }
+        }
+        if (this.appIn.position() == 0) {
+            return this.isEndOfStream ? -1 : 0;
+        }
+        // 復号した平文を渡せるだけ渡す．
+        this.appIn.flip();
+        int length = Math.min(this.appIn.remaining(), dst.remaining());
+        ByteBuffer slice = this.appIn.slice(this.appIn.position(), length);
+        dst.put(slice);
+        this.appIn.position(this.appIn.position() + length);
+        this.appIn.compact();
+        this.totalBytesRead += length;
+        return length;
+    }
+    
+    /**
+     * src の平文を暗号化して送信し，暗号化したバイト数を返す．
+     * 前回の暗号化データを送信し切れていない場合は 0 を返す．
+     */
+    @Override
+    public int write(ByteBuffer src)
+        throws IOException
+    {
+        if (!handshake() || !flush()) {
+            return 0;
+        }
+        int bytesConsumed = 0;
+        while (src.hasRemaining()) {
+            SSLEngineResult result = this.engine.wrap(src, this.netOut);
+            bytesConsumed += result.bytesConsumed();
+            switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                // 暗号化データのバッファが空でも入り切らない場合は広げる．
+                if (this.netOut.position() == 0) {
+                    this.netOut = enlarge(this.netOut, packetSize());
+                }
+                break;
+            case CLOSED:
+                throw new SSLException("TLS のコネクションは既に閉じられています．");
+            default:
+                break;
+            }
+            if (!flush()) {
+                break;
+            }
+        }
+        return bytesConsumed;
+    }
+    
+    /**
+     * 送信し切れていない暗号化データを送信する．全て送信し終えたら true を返す．
+     */
+    boolean flush()
+        throws IOException
+    {
+        if (this.netOut.position() > 0) {
+            this.netOut.flip();
+            this.chan.write(this.netOut);
+            this.netOut.compact();
+        }
+        return this.netOut.position() == 0;
+    }
+    
+    /**
+     * 送信し切れていない暗号化データがあるか否かを返す．
+     */
+    boolean hasPendingOutput()
+    {
+        return this.netOut.position() > 0;
+    }
+    
+    /**
+     * チャネルから受信せずに read で読み込める可能性のあるデータ
+     * (渡し切れていない平文か，復号していないレコード)があるか否かを返す．
+     */
+    boolean hasBufferedInput()
+    {
+        return (this.appIn.position() > 0) || (this.netIn.position() > 0);
+    }
+    
+    /**
+     * read で渡した平文の総バイト数を返す．
+     */
+    long getTotalBytesRead()
+    {
+        return this.totalBytesRead;
+    }
+    
+    /**
+     * ハンドシェイクを進める．ハンドシェイク中でなくなったら true を返し，
+     * 相手からの受信や送信の完了を待つ必要があれば false を返す．
+     * 最初のハンドシェイクが完了した時点で，TlsContext に記録する．
+     */
+    private boolean handshake()
+        throws IOException
+    {
+        while (true) {
+            switch (this.engine.getHandshakeStatus()) {
+            case NEED_TASK:
+                // 委譲されたタスクを，このスレッドで実行する．
+                Runnable task;
+                while ((task = this.engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                break;
+            case NEED_WRAP:
+                // 送信するハンドシェイクのメッセージを生成する．
+                // 前回のメッセージを送信し切れていなければ，送信を待つ．
+                if (!flush()) {
+                    return false;
+                }
+                SSLEngineResult result = this.engine.wrap(EMPTY, this.netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    this.netOut = enlarge(this.netOut, packetSize());
+                }
+                else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    flush();
+                    throw new SSLException("ハンドシェイク中に TLS が閉じられました．");
+                }
+                break;
+            case NEED_UNWRAP:
+            case NEED_UNWRAP_AGAIN:
+                // 相手のメッセージを待つ前に，こちらのメッセージを送信し切る．
+                // 受信済みのデータで足りなければ，受信を待つ．
+                flush();
+                if (!unwrap()) {
+                    if (this.isEndOfStream) {
+                        throw new EOFException("ハンドシェイク中にコネクションが閉じられました．");
+                    }
+                    return false;
+                }
+                break;
+            default:
+                // ハンドシェイク中でない．
+                if (this.isHandshaking) {
+                    this.isHandshaking = false;
+                    this.context.recordHandshake();
+                }
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * 受信済みの暗号化データ(足りなければチャネルから受信したデータ)を1レコード復号する．
+     * 復号を進められた場合は true を，受信を待つ必要があるか相手が送信を終えた場合は false を返す．
+     */
+    private boolean unwrap()
+        throws IOException
+    {
+        while (true) {
+            this.netIn.flip();
+            SSLEngineResult result = this.engine.unwrap(this.netIn, this.appIn);
+            this.netIn.compact();
+            switch (result.getStatus()) {
+            case OK:
+                return true;
+            case BUFFER_UNDERFLOW:
+                // レコードが揃っていないので，受信する．
+                // 受信用のバッファに入り切らない場合は広げる．
+                if (!this.netIn.hasRemaining()) {
+                    this.netIn = enlarge(this.netIn, packetSize());
+                }
+                int bytesRcvd = this.chan.read(this.netIn);
+                if (bytesRcvd == -1) {
+                    closeInbound();
+                    return false;
+                }
+                if (bytesRcvd == 0) {
+                    return false;
+                }
+                break;
+            case BUFFER_OVERFLOW:
+                // 平文が入り切らない．前回の残りがあれば，それを渡し終えるのを待つ．
+                if (this.appIn.position() > 0) {
+                    return false;
+                }
+                int appSize = this.engine.getSession().getApplicationBufferSize();
+                this.appIn = enlarge(this.appIn, appSize);
+                break;
+            case CLOSED:
+                // 相手が close_notify を送った．
+                this.isEndOfStream = true;
+                return false;
+            }
+        }
+    }
+    
+    /**
+     * 相手が close_notify を送らずにコネクションを閉じた場合の処理を行う．
+     * 送信を終えたものとして扱い，切り詰めの可能性を示す例外は無視する．
+     */
+    private void closeInbound()
+    {
+        this.isEndOfStream = true;
+        try {
+            this.engine.closeInbound();
+        }
+        catch (SSLException ex) {
+            ;
+        }
+    }
+    
+    /**
+     * 現在のセッションのパケットの最大サイズを返す．
+     */
+    private int packetSize()
+    {
+        return this.engine.getSession().getPacketBufferSize();
+    }
+    
+    /**
+     * バッファを，内容を保ったまま指定したサイズ以上に広げる．
+     */
+    private ByteBuffer enlarge(ByteBuffer buffer, int size)
+    {
+        ByteBuffer larger = BufferPool.getHeapInstance().acquire(
+            Math.max(size, buffer.capacity() * 2)
+        );
+        buffer.flip();
+        larger.put(buffer);
+        BufferPool.getHeapInstance().release(buffer);
+        return larger;
+    }
+    
+    /**
+     * 包んでいるチャネルが開いているか否かを返す．
+     */
+    @Override
+    public boolean isOpen()
+    {
+        return this.chan.isOpen();
+    }
+    
+    /**
+     * close_notify を送信してから，包んでいるチャネルを閉じる．
+     * close_notify は送信できるだけ送信し，送信の完了は待たない．
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        try {
+            this.engine.closeOutbound();
+            while (!this.engine.isOutboundDone()) {
+                SSLEngineResult result = this.engine.wrap(EMPTY, this.netOut);
+                if (result.getStatus() != SSLEngineResult.Status.OK) {
+                    break;
+                }
+            }
+            flush();
+        }
+        catch (IOException ex) {
+            ;
+        }
+        finally {
+            this.chan.close();
+        }
+    }
+    
+    /**
+     * 送受信用のバッファをプールへ返す．チャネルが閉じられた後に1度だけ呼び出すこと．
+     */
+    void release()
+    {
+        BufferPool.getHeapInstance().release(this.netIn);
+        BufferPool.getHeapInstance().release(this.netOut);
+        BufferPool.getHeapInstance().release(this.appIn);
+        this.netIn = null;
+        this.netOut = null;
+        this.appIn = null;
+    }
+}
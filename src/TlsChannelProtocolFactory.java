@@ -0,0 +1,174 @@
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * ノンブロッキング入出力のプロトコルファクトリを包み，
+ * 生成するプロトコルの送受信を TLS で暗号化するためのファクトリクラス
+ * <p>
+ * コネクション毎に SSLEngine で包んだ TlsChannel を生成し，包んでいるファクトリに
+ * それ経由で送受信するプロトコルを生成させる．ハンドシェイクは，プロトコルの最初の受信の中で進む．
+ */
+class TlsChannelProtocolFactory
+    implements
+        ChannelProtocolFactory
+{
+    // インスタンス変数：
+    private final LayeredChannelProtocolFactory factory;    // 包んでいるプロトコルファクトリ
+    private final TlsContext                    context;    // TLS の設定
+    
+    /**
+     * TlsChannelProtocolFactory のインスタンスを生成する．
+     */
+    TlsChannelProtocolFactory(LayeredChannelProtocolFactory factory, TlsContext context)
+    {
+        this.factory = factory;
+        this.context = context;
+    }
+    
+    /**
+     * TlsChannel 経由で送受信するプロトコル処理用のインスタンスを生成し，
+     * TlsChannelProtocol で包んで返す．
+     */
+    @Override
+    public ChannelProtocol createProtocol(SocketChannel clntChan, Logger logger)
+    {
+        // ハンドシェイクの小さなメッセージの送信が Nagle アルゴリズムで遅れないようにする．
+        try {
+            clntChan.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        catch (IOException ex) {
+            logger.printf("例外発生：%s\n", ex.getMessage());
+        }
+        TlsChannel tlsChan = new TlsChannel(
+            clntChan, this.context.createServerEngine(), this.context
+        );
+        return new TlsChannelProtocol(
+            this.factory.createProtocol(clntChan, tlsChan, logger), tlsChan
+        );
+    }
+}
+
+/**
+ * TlsChannel 経由で送受信するプロトコル処理用のインスタンスを包み，
+ * TlsChannel が内部に残したデータの処理をセレクタの監視と合わせるクラス
+ * <p>
+ * TlsChannel はレコード単位で受信・復号するため，チャネルに受信するデータが無くても
+ * 復号済みの平文が残ることがある．包んでいるプロトコルの処理の後，残っている平文を
+ * プロトコルが読み込まなくなるまで読み込ませる．また，暗号化データを送信し切れなかった場合は，
+ * 書き込み可能状態を監視し，送信し終えるまでプロトコルには書き込みを任せない．
+ * プロトコル自身が書き込み可能状態を監視していなかった場合は，送信し終えた時点で監視を止める．
+ * <p>
+ * 帯域制限で読み込み可能状態の監視を止めている間に残った平文は，監視を再開した後の
+ * 次の受信か送信の処理まで読み込まれない．
+ */
+class TlsChannelProtocol
+    implements
+        ChannelProtocol
+{
+    // インスタンス変数：
+    private final ChannelProtocol protocol; // プロトコル処理用のインスタンス
+    private final TlsChannel      tlsChan;  // プロトコルが送受信に用いるチャネル
+    
+    private boolean isFlushOnly = false;    // 暗号化データの送信のためだけに監視しているか否か
+    
+    /**
+     * TlsChannelProtocol のインスタンスを生成する．
+     */
+    TlsChannelProtocol(ChannelProtocol protocol, TlsChannel tlsChan)
+    {
+        this.protocol = protocol;
+        this.tlsChan = tlsChan;
+    }
+    
+    /**
+     * 包んでいるプロトコルに読み込みの処理を任せる．
+     */
+    @Override
+    public void handleRead(SelectionKey key)
+        throws IOException
+    {
+        restoreInterest(key);
+        this.protocol.handleRead(key);
+        drainInput(key);
+        watchOutput(key);
+    }
+    
+    /**
+     * 送信し切れていない暗号化データを送信し，送信し終えたら
+     * 包んでいるプロトコルに書き込みの処理を任せる．
+     */
+    @Override
+    public void handleWrite(SelectionKey key)
+        throws IOException
+    {
+        if (!this.tlsChan.flush()) {
+            return;
+        }
+        if (this.isFlushOnly) {
+            // プロトコル自身は書き込み可能状態を監視していなかった．
+            restoreInterest(key);
+            return;
+        }
+        this.protocol.handleWrite(key);
+        drainInput(key);
+        watchOutput(key);
+    }
+    
+    /**
+     * 包んでいるプロトコルに資源を解放させ，TlsChannel のバッファをプールへ返す．
+     */
+    @Override
+    public void handleClose()
+    {
+        this.protocol.handleClose();
+        this.tlsChan.release();
+    }
+    
+    /**
+     * 暗号化データの送信のためだけに監視していた書き込み可能状態の監視を止め，
+     * プロトコル自身が設定した監視の状態に戻す．
+     */
+    private void restoreInterest(SelectionKey key)
+    {
+        if (this.isFlushOnly) {
+            this.isFlushOnly = false;
+            key.interestOpsAnd(~SelectionKey.OP_WRITE);
+        }
+    }
+    
+    /**
+     * 読み込み可能状態を監視している間，TlsChannel に残っている平文を
+     * プロトコルが読み込まなくなるまで読み込ませる．
+     */
+    private void drainInput(SelectionKey key)
+        throws IOException
+    {
+        while (key.isValid() && this.tlsChan.hasBufferedInput()) {
+            if ((key.interestOps() & SelectionKey.OP_READ) == 0) {
+                return;
+            }
+            long bytesRead = this.tlsChan.getTotalBytesRead();
+            this.protocol.handleRead(key);
+            if (this.tlsChan.getTotalBytesRead() == bytesRead) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * 送信し切れていない暗号化データがあれば，書き込み可能状態を監視する．
+     */
+    private void watchOutput(SelectionKey key)
+    {
+        if (!key.isValid() || !this.tlsChan.hasPendingOutput()) {
+            return;
+        }
+        if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+            this.isFlushOnly = true;
+            key.interestOpsOr(SelectionKey.OP_WRITE);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * サーバ側の TLS の設定(鍵ストアとセッションキャッシュ)を保持し，
+ * コネクション毎の SSLEngine・SSLSocket を生成するクラス
+ * <p>
+ * クライアントが以前のセッションを再開すると，証明書の送信・検証と鍵交換の署名を省いた
+ * 短いハンドシェイクで済む．再開できるセッションの数と期間は，サーバ側のセッションキャッシュの
+ * 最大数と有効期間で制限する．各値は，下記のシステムプロパティで指定できる．
+ * <ul>
+ * <li>TlsContext.keyStore：鍵ストア(PKCS12)のファイル名(既定値は server.p12)
+ * <li>TlsContext.keyStorePassword：鍵ストアと秘密鍵のパスワード(既定値は changeit)
+ * <li>TlsContext.sessionCacheSize：セッションキャッシュの最大数(既定値は 20480．0 は無制限)
+ * <li>TlsContext.sessionTimeoutSec：セッションを再開できる期間(秒)(既定値は 86400．0 は無制限)
+ * </ul>
+ * JDK は既定でセッションチケット(暗号化したセッションをクライアントに預ける方法)を用いるため，
+ * サーバはキャッシュにセッションを保持せず，有効期間だけが働く．
+ * -Djdk.tls.server.enableSessionTicketExtension=false を指定すると，
+ * サーバがキャッシュにセッションを保持し，最大数も働く．
+ * <p>
+ * 完了したハンドシェイクの数を記録する．セッションを再開したか否かはサーバ側では区別できない
+ * (セッションチケットから復元したセッションは生成時刻も新しくなる)ため，クライアント側で確かめる．
+ */
+class TlsContext
+{
+    // インスタンス変数：
+    private final SSLContext sslContext;        // 鍵ストアで初期化した SSLContext
+    private final String     keyStore;          // 鍵ストアのファイル名
+    private final int        sessionCacheSize;  // セッションキャッシュの最大数
+    private final int        sessionTimeout_s;  // セッションを再開できる期間(秒)
+    
+    // 統計情報：
+    private final LongAdder numHandshakes = new LongAdder();    // 完了したハンドシェイクの数
+    
+    /**
+     * システムプロパティの設定値で TlsContext のインスタンスを生成する．
+     */
+    TlsContext()
+        throws IOException, GeneralSecurityException
+    {
+        this(
+            System.getProperty("TlsContext.keyStore", "server.p12"),
+            System.getProperty("TlsContext.keyStorePassword", "changeit").toCharArray(),
+            Integer.getInteger("TlsContext.sessionCacheSize", 20480),
+            Integer.getInteger("TlsContext.sessionTimeoutSec", 86400)
+        );
+    }
+    
+    /**
+     * 鍵ストアのファイル名とパスワード，セッションキャッシュの最大数と有効期間(秒)を指定して
+     * TlsContext のインスタンスを生成する．
+     */
+    TlsContext(String keyStore, char[] password, int sessionCacheSize, int sessionTimeout_s)
+        throws IOException, GeneralSecurityException
+    {
+        this.keyStore = keyStore;
+        this.sessionCacheSize = Math.max(0, sessionCacheSize);
+        this.sessionTimeout_s = Math.max(0, sessionTimeout_s);
+        
+        // 鍵ストアの秘密鍵と証明書で SSLContext を初期化する．
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+            KeyManagerFactory.getDefaultAlgorithm()
+        );
+        kmf.init(loadKeyStore(keyStore, password), password);
+        this.sslContext = SSLContext.getInstance("TLS");
+        this.sslContext.init(kmf.getKeyManagers(), null, null);
+        
+        // サーバ側のセッションキャッシュの最大数と有効期間を設定する．
+        SSLSessionContext sessions = this.sslContext.getServerSessionContext();
+        sessions.setSessionCacheSize(this.sessionCacheSize);
+        sessions.setSessionTimeout(this.sessionTimeout_s);
+    }
+    
+    /**
+     * PKCS12 形式の鍵ストアを読み込む．
+     * クライアント側で，自己署名の証明書を信頼するためにも用いる．
+     */
+    static KeyStore loadKeyStore(String fileName, char[] password)
+        throws IOException, GeneralSecurityException
+    {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(Paths.get(fileName))) {
+            keyStore.load(in, password);
+        }
+        return keyStore;
+    }
+    
+    /**
+     * ノンブロッキング入出力で用いる，サーバ側の SSLEngine を生成する．
+     */
+    SSLEngine createServerEngine()
+    {
+        SSLEngine engine = this.sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+    
+    /**
+     * 確立したコネクションのソケットを，サーバ側の SSLSocket で包んで返す．
+     * ハンドシェイクは，最初の入出力か startHandshake の呼び出しで行われる．
+     * SSLSocket を閉じると，包んでいるソケットも閉じる．
+     * ハンドシェイクの小さなメッセージの送信が Nagle アルゴリズムで遅れないよう，
+     * TCP_NODELAY を設定する．
+     */
+    SSLSocket wrap(Socket clntSock)
+        throws IOException
+    {
+        clntSock.setTcpNoDelay(true);
+        SSLSocket sslSock = (SSLSocket)this.sslContext.getSocketFactory().createSocket(
+            clntSock, null, true
+        );
+        sslSock.setUseClientMode(false);
+        return sslSock;
+    }
+    
+    /**
+     * 完了したハンドシェイクを記録する．
+     */
+    void recordHandshake()
+    {
+        this.numHandshakes.increment();
+    }
+    
+    /**
+     * 完了したハンドシェイクの数の累計を返す．
+     */
+    long getHandshakeCount()
+    {
+        return this.numHandshakes.sum();
+    }
+    
+    /**
+     * サーバ側のセッションキャッシュが保持しているセッションの数を返す．
+     */
+    int getCachedSessionCount()
+    {
+        return Collections.list(this.sslContext.getServerSessionContext().getIds()).size();
+    }
+    
+    /**
+     * 設定をログ出力用の文字列として返す．
+     */
+    @Override
+    public String toString()
+    {
+        return String.format(
+            "TLS：鍵ストア %s，セッションキャッシュ %s，有効期間 %s",
+            this.keyStore,
+            (this.sessionCacheSize > 0) ? "最大 " + this.sessionCacheSize : "無制限",
+            (this.sessionTimeout_s > 0) ? this.sessionTimeout_s + "秒" : "無制限"
+        );
+    }
+}
@@ -0,0 +1,367 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * TLS のコネクションの確立速度とハンドシェイクの時間を，セッションの再開の有無で比較する実験
+ * <p>
+ * keytool で自己署名の証明書を持つ鍵ストアを一時ファイルに生成し，同じプロセス内で，
+ * ループバックアドレスの空いているポートに TLS の Echo サーバを起動する．
+ * ノンブロッキング入出力(SelectorDispatcher と TlsChannelProtocolFactory で包んだ
+ * EchoChannel)とブロッキング入出力(VirtualThreadDispatcher と TlsProtocolFactory で包んだ
+ * Echo)のそれぞれについて，クライアントがセッションを再開しない場合と再開する場合を計測する．
+ * <p>
+ * クライアントの各スレッドは，接続・ハンドシェイク・ECHO_SIZE バイトのエコー・切断を
+ * 期限まで繰り返し，接続の開始からハンドシェイクの完了までの時間を記録する．
+ * 各スレッドは自身の SSLContext を用いて前回のセッションを再開し，
+ * 再開しない場合は切断の前にセッションを無効にする．
+ * 再開したセッションは最初のハンドシェイクの生成時刻を引き継ぐため，接続の開始より前に
+ * 生成されたセッションを再開したものとして数える．
+ * 最初の WARMUP_MS は計測から除く．
+ */
+public class TlsExperiment
+{
+    // クラス変数（定数）：
+    private static final int    ECHO_SIZE = 64;             // エコーのメッセージサイズ
+    private static final long   WARMUP_MS = 1000;           // 計測から除く最初の時間(ms)
+    private static final String PASSWORD  = "changeit";     // 生成する鍵ストアのパスワード
+    
+    /**
+     * TLS のセッション再開の比較実験を実行するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 2) {
+            System.out.println("Parameters: <Seconds> <Threads>");
+            return;
+        }
+        Path keyStore = null;
+        try {
+            // 1回の計測の時間と，クライアントのスレッド数を引数から取得する．
+            long duration_ms = Long.parseLong(args[0]) * 1000;
+            int  numThreads  = Integer.parseInt(args[1]);
+            
+            // コンソールへのログ出力用のインスタンスを生成する．
+            ConsoleLogger clog = new ConsoleLogger();
+            
+            // ファイルへのログ出力用のインスタンスを，結果用とサーバ用に生成する．
+            long       now_ms = System.currentTimeMillis();
+            FileLogger flog   = new FileLogger(String.format("tls_%d.txt", now_ms));
+            FileLogger slog   = new FileLogger(String.format("tls_server_%d.txt", now_ms));
+            // IOException
+            
+            // 自己署名の証明書を持つ鍵ストアを生成する．
+            keyStore = generateKeyStore();
+            
+            // 実験用のインスタンスを生成し，実験を実行する．
+            TlsExperiment experiment = new TlsExperiment(
+                keyStore.toString(), duration_ms, numThreads, clog, flog, slog
+            );
+            experiment.execute();
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+        finally {
+            // 生成した鍵ストアを削除する．
+            try {
+                if (keyStore != null) {
+                    Files.deleteIfExists(keyStore);
+                }
+            }
+            catch (IOException ex) {
+                System.out.println("例外発生：" + ex.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * keytool で，localhost と 127.0.0.1 用の自己署名の証明書(ECDSA P-256)を持つ
+     * PKCS12 形式の鍵ストアを一時ファイルに生成し，そのパスを返す．
+     */
+    private static Path generateKeyStore()
+        throws IOException, InterruptedException
+    {
+        Path keyStore = Files.createTempFile("tls_experiment_", ".p12");
+        Files.delete(keyStore);
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(
+            keytool, "-genkeypair", "-alias", "server",
+            "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "1",
+            "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+            "-storetype", "PKCS12", "-keystore", keyStore.toString(),
+            "-storepass", PASSWORD, "-keypass", PASSWORD
+        )
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool による鍵ストアの生成に失敗しました．");
+        }
+        return keyStore;
+    }
+    
+    // インスタンス変数：
+    private final String        keyStore;       // 鍵ストアのファイル名
+    private final long          duration_ms;    // 1回の計測の時間(ms)
+    private final int           numThreads;     // クライアントのスレッド数
+    private final ConsoleLogger clog;           // コンソールへの出力用 Logger
+    private final FileLogger    flog;           // 結果のファイルへの出力用 Logger
+    private final FileLogger    slog;           // サーバのログのファイルへの出力用 Logger
+    private final InetAddress   servAddr;       // サーバのアドレス(ループバックアドレス)
+    
+    /**
+     * TlsExperiment のインスタンスを生成する．
+     */
+    TlsExperiment(
+        String keyStore, long duration_ms, int numThreads,
+        ConsoleLogger clog, FileLogger flog, FileLogger slog
+    )
+    {
+        this.keyStore = keyStore;
+        this.duration_ms = duration_ms;
+        this.numThreads = numThreads;
+        this.clog = clog;
+        this.flog = flog;
+        this.slog = slog;
+        this.servAddr = InetAddress.getLoopbackAddress();
+    }
+    
+    /**
+     * 入出力の方法とセッション再開の有無の組毎に，サーバを起動して計測し，結果を出力する．
+     * 組毎に TlsContext を生成し，ハンドシェイクの記録を分ける．
+     */
+    void execute()
+        throws Exception
+    {
+        this.clog.printf(
+            "計測時間：%d 秒，スレッド数：%d\n", this.duration_ms / 1000, this.numThreads
+        );
+        this.flog.printf(
+            "dispatcher\tresume\tconns_per_sec\thandshake_p50_us\thandshake_p99_us"
+                + "\tresumed_ratio\tserver_handshakes\tcached_sessions\n"
+        );
+        // 暗号処理の JIT コンパイルを先に済ませるため，全ての組を1度ずつ計測してから，
+        // もう1度計測した結果を出力する．
+        for (boolean isReported : new boolean[] { false, true }) {
+            for (boolean isResumed : new boolean[] { false, true }) {
+                TlsContext tls  = createServerContext();
+                int        port = startChannelServer(
+                    new TlsChannelProtocolFactory(
+                        new EchoChannelProtocolFactory(TrafficShaper.disabled()), tls
+                    )
+                );
+                measure("Selector", isResumed, isReported, tls, port);
+            }
+            for (boolean isResumed : new boolean[] { false, true }) {
+                TlsContext tls  = createServerContext();
+                int        port = startServer(
+                    new TlsProtocolFactory(new EchoProtocolFactory(TrafficShaper.disabled()), tls)
+                );
+                measure("VirtualThread", isResumed, isReported, tls, port);
+            }
+        }
+        this.flog.close();
+        this.slog.close();
+    }
+    
+    /**
+     * 生成した鍵ストアと，TlsContext のシステムプロパティのセッションキャッシュの設定で，
+     * サーバ側の TlsContext を生成する．
+     */
+    private TlsContext createServerContext()
+        throws Exception
+    {
+        return new TlsContext(
+            this.keyStore, PASSWORD.toCharArray(),
+            Integer.getInteger("TlsContext.sessionCacheSize", 20480),
+            Integer.getInteger("TlsContext.sessionTimeoutSec", 86400)
+        );
+    }
+    
+    /**
+     * 生成した鍵ストアの自己署名の証明書を信頼する，クライアント側の SSLContext を生成する．
+     */
+    private SSLContext createClientContext()
+        throws Exception
+    {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(
+            TrustManagerFactory.getDefaultAlgorithm()
+        );
+        tmf.init(TlsContext.loadKeyStore(this.keyStore, PASSWORD.toCharArray()));
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+        return context;
+    }
+    
+    /**
+     * SelectorDispatcher によるサーバを，ループバックアドレスの
+     * 空いているポートでデーモンスレッドとして起動し，ポート番号を返す．
+     */
+    private int startChannelServer(ChannelProtocolFactory factory)
+        throws IOException
+    {
+        ServerSocketChannel servChan = ServerSocketChannel.open();
+        servChan.bind(new InetSocketAddress(this.servAddr, 0), 1024);
+        Thread server = new Thread(
+            () -> new SelectorDispatcher(ConnectionTimeouts.disabled()).startDispatching(
+                servChan, factory, this.slog
+            )
+        );
+        server.setDaemon(true);
+        server.start();
+        return servChan.socket().getLocalPort();
+    }
+    
+    /**
+     * VirtualThreadDispatcher によるサーバを，ループバックアドレスの
+     * 空いているポートでデーモンスレッドとして起動し，ポート番号を返す．
+     */
+    private int startServer(ProtocolFactory factory)
+        throws IOException
+    {
+        ServerSocket servSock = new ServerSocket();
+        servSock.bind(new InetSocketAddress(this.servAddr, 0), 1024);
+        Thread server = new Thread(
+            () -> new VirtualThreadDispatcher(ConnectionTimeouts.disabled()).startDispatching(
+                servSock, factory, this.slog
+            )
+        );
+        server.setDaemon(true);
+        server.start();
+        return servSock.getLocalPort();
+    }
+    
+    /**
+     * クライアントのスレッドで期限までコネクションの確立を繰り返し，
+     * 結果を出力する場合は出力する．
+     */
+    private void measure(
+        String dispatcher, boolean isResumed, boolean isReported, TlsContext tls, int port
+    )
+        throws Exception
+    {
+        long               deadline_ns = System.nanoTime() + this.duration_ms * 1000000;
+        long               warmup_ns   = System.nanoTime() + WARMUP_MS * 1000000;
+        LongAdder          numConns    = new LongAdder();
+        LongAdder          numResumed  = new LongAdder();
+        LogLinearHistogram handshakes  = new LogLinearHistogram();
+        
+        // クライアントのスレッドを開始する．
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < this.numThreads; i++) {
+            SSLContext client = createClientContext();
+            Thread     thread = new Thread(
+                () -> connect(
+                    client, port, isResumed, warmup_ns, deadline_ns,
+                    numConns, numResumed, handshakes
+                )
+            );
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!isReported) {
+            return;
+        }
+        // 計測から除いた時間を差し引いて，1秒あたりのコネクション数を求める．
+        double measured_sec  = (this.duration_ms - WARMUP_MS) / 1000.0;
+        double conns_per_sec = numConns.sum() / measured_sec;
+        
+        // 百分位数はバケットの上限値となるため，最大値を超えないようにする．
+        double max = handshakes.getMax() / 1000.0;
+        double p50 = Math.min(handshakes.getPercentile(0.50) / 1000.0, max);
+        double p99 = Math.min(handshakes.getPercentile(0.99) / 1000.0, max);
+        
+        // セッションを再開したコネクションの割合と，サーバ側の記録
+        double resumedRatio = numResumed.sum() / (double)Math.max(1, numConns.sum());
+        this.clog.printf(
+            "%-13s %s：%,8.0f conn/s，ハンドシェイク p50 %,8.1fμs p99 %,9.1fμs，"
+                + "再開率 %5.1f%%，サーバ側 %,d 回・キャッシュ %,d\n",
+            dispatcher, isResumed ? "再開有" : "再開無", conns_per_sec, p50, p99,
+            resumedRatio * 100, tls.getHandshakeCount(), tls.getCachedSessionCount()
+        );
+        this.flog.printf(
+            "%s\t%b\t%.0f\t%.1f\t%.1f\t%.3f\t%d\t%d\n",
+            dispatcher, isResumed, conns_per_sec, p50, p99, resumedRatio,
+            tls.getHandshakeCount(), tls.getCachedSessionCount()
+        );
+    }
+    
+    /**
+     * 接続・ハンドシェイク・エコー・切断を期限まで繰り返し，計測開始後の
+     * コネクション数，セッションを再開した数とハンドシェイクの時間を記録する．
+     * セッションを再開しない場合は，切断の前にセッションを無効にする．
+     */
+    private void connect(
+        SSLContext client, int port, boolean isResumed,
+        long warmup_ns, long deadline_ns,
+        LongAdder numConns, LongAdder numResumed, LogLinearHistogram handshakes
+    )
+    {
+        byte[] message    = new byte[ECHO_SIZE];
+        byte[] recvBuffer = new byte[ECHO_SIZE];
+        while (System.nanoTime() < deadline_ns) {
+            long startTime_ms = System.currentTimeMillis();
+            long startTime_ns = System.nanoTime();
+            try (
+                SSLSocket socket = (SSLSocket)client.getSocketFactory().createSocket(
+                    this.servAddr, port
+                )
+            ) {
+                socket.setTcpNoDelay(true);
+                socket.startHandshake();
+                long handshake_ns = System.nanoTime() - startTime_ns;
+                
+                // エコーを1回往復させる．
+                // TLS 1.3 では，サーバが送るセッションチケットもこの受信で処理される．
+                InputStream  in  = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                out.write(message);
+                int totalBytesRcvd = 0;
+                while (totalBytesRcvd < ECHO_SIZE) {
+                    int bytesRcvd = in.read(recvBuffer, totalBytesRcvd, ECHO_SIZE - totalBytesRcvd);
+                    if (bytesRcvd == -1) {
+                        throw new IOException("サーバがコネクションを切断しました．");
+                    }
+                    totalBytesRcvd += bytesRcvd;
+                }
+                SSLSession session = socket.getSession();
+                if (!isResumed) {
+                    session.invalidate();
+                }
+                if (startTime_ns >= warmup_ns) {
+                    numConns.increment();
+                    handshakes.record(handshake_ns);
+                    if (session.getCreationTime() < startTime_ms) {
+                        numResumed.increment();
+                    }
+                }
+            }
+            catch (IOException ex) {
+                this.clog.printf("例外発生：%s\n", ex.getMessage());
+                return;
+            }
+        }
+    }
+}
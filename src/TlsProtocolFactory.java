@@ -0,0 +1,107 @@
+
+import java.io.IOException;
+import java.net.Socket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * プロトコルファクトリを包み，生成するプロトコルの送受信を TLS で暗号化するためのファクトリクラス
+ * <p>
+ * 確立したコネクションのソケットを TlsContext の SSLSocket で包み，包んでいるファクトリに
+ * それを渡してプロトコルを生成させる．SSLSocket は SSLEngine と同じ SSLContext から生成するため，
+ * セッションキャッシュはノンブロッキング入出力の場合と共有する．
+ * SSLSocket はチャネルを持たないため，チャネルを用いるプロトコルは入出力ストリームで処理する．
+ */
+class TlsProtocolFactory
+    implements
+        ProtocolFactory
+{
+    // インスタンス変数：
+    private final ProtocolFactory factory;  // 包んでいるプロトコルファクトリ
+    private final TlsContext      context;  // TLS の設定
+    
+    /**
+     * TlsProtocolFactory のインスタンスを生成する．
+     */
+    TlsProtocolFactory(ProtocolFactory factory, TlsContext context)
+    {
+        this.factory = factory;
+        this.context = context;
+    }
+    
+    /**
+     * SSLSocket 経由で送受信するプロトコル処理用のインスタンスを生成し，
+     * ハンドシェイクを先に行う TlsProtocol で包んで返す．
+     * SSLSocket を生成できない場合は，ソケットを閉じて何もしないインスタンスを返す．
+     */
+    @Override
+    public Runnable createProtocol(Socket clntSock, Logger logger)
+    {
+        try {
+            SSLSocket sslSock = this.context.wrap(clntSock);
+            return new TlsProtocol(
+                sslSock, this.factory.createProtocol(sslSock, logger), this.context, logger
+            );
+        }
+        catch (IOException ex) {
+            logger.printf("例外発生：%s\n", ex.getMessage());
+            try {
+                clntSock.close();
+            }
+            catch (IOException ex2) {
+                logger.printf("例外発生：%s\n", ex2.getMessage());
+            }
+            return () -> {};
+        }
+    }
+}
+
+/**
+ * プロトコル処理用のインスタンスを包み，処理を始める前に TLS のハンドシェイクを行うクラス
+ * <p>
+ * ハンドシェイクはプロトコルを処理するスレッドで行い，完了したら TlsContext に記録する．
+ * 失敗した場合は，ソケットを閉じてプロトコルの処理を行わない．
+ */
+class TlsProtocol
+    implements
+        Runnable
+{
+    // インスタンス変数：
+    private final SSLSocket  sslSock;   // クライアントと通信するためのソケット
+    private final Runnable   protocol;  // プロトコル処理用のインスタンス
+    private final TlsContext context;   // ハンドシェイクの記録先
+    private final Logger     logger;    // ログ出力用の Logger インスタンス
+    
+    /**
+     * TlsProtocol のインスタンスを生成する．
+     */
+    TlsProtocol(SSLSocket sslSock, Runnable protocol, TlsContext context, Logger logger)
+    {
+        this.sslSock = sslSock;
+        this.protocol = protocol;
+        this.context = context;
+        this.logger = logger;
+    }
+    
+    /**
+     * ハンドシェイクを行い，完了したらプロトコルの処理を実行する．
+     */
+    @Override
+    public void run()
+    {
+        try {
+            this.sslSock.startHandshake();
+            this.context.recordHandshake();
+        }
+        catch (IOException ex) {
+            this.logger.printf("例外発生：%s\n", ex.getMessage());
+            try {
+                this.sslSock.close();
+            }
+            catch (IOException ex2) {
+                this.logger.printf("例外発生：%s\n", ex2.getMessage());
+            }
+            return;
+        }
+        this.protocol.run();
+    }
+}
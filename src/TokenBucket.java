@@ -0,0 +1,72 @@
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一定のレート(バイト/秒)でトークンが貯まり，最大 burstBytes バイトまで貯められる
+ * トークンバケットのロックフリーな実装
+ * <p>
+ * トークンの残量の代わりに，それまでに予約したバイト数を全てレート通りに送受信し終える
+ * 理論上の時刻(theoretical arrival time)を1つの AtomicLong で保持する(GCRA)．
+ * 予約は compareAndSet で理論上の時刻を進めるだけで，残量が足りない場合も失敗させず，
+ * 足りない分が貯まるまでの時間(ns)を返す．呼び出し側は，その時間だけ次の送受信を待つ．
+ * 予約はどのスレッドからも同時に呼び出せる．
+ */
+class TokenBucket
+{
+    // インスタンス変数：
+    private final long       rate;          // トークンが貯まるレート(バイト/秒)
+    private final long       burst_ns;      // 最大 burstBytes バイト分のトークンが貯まる時間(ns)
+    private final AtomicLong arrival_ns;    // 予約済みのバイト数を全て送受信し終える時刻(ns)
+    
+    /**
+     * レート(バイト/秒)と最大で貯められるバイト数を指定して TokenBucket のインスタンスを生成する．
+     * 生成した時点では，トークンが最大まで貯まっているものとする．
+     */
+    TokenBucket(long rate, long burstBytes)
+    {
+        this.rate = rate;
+        this.burst_ns = toNanos(Math.max(0, burstBytes));
+        this.arrival_ns = new AtomicLong(System.nanoTime());
+    }
+    
+    /**
+     * 指定されたバイト数のトークンを予約し，残量が足りるまでの時間(ns)を返す．
+     * 足りている場合は 0 を返す．
+     */
+    long reserve(long bytes, long now_ns)
+    {
+        long cost_ns = toNanos(bytes);
+        while (true) {
+            long arrival_ns = this.arrival_ns.get();
+            long next_ns    = Math.max(arrival_ns, now_ns) + cost_ns;
+            if (this.arrival_ns.compareAndSet(arrival_ns, next_ns)) {
+                return Math.max(0, next_ns - now_ns - this.burst_ns);
+            }
+        }
+    }
+    
+    /**
+     * トークンが最大まで貯まっているか否かを返す．
+     * 最大まで貯まったバケットは，新たに生成したバケットと区別できない．
+     */
+    boolean isFull(long now_ns)
+    {
+        return this.arrival_ns.get() - now_ns <= 0;
+    }
+    
+    /**
+     * レート(バイト/秒)を返す．
+     */
+    long getRate()
+    {
+        return this.rate;
+    }
+    
+    /**
+     * バイト数を，レート通りに送受信するのに要する時間(ns)に変換する．
+     */
+    private long toNanos(long bytes)
+    {
+        return bytes * 1000000000L / this.rate;
+    }
+}
@@ -0,0 +1,309 @@
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * コネクション毎とクライアントの IPアドレス毎に，送受信の帯域をトークンバケットで制限するクラス
+ * <p>
+ * プロトコルは，コネクション毎に open で ConnectionShaper を取得し，送受信するバイト数を
+ * それに通す．送受信の合計がいずれかのレートを超えると，その分が貯まるまで待たされる．
+ * ブロッキング入出力ではスレッドを休ませ，ノンブロッキング入出力では読み込み可能状態の
+ * 監視を止めてから，待つ時間の経過後に共有のスレッドで監視を再開する．
+ * 非同期チャネルでは，次の受信・送信を待つ時間の経過後に共有のスレッドで開始する．
+ * 各値は，下記のシステムプロパティで指定できる．レートを 0 にした種類は制限しない．
+ * <ul>
+ * <li>TrafficShaper.connectionBytesPerSec：コネクション毎のレート(バイト/秒)(既定値は 0)
+ * <li>TrafficShaper.clientBytesPerSec：クライアントの IPアドレス毎のレート(バイト/秒)(既定値は 0)
+ * <li>TrafficShaper.burstBytes：待たずに送受信できる最大のバイト数(既定値は 65536)
+ * </ul>
+ * プロトコルは，コネクションを閉じた時に ConnectionShaper の close を呼び出す．
+ * ブロッキング入出力のプロトコルは，処理を始めずに閉じられる(キューから捨てられるなど)
+ * ことがあるため，open を処理の開始時に呼び出す．
+ * IPアドレス毎のバケットは，それを使っている開いたコネクションの数を数え，
+ * バケットの数が MAX_CLIENTS を超えた時点で，開いたコネクションが無く最大まで貯まったものを
+ * 捨てる．そのようなバケットは新たに生成したものと区別できないため，捨てても制限には
+ * 影響しない．開いたコネクションがあるバケットは捨てないため，バケットの数は MAX_CLIENTS を
+ * 超えることがある．
+ */
+class TrafficShaper
+{
+    // クラス変数（定数）：
+    static final int MAX_CLIENTS = 4096;    // IPアドレス毎のバケットを捨て始める数
+    
+    // クラス変数：
+    private static final TrafficShaper INSTANCE = new TrafficShaper();  // システムプロパティの設定
+    
+    /**
+     * システムプロパティの設定値によるインスタンスを返す．
+     * 全てのプロトコルファクトリが既定で共有するため，IPアドレス毎の制限はリスナーを跨いで働く．
+     */
+    static TrafficShaper getInstance()
+    {
+        return INSTANCE;
+    }
+    
+    // インスタンス変数：
+    private final long connectionRate;  // コネクション毎のレート(バイト/秒)
+    private final long clientRate;      // クライアントの IPアドレス毎のレート(バイト/秒)
+    private final long burstBytes;      // 待たずに送受信できる最大のバイト数
+    
+    private final ConcurrentHashMap<InetAddress, ClientBucket> clients; // IPアドレス毎のバケット
+    
+    private volatile ScheduledExecutorService scheduler = null; // 再開用のスレッド(必要時に生成)
+    
+    // 統計情報：
+    private final LongAdder numDelays = new LongAdder();    // 待たせた回数
+    private final LongAdder delay_ns  = new LongAdder();    // 待たせた時間の合計(ns)
+    
+    /**
+     * システムプロパティの設定値で TrafficShaper のインスタンスを生成する．
+     */
+    TrafficShaper()
+    {
+        this(
+            Long.getLong("TrafficShaper.connectionBytesPerSec", 0),
+            Long.getLong("TrafficShaper.clientBytesPerSec", 0),
+            Long.getLong("TrafficShaper.burstBytes", 65536)
+        );
+    }
+    
+    /**
+     * コネクション毎と IPアドレス毎のレート(バイト/秒)，待たずに送受信できる最大のバイト数を
+     * 指定して TrafficShaper のインスタンスを生成する．
+     */
+    TrafficShaper(long connectionRate, long clientRate, long burstBytes)
+    {
+        this.connectionRate = Math.max(0, connectionRate);
+        this.clientRate = Math.max(0, clientRate);
+        this.burstBytes = Math.max(1, burstBytes);
+        this.clients = new ConcurrentHashMap<InetAddress, ClientBucket>();
+    }
+    
+    /**
+     * 制限しない TrafficShaper のインスタンスを返す．
+     */
+    static TrafficShaper disabled()
+    {
+        return new TrafficShaper(0, 0, 65536);
+    }
+    
+    /**
+     * いずれかの帯域を制限するか否かを返す．
+     */
+    boolean isEnabled()
+    {
+        return (this.connectionRate > 0) || (this.clientRate > 0);
+    }
+    
+    /**
+     * 待たずに送受信できる最大のバイト数を返す．
+     */
+    long getBurstBytes()
+    {
+        return this.burstBytes;
+    }
+    
+    /**
+     * ソケットのコネクション用の ConnectionShaper を返す．
+     */
+    ConnectionShaper open(Socket clntSock)
+    {
+        return open(clntSock.getRemoteSocketAddress());
+    }
+    
+    /**
+     * チャネルのコネクション用の ConnectionShaper を返す．
+     */
+    ConnectionShaper open(SocketChannel clntChan)
+    {
+        return open(clntChan.socket().getRemoteSocketAddress());
+    }
+    
+    /**
+     * 非同期チャネルのコネクション用の ConnectionShaper を返す．
+     * 相手のアドレスを取得できない場合は，IPアドレス毎の制限を行わない．
+     */
+    ConnectionShaper open(AsynchronousSocketChannel clntChan)
+    {
+        try {
+            return open(clntChan.getRemoteAddress());
+        }
+        catch (IOException ex) {
+            return open((SocketAddress)null);
+        }
+    }
+    
+    /**
+     * 相手のアドレスを指定して，コネクション用の ConnectionShaper を返す．
+     * アドレスが IPアドレスでない場合(null を含む)は，IPアドレス毎の制限を行わない．
+     */
+    private ConnectionShaper open(SocketAddress remote)
+    {
+        if (!isEnabled()) {
+            return new ConnectionShaper(this, null, null, null);
+        }
+        TokenBucket connection = null;
+        if (this.connectionRate > 0) {
+            connection = new TokenBucket(this.connectionRate, this.burstBytes);
+        }
+        InetAddress address = null;
+        TokenBucket client  = null;
+        if ((this.clientRate > 0) && (remote instanceof InetSocketAddress)) {
+            address = ((InetSocketAddress)remote).getAddress();
+            client = clientBucket(address);
+        }
+        return new ConnectionShaper(this, connection, client, (client != null) ? address : null);
+    }
+    
+    /**
+     * IPアドレス毎のバケットを返し，開いたコネクションの数を1つ増やす．無ければ生成する．
+     * バケットの数が MAX_CLIENTS を超えたら，開いたコネクションが無く，
+     * 最大まで貯まっているバケットを捨てる．
+     */
+    private TokenBucket clientBucket(InetAddress address)
+    {
+        if (address == null) {
+            return null;
+        }
+        ClientBucket client = this.clients.compute(address, (key, entry) -> {
+            if (entry == null) {
+                entry = new ClientBucket(new TokenBucket(this.clientRate, this.burstBytes));
+            }
+            entry.numConnections++;
+            return entry;
+        });
+        if (this.clients.size() > MAX_CLIENTS) {
+            // 数の確認と削除を同じ compute の中で行い，同時に開くコネクションと競合させない．
+            long now_ns = System.nanoTime();
+            for (InetAddress other : this.clients.keySet()) {
+                this.clients.computeIfPresent(
+                    other, (key, entry) -> entry.isIdle(now_ns) ? null : entry
+                );
+            }
+        }
+        return client.bucket;
+    }
+    
+    /**
+     * IPアドレス毎のバケットの，開いたコネクションの数を1つ減らす．
+     * ConnectionShaper の close から呼び出される．
+     */
+    void release(InetAddress address)
+    {
+        this.clients.computeIfPresent(address, (key, entry) -> {
+            entry.numConnections--;
+            return entry;
+        });
+    }
+    
+    /**
+     * 待たせたことを記録する．
+     */
+    void recordDelay(long delay_ns)
+    {
+        this.numDelays.increment();
+        this.delay_ns.add(delay_ns);
+    }
+    
+    /**
+     * 待たせた回数の累計を返す．
+     */
+    long getDelayCount()
+    {
+        return this.numDelays.sum();
+    }
+    
+    /**
+     * 待たせた時間の合計(ms)を返す．
+     */
+    double getDelayMillis()
+    {
+        return this.delay_ns.sum() / 1e6;
+    }
+    
+    /**
+     * 指定された時間(ns)の経過後に，共有のスレッドで処理を実行する．
+     */
+    void schedule(Runnable task, long delay_ns)
+    {
+        getScheduler().schedule(task, delay_ns, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * 共有のスレッドを返す．無ければデーモンスレッドとして生成する．
+     */
+    private ScheduledExecutorService getScheduler()
+    {
+        ScheduledExecutorService scheduler = this.scheduler;
+        if (scheduler != null) {
+            return scheduler;
+        }
+        synchronized (this) {
+            if (this.scheduler == null) {
+                this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "TrafficShaper");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                );
+            }
+            return this.scheduler;
+        }
+    }
+    
+    /**
+     * IPアドレス毎のバケットと，それを使っている開いたコネクションの数
+     * <p>
+     * コネクションの数は，clients の compute・computeIfPresent の中でだけ読み書きする．
+     */
+    private static class ClientBucket
+    {
+        // インスタンス変数：
+        private final TokenBucket bucket;               // IPアドレス毎のバケット
+        private int               numConnections = 0;   // 開いたコネクションの数
+        
+        /**
+         * ClientBucket のインスタンスを生成する．
+         */
+        ClientBucket(TokenBucket bucket)
+        {
+            this.bucket = bucket;
+        }
+        
+        /**
+         * 開いたコネクションが無く，トークンが最大まで貯まっているか否かを返す．
+         */
+        boolean isIdle(long now_ns)
+        {
+            return (this.numConnections == 0) && this.bucket.isFull(now_ns);
+        }
+    }
+    
+    /**
+     * 設定をログ出力用の文字列として返す．
+     */
+    @Override
+    public String toString()
+    {
+        if (!isEnabled()) {
+            return "帯域制限無し";
+        }
+        return String.format(
+            "帯域制限：コネクション毎 %s，IPアドレス毎 %s，バースト %dバイト",
+            (this.connectionRate > 0) ? this.connectionRate + "バイト/秒" : "無し",
+            (this.clientRate > 0) ? this.clientRate + "バイト/秒" : "無し",
+            this.burstBytes
+        );
+    }
+}
@@ -0,0 +1,182 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+
+/**
+ * UploadAsyncProtocol のインスタンスを生成するためのファクトリ
+ * <p>
+ * 受信は TrafficShaper による帯域制限に通す．
+ */
+public class UploadAsyncProtocolFactory
+    implements
+        AsyncProtocolFactory
+{
+    // インスタンス変数：
+    private final TrafficShaper shaper; // 帯域制限の設定
+    
+    /**
+     * システムプロパティの帯域制限で UploadAsyncProtocolFactory のインスタンスを生成する．
+     */
+    public UploadAsyncProtocolFactory()
+    {
+        this(TrafficShaper.getInstance());
+    }
+    
+    /**
+     * 帯域制限を指定して UploadAsyncProtocolFactory のインスタンスを生成する．
+     */
+    UploadAsyncProtocolFactory(TrafficShaper shaper)
+    {
+        this.shaper = shaper;
+    }
+    
+    /**
+     * UploadAsyncProtocol のインスタンスを生成し，
+     * AsyncProtocol インターフェースとして返す．
+     */
+    @Override
+    public AsyncProtocol createProtocol(
+        AsynchronousSocketChannel clntChan, long acceptTime_ns, Logger logger
+    )
+    {
+        return new UploadAsyncProtocol(clntChan, acceptTime_ns, logger, this.shaper.open(clntChan));
+    }
+}
+
+/**
+ * 連続データを受信するサーバ側の機能を非同期チャネルで実装したクラス
+ * <p>
+ * トレーラ(CRC32C)と圧縮には対応しない．ヘッダの上位 2ビットのフラグが立っている場合は，
+ * 受信を止めてチャネルを閉じる．
+ */
+class UploadAsyncProtocol
+    implements
+        AsyncProtocol,
+        CompletionHandler<Integer, Void>
+{
+    // クラス変数（定数）：
+    static private final int BUF_SIZE = 8192;   // 受信バッファサイズ
+    
+    // インスタンス変数：
+    private final AsynchronousSocketChannel clntChan;   // クライアントと通信するためのチャネル
+    private final Logger                    logger;     // ログ出力用の Logger インスタンス
+    private final ByteBuffer                sizeBuffer; // データサイズ(先頭のヘッダ)の受信バッファ
+    private final ByteBuffer                recvBuffer; // 受信バッファ(プールから借りる)
+    private final long                      acceptTime_ns;  // コネクションを確立した時刻(ns)
+    private final ConnectionShaper          shaping;        // 受信の帯域制限
+    
+    private long totalSizePerSocket = 0;    // ソケット毎に受信すべきデータサイズ
+    private long totalBytesRcvd     = 0;    // クライアントから受信した全データサイズ
+    
+    /**
+     * UploadAsyncProtocol のインスタンスを生成する．
+     */
+    public UploadAsyncProtocol(
+        AsynchronousSocketChannel clntChan, long acceptTime_ns, Logger logger,
+        ConnectionShaper shaping
+    )
+    {
+        this.clntChan = clntChan;
+        this.acceptTime_ns = acceptTime_ns;
+        this.logger = logger;
+        this.shaping = shaping;
+        this.sizeBuffer = ByteBuffer.allocate(UploadProtocolFactory.LONG_HEADER_SIZE);
+        this.sizeBuffer.limit(UploadProtocolFactory.HEADER_SIZE);
+        this.recvBuffer = BufferPool.getHeapInstance().acquire(BUF_SIZE);
+    }
+    
+    /**
+     * 先頭のヘッダ(ソケット毎に受信すべきデータサイズ)の受信を開始する．
+     */
+    @Override
+    public void start()
+    {
+        this.clntChan.read(this.sizeBuffer, null, this);
+    }
+    
+    /**
+     * 受信が完了した．
+     * クライアントが要求するサイズ分のデータを受信し終えるまで，次の受信を開始する．
+     */
+    @Override
+    public void completed(Integer bytesRcvd, Void attachment)
+    {
+        // クライアントがソケットを閉じた場合はチャネルを閉じる．
+        if (bytesRcvd == -1) {
+            if (this.sizeBuffer.hasRemaining()) {
+                this.logger.println("例外発生：ソケット毎に受信すべきデータサイズの取得に失敗しました．");
+            }
+            close();
+            return;
+        }
+        ServerMetrics.getInstance().addBytesIn(bytesRcvd);
+        
+        if (this.totalBytesRcvd == 0) {
+            // ヘッダが揃うまで受信を続ける．
+            // 先頭 4バイトが 64ビットのデータサイズが続くことを示す場合は，受信する範囲を広げる．
+            if (!this.sizeBuffer.hasRemaining()) {
+                int header = this.sizeBuffer.getInt(0);
+                this.sizeBuffer.limit(UploadProtocolFactory.headerSizeOf(header));
+            }
+            if (this.sizeBuffer.hasRemaining()) {
+                this.clntChan.read(this.sizeBuffer, null, this);
+                return;
+            }
+            // ヘッダが揃った．
+            // トレーラと圧縮には対応しないため，上位 2ビットのフラグが立っていれば拒否する．
+            int header = this.sizeBuffer.getInt(0);
+            if ((header & ~UploadProtocolFactory.SIZE_MASK) != 0) {
+                this.logger.printf(
+                    "例外発生：対応していないフラグが指定されました：0x%08x\n", header
+                );
+                close();
+                return;
+            }
+            // 既に受信したヘッダのバイト数を受信済みのデータサイズとする．
+            this.sizeBuffer.flip();
+            this.totalSizePerSocket = UploadProtocolFactory.decodeSize(this.sizeBuffer);
+            this.totalBytesRcvd = this.sizeBuffer.limit();
+        }
+        else {
+            this.totalBytesRcvd += bytesRcvd;
+        }
+        // 受信すべきデータを全て受信したらチャネルを閉じる．
+        if (this.totalBytesRcvd >= this.totalSizePerSocket) {
+            close();
+            return;
+        }
+        // 次の受信を開始する．受信したデータは破棄する．
+        // 帯域を超えた場合は，次の受信の開始を遅らせる．
+        this.recvBuffer.clear();
+        this.shaping.paceAsync(bytesRcvd, () -> this.clntChan.read(this.recvBuffer, null, this));
+    }
+    
+    /**
+     * 受信に失敗したので，チャネルを閉じる．
+     */
+    @Override
+    public void failed(Throwable exc, Void attachment)
+    {
+        this.logger.println("例外発生：" + exc.getMessage());
+        close();
+    }
+    
+    /**
+     * チャネルを閉じ，受信バッファをプールへ返して，帯域制限にコネクションの終了を伝える．
+     */
+    private void close()
+    {
+        try {
+            this.clntChan.close();
+        }
+        catch (IOException ex) {
+            this.logger.println("例外発生：" + ex.getMessage());
+        }
+        BufferPool.getHeapInstance().release(this.recvBuffer);
+        this.shaping.close();
+        // コネクションの終了を記録する．
+        ServerMetrics.getInstance().connectionClosed(this.acceptTime_ns);
+    }
+}
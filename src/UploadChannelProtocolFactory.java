@@ -0,0 +1,190 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * UploadChannelProtocol のインスタンスを生成するためのファクトリ
+ * <p>
+ * 受信は TrafficShaper による帯域制限に通す．
+ * TlsChannelProtocolFactory で包むと，TLS で暗号化して送受信する．
+ */
+public class UploadChannelProtocolFactory
+    implements
+        LayeredChannelProtocolFactory
+{
+    // インスタンス変数：
+    private final TrafficShaper shaper; // 帯域制限の設定
+    
+    /**
+     * システムプロパティの帯域制限で UploadChannelProtocolFactory のインスタンスを生成する．
+     */
+    public UploadChannelProtocolFactory()
+    {
+        this(TrafficShaper.getInstance());
+    }
+    
+    /**
+     * 帯域制限を指定して UploadChannelProtocolFactory のインスタンスを生成する．
+     */
+    UploadChannelProtocolFactory(TrafficShaper shaper)
+    {
+        this.shaper = shaper;
+    }
+    
+    /**
+     * transport 経由で送受信する UploadChannelProtocol のインスタンスを生成し，
+     * ChannelProtocol インターフェースとして返す．
+     */
+    @Override
+    public ChannelProtocol createProtocol(
+        SocketChannel clntChan, ByteChannel transport, Logger logger
+    )
+    {
+        return new UploadChannelProtocol(transport, logger, this.shaper.open(clntChan));
+    }
+}
+
+/**
+ * 連続データを受信するサーバ側の機能をノンブロッキング入出力で実装したクラス
+ * <p>
+ * トレーラ(CRC32C)と圧縮には対応しない．ヘッダの上位 2ビットのフラグが立っている場合は，
+ * 例外を投げてチャネルを閉じる．
+ */
+class UploadChannelProtocol
+    implements
+        ChannelProtocol
+{
+    // クラス変数（定数）：
+    static private final int BUF_SIZE = 8192;   // 受信バッファサイズ
+    
+    // インスタンス変数：
+    private final ByteChannel      transport;   // 送受信に用いるチャネル(TLS の場合は TlsChannel)
+    private final Logger           logger;      // ログ出力用の Logger インスタンス
+    private final ByteBuffer       sizeBuffer;  // データサイズ(先頭のヘッダ)の受信バッファ
+    private final ConnectionShaper shaping;     // 受信の帯域制限
+    
+    private ByteBuffer recvBuffer;              // 受信バッファ(プールから借りる)
+    private long       totalSizePerSocket = 0;  // ソケット毎に受信すべきデータサイズ
+    private long       totalBytesRcvd     = 0;  // クライアントから受信した全データサイズ
+    
+    /**
+     * UploadChannelProtocol のインスタンスを生成する．
+     */
+    public UploadChannelProtocol(ByteChannel transport, Logger logger, ConnectionShaper shaping)
+    {
+        this.transport = transport;
+        this.logger = logger;
+        this.shaping = shaping;
+        this.sizeBuffer = ByteBuffer.allocate(UploadProtocolFactory.LONG_HEADER_SIZE);
+        this.sizeBuffer.limit(UploadProtocolFactory.HEADER_SIZE);
+        this.recvBuffer = BufferPool.getHeapInstance().acquire(BUF_SIZE);
+    }
+    
+    /**
+     * 受信できるだけのデータを受信し，
+     * クライアントが要求するサイズ分のデータを受信し終えたらチャネルを閉じる．
+     */
+    @Override
+    public void handleRead(SelectionKey key)
+        throws IOException
+    {
+        // 最初の 4バイトには，ソケット毎に受信すべきデータサイズが格納されている．
+        // 下位 30ビットが LONG_SIZE の場合は，続く 8バイトにデータサイズが格納されている．
+        // ヘッダが揃うまでは，データサイズの受信バッファへ読み込む．
+        if (this.sizeBuffer.hasRemaining()) {
+            int bytesRcvd = this.transport.read(this.sizeBuffer);
+            if (bytesRcvd == -1) {
+                close();
+                this.logger.println("例外発生：ソケット毎に受信すべきデータサイズの取得に失敗しました．");
+                return;
+            }
+            ServerMetrics.getInstance().addBytesIn(bytesRcvd);
+            if (!isHeaderComplete()) {
+                return;
+            }
+            
+            // トレーラと圧縮には対応しないため，上位 2ビットのフラグが立っていれば拒否する．
+            int header = this.sizeBuffer.getInt(0);
+            if ((header & ~UploadProtocolFactory.SIZE_MASK) != 0) {
+                throw new IOException(
+                    String.format("対応していないフラグが指定されました：0x%08x", header)
+                );
+            }
+            this.sizeBuffer.flip();
+            this.totalSizePerSocket = UploadProtocolFactory.decodeSize(this.sizeBuffer);
+            
+            // 既に受信したヘッダのバイト数を受信済みのデータサイズとする．
+            this.totalBytesRcvd = this.sizeBuffer.limit();
+        }
+        else {
+            // データを受信する．受信したデータは破棄する．
+            this.recvBuffer.clear();
+            int bytesRcvd = this.transport.read(this.recvBuffer);
+            
+            // クライアントがソケットを閉じた場合はチャネルを閉じる．
+            if (bytesRcvd == -1) {
+                close();
+                return;
+            }
+            this.totalBytesRcvd += bytesRcvd;
+            ServerMetrics.getInstance().addBytesIn(bytesRcvd);
+            
+            // 帯域を超えた場合は，読み込み可能状態の監視を一時的に止める．
+            this.shaping.pauseRead(key, bytesRcvd);
+        }
+        // 受信すべきデータを全て受信したらチャネルを閉じる．
+        if (this.totalBytesRcvd >= this.totalSizePerSocket) {
+            close();
+        }
+    }
+    
+    /**
+     * ヘッダを受信し終えたか否かを返す．
+     * 先頭 4バイトが 64ビットのデータサイズが続くことを示す場合は，受信する範囲を広げる．
+     */
+    private boolean isHeaderComplete()
+    {
+        if (this.sizeBuffer.hasRemaining()) {
+            return false;
+        }
+        int header = this.sizeBuffer.getInt(0);
+        if (this.sizeBuffer.limit() < UploadProtocolFactory.headerSizeOf(header)) {
+            this.sizeBuffer.limit(UploadProtocolFactory.LONG_HEADER_SIZE);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * このプロトコルはクライアントへデータを送信しないので，何もしない．
+     */
+    @Override
+    public void handleWrite(SelectionKey key)
+        throws IOException
+    {
+        ;
+    }
+    
+    /**
+     * 受信バッファをプールへ返し，帯域制限にコネクションの終了を伝える．
+     */
+    @Override
+    public void handleClose()
+    {
+        BufferPool.getHeapInstance().release(this.recvBuffer);
+        this.recvBuffer = null;
+        this.shaping.close();
+    }
+    
+    /**
+     * チャネルを閉じる．
+     */
+    private void close()
+        throws IOException
+    {
+        this.transport.close();
+    }
+}
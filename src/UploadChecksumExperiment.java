@@ -0,0 +1,188 @@
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+/**
+ * チェックサム(CRC32C のトレーラとサーバの検証応答)の有無によるアップロードのスループットと
+ * CPU 時間の差を調べる実験
+ * <p>
+ * UploadProtocolFactory を用いるサーバを同じプロセス内で起動し，MultiThreadUploader で
+ * チェックサム無しと有りのアップロードを交互に ROUND_COUNT 回ずつ繰り返す．
+ * それぞれのスループットと 1GB あたりのプロセスの CPU 時間，スループットの低下率を出力する．
+ * あわせて，1スレッドで CRC32C を計算する速度を出力する．
+ */
+public class UploadChecksumExperiment
+{
+    // クラス変数（定数）：
+    private static final int MEGA_BYTE = 1024 * 1024;
+    private static final int GIGA_BYTE = MEGA_BYTE * 1024;
+    
+    // 送信バッファサイズと，交互に繰り返す回数
+    private static final int BUF_SIZE    = 64 * 1024;
+    private static final int ROUND_COUNT = 5;
+    
+    // CRC32C の計算速度を計測する時間(ms)
+    private static final long CRC_MEASURE_MS = 1000;
+    
+    /**
+     * チェックサムの計測実験を実行するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 2) {
+            System.out.println("Parameters: <Total MB> <Sockets>");
+            return;
+        }
+        try {
+            // アップロードする総データサイズとソケット数を引数から取得する．
+            int totalSize  = Integer.parseInt(args[0]) * MEGA_BYTE;
+            int numSockets = Integer.parseInt(args[1]);
+            
+            // コンソールへのログ出力用のインスタンスを生成する．
+            ConsoleLogger clog = new ConsoleLogger();
+            
+            // ファイルへのログ出力用のインスタンスを，結果用とサーバ用に生成する．
+            long       now_ms = System.currentTimeMillis();
+            FileLogger flog   = new FileLogger(String.format("checksum_%d.txt", now_ms));
+            FileLogger slog   = new FileLogger(String.format("checksum_server_%d.txt", now_ms));
+            // IOException
+            
+            // 実験用のインスタンスを生成し，実験を実行する．
+            UploadChecksumExperiment experiment = new UploadChecksumExperiment(
+                totalSize, numSockets, clog, flog, slog
+            );
+            experiment.execute();
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    // インスタンス変数：
+    private final int           totalSize;  // アップロードする総データサイズ
+    private final int           numSockets; // 同時に利用するソケット数
+    private final ConsoleLogger clog;       // コンソールへの出力用 Logger
+    private final FileLogger    flog;       // 結果のファイルへの出力用 Logger
+    private final FileLogger    slog;       // サーバのログのファイルへの出力用 Logger
+    
+    /**
+     * UploadChecksumExperiment のインスタンスを生成する．
+     */
+    UploadChecksumExperiment(
+        int totalSize, int numSockets, ConsoleLogger clog, FileLogger flog, FileLogger slog
+    )
+    {
+        this.totalSize = totalSize;
+        this.numSockets = numSockets;
+        this.clog = clog;
+        this.flog = flog;
+        this.slog = slog;
+    }
+    
+    /**
+     * サーバを起動し，チェックサムの有無を交互に切り替えてアップロードを計測し，結果を出力する．
+     */
+    void execute()
+        throws Exception
+    {
+        // 1スレッドで CRC32C を計算する速度を出力する．
+        measureCrc();
+        
+        // ループバックアドレスの空いているポートで待ち受けるソケットを生成し，
+        // デーモンスレッドでサーバのディスパッチ処理を開始する．
+        UploadProtocolFactory factory  = new UploadProtocolFactory();
+        ServerSocket          servSock = ServerSocketChannel.open().socket();
+        servSock.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread server = new Thread(
+            () -> new ThreadPerConnectionDispatcher().startDispatching(
+                servSock, factory, this.slog
+            )
+        );
+        server.setDaemon(true);
+        server.start();
+        String servAddr = servSock.getInetAddress().getHostAddress();
+        int    servPort = servSock.getLocalPort();
+        
+        // ウォームアップを行う．
+        upload(servAddr, servPort, false);
+        upload(servAddr, servPort, true);
+        
+        // 時間とともに変化する条件の影響を揃えるため，チェックサムの有無を交互に計測する．
+        long[] elapsed_ns = new long[2];
+        long[] cpu_ns     = new long[2];
+        for (int i = 0; i < ROUND_COUNT; i++) {
+            for (int j = 0; j < 2; j++) {
+                long[] result = upload(servAddr, servPort, j == 1);
+                elapsed_ns[j] += result[0];
+                cpu_ns[j] += result[1];
+            }
+        }
+        // 結果を出力する．
+        this.flog.printf("checksum\tsockets\tMB_per_sec\tcpu_ms_per_GB\n");
+        double[] mbps = new double[2];
+        for (int j = 0; j < 2; j++) {
+            double totalBytes = (double)this.totalSize * ROUND_COUNT;
+            double cpuMsPerGB = (cpu_ns[j] / 1e6) / (totalBytes / GIGA_BYTE);
+            mbps[j] = (totalBytes / MEGA_BYTE) / (elapsed_ns[j] / 1e9);
+            this.clog.printf(
+                "チェックサム%s %2d sockets：%,10.1f MB/s，CPU 時間 %,8.1f ms/GB\n",
+                (j == 1) ? "有り" : "無し", this.numSockets, mbps[j], cpuMsPerGB
+            );
+            this.flog.printf("%b\t%d\t%.1f\t%.1f\n", j == 1, this.numSockets, mbps[j], cpuMsPerGB);
+        }
+        this.clog.printf(
+            "スループットの低下率：%.2f%%，チェックサムの不一致：%d 回\n",
+            100.0 * (1.0 - mbps[1] / mbps[0]), ServerMetrics.getInstance().getChecksumFailures()
+        );
+        this.flog.close();
+        this.slog.close();
+    }
+    
+    /**
+     * 1回のアップロードを実行し，経過時間(ns)とプロセスの CPU 時間(ns)を返す．
+     */
+    private long[] upload(String servAddr, int servPort, boolean withChecksum)
+        throws Exception
+    {
+        com.sun.management.OperatingSystemMXBean os =
+            (com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean();
+        MultiThreadUploader uploader = new MultiThreadUploader(
+            servAddr, servPort, this.totalSize, BUF_SIZE, this.numSockets, withChecksum
+        );
+        long startCpu_ns  = os.getProcessCpuTime();
+        long startTime_ns = System.nanoTime();
+        uploader.upload();
+        // InterruptedException, ExecutionException
+        return new long[] {
+            System.nanoTime() - startTime_ns, os.getProcessCpuTime() - startCpu_ns
+        };
+    }
+    
+    /**
+     * 送信バッファサイズのデータについて，1スレッドで CRC32C を繰り返し計算し，速度を出力する．
+     */
+    private void measureCrc()
+    {
+        byte[] data = new byte[BUF_SIZE];
+        new Random(System.currentTimeMillis()).nextBytes(data);
+        CRC32C crc          = new CRC32C();
+        long   count        = 0;
+        long   startTime_ns = System.nanoTime();
+        long   endTime_ns   = startTime_ns + CRC_MEASURE_MS * 1000000L;
+        while (System.nanoTime() < endTime_ns) {
+            crc.update(data, 0, data.length);
+            count++;
+        }
+        double gbps = ((double)count * data.length / GIGA_BYTE)
+            / ((System.nanoTime() - startTime_ns) / 1e9);
+        this.clog.printf("CRC32C の計算速度(1スレッド)：%,.2f GB/s (%08x)\n", gbps, crc.getValue());
+        this.flog.printf("crc32c_GB_per_sec\t%.2f\n", gbps);
+    }
+}
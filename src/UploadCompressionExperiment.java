@@ -0,0 +1,249 @@
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * 圧縮レベルとデータの種類毎に，アップロードの圧縮率と圧縮・展開の速度を調べ，
+ * 圧縮が有利になる回線速度を求める実験
+ * <p>
+ * UploadProtocolFactory を用いるサーバを同じプロセス内で起動し，MultiThreadUploader で
+ * ログ形式のテキスト(圧縮しやすいデータ)と乱数(圧縮できないデータ)をアップロードする．
+ * 送信したデータの圧縮前と圧縮後のバイト数，ループバックでのスループット，
+ * 1GB あたりのプロセスの CPU 時間，1コアあたりの圧縮・展開の速度を出力する．
+ * <p>
+ * 圧縮と展開はソケット毎のスレッドで並行して行われるため，コア数がソケット数以上であれば，
+ * 圧縮した場合のスループットは，回線速度を圧縮率で割った値と，
+ * 圧縮・展開の速度にソケット数を掛けた値の小さい方になる．
+ * LINK_MBPS_ARRAY の回線速度毎に，この値を見積もって出力する．
+ * 圧縮しない場合のスループットは回線速度に等しいため，これを上回る場合に圧縮が有利となる．
+ */
+public class UploadCompressionExperiment
+{
+    // クラス変数（定数）：
+    private static final int MEGA_BYTE = 1024 * 1024;
+    private static final int GIGA_BYTE = MEGA_BYTE * 1024;
+    
+    // 送信バッファサイズと送信試行回数
+    private static final int BUF_SIZE  = 64 * 1024;
+    private static final int TRY_COUNT = 3;
+    
+    // 圧縮レベルの配列
+    private static final int[] LEVEL_ARRAY = {
+        MultiThreadUploader.UNCOMPRESSED, 1, 6, 9
+    };
+    
+    // スループットを見積もる回線速度(Mbps)の配列
+    private static final int[] LINK_MBPS_ARRAY = { 100, 1000, 10000 };
+    
+    // ログ形式のテキストのサイズ．送信バッファの内容は繰り返し送信されるが，
+    // その間隔は Deflater の窓(32KB)より大きいため，繰り返しとしては圧縮されない．
+    private static final int LOG_CONTENT_SIZE = BUF_SIZE;
+    
+    /**
+     * 圧縮の計測実験を実行するための main メソッド
+     */
+    public static void main(String[] args)
+    {
+        // 引数の数を確認する．
+        if (args.length != 2) {
+            System.out.println("Parameters: <Total MB> <Sockets>");
+            return;
+        }
+        try {
+            // アップロードする総データサイズとソケット数を引数から取得する．
+            int totalSize  = Integer.parseInt(args[0]) * MEGA_BYTE;
+            int numSockets = Integer.parseInt(args[1]);
+            
+            // コンソールへのログ出力用のインスタンスを生成する．
+            ConsoleLogger clog = new ConsoleLogger();
+            
+            // ファイルへのログ出力用のインスタンスを，結果用とサーバ用に生成する．
+            long       now_ms = System.currentTimeMillis();
+            FileLogger flog   = new FileLogger(String.format("compression_%d.txt", now_ms));
+            FileLogger slog   = new FileLogger(String.format("compression_server_%d.txt", now_ms));
+            // IOException
+            
+            // 実験用のインスタンスを生成し，実験を実行する．
+            UploadCompressionExperiment experiment = new UploadCompressionExperiment(
+                totalSize, numSockets, clog, flog, slog
+            );
+            experiment.execute();
+        }
+        catch (Exception ex) {
+            System.out.println("例外発生：" + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+    
+    // インスタンス変数：
+    private final int           totalSize;  // アップロードする総データサイズ
+    private final int           numSockets; // 同時に利用するソケット数
+    private final ConsoleLogger clog;       // コンソールへの出力用 Logger
+    private final FileLogger    flog;       // 結果のファイルへの出力用 Logger
+    private final FileLogger    slog;       // サーバのログのファイルへの出力用 Logger
+    
+    /**
+     * UploadCompressionExperiment のインスタンスを生成する．
+     */
+    UploadCompressionExperiment(
+        int totalSize, int numSockets, ConsoleLogger clog, FileLogger flog, FileLogger slog
+    )
+    {
+        this.totalSize = totalSize;
+        this.numSockets = numSockets;
+        this.clog = clog;
+        this.flog = flog;
+        this.slog = slog;
+    }
+    
+    /**
+     * サーバを起動し，データの種類と圧縮レベルの組み合わせ毎に計測して結果を出力する．
+     */
+    void execute()
+        throws Exception
+    {
+        // ループバックアドレスの空いているポートで待ち受けるソケットを生成し，
+        // デーモンスレッドでサーバのディスパッチ処理を開始する．
+        UploadProtocolFactory factory  = new UploadProtocolFactory();
+        ServerSocket          servSock = ServerSocketChannel.open().socket();
+        servSock.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread server = new Thread(
+            () -> new ThreadPerConnectionDispatcher().startDispatching(
+                servSock, factory, this.slog
+            )
+        );
+        server.setDaemon(true);
+        server.start();
+        
+        this.flog.printf(
+            "content\tlevel\traw_MB\twire_MB\tratio\tloopback_MB_per_sec\tcpu_ms_per_GB"
+                + "\tdeflate_MB_per_sec\tinflate_MB_per_sec"
+        );
+        for (int linkMbps : LINK_MBPS_ARRAY) {
+            this.flog.printf("\tat_%dMbps_MB_per_sec", linkMbps);
+        }
+        this.flog.printf("\n");
+        
+        // ウォームアップを行ってから，データの種類と圧縮レベル毎に計測する．
+        byte[] logContent = generateLogContent();
+        measure(factory, servSock, "warmup", logContent, 6, false);
+        for (byte[] content : new byte[][] { logContent, null }) {
+            String name = (content != null) ? "log" : "random";
+            for (int level : LEVEL_ARRAY) {
+                measure(factory, servSock, name, content, level, true);
+            }
+        }
+        this.flog.close();
+        this.slog.close();
+    }
+    
+    /**
+     * 1つの組み合わせについてアップロードを繰り返し，指定された場合は結果を出力する．
+     */
+    private void measure(
+        UploadProtocolFactory factory, ServerSocket servSock,
+        String name, byte[] content, int level, boolean isReported
+    )
+        throws Exception
+    {
+        com.sun.management.OperatingSystemMXBean os =
+            (com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean();
+        
+        // サーバ側の統計情報は累計のため，開始時点の値との差を求める．
+        long   startRaw     = factory.getRawBytes();
+        long   startWire    = factory.getWireBytes();
+        double startInflate = factory.getInflateMillis();
+        
+        MultiThreadUploader uploader = new MultiThreadUploader(
+            servSock.getInetAddress().getHostAddress(), servSock.getLocalPort(),
+            this.totalSize, BUF_SIZE, this.numSockets, false, level, content
+        );
+        long startCpu_ns  = os.getProcessCpuTime();
+        long startTime_ns = System.nanoTime();
+        for (int i = 0; i < TRY_COUNT; i++) {
+            uploader.upload();
+            // InterruptedException, ExecutionException
+        }
+        long elapsed_ns = System.nanoTime() - startTime_ns;
+        long cpu_ns     = os.getProcessCpuTime() - startCpu_ns;
+        if (!isReported) {
+            return;
+        }
+        // サーバが受信したバイト数が，クライアントが送信したバイト数と一致することを確認する．
+        long    raw        = uploader.getRawBytes();
+        long    wire       = uploader.getWireBytes();
+        boolean isRawSame  = (factory.getRawBytes() - startRaw == raw);
+        boolean isWireSame = (factory.getWireBytes() - startWire == wire);
+        if (!isRawSame || !isWireSame) {
+            this.clog.printf("%s レベル %d：サーバが受信したバイト数が一致しません．\n", name, level);
+        }
+        // 圧縮率，スループット，CPU 時間，1コアあたりの圧縮・展開の速度を求める．
+        double  rawMB        = (double)raw / MEGA_BYTE;
+        double  wireMB       = (double)wire / MEGA_BYTE;
+        double  ratio        = (double)wire / raw;
+        double  mbps         = rawMB / (elapsed_ns / 1e9);
+        double  cpuMsPerGB   = (cpu_ns / 1e6) / ((double)raw / GIGA_BYTE);
+        double  inflate_ms   = factory.getInflateMillis() - startInflate;
+        double  deflateMBps  = rawMB / Math.max(1e-3, uploader.getCompressMillis() / 1000.0);
+        double  inflateMBps  = rawMB / Math.max(1e-3, inflate_ms / 1000.0);
+        boolean isCompressed = (level != MultiThreadUploader.UNCOMPRESSED);
+        String  levelName    = isCompressed ? Integer.toString(level) : "-";
+        
+        StringBuilder estimates = new StringBuilder();
+        StringBuilder columns   = new StringBuilder();
+        for (int linkMbps : LINK_MBPS_ARRAY) {
+            // 回線速度を MB/s に換算し，圧縮した場合のスループットを見積もる．
+            double linkMBps = linkMbps * 1e6 / 8 / MEGA_BYTE;
+            double estimate = linkMBps;
+            if (isCompressed) {
+                double cpuMBps = Math.min(deflateMBps, inflateMBps) * this.numSockets;
+                estimate = Math.min(linkMBps / ratio, cpuMBps);
+            }
+            estimates.append(String.format("，%,d Mbps 時 %,9.1f MB/s", linkMbps, estimate));
+            columns.append(String.format("\t%.1f", estimate));
+        }
+        this.clog.printf(
+            "%-6s レベル %s：%,8.1f MB → %,8.1f MB (%5.1f%%)，%,8.1f MB/s，CPU %,8.1f ms/GB，"
+                + "圧縮 %,8.1f MB/s 展開 %,8.1f MB/s%s\n",
+            name, levelName, rawMB, wireMB, 100 * ratio, mbps, cpuMsPerGB,
+            isCompressed ? deflateMBps : 0.0, isCompressed ? inflateMBps : 0.0, estimates
+        );
+        this.flog.printf(
+            "%s\t%s\t%.1f\t%.1f\t%.4f\t%.1f\t%.1f\t%.1f\t%.1f%s\n",
+            name, levelName, rawMB, wireMB, ratio, mbps, cpuMsPerGB,
+            isCompressed ? deflateMBps : 0.0, isCompressed ? inflateMBps : 0.0, columns
+        );
+    }
+    
+    /**
+     * アプリケーションのアクセスログを模した，圧縮しやすいテキストを生成する．
+     */
+    private byte[] generateLogContent()
+    {
+        String[] levels  = { "INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR" };
+        String[] paths   = { "/api/v1/items", "/api/v1/users", "/api/v1/orders", "/health" };
+        int[]    status  = { 200, 200, 200, 201, 304, 404, 500 };
+        Random   rand    = new Random(12345);
+        long     time_ms = 1760000000000L;
+        
+        StringBuilder text = new StringBuilder(LOG_CONTENT_SIZE + 256);
+        while (text.length() < LOG_CONTENT_SIZE) {
+            time_ms += rand.nextInt(50);
+            text.append(
+                String.format(
+                    "%tF %<tT.%<tL %-5s [worker-%02d] request_id=%016x method=GET path=%s/%d "
+                        + "status=%d bytes=%d latency_ms=%d\n",
+                    time_ms, levels[rand.nextInt(levels.length)], rand.nextInt(32),
+                    rand.nextLong(), paths[rand.nextInt(paths.length)], rand.nextInt(100000),
+                    status[rand.nextInt(status.length)], rand.nextInt(65536), rand.nextInt(500)
+                )
+            );
+        }
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,166 @@
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * UploadDatagramProtocol のインスタンスを生成するためのファクトリクラス
+ * <p>
+ * データグラムの形式は下記の通り．各値はビッグエンディアンとする．
+ * <ul>
+ * <li>データ：セッション番号(4バイト)，通し番号(4バイト，0 以上)，ペイロード
+ * <li>終了：セッション番号(4バイト)，END_SEQUENCE(4バイト)
+ * <li>報告(サーバからの応答)：セッション番号(4バイト)，END_SEQUENCE(4バイト)，
+ * 受信数(8バイト)，受信したペイロードのバイト数(8バイト)，順序が入れ替わった数(8バイト)
+ * </ul>
+ * 終了のデータグラム自体も失われ得るため，クライアントは報告を受信するまで終了を送り直す．
+ */
+public class UploadDatagramProtocolFactory
+    implements
+        DatagramProtocolFactory
+{
+    // クラス変数（定数）：
+    static final int HEADER_SIZE  = 8;              // データのヘッダのバイト数
+    static final int END_SEQUENCE = -1;             // 終了・報告を示す通し番号
+    static final int REPORT_SIZE  = HEADER_SIZE + 24;   // 報告のバイト数
+    
+    /**
+     * UploadDatagramProtocol のインスタンスを生成し，
+     * DatagramProtocol インターフェースとして返す．
+     */
+    @Override
+    public DatagramProtocol createProtocol(DatagramChannel chan, Logger logger)
+    {
+        return new UploadDatagramProtocol(chan);
+    }
+}
+
+/**
+ * 送信元毎に，通し番号付きのデータグラムの受信数と順序の入れ替わりを数え，
+ * 終了のデータグラムを受信した時に報告を返すクラス
+ * <p>
+ * 送信元毎の状態は，新しいセッション番号のデータグラムを受信するまで保持し，
+ * 送り直された終了には同じ報告を返す．保持する送信元の数は MAX_PEERS までとし，
+ * 超えた場合は最も古い送信元の状態を捨てる．
+ */
+class UploadDatagramProtocol
+    implements
+        DatagramProtocol
+{
+    // クラス変数（定数）：
+    static final int MAX_PEERS = 1024;  // 状態を保持する送信元の数の上限
+    
+    // インスタンス変数：
+    private final DatagramChannel          chan;    // 送受信に用いるチャネル
+    private final Map<SocketAddress, Peer> peers;   // 送信元毎の状態
+    private final ByteBuffer               report;  // 報告の送信用バッファ
+    
+    // 統計情報(ディスパッチャのスレッドのみが参照・更新する)：
+    private long numSessions = 0;   // 報告を返したセッション数
+    private long numInvalid  = 0;   // 形式が不正なデータグラム数
+    
+    /**
+     * UploadDatagramProtocol のインスタンスを生成する．
+     */
+    @SuppressWarnings("serial")
+    UploadDatagramProtocol(DatagramChannel chan)
+    {
+        this.chan = chan;
+        this.peers = new LinkedHashMap<SocketAddress, Peer>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SocketAddress, Peer> eldest)
+            {
+                return size() > MAX_PEERS;
+            }
+        };
+        this.report = ByteBuffer.allocateDirect(UploadDatagramProtocolFactory.REPORT_SIZE);
+    }
+    
+    /**
+     * データの場合は受信数と順序の入れ替わりを記録し，終了の場合は報告を返す．
+     */
+    @Override
+    public void handleDatagram(ByteBuffer datagram, SocketAddress source)
+        throws IOException
+    {
+        if (datagram.remaining() < UploadDatagramProtocolFactory.HEADER_SIZE) {
+            this.numInvalid++;
+            return;
+        }
+        int session  = datagram.getInt();
+        int sequence = datagram.getInt();
+        
+        // 新しいセッションであれば，送信元の状態を作り直す．
+        Peer peer = this.peers.get(source);
+        if ((peer == null) || (peer.session != session)) {
+            peer = new Peer(session);
+            this.peers.put(source, peer);
+        }
+        if (sequence == UploadDatagramProtocolFactory.END_SEQUENCE) {
+            // 終了：報告を返す．
+            if (!peer.isReported) {
+                peer.isReported = true;
+                this.numSessions++;
+            }
+            this.report.clear();
+            this.report.putInt(session).putInt(UploadDatagramProtocolFactory.END_SEQUENCE);
+            this.report.putLong(peer.received).putLong(peer.bytes).putLong(peer.reordered);
+            this.report.flip();
+            this.chan.send(this.report, source);
+            return;
+        }
+        if (sequence < 0) {
+            this.numInvalid++;
+            return;
+        }
+        // データ：受信数を数え，それまでの最大の通し番号より小さければ入れ替わりとする．
+        peer.received++;
+        peer.bytes += datagram.remaining();
+        if (sequence < peer.maxSequence) {
+            peer.reordered++;
+        }
+        else {
+            peer.maxSequence = sequence;
+        }
+    }
+    
+    /**
+     * 報告を返したセッション数と形式が不正なデータグラム数をログに出力し，リセットする．
+     */
+    @Override
+    public void report(Logger logger)
+    {
+        logger.printf(
+            "アップロード：セッション %d，不正 %d 個，送信元 %d\n",
+            this.numSessions, this.numInvalid, this.peers.size()
+        );
+        this.numSessions = 0;
+        this.numInvalid = 0;
+    }
+    
+    /**
+     * 送信元毎の状態
+     */
+    private static class Peer
+    {
+        // インスタンス変数：
+        private final int session;          // セッション番号
+        
+        private long    received    = 0;        // 受信したデータグラム数
+        private long    bytes       = 0;        // 受信したペイロードのバイト数
+        private long    reordered   = 0;        // 順序が入れ替わって届いたデータグラム数
+        private int     maxSequence = -1;       // 受信した最大の通し番号
+        private boolean isReported  = false;    // 報告を返したか否か
+        
+        /**
+         * セッション番号を指定して Peer のインスタンスを生成する．
+         */
+        Peer(int session)
+        {
+            this.session = session;
+        }
+    }
+}
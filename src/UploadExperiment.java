@@ -1,20 +1,33 @@
 
 import java.util.ArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * 送信バッファサイズとソケット数を変化させ， 連続データを送信するクライアント側の機能の実装
+ * <p>
+ * 総データサイズ(GB)とソケット数を指定した場合は，指定したサイズのデータを1回だけ送信し，
+ * SAMPLE_INTERVAL_MS 毎のスループットと累計の送信量を出力する(持続モード)．
+ * ソケット毎の送信データサイズが 1GB を超える場合は，64ビットのデータサイズのヘッダを用いる．
  */
 public class UploadExperiment
 {
     // クラス変数（定数）：
     private static final int KILO_BYTE = 1024;
     private static final int MEGA_BYTE = KILO_BYTE * 1024;
-    private static final int GIGA_BYTE = MEGA_BYTE * 1024;
+    private static final long GIGA_BYTE = MEGA_BYTE * 1024L;
     
     // 送信する総データサイズと送信試行回数
-    private static final int TOTAL_SIZE = 1 * MEGA_BYTE;
-    private static final int TRY_COUNT  = 10;
+    private static final long TOTAL_SIZE = 1 * MEGA_BYTE;
+    private static final int  TRY_COUNT  = 10;
+    
+    // 持続モードの送信バッファサイズと，スループットを計測する間隔(ms)
+    private static final int  SUSTAINED_BUF_SIZE = 64 * KILO_BYTE;
+    private static final long SAMPLE_INTERVAL_MS = 1000;
     
     // 送信バッファサイズの配列
     private static final int[] BUF_SIZE_ARRAY = {
@@ -32,8 +45,8 @@ public class UploadExperiment
     public static void main(String[] args)
     {
         // 引数の数を確認する．
-        if (args.length != 2) {
-            System.out.println("Parameters: <Server> <Port>");
+        if ((args.length != 2) && (args.length != 4)) {
+            System.out.println("Parameters: <Server> <Port> [<Total Size (GB)> <Sockets>]");
             return;
         }
         try {
@@ -55,8 +68,16 @@ public class UploadExperiment
                 servAddr, servPort, clog, flog
             );
             
-            // サーバへのアップロードを繰り返し，結果を出力する．
-            client.execute();
+            // 総データサイズとソケット数が指定されている場合は持続モードで1回だけ送信し，
+            // そうでない場合はサーバへのアップロードを繰り返し，結果を出力する．
+            if (args.length == 4) {
+                long totalSize  = Long.parseLong(args[2]) * GIGA_BYTE;
+                int  numSockets = Integer.parseInt(args[3]);
+                client.executeSustained(totalSize, numSockets);
+            }
+            else {
+                client.execute();
+            }
         }
         catch (Exception ex) {
             System.out.println("例外発生：" + ex.getMessage());
@@ -128,6 +149,89 @@ public class UploadExperiment
         this.flog.close();
     }
     
+    /**
+     * 指定したサイズのデータを1回だけサーバへアップロードし，
+     * SAMPLE_INTERVAL_MS 毎のスループットと累計の送信量，最後に要約を出力する．
+     */
+    void executeSustained(long totalSize, int numSockets)
+    {
+        this.clog.printf(
+            "持続モード：%s，%d ソケット，送信バッファ %s\n",
+            toKiloByte(totalSize), numSockets, toKiloByte(SUSTAINED_BUF_SIZE)
+        );
+        this.flog.printf("経過(秒)\tスループット(MB/s)\t累計(MB)\n");
+        
+        // アップロード処理を別のスレッドで実行し，このスレッドで進捗を計測する．
+        MultiThreadUploader uploader = new MultiThreadUploader(
+            this.servAddr, this.servPort, totalSize, SUSTAINED_BUF_SIZE, numSockets
+        );
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        long            start_ns = System.nanoTime();
+        Future<?>       future   = executor.submit(
+            () -> {
+                uploader.upload();
+                return null;
+            }
+        );
+        // 計測間隔毎に，前回からの送信量を求めて出力する．
+        long   interval_ns      = TimeUnit.MILLISECONDS.toNanos(SAMPLE_INTERVAL_MS);
+        long   nextSample_ns    = start_ns + interval_ns;
+        long   prevBytes        = 0;
+        double minRate_mbytesps = Double.MAX_VALUE;
+        double maxRate_mbytesps = 0;
+        int    numSamples       = 0;
+        while (!future.isDone()) {
+            LockSupport.parkNanos(nextSample_ns - System.nanoTime());
+            if (System.nanoTime() < nextSample_ns) {
+                continue;
+            }
+            long   sentBytes     = uploader.getSentBytes();
+            double rate_mbytesps = (double)(sentBytes - prevBytes) / MEGA_BYTE
+                * 1000 / SAMPLE_INTERVAL_MS;
+            double elapsed_sec   = (nextSample_ns - start_ns) / 1e9;
+            minRate_mbytesps = Math.min(minRate_mbytesps, rate_mbytesps);
+            maxRate_mbytesps = Math.max(maxRate_mbytesps, rate_mbytesps);
+            numSamples++;
+            this.clog.printf(
+                "%6.1f 秒：%8.1f MB/s（累計 %,d MB）\n",
+                elapsed_sec, rate_mbytesps, sentBytes / MEGA_BYTE
+            );
+            this.flog.printf(
+                "%.1f\t%.1f\t%d\n", elapsed_sec, rate_mbytesps, sentBytes / MEGA_BYTE
+            );
+            prevBytes = sentBytes;
+            nextSample_ns += interval_ns;
+        }
+        try {
+            // アップロード処理中に発生した例外を確認する．
+            future.get();
+            // InterruptedException, ExecutionException
+            
+            // 平均スループットと，計測間隔毎のスループットの最小値・最大値を出力する．
+            double elapsed_sec = (System.nanoTime() - start_ns) / 1e9;
+            double average     = uploader.getSentBytes() / (double)MEGA_BYTE / elapsed_sec;
+            String summary     = String.format(
+                "合計 %,d MB，%.1f 秒，平均 %.1f MB/s",
+                uploader.getSentBytes() / MEGA_BYTE, elapsed_sec, average
+            );
+            if (numSamples > 0) {
+                summary += String.format(
+                    "（最小 %.1f MB/s，最大 %.1f MB/s）",
+                    minRate_mbytesps, maxRate_mbytesps
+                );
+            }
+            this.clog.println(summary);
+            this.flog.println(summary);
+        }
+        catch (InterruptedException | ExecutionException ex) {
+            this.clog.println("例外発生：" + ex.getMessage());
+        }
+        finally {
+            executor.shutdown();
+            this.flog.close();
+        }
+    }
+    
     /**
      * バッファサイズとソケット数を変化させ， TOTAL_SIZE バイト分のデータを TRY_COUNT 回サーバへアップロードする．
      */
@@ -201,7 +305,7 @@ public class UploadExperiment
                 elapsedTimes_ms[i] = endTime_ms - startTime_ms;
                 if (elapsedTimes_ms[i] == 0) {
                     // ミリ秒の精度では経過時間が 0ms となる場合がある．
-                    // その場合は，最小値である 1ms 経過したものとする． 
+                    // その場合は，最小値である 1ms 経過したものとする．
                     elapsedTimes_ms[i] = 1;
                 }
                 totalTime_ms += elapsedTimes_ms[i];
@@ -264,7 +368,7 @@ public class UploadExperiment
     /**
      * バイト単位の数値を，単位付きの文字列に変換する．
      */
-    private String toKiloByte(int val_byte)
+    private String toKiloByte(long val_byte)
     {
         String result = null;
         
@@ -1,28 +1,177 @@
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * UploadProtocol のインスタンスを生成するためのファクトリ
+ * <p>
+ * 先頭 4バイトのデータサイズの最上位ビット(CHECKSUM_FLAG)が立っている場合，
+ * クライアントはデータの後にトレーラ(データの CRC32C，TRAILER_SIZE バイト)を送信し，
+ * サーバは検証したバイト数(long)と計算した CRC32C(int)から成る応答(ACK_SIZE バイト)を返す．
+ * <p>
+ * 2番目のビット(COMPRESS_FLAG)が立っている場合，クライアントは先頭 4バイトに続くデータを
+ * Deflater で圧縮したストリームとして送信し，サーバは Inflater で逐次展開する．
+ * データサイズとチェックサムは，どちらも展開後のデータについての値とする．
+ * 全てのコネクションで受信したデータの展開後のバイト数と受信したバイト数，
+ * 展開に要した CPU 時間を記録する．
+ * <p>
+ * 先頭 4バイトの下位 30ビットで表せるデータサイズ(ヘッダを含む)は MAX_INT_SIZE(1GB - 1)
+ * までである．上位 2ビットをフラグに用いるため，int の正の範囲で表せた 2GB から縮小している．
+ * クライアントは MAX_INT_SIZE を超えるデータサイズを 4バイトのヘッダで送信してはならず，
+ * 超える場合は下位 30ビットを LONG_SIZE(0)とし，続く 8バイトに
+ * 64ビットのデータサイズ(12バイトのヘッダを含む)を格納する．4バイトのヘッダの
+ * データサイズはヘッダ自身を含むため 0 にはならず，従来のクライアントと共存できる．
+ * <p>
+ * 受信は TrafficShaper による帯域制限に通す．
  */
 public class UploadProtocolFactory
     implements
         ProtocolFactory
 {
+    // クラス変数（定数）：
+    static public final int CHECKSUM_FLAG = 0x80000000;  // トレーラの有無を示すビット
+    static public final int COMPRESS_FLAG = 0x40000000;  // データの圧縮の有無を示すビット
+    static public final int TRAILER_SIZE  = 4;           // トレーラのサイズ
+    static public final int ACK_SIZE      = 8 + 4;       // 応答のサイズ
+    
+    static public final int  SIZE_MASK        = ~(CHECKSUM_FLAG | COMPRESS_FLAG);   // サイズ部分
+    static public final int  LONG_SIZE        = 0;          // 64ビットのサイズが続く印
+    static public final int  HEADER_SIZE      = 4;          // 4バイトのヘッダのサイズ
+    static public final int  LONG_HEADER_SIZE = 4 + 8;      // 64ビットのサイズを含むヘッダのサイズ
+    static public final long MAX_INT_SIZE     = SIZE_MASK;  // 4バイトのヘッダで表せる最大のサイズ
+    
+    // インスタンス変数：
+    private final TrafficShaper shaper;     // 帯域制限の設定
+    
+    // 統計情報：
+    private final LongAdder rawBytes     = new LongAdder();    // 受信したデータの展開後のバイト数
+    private final LongAdder wireBytes    = new LongAdder();    // 受信したデータのバイト数
+    private final LongAdder inflateNanos = new LongAdder();    // 展開に要した CPU 時間(ns)
+    
+    /**
+     * システムプロパティの帯域制限で UploadProtocolFactory のインスタンスを生成する．
+     */
+    public UploadProtocolFactory()
+    {
+        this(TrafficShaper.getInstance());
+    }
+    
+    /**
+     * 帯域制限を指定して UploadProtocolFactory のインスタンスを生成する．
+     */
+    UploadProtocolFactory(TrafficShaper shaper)
+    {
+        this.shaper = shaper;
+    }
+    
     /**
      * UploadProtocol のインスタンスを生成し，Runnable インターフェースとして返す．
      */
     @Override
     public Runnable createProtocol(Socket clntSock, Logger logger)
     {
-        return new UploadProtocol(clntSock, logger);
+        return new UploadProtocol(clntSock, logger, this, this.shaper);
+    }
+    
+    /**
+     * 1つのコネクションで受信したデータの展開後のバイト数と受信したバイト数，
+     * 展開に要した CPU 時間を記録する．
+     */
+    void record(long raw, long wire, long inflate_ns)
+    {
+        this.rawBytes.add(raw);
+        this.wireBytes.add(wire);
+        this.inflateNanos.add(inflate_ns);
+    }
+    
+    /**
+     * ソケット毎のデータサイズ(ヘッダを含む)とフラグから，先頭のヘッダを生成する．
+     * データサイズが MAX_INT_SIZE を超える場合は，64ビットのデータサイズを含むヘッダとなる．
+     * sizePerSocket はそのヘッダのサイズを含む値とすること．
+     */
+    static byte[] encodeHeader(long sizePerSocket, int flags)
+    {
+        if (sizePerSocket <= MAX_INT_SIZE) {
+            return ByteBuffer.allocate(HEADER_SIZE).putInt(flags | (int)sizePerSocket).array();
+        }
+        return ByteBuffer
+            .allocate(LONG_HEADER_SIZE)
+            .putInt(flags | LONG_SIZE)
+            .putLong(sizePerSocket)
+            .array();
+    }
+    
+    /**
+     * ソケット毎のデータサイズ(ヘッダを含む)に対するヘッダのサイズを返す．
+     */
+    static int headerSizeFor(long sizePerSocket)
+    {
+        return (sizePerSocket <= MAX_INT_SIZE) ? HEADER_SIZE : LONG_HEADER_SIZE;
+    }
+    
+    /**
+     * 先頭 4バイトの値から，ヘッダのサイズを返す．
+     */
+    static int headerSizeOf(int header)
+    {
+        return ((header & SIZE_MASK) == LONG_SIZE) ? LONG_HEADER_SIZE : HEADER_SIZE;
+    }
+    
+    /**
+     * 受信し終えたヘッダ(位置 0，リミットはヘッダのサイズ)から，
+     * ソケット毎のデータサイズ(ヘッダを含む)を返す．
+     */
+    static long decodeSize(ByteBuffer header)
+    {
+        int value = header.getInt();
+        if ((value & SIZE_MASK) == LONG_SIZE) {
+            return header.getLong();
+        }
+        return value & SIZE_MASK;
+    }
+    
+    /**
+     * 受信したデータの展開後のバイト数の累計を返す．
+     */
+    long getRawBytes()
+    {
+        return this.rawBytes.sum();
+    }
+    
+    /**
+     * 受信したデータのバイト数の累計を返す．
+     */
+    long getWireBytes()
+    {
+        return this.wireBytes.sum();
+    }
+    
+    /**
+     * 展開に要した CPU 時間の累計(ms)を返す．
+     */
+    double getInflateMillis()
+    {
+        return this.inflateNanos.sum() / 1e6;
     }
 }
 
 /**
  * 連続データを受信するサーバ側の機能の実装
+ * <p>
+ * クライアントがトレーラを送信する場合は，受信ループ内で受信したデータの CRC32C を
+ * 逐次計算し，トレーラの値と照合した結果を応答として返す．
+ * クライアントがデータを圧縮して送信する場合は，受信ループ内で逐次展開する．
  */
 class UploadProtocol
     implements
@@ -32,16 +181,25 @@ class UploadProtocol
     static private final int BUF_SIZE = 8192;	// 受信バッファサイズ
     
     // インスタンス変数：
-    private final Socket clntSock;  // クライアントと通信するためのソケット
-    private final Logger logger;    // ログ出力用の Logger インスタンス
+    private final Socket                clntSock;   // クライアントと通信するためのソケット
+    private final Logger                logger;     // ログ出力用の Logger インスタンス
+    private final UploadProtocolFactory factory;    // 統計情報の記録先
+    private final TrafficShaper         shaper;     // 帯域制限の設定
+    
+    private long wireBytes  = 0;    // 受信したデータのバイト数(先頭のヘッダを除く)
+    private long inflate_ns = 0;    // 展開に要した CPU 時間(ns)
     
     /**
      * UploadProtocol のインスタンスを生成する．
      */
-    public UploadProtocol(Socket clntSock, Logger logger)
+    public UploadProtocol(
+        Socket clntSock, Logger logger, UploadProtocolFactory factory, TrafficShaper shaper
+    )
     {
         this.clntSock = clntSock;
         this.logger = logger;
+        this.factory = factory;
+        this.shaper = shaper;
     }
     
     /**
@@ -50,42 +208,87 @@ class UploadProtocol
     @Override
     public void run()
     {
+        // 受信バッファをプールから借り，このコネクションの受信の帯域制限を開始する．
+        ByteBuffer       buffer  = BufferPool.getHeapInstance().acquire(BUF_SIZE);
+        ConnectionShaper shaping = this.shaper.open(this.clntSock);
         try {
-            // ソケットから入力ストリームを取得する
-            InputStream in = clntSock.getInputStream();
+            // ソケットから入力ストリームを取得し，帯域を制限するストリームで包む．
+            InputStream in = shaping.wrap(clntSock.getInputStream());
             // IOException
             
             // このソケットから受信する最初の 4バイトには，
             // ソケット毎に受信すべきデータサイズが格納されているので，それを求める．
+            // 下位 30ビットが LONG_SIZE の場合は，続く 8バイトにデータサイズが格納されている．
             byte[] fourBytes = new byte[4];
             int    bytesRcvd = in.read(fourBytes);
             // IOException
             if (bytesRcvd != 4) {
                 throw new IOException("ソケット毎に受信すべきデータサイズの取得に失敗しました．");
             }
-            int totalSizePerSocket = ByteBuffer.wrap(fourBytes).getInt();
+            // 上位 2ビットはトレーラと圧縮の有無を示すため，データサイズから除く．
+            int     header             = ByteBuffer.wrap(fourBytes).getInt();
+            int     headerSize         = UploadProtocolFactory.headerSizeOf(header);
+            boolean hasTrailer         = (header & UploadProtocolFactory.CHECKSUM_FLAG) != 0;
+            boolean isCompressed       = (header & UploadProtocolFactory.COMPRESS_FLAG) != 0;
+            long    totalSizePerSocket = header & UploadProtocolFactory.SIZE_MASK;
+            if (headerSize == UploadProtocolFactory.LONG_HEADER_SIZE) {
+                totalSizePerSocket = new DataInputStream(in).readLong();
+                // IOException
+                bytesRcvd += 8;
+            }
+            
+            // トレーラがある場合は，受信したデータの CRC32C を逐次計算する．
+            CRC32C crc = hasTrailer ? new CRC32C() : null;
+            
+            // 受信したバイト数を記録するためのインスタンスを取得する．
+            ServerMetrics metrics = ServerMetrics.getInstance();
+            metrics.addBytesIn(bytesRcvd);
             
             // クライアントから受信した全データサイズを格納する変数を用意する．
-            // 既に受信した 4(バイト)を初期値として代入しておく．
-            int totalBytesRcvd = 4;
+            // 既に受信したヘッダのバイト数を初期値として代入しておく．
+            long totalBytesRcvd = headerSize;
             
-            // 受信バッファを生成する．
-            byte[] recvBuffer = new byte[BUF_SIZE];
+            // 借りたバッファの配列を，受信バッファとして使う．
+            byte[] recvBuffer = buffer.array();
             
+            // 圧縮されている場合は，展開しながら全て受信する．
+            // 展開し終えた時点で読み込み済みのトレーラは，入力ストリームへ戻す．
+            if (isCompressed) {
+                PushbackInputStream pushback = new PushbackInputStream(in, recvBuffer.length);
+                totalBytesRcvd += receiveCompressed(
+                    pushback, recvBuffer, totalSizePerSocket - headerSize, crc
+                );
+                in = pushback;
+            }
             // このソケットを利用して受信すべきデータを全て受信するまで，
             // 受信処理を繰り返す．
             while (totalBytesRcvd < totalSizePerSocket) {
-                // データを受信する．
-                bytesRcvd = in.read(recvBuffer);
+                // データを受信する．後続のトレーラは読み込まないよう，残りのサイズまでとする．
+                long remaining = totalSizePerSocket - totalBytesRcvd;
+                int  readSize  = (int)Math.min(recvBuffer.length, remaining);
+                bytesRcvd = in.read(recvBuffer, 0, readSize);
                 // IOException
                 
                 // クライアントがソケットを閉じた場合はループを抜ける．
                 if (bytesRcvd == -1) {
                     break;
                 }
+                if (crc != null) {
+                    crc.update(recvBuffer, 0, bytesRcvd);
+                }
                 // ソケット毎に受信すべきデータサイズに，
                 // 今回受信したデータのバイト数を加える．
                 totalBytesRcvd += bytesRcvd;
+                this.wireBytes += bytesRcvd;
+                metrics.addBytesIn(bytesRcvd);
+            }
+            this.factory.record(totalBytesRcvd - headerSize, this.wireBytes, this.inflate_ns);
+            // トレーラがある場合は，チェックサムを照合して応答を返す．
+            if (crc != null) {
+                if (totalBytesRcvd < totalSizePerSocket) {
+                    throw new IOException("クライアントがデータの途中でコネクションを切断しました．");
+                }
+                verifyChecksum(in, totalBytesRcvd - headerSize, (int)crc.getValue());
             }
         }
         catch (IOException ex) {
@@ -100,6 +303,105 @@ class UploadProtocol
             catch (IOException ex) {
                 this.logger.println("例外発生：" + ex.getMessage());
             }
+            // 受信バッファをプールへ返し，帯域制限を終える．
+            BufferPool.getHeapInstance().release(buffer);
+            shaping.close();
+        }
+    }
+    
+    /**
+     * 圧縮されたデータを受信しながら展開し，展開後のバイト数を返す．
+     * 展開したデータは破棄する．チェックサムを計算する場合は展開後のデータで計算する．
+     * 展開に要した時間は，スレッドの CPU 時間で計測する．
+     * 圧縮されたストリームの終端より後に読み込んだデータは，入力ストリームへ戻す．
+     * 展開後のバイト数が dataSize と一致しない場合は IOException を投げる．
+     */
+    private long receiveCompressed(
+        PushbackInputStream in, byte[] recvBuffer, long dataSize, CRC32C crc
+    )
+        throws IOException
+    {
+        // 展開したデータの格納用バッファをプールから借りる．
+        ByteBuffer   buffer     = BufferPool.getHeapInstance().acquire(BUF_SIZE);
+        byte[]       rawBuffer  = buffer.array();
+        Inflater     inflater   = new Inflater();
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        try {
+            long rawBytes    = 0;
+            int  inputLength = 0;
+            while (!inflater.finished()) {
+                // 展開する入力が無くなったら，次のデータを受信する．
+                if (inflater.needsInput()) {
+                    inputLength = in.read(recvBuffer);
+                    if (inputLength == -1) {
+                        throw new IOException("クライアントが圧縮データの途中でコネクションを切断しました．");
+                    }
+                    this.wireBytes += inputLength;
+                    ServerMetrics.getInstance().addBytesIn(inputLength);
+                    inflater.setInput(recvBuffer, 0, inputLength);
+                }
+                long startCpu_ns = threadBean.getCurrentThreadCpuTime();
+                int  rawLength   = inflater.inflate(rawBuffer);
+                // DataFormatException
+                this.inflate_ns += threadBean.getCurrentThreadCpuTime() - startCpu_ns;
+                if (inflater.needsDictionary()) {
+                    throw new IOException("圧縮データが辞書を必要としています．");
+                }
+                if (crc != null) {
+                    crc.update(rawBuffer, 0, rawLength);
+                }
+                rawBytes += rawLength;
+                if (rawBytes > dataSize) {
+                    throw new IOException("展開したデータが通知されたサイズを超えました．");
+                }
+            }
+            // 通知されたサイズより前に圧縮されたストリームが終わった場合，続きを非圧縮の
+            // データとして受信すると，トレーラまでデータとして扱ってしまうため，エラーとする．
+            if (rawBytes != dataSize) {
+                throw new IOException(
+                    String.format(
+                        "展開したデータのサイズ(%d)が通知されたサイズ(%d)と一致しません．",
+                        rawBytes, dataSize
+                    )
+                );
+            }
+            // 圧縮されたストリームの終端より後のデータを戻す．
+            int remaining = inflater.getRemaining();
+            in.unread(recvBuffer, inputLength - remaining, remaining);
+            this.wireBytes -= remaining;
+            return rawBytes;
+        }
+        catch (DataFormatException ex) {
+            throw new IOException("圧縮データが不正です：" + ex.getMessage());
+        }
+        finally {
+            inflater.end();
+            BufferPool.getHeapInstance().release(buffer);
+        }
+    }
+    
+    /**
+     * トレーラのチェックサムを受信して計算した値と照合し，
+     * 検証したバイト数と計算した値を応答として返す．一致しない場合はログに出力する．
+     */
+    private void verifyChecksum(InputStream in, long verifiedBytes, int checksum)
+        throws IOException
+    {
+        int expected = new DataInputStream(in).readInt();
+        ServerMetrics.getInstance().addBytesIn(UploadProtocolFactory.TRAILER_SIZE);
+        
+        DataOutputStream out = new DataOutputStream(this.clntSock.getOutputStream());
+        out.writeLong(verifiedBytes);
+        out.writeInt(checksum);
+        out.flush();
+        ServerMetrics.getInstance().addBytesOut(UploadProtocolFactory.ACK_SIZE);
+        
+        if (checksum != expected) {
+            ServerMetrics.getInstance().addChecksumFailure();
+            this.logger.printf(
+                "チェックサムが一致しません（トレーラ %08x，計算値 %08x，%d バイト）\n",
+                expected, checksum, verifiedBytes
+            );
         }
     }
 }
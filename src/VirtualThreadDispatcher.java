@@ -0,0 +1,87 @@
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * コネクション毎に新しい仮想スレッドを利用するディスパッチャ用のクラス
+ * <p>
+ * ThreadPerConnectionDispatcher と同じく，ブロッキング入出力のプロトコルを
+ * そのまま利用できる．仮想スレッドはブロッキング入出力で待機している間，
+ * キャリアスレッド(プラットフォームスレッド)を解放するため，
+ * 数万のコネクションを同時に処理できる．
+ * <p>
+ * synchronized ブロック内での待機はキャリアスレッドを固定(pinning)してしまうため，
+ * プロトコルから利用する Logger は synchronized を利用しないものにすること．
+ * 固定の有無は -Djdk.tracePinnedThreads=full を指定して確認できる．
+ * <p>
+ * コネクション毎の無通信・受信待ち・送信待ちの時間の上限は，ConnectionTimeouts の
+ * システムプロパティで指定できる．
+ */
+class VirtualThreadDispatcher
+    implements
+        Dispatcher
+{
+    // インスタンス変数：
+    private final ConnectionTimeouts timeouts;  // コネクション毎の時間の上限
+    
+    /**
+     * システムプロパティの設定値で VirtualThreadDispatcher のインスタンスを生成する．
+     */
+    VirtualThreadDispatcher()
+    {
+        this(new ConnectionTimeouts());
+    }
+    
+    /**
+     * コネクション毎の時間の上限を指定して VirtualThreadDispatcher のインスタンスを生成する．
+     */
+    VirtualThreadDispatcher(ConnectionTimeouts timeouts)
+    {
+        this.timeouts = timeouts;
+    }
+    
+    /**
+     * コネクション毎に新しい仮想スレッドを割り当てる方法を用いて
+     * ディスパッチ処理を開始する．
+     */
+    @Override
+    public void startDispatching(
+        ServerSocket servSock, ProtocolFactory factory, Logger logger
+    )
+    {
+        // 仮想スレッドを生成するためのビルダーを生成する．
+        // 生成される仮想スレッドには，連番付きの名前が付けられる．
+        Thread.Builder builder = Thread.ofVirtual().name("VirtualThread-", 0);
+        
+        // コネクション毎の時間を監視するタイミングホイールを開始する．
+        HashedTimingWheel wheel = this.timeouts.startWheel(logger);
+        logger.printf("%s\n", this.timeouts);
+        
+        // クライアントとのコネクション毎に仮想スレッドを生成し，
+        // プロトコルの処理を開始する．
+        while (true) {
+            try {
+                // クライアントとのコネクションの確立を待ち，
+                // 入出力を監視するソケットで包む．
+                Socket clntSock = this.timeouts.wrap(servSock.accept(), wheel, logger);
+                
+                // プロトコル処理用のインスタンスを生成し，
+                // 処理開始までの時間と継続時間を計測するためのインスタンスで包む．
+                Runnable protocol = new MeteredProtocol(
+                    factory.createProtocol(clntSock, logger)
+                );
+                
+                // 生成したインスタンスの run() メソッドを呼び出す
+                // 仮想スレッドを生成し，プロトコルの処理を開始する．
+                Thread thread = builder.start(protocol);
+                
+                // 処理を開始したスレッド名をログに出力する．
+                logger.printf("処理開始（スレッド名：%s）\n", thread.getName());
+            }
+            catch (IOException ex) {
+                logger.printf("例外発生：%s\n", ex.getMessage());
+            }
+        }
+    }
+}